@@ -0,0 +1,290 @@
+/*
+ * Copyright (C) 2005-2013 Alfresco Software Limited.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+
+ * As a special exception to the terms and conditions of version 2.0 of 
+ * the GPL, you may redistribute this Program in connection with Free/Libre 
+ * and Open Source Software ("FLOSS") applications as described in Alfresco's 
+ * FLOSS exception.  You should have recieved a copy of the text describing 
+ * the FLOSS exception, and it is also available here: 
+ * http://www.alfresco.com/legal/licensing"
+ */
+package org.alfresco.trashcan;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+
+import org.alfresco.model.ContentModel;
+import org.alfresco.repo.domain.node.NodeDAO;
+import org.alfresco.repo.domain.node.NodeDAO.ChildAssocRefQueryCallback;
+import org.alfresco.service.cmr.repository.ChildAssociationRef;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.cmr.repository.NodeService;
+import org.alfresco.service.cmr.repository.StoreRef;
+import org.alfresco.service.namespace.NamespaceService;
+import org.alfresco.service.namespace.QName;
+import org.alfresco.util.Pair;
+
+/**
+ * 
+ * An in-memory stand-in of the archive store, exposed as a
+ * {@link org.alfresco.service.cmr.repository.NodeService NodeService} proxy
+ * implementing only the calls the trashcan cleaner makes on the legacy path:
+ * <b>getRootNode</b>, <b>getChildAssocs</b>, <b>getType</b>,
+ * <b>getProperty</b>, <b>exists</b> and <b>deleteNode</b>. Any other call
+ * fails. The paged path is served by a
+ * {@link org.alfresco.repo.domain.node.NodeDAO NodeDAO} proxy over the same
+ * trashcan, implementing <b>getRootNode</b>, the streaming
+ * <b>getChildAssocs</b>, <b>cacheNodes</b> and <b>getNodeType</b>, and by an
+ * {@link org.alfresco.trashcan.ArchivedChildrenDAO ArchivedChildrenDAO}
+ * answering the bounded select of each page from memory.
+ * 
+ * The trashcan holds <b>size</b> children of the archive store root. A
+ * fraction <b>archiveUserRatio</b> of them are archiveuser nodes and a
+ * fraction <b>youngRatio</b> of the others were archived now, the rest one
+ * year ago. They are spread at random with a fixed seed, so every run of a
+ * benchmark sees the same trashcan. The node ids are their positions, so
+ * lookups cost no more than parsing the id, and the child association ids
+ * are the positions plus one. The deleted nodes leave the trashcan until it
+ * is {@link #restore() restored}.
+ * 
+ * @author Rui Fernandes
+ * 
+ */
+public class InMemoryNodeService implements InvocationHandler
+{
+
+	private static final long YEAR_MILLIS = 1000L * 60 * 60 * 24 * 365;
+	private static final QName ASSOC_QNAME = QName.createQName(
+	        NamespaceService.SYSTEM_MODEL_1_0_URI, "archivedItem");
+
+	private StoreRef archiveStore = StoreRef.STORE_REF_ARCHIVE_SPACESSTORE;
+	private NodeRef archiveRoot = new NodeRef(archiveStore, "root");
+	private List<ChildAssociationRef> childAssocs;
+	private boolean[] archiveUsers;
+	private long[] archivedTimes;
+	private boolean[] deleted;
+
+	/**
+	 * 
+	 * @param size
+	 * @param archiveUserRatio
+	 * @param youngRatio
+	 */
+	public InMemoryNodeService(int size, double archiveUserRatio,
+	        double youngRatio)
+	{
+		Random random = new Random(size);
+		long now = System.currentTimeMillis();
+		childAssocs = new ArrayList<ChildAssociationRef>(size);
+		archiveUsers = new boolean[size];
+		archivedTimes = new long[size];
+		deleted = new boolean[size];
+		for (int i = 0; i < size; i++)
+		{
+			NodeRef node = new NodeRef(archiveStore, Integer.toString(i));
+			childAssocs.add(new ChildAssociationRef(
+			        ContentModel.ASSOC_CHILDREN, archiveRoot, ASSOC_QNAME, node,
+			        true, i));
+			archiveUsers[i] = random.nextDouble() < archiveUserRatio;
+			archivedTimes[i] = random.nextDouble() < youngRatio ? now : now
+			        - YEAR_MILLIS;
+		}
+	}
+
+	/**
+	 * 
+	 * It returns the {@link org.alfresco.service.cmr.repository.NodeService
+	 * NodeService} proxy over this trashcan.
+	 * 
+	 * @return
+	 */
+	public NodeService getNodeService()
+	{
+		return (NodeService) Proxy.newProxyInstance(
+		        NodeService.class.getClassLoader(),
+		        new Class<?>[] { NodeService.class }, this);
+	}
+
+	public Object invoke(Object proxy, Method method, Object[] args)
+	{
+		String name = method.getName();
+		if (name.equals("getRootNode"))
+		{
+			return archiveRoot;
+		}
+		if (name.equals("getChildAssocs") && args.length == 1)
+		{
+			List<ChildAssociationRef> children = new ArrayList<ChildAssociationRef>(
+			        childAssocs.size());
+			for (int i = 0; i < childAssocs.size(); i++)
+			{
+				if (!deleted[i])
+					children.add(childAssocs.get(i));
+			}
+			return children;
+		}
+		if (name.equals("getType"))
+		{
+			return archiveUsers[indexOf(args[0])] ? ContentModel.TYPE_ARCHIVE_USER
+			        : ContentModel.TYPE_CONTENT;
+		}
+		if (name.equals("getProperty")
+		        && ContentModel.PROP_ARCHIVED_DATE.equals(args[1]))
+		{
+			return new Date(archivedTimes[indexOf(args[0])]);
+		}
+		if (name.equals("exists"))
+		{
+			return !deleted[indexOf(args[0])];
+		}
+		if (name.equals("deleteNode"))
+		{
+			deleted[indexOf(args[0])] = true;
+			return null;
+		}
+		if (name.equals("toString"))
+		{
+			return "InMemoryNodeService";
+		}
+		throw new UnsupportedOperationException(name);
+	}
+
+	/**
+	 * 
+	 * It brings back all the nodes deleted, so the trashcan is the same as
+	 * when it was built.
+	 * 
+	 */
+	public void restore()
+	{
+		Arrays.fill(deleted, false);
+	}
+
+	/**
+	 * 
+	 * It returns the {@link org.alfresco.repo.domain.node.NodeDAO NodeDAO}
+	 * proxy over this trashcan.
+	 * 
+	 * @return
+	 */
+	public NodeDAO getNodeDAO()
+	{
+		return (NodeDAO) Proxy.newProxyInstance(NodeDAO.class.getClassLoader(),
+		        new Class<?>[] { NodeDAO.class }, new NodeDAOHandler());
+	}
+
+	/**
+	 * 
+	 * It returns an {@link org.alfresco.trashcan.ArchivedChildrenDAO
+	 * ArchivedChildrenDAO} reading the pages of this trashcan from memory.
+	 * 
+	 * @return
+	 */
+	public ArchivedChildrenDAO getChildrenDAO()
+	{
+		return new ArchivedChildrenDAO()
+		{
+			@Override
+			public List<ArchivedChildEntity> getChildren(Long parentNodeId,
+			        long fromAssocId, long toAssocId, int maxResults)
+			{
+				List<ArchivedChildEntity> children = new ArrayList<ArchivedChildEntity>(
+				        maxResults);
+				long to = Math.min(toAssocId, childAssocs.size());
+				for (long assocId = fromAssocId + 1; assocId <= to
+				        && children.size() < maxResults; assocId++)
+				{
+					int i = (int) (assocId - 1);
+					if (deleted[i])
+						continue;
+					ArchivedChildEntity child = new ArchivedChildEntity();
+					child.setAssocId(assocId);
+					child.setNodeId(Long.valueOf(i));
+					child.setUuid(Integer.toString(i));
+					children.add(child);
+				}
+				return children;
+			}
+		};
+	}
+
+	/**
+	 * 
+	 * The calls of the {@link org.alfresco.repo.domain.node.NodeDAO NodeDAO}
+	 * proxy.
+	 * 
+	 */
+	private class NodeDAOHandler implements InvocationHandler
+	{
+		public Object invoke(Object proxy, Method method, Object[] args)
+		{
+			String name = method.getName();
+			if (name.equals("getRootNode"))
+			{
+				return new Pair<Long, NodeRef>(-1L, archiveRoot);
+			}
+			if (name.equals("getChildAssocs") && args.length == 7)
+			{
+				streamChildAssocs((ChildAssocRefQueryCallback) args[6]);
+				return null;
+			}
+			if (name.equals("cacheNodes"))
+			{
+				return null;
+			}
+			if (name.equals("getNodeType"))
+			{
+				return archiveUsers[((Long) args[0]).intValue()] ? ContentModel.TYPE_ARCHIVE_USER
+				        : ContentModel.TYPE_CONTENT;
+			}
+			if (name.equals("toString"))
+			{
+				return "InMemoryNodeDAO";
+			}
+			throw new UnsupportedOperationException(name);
+		}
+
+		private void streamChildAssocs(ChildAssocRefQueryCallback callback)
+		{
+			Pair<Long, NodeRef> parent = new Pair<Long, NodeRef>(-1L,
+			        archiveRoot);
+			for (int i = 0; i < childAssocs.size(); i++)
+			{
+				if (deleted[i])
+					continue;
+				ChildAssociationRef childAssoc = childAssocs.get(i);
+				callback.handle(new Pair<Long, ChildAssociationRef>(
+				        (long) i + 1, childAssoc), parent,
+				        new Pair<Long, NodeRef>((long) i, childAssoc
+				                .getChildRef()));
+			}
+			callback.done();
+		}
+	}
+
+	private int indexOf(Object node)
+	{
+		return Integer.parseInt(((NodeRef) node).getId());
+	}
+
+}
@@ -0,0 +1,176 @@
+/*
+ * Copyright (C) 2005-2013 Alfresco Software Limited.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+
+ * As a special exception to the terms and conditions of version 2.0 of 
+ * the GPL, you may redistribute this Program in connection with Free/Libre 
+ * and Open Source Software ("FLOSS") applications as described in Alfresco's 
+ * FLOSS exception.  You should have recieved a copy of the text describing 
+ * the FLOSS exception, and it is also available here: 
+ * http://www.alfresco.com/legal/licensing"
+ */
+package org.alfresco.trashcan;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.alfresco.service.cmr.repository.ChildAssociationRef;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.cmr.repository.NodeService;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * 
+ * JMH benchmarks of the steps of the legacy
+ * {@link org.alfresco.trashcan.TrashcanCleaner TrashcanCleaner} selection and
+ * deletion, <b>getTrashcanChildAssocs</b>, <b>filterArchiveUsers</b>,
+ * <b>fillBatchToDelete</b> and <b>deleteNodes</b>, and of the batch selection
+ * reading the archive store root page by page, <b>getBatchToDeleteByPages</b>,
+ * run against an {@link org.alfresco.trashcan.InMemoryNodeService
+ * InMemoryNodeService} for each combination of trashcan size, ratio of
+ * archiveuser nodes and ratio of nodes too young to be deleted.
+ * 
+ * Each <b>deleteNodes</b> invocation deletes the batch from a restored
+ * trashcan, so it never measures deleting nodes already gone. The restore
+ * runs outside the measured time.
+ * 
+ * The cost measured is the cleaner's own work over the trashcan (loops,
+ * allocations, calls per node), not the database round trips of a real
+ * repository.
+ * 
+ * @author Rui Fernandes
+ * 
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = { "-Xmx8g" })
+public class TrashcanCleanerBenchmark
+{
+
+	private static final int DAYS_TO_KEEP = 30;
+
+	@Param({ "10000", "100000", "1000000", "10000000" })
+	public int trashcanSize;
+
+	@Param({ "0.0", "0.1" })
+	public double archiveUserRatio;
+
+	@Param({ "0.0", "0.5", "0.9" })
+	public double youngRatio;
+
+	@Param({ "1000" })
+	public int deleteBatchCount;
+
+	@Param({ "250" })
+	public int pageSize;
+
+	private InMemoryNodeService trashcan;
+	private NodeService nodeService;
+	private TrashcanCleaner cleaner;
+	private TrashcanCleaner pagedCleaner;
+	private List<ChildAssociationRef> allChildAssocs;
+	private List<ChildAssociationRef> childAssocs;
+	private List<NodeRef> batch;
+
+	@Setup(Level.Trial)
+	public void setUpTrashcan()
+	{
+		trashcan = new InMemoryNodeService(trashcanSize, archiveUserRatio,
+		        youngRatio);
+		nodeService = trashcan.getNodeService();
+		cleaner = new TrashcanCleaner(nodeService, deleteBatchCount,
+		        DAYS_TO_KEEP);
+		pagedCleaner = new TrashcanCleaner(nodeService, deleteBatchCount,
+		        DAYS_TO_KEEP);
+		pagedCleaner.setNodeDAO(trashcan.getNodeDAO());
+		pagedCleaner.setArchivedChildrenDAO(trashcan.getChildrenDAO());
+		pagedCleaner.setPageSize(pageSize);
+		allChildAssocs = nodeService.getChildAssocs(nodeService
+		        .getRootNode(null));
+		childAssocs = cleaner.getTrashcanChildAssocs();
+		batch = cleaner.fillBatchToDelete(new ArrayList<NodeRef>(
+		        deleteBatchCount), childAssocs, new ArchivedDateFilter(
+		        nodeService, DAYS_TO_KEEP));
+	}
+
+	@Benchmark
+	public List<ChildAssociationRef> getTrashcanChildAssocs()
+	{
+		return cleaner.getTrashcanChildAssocs();
+	}
+
+	@Benchmark
+	public List<ChildAssociationRef> filterArchiveUsers()
+	{
+		return cleaner.filterArchiveUsers(allChildAssocs);
+	}
+
+	@Benchmark
+	public List<NodeRef> fillBatchToDelete()
+	{
+		return cleaner.fillBatchToDelete(new ArrayList<NodeRef>(
+		        deleteBatchCount), childAssocs, new ArchivedDateFilter(
+		        nodeService, DAYS_TO_KEEP));
+	}
+
+	@Benchmark
+	public List<NodeRef> getBatchToDeleteByPages()
+	{
+		return pagedCleaner.getBatchToDelete();
+	}
+
+	@Benchmark
+	public List<NodeRef> deleteNodes(Deletion deletion)
+	{
+		cleaner.deleteNodes(deletion.batch);
+		return deletion.batch;
+	}
+
+	/**
+	 * 
+	 * The batch deleted by each <b>deleteNodes</b> invocation, with the
+	 * trashcan restored before it.
+	 * 
+	 */
+	@State(Scope.Thread)
+	public static class Deletion
+	{
+		private List<NodeRef> batch;
+
+		@Setup(Level.Invocation)
+		public void restoreTrashcan(TrashcanCleanerBenchmark benchmark)
+		{
+			benchmark.trashcan.restore();
+			batch = new ArrayList<NodeRef>(benchmark.batch);
+		}
+	}
+
+}
@@ -0,0 +1,28 @@
+{
+	"store": "${store?js_string}",
+	"daysToKeep": ${daysToKeep?c},
+	"sampled": ${estimate.sampled?string("true", "false")},
+	"population": ${estimate.population?c},
+	"examined": ${estimate.examined?c},
+	"eligible":
+	{
+		"count": ${estimate.eligible?c},
+		"low": ${estimate.eligibleLow?c},
+		"high": ${estimate.eligibleHigh?c}
+	},
+	"eligibleBytes":
+	{
+		"count": ${estimate.eligibleBytes?c},
+		"low": ${estimate.eligibleBytesLow?c},
+		"high": ${estimate.eligibleBytesHigh?c}
+	},
+	"ageDistribution":
+	[
+<#assign bounds = estimate.ageBucketDays>
+<#assign counts = estimate.ageCounts>
+<#list counts as count>
+		{ "maxDays": <#if count_index < bounds?size>${bounds[count_index]?c}<#else>null</#if>, "count": ${count?c} }<#if count_has_next>,</#if>
+</#list>
+	],
+	"projectedDrainSeconds": ${estimate.projectedDrainSeconds?c}
+}
@@ -0,0 +1,10 @@
+{
+	"action": "${action?js_string}",
+	"store": "${store?js_string}",
+	"result":
+	{
+<#list result?keys as key>
+		"${key}": ${result[key]?c}<#if key_has_next>,</#if>
+</#list>
+	}
+}
@@ -0,0 +1,13 @@
+<#import "purge.lib.ftl" as purgeLib/>
+<#if purge??>
+<@purgeLib.purgeJSON purge=purge/>
+<#else>
+{
+	"purges":
+	[
+<#list purges as purge>
+	<@purgeLib.purgeJSON purge=purge/><#if purge_has_next>,</#if>
+</#list>
+	]
+}
+</#if>
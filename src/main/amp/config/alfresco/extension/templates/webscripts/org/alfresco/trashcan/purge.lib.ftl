@@ -0,0 +1,19 @@
+<#macro purgeJSON purge>
+	{
+		"id": "${purge.id}",
+		"store": "${purge.archiveStoreUrl?js_string}",
+		"state": "${purge.state}",
+		"daysToKeep": ${purge.daysToKeep?c},
+		"maxNodes": ${purge.maxNodes?c},
+		"maxSeconds": ${purge.maxSeconds?c},
+		"eligible": ${purge.eligible?c},
+		"scanned": ${purge.scanned?c},
+		"deleted": ${purge.deleted?c},
+		"bytesReclaimed": ${purge.bytesReclaimed?c},
+		"bytesFreed": ${purge.bytesFreed?c},
+		"rate": ${purge.rate?c},
+		"elapsedSeconds": ${purge.elapsedSeconds?c},
+		"etaSeconds": ${purge.etaSeconds?c},
+		"error": <#if purge.error??>"${purge.error?js_string}"<#else>null</#if>
+	}
+</#macro>
@@ -0,0 +1,2 @@
+<#import "purge.lib.ftl" as purgeLib/>
+<@purgeLib.purgeJSON purge=purge/>
@@ -0,0 +1,8 @@
+{
+	"result":
+	{
+<#list result?keys as key>
+		"${key}": ${result[key]?c}<#if key_has_next>,</#if>
+</#list>
+	}
+}
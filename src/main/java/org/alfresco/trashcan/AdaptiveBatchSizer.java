@@ -0,0 +1,208 @@
+/*
+ * Copyright (C) 2005-2013 Alfresco Software Limited.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+
+ * As a special exception to the terms and conditions of version 2.0 of 
+ * the GPL, you may redistribute this Program in connection with Free/Libre 
+ * and Open Source Software ("FLOSS") applications as described in Alfresco's 
+ * FLOSS exception.  You should have recieved a copy of the text describing 
+ * the FLOSS exception, and it is also available here: 
+ * http://www.alfresco.com/legal/licensing"
+ */
+package org.alfresco.trashcan;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * 
+ * This class adapts the number of nodes deleted by each transaction to the
+ * observed delete latency, following an additive increase / multiplicative
+ * decrease policy between <b>minBatchCount</b> and <b>maxBatchCount</b>. When
+ * the cleaner deletes the batch in the caller transaction it sizes the batch,
+ * and when the cleaner runs its own transactions it sizes their sub-batches.
+ * The size configured for the cleaner is also a floor when it is below
+ * <b>minBatchCount</b>, so the sizer never raises it.
+ * 
+ * After each batch the cleaner reports the nodes deleted by its transactions
+ * and their latency, commit included, both on average over the full ones
+ * when there are any, so a last partial sub-batch doesn't stop the growth. If
+ * the latency went above <b>targetTransactionMillis</b> the next transactions
+ * are halved, otherwise, if they were full, they grow by
+ * <b>batchIncrement</b> nodes. Each change of size is logged together with
+ * its reason.
+ * 
+ * It is defined as a Spring bean so its state survives between executions of
+ * the job. If <b>targetTransactionMillis</b> is 0 or negative it is disabled
+ * and the configured <b>deleteBatchCount</b> is always used.
+ * 
+ * Each archive store other than the default one is sized by a sizer of its
+ * own, obtained with {@link #forStore(String) forStore}, so the latency of one
+ * store does not shrink the batches of another.
+ * 
+ * @author Rui Fernandes
+ * 
+ */
+public class AdaptiveBatchSizer
+{
+
+	private static Log logger = LogFactory.getLog(AdaptiveBatchSizer.class);
+
+	private int minBatchCount = 1;
+	private int maxBatchCount = 10000;
+	private int batchIncrement = 100;
+	private long targetTransactionMillis;
+	private int batchCount;
+	private int floor;
+	private Map<String, AdaptiveBatchSizer> storeSizers = new HashMap<String, AdaptiveBatchSizer>();
+
+	public void setMinBatchCount(int minBatchCount)
+	{
+		this.minBatchCount = minBatchCount;
+	}
+
+	public void setMaxBatchCount(int maxBatchCount)
+	{
+		this.maxBatchCount = maxBatchCount;
+	}
+
+	public void setBatchIncrement(int batchIncrement)
+	{
+		this.batchIncrement = batchIncrement;
+	}
+
+	public void setTargetTransactionMillis(long targetTransactionMillis)
+	{
+		this.targetTransactionMillis = targetTransactionMillis;
+	}
+
+	/**
+	 * 
+	 * It returns the sizer of an archive store: this one for the default
+	 * store, otherwise one created on first use with the same settings.
+	 * 
+	 * @param archiveStoreUrl
+	 * @return
+	 */
+	public synchronized AdaptiveBatchSizer forStore(String archiveStoreUrl)
+	{
+		if (archiveStoreUrl == null
+		        || TrashcanCleanerJob.DEFAULT_ARCHIVE_STORE
+		                .equals(archiveStoreUrl))
+			return this;
+		AdaptiveBatchSizer sizer = storeSizers.get(archiveStoreUrl);
+		if (sizer == null)
+		{
+			sizer = new AdaptiveBatchSizer();
+			sizer.setMinBatchCount(minBatchCount);
+			sizer.setMaxBatchCount(maxBatchCount);
+			sizer.setBatchIncrement(batchIncrement);
+			sizer.setTargetTransactionMillis(targetTransactionMillis);
+			storeSizers.put(archiveStoreUrl, sizer);
+		}
+		return sizer;
+	}
+
+	/**
+	 * 
+	 * It checks if the batch size should be adapted.
+	 * 
+	 * @return
+	 */
+	public boolean isEnabled()
+	{
+		return targetTransactionMillis > 0;
+	}
+
+	/**
+	 * 
+	 * It returns the size for the next transactions. The first time it is
+	 * called the size starts from <b>initialBatchCount</b>, kept within the
+	 * bounds, and the lower bound is clamped to it.
+	 * 
+	 * @param initialBatchCount
+	 * @return
+	 */
+	public synchronized int getBatchCount(int initialBatchCount)
+	{
+		if (batchCount == 0)
+		{
+			floor = Math.max(1, Math.min(minBatchCount, initialBatchCount));
+			batchCount = bound(initialBatchCount);
+		}
+		return batchCount;
+	}
+
+	/**
+	 * 
+	 * It records the latency of the transactions of a batch and chooses the
+	 * size of the next ones.
+	 * 
+	 * @param transactionNodes
+	 *            the nodes deleted by each transaction, on average
+	 * @param transactionMillis
+	 *            the time taken by each transaction to delete them and
+	 *            commit, on average
+	 */
+	public synchronized void record(int transactionNodes,
+	        long transactionMillis)
+	{
+		if (transactionNodes <= 0)
+			return;
+		long nodeMillis = transactionMillis / transactionNodes;
+		int previous = batchCount;
+		String reason;
+		if (transactionMillis > targetTransactionMillis)
+		{
+			batchCount = bound(batchCount / 2);
+			reason = String.format(
+			        "transaction latency %s ms above target %s ms",
+			        transactionMillis, targetTransactionMillis);
+		}
+		else if (transactionNodes >= batchCount)
+		{
+			batchCount = bound(batchCount + batchIncrement);
+			reason = String.format(
+			        "transaction latency %s ms within target %s ms",
+			        transactionMillis, targetTransactionMillis);
+		}
+		else
+		{
+			reason = "batch not full";
+		}
+		if (batchCount != previous && logger.isInfoEnabled())
+		{
+			logger.info(String.format(
+			        "Batch size changed from %s to %s: %s (%s ms per node)",
+			        previous, batchCount, reason, nodeMillis));
+		}
+		else if (logger.isDebugEnabled())
+		{
+			logger.debug(String.format(
+			        "Batch size kept at %s: %s (%s ms per node)", batchCount,
+			        reason, nodeMillis));
+		}
+	}
+
+	private int bound(int size)
+	{
+		return Math.max(floor, Math.min(maxBatchCount, size));
+	}
+
+}
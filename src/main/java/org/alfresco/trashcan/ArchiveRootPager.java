@@ -0,0 +1,417 @@
+/*
+ * Copyright (C) 2005-2013 Alfresco Software Limited.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+
+ * As a special exception to the terms and conditions of version 2.0 of 
+ * the GPL, you may redistribute this Program in connection with Free/Libre 
+ * and Open Source Software ("FLOSS") applications as described in Alfresco's 
+ * FLOSS exception.  You should have recieved a copy of the text describing 
+ * the FLOSS exception, and it is also available here: 
+ * http://www.alfresco.com/legal/licensing"
+ */
+package org.alfresco.trashcan;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeMap;
+
+import org.alfresco.model.ContentModel;
+import org.alfresco.repo.domain.node.NodeDAO;
+import org.alfresco.repo.domain.node.NodeDAO.ChildAssocRefQueryCallback;
+import org.alfresco.service.cmr.repository.ChildAssociationRef;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.cmr.repository.StoreRef;
+import org.alfresco.util.Pair;
+
+/**
+ * 
+ * This class walks the children of the archive store root without ever
+ * holding the complete list of child associations in memory. The children
+ * are read in pages of <b>pageSize</b> nodes, each with its own query, and
+ * handed over to a {@link PageCallback PageCallback}. The walk stops as soon
+ * as the callback says it doesn't need any more pages.
+ * 
+ * The pages are read with the bounded select of an
+ * {@link org.alfresco.trashcan.ArchivedChildrenDAO ArchivedChildrenDAO}, set
+ * with {@link #setChildrenDAO(ArchivedChildrenDAO) setChildrenDAO}, which only
+ * returns the rows of the page. Without it each page streams the whole list
+ * of child associations and keeps the lowest ids, which is only fit for small
+ * trashcans.
+ * 
+ * Each page is bulk loaded into the node caches with a single
+ * {@link org.alfresco.repo.domain.node.NodeDAO#cacheNodes(List) cacheNodes}
+ * call once its query is done, and the archiveuser nodes are dropped from
+ * it, so the callback only receives archived nodes whose type, aspects and
+ * properties are already cached.
+ * 
+ * The child associations are read in id order and the walk can be limited to
+ * a range of child association ids with {@link #setRange(long, long)
+ * setRange}. After the walk {@link #getLastAssocId() getLastAssocId} tells up
+ * to which association the callback has fully handled, so a later walk can
+ * resume from there.
+ * 
+ * If a {@link org.alfresco.trashcan.TrashcanShard TrashcanShard} is set the
+ * nodes of other shards are skipped, without loading them.
+ * 
+ * @author Rui Fernandes
+ * 
+ */
+public class ArchiveRootPager
+{
+
+	protected static final int DEFAULT_PAGE_SIZE = 250;
+
+	private NodeDAO nodeDAO;
+	private StoreRef archiveStore;
+	private int pageSize = DEFAULT_PAGE_SIZE;
+	private long fromAssocId = 0;
+	private long toAssocId = Long.MAX_VALUE;
+	private long lastAssocId;
+	private boolean completed;
+	private int archiveUsers;
+	private long scanned;
+	private TrashcanShard shard;
+	private ArchivedChildrenDAO childrenDAO;
+
+	/**
+	 * 
+	 * The callback receiving each page of archived nodes.
+	 * 
+	 */
+	public interface PageCallback
+	{
+		/**
+		 * 
+		 * Handles a page of archived nodes, already cached and without the
+		 * archiveuser nodes.
+		 * 
+		 * @param page
+		 * @return true if the next page should be read, false to stop the walk
+		 */
+		boolean handlePage(List<NodeRef> page);
+	}
+
+	/**
+	 * 
+	 * @param nodeDAO
+	 * @param archiveStore
+	 * @param pageSize
+	 */
+	public ArchiveRootPager(NodeDAO nodeDAO, StoreRef archiveStore,
+	        int pageSize)
+	{
+		this.nodeDAO = nodeDAO;
+		this.archiveStore = archiveStore;
+		if (pageSize > 0)
+			this.pageSize = pageSize;
+	}
+
+	/**
+	 * 
+	 * It limits the walk to the child associations with id greater than
+	 * <b>fromAssocId</b> and not greater than <b>toAssocId</b>.
+	 * 
+	 * @param fromAssocId
+	 * @param toAssocId
+	 */
+	public void setRange(long fromAssocId, long toAssocId)
+	{
+		this.fromAssocId = fromAssocId;
+		this.toAssocId = toAssocId;
+	}
+
+	/**
+	 * 
+	 * It reads the pages of the walk with the bounded select of the
+	 * <b>childrenDAO</b> instead of streaming the child associations.
+	 * 
+	 * @param childrenDAO
+	 */
+	public void setChildrenDAO(ArchivedChildrenDAO childrenDAO)
+	{
+		this.childrenDAO = childrenDAO;
+	}
+
+	/**
+	 * 
+	 * It limits the walk to the nodes of a shard of the trashcan.
+	 * 
+	 * @param shard
+	 */
+	public void setShard(TrashcanShard shard)
+	{
+		this.shard = shard;
+	}
+
+	/**
+	 * 
+	 * The highest child association id of the pages fully handled by the
+	 * callback during the last walk, or the start of the range if none was.
+	 * 
+	 * @return
+	 */
+	public long getLastAssocId()
+	{
+		return lastAssocId;
+	}
+
+	/**
+	 * 
+	 * It checks if the last walk read all the children in the range, that is,
+	 * the callback never asked to stop.
+	 * 
+	 * @return
+	 */
+	public boolean isCompleted()
+	{
+		return completed;
+	}
+
+	/**
+	 * 
+	 * The number of archiveuser nodes dropped from the pages during the last
+	 * walk.
+	 * 
+	 * @return
+	 */
+	public int getArchiveUsers()
+	{
+		return archiveUsers;
+	}
+
+	/**
+	 * 
+	 * The number of children of the archive store root read by the last
+	 * {@link #sample(int, Random) sample}.
+	 * 
+	 * @return
+	 */
+	public long getScanned()
+	{
+		return scanned;
+	}
+
+	/**
+	 * 
+	 * It picks <b>sampleSize</b> children of the archive store root uniformly
+	 * at random, with a reservoir filled while streaming the child
+	 * associations, so only the nodes picked are loaded. The nodes are loaded
+	 * page by page and the archiveuser nodes picked are dropped and counted
+	 * (see {@link #getArchiveUsers() getArchiveUsers}).
+	 * 
+	 * @param sampleSize
+	 * @param random
+	 * @return the archived nodes picked
+	 */
+	public List<NodeRef> sample(final int sampleSize, final Random random)
+	{
+		final List<Pair<Long, NodeRef>> reservoir = new ArrayList<Pair<Long, NodeRef>>(
+		        sampleSize);
+		final long[] seen = new long[1];
+		Pair<Long, NodeRef> archiveRoot = nodeDAO.getRootNode(archiveStore);
+		nodeDAO.getChildAssocs(archiveRoot.getFirst(), null, null, null, null,
+		        null, new ChildAssocRefQueryCallback()
+		        {
+			        public boolean preLoadNodes()
+			        {
+				        return false;
+			        }
+
+			        public boolean orderResults()
+			        {
+				        return false;
+			        }
+
+			        public boolean handle(
+			                Pair<Long, ChildAssociationRef> childAssocPair,
+			                Pair<Long, NodeRef> parentNodePair,
+			                Pair<Long, NodeRef> childNodePair)
+			        {
+				        if (shard != null
+				                && !shard.contains(childNodePair.getSecond()))
+					        return true;
+				        seen[0]++;
+				        if (reservoir.size() < sampleSize)
+				        {
+					        reservoir.add(childNodePair);
+				        }
+				        else
+				        {
+					        long slot = (long) (random.nextDouble() * seen[0]);
+					        if (slot < sampleSize)
+						        reservoir.set((int) slot, childNodePair);
+				        }
+				        return true;
+			        }
+
+			        public void done()
+			        {
+			        }
+		        });
+		scanned = seen[0];
+		archiveUsers = 0;
+		List<NodeRef> sample = new ArrayList<NodeRef>(reservoir.size());
+		for (int from = 0; from < reservoir.size(); from += pageSize)
+		{
+			sample.addAll(loadPage(reservoir.subList(from,
+			        Math.min(from + pageSize, reservoir.size()))));
+		}
+		return sample;
+	}
+
+	/**
+	 * 
+	 * Reads the children of the archive store root page by page into the
+	 * <b>callback</b> until all children were read or the callback asks to
+	 * stop. Each page is read with its own bounded query, and the nodes are
+	 * only loaded once that query is done.
+	 * 
+	 * @param callback
+	 */
+	public void walk(PageCallback callback)
+	{
+		lastAssocId = fromAssocId;
+		archiveUsers = 0;
+		Long archiveRootId = nodeDAO.getRootNode(archiveStore).getFirst();
+		boolean more = true;
+		boolean exhausted = false;
+		while (more && !exhausted)
+		{
+			List<Pair<Long, NodeRef>> page = new ArrayList<Pair<Long, NodeRef>>(
+			        pageSize);
+			long pageLastAssocId = lastAssocId;
+			while (page.size() < pageSize && !exhausted)
+			{
+				List<ArchivedChildEntity> rows = getChildren(archiveRootId,
+				        pageLastAssocId);
+				exhausted = rows.size() < pageSize;
+				for (int i = 0; i < rows.size(); i++)
+				{
+					ArchivedChildEntity row = rows.get(i);
+					pageLastAssocId = row.getAssocId();
+					NodeRef node = new NodeRef(archiveStore, row.getUuid());
+					if (shard == null || shard.contains(node))
+						page.add(new Pair<Long, NodeRef>(row.getNodeId(), node));
+					if (page.size() >= pageSize && i < rows.size() - 1)
+					{
+						// the rest of the rows are read again for the next page
+						exhausted = false;
+						break;
+					}
+				}
+			}
+			if (!page.isEmpty())
+				more = callback.handlePage(loadPage(page));
+			if (more)
+				lastAssocId = pageLastAssocId;
+		}
+		completed = more;
+	}
+
+	/**
+	 * 
+	 * It reads up to <b>pageSize</b> children of the archive store root with
+	 * a child association id greater than <b>fromAssocId</b> and in the range
+	 * of the walk, in id order. With an
+	 * {@link org.alfresco.trashcan.ArchivedChildrenDAO ArchivedChildrenDAO}
+	 * set the range and the limit are part of the select. Without one all the
+	 * child associations are streamed and only the lowest ids are kept, which
+	 * reads the whole archive root for each page.
+	 * 
+	 * @param archiveRootId
+	 * @param fromAssocId
+	 * @return
+	 */
+	private List<ArchivedChildEntity> getChildren(Long archiveRootId,
+	        final long fromAssocId)
+	{
+		if (childrenDAO != null)
+			return childrenDAO.getChildren(archiveRootId, fromAssocId,
+			        toAssocId, pageSize);
+		final TreeMap<Long, ArchivedChildEntity> rows =
+		        new TreeMap<Long, ArchivedChildEntity>();
+		nodeDAO.getChildAssocs(archiveRootId, null, null, null, null, null,
+		        new ChildAssocRefQueryCallback()
+		        {
+			        public boolean preLoadNodes()
+			        {
+				        return false;
+			        }
+
+			        public boolean orderResults()
+			        {
+				        return false;
+			        }
+
+			        public boolean handle(
+			                Pair<Long, ChildAssociationRef> childAssocPair,
+			                Pair<Long, NodeRef> parentNodePair,
+			                Pair<Long, NodeRef> childNodePair)
+			        {
+				        Long assocId = childAssocPair.getFirst();
+				        if (assocId <= fromAssocId || assocId > toAssocId)
+					        return true;
+				        ArchivedChildEntity row = new ArchivedChildEntity();
+				        row.setAssocId(assocId);
+				        row.setNodeId(childNodePair.getFirst());
+				        row.setUuid(childNodePair.getSecond().getId());
+				        rows.put(assocId, row);
+				        if (rows.size() > pageSize)
+					        rows.remove(rows.lastKey());
+				        return true;
+			        }
+
+			        public void done()
+			        {
+			        }
+		        });
+		return new ArrayList<ArchivedChildEntity>(rows.values());
+	}
+
+	/**
+	 * 
+	 * It bulk loads the nodes of the page into the caches and returns them
+	 * without the archiveuser node types.
+	 * 
+	 * @param nodePairs
+	 * @return
+	 */
+	private List<NodeRef> loadPage(List<Pair<Long, NodeRef>> nodePairs)
+	{
+		List<NodeRef> nodes = new ArrayList<NodeRef>(nodePairs.size());
+		for (Pair<Long, NodeRef> nodePair : nodePairs)
+		{
+			nodes.add(nodePair.getSecond());
+		}
+		nodeDAO.cacheNodes(nodes);
+		List<NodeRef> page = new ArrayList<NodeRef>(nodes.size());
+		for (Pair<Long, NodeRef> nodePair : nodePairs)
+		{
+			if (!ContentModel.TYPE_ARCHIVE_USER.equals(nodeDAO
+			        .getNodeType(nodePair.getFirst())))
+			{
+				page.add(nodePair.getSecond());
+			}
+			else
+			{
+				archiveUsers++;
+			}
+		}
+		return page;
+	}
+
+}
@@ -0,0 +1,219 @@
+/*
+ * Copyright (C) 2005-2013 Alfresco Software Limited.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+
+ * As a special exception to the terms and conditions of version 2.0 of 
+ * the GPL, you may redistribute this Program in connection with Free/Libre 
+ * and Open Source Software ("FLOSS") applications as described in Alfresco's 
+ * FLOSS exception.  You should have recieved a copy of the text describing 
+ * the FLOSS exception, and it is also available here: 
+ * http://www.alfresco.com/legal/licensing"
+ */
+package org.alfresco.trashcan;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 
+ * The cleaning settings of an archive store. The job reads the list of
+ * archive stores to clean from <b>trashcan.archiveStores</b>, a comma
+ * separated list of store urls, each one optionally followed by its own
+ * settings separated by semicolons, for example:
+ * 
+ * <pre>
+ * archive://SpacesStore,archive://CustomStore;daysToKeep=7;deleteBatchCount=500
+ * </pre>
+ * 
+ * The settings accepted are <b>daysToKeep</b>, <b>deleteBatchCount</b>,
+ * <b>pageSize</b>, <b>transactionSize</b>, <b>deleteWorkers</b> and
+ * <b>maxRunSeconds</b>. The ones not given take the global value.
+ * 
+ * @author Rui Fernandes
+ * 
+ */
+public class ArchiveStoreSettings
+{
+
+	private String archiveStoreUrl;
+	private int daysToKeep;
+	private int deleteBatchCount;
+	private int pageSize;
+	private int transactionSize;
+	private int deleteWorkers;
+	private int maxRunSeconds;
+
+	/**
+	 * 
+	 * @param archiveStoreUrl
+	 * @param defaults
+	 *            the settings to start from
+	 */
+	public ArchiveStoreSettings(String archiveStoreUrl,
+	        ArchiveStoreSettings defaults)
+	{
+		this(archiveStoreUrl, defaults.daysToKeep, defaults.deleteBatchCount,
+		        defaults.pageSize, defaults.transactionSize,
+		        defaults.deleteWorkers, defaults.maxRunSeconds);
+	}
+
+	/**
+	 * 
+	 * @param archiveStoreUrl
+	 * @param daysToKeep
+	 * @param deleteBatchCount
+	 * @param pageSize
+	 * @param transactionSize
+	 * @param deleteWorkers
+	 * @param maxRunSeconds
+	 */
+	public ArchiveStoreSettings(String archiveStoreUrl, int daysToKeep,
+	        int deleteBatchCount, int pageSize, int transactionSize,
+	        int deleteWorkers, int maxRunSeconds)
+	{
+		this.archiveStoreUrl = archiveStoreUrl;
+		this.daysToKeep = daysToKeep;
+		this.deleteBatchCount = deleteBatchCount;
+		this.pageSize = pageSize;
+		this.transactionSize = transactionSize;
+		this.deleteWorkers = deleteWorkers;
+		this.maxRunSeconds = maxRunSeconds;
+	}
+
+	/**
+	 * 
+	 * It parses the list of archive stores, each one with the
+	 * <b>defaults</b> overridden by its own settings. An empty list means
+	 * only the archive store of the defaults.
+	 * 
+	 * @param archiveStores
+	 * @param defaults
+	 * @return
+	 * @throws IllegalArgumentException
+	 *             if a setting is unknown or not a number
+	 */
+	public static List<ArchiveStoreSettings> parseList(String archiveStores,
+	        ArchiveStoreSettings defaults)
+	{
+		List<ArchiveStoreSettings> stores = new ArrayList<ArchiveStoreSettings>();
+		if (archiveStores != null)
+		{
+			for (String store : archiveStores.split(","))
+			{
+				if (store.trim().length() > 0)
+				{
+					stores.add(parse(store, defaults));
+				}
+			}
+		}
+		if (stores.isEmpty())
+		{
+			stores.add(defaults);
+		}
+		return stores;
+	}
+
+	private static ArchiveStoreSettings parse(String store,
+	        ArchiveStoreSettings defaults)
+	{
+		String[] parts = store.split(";");
+		ArchiveStoreSettings settings = new ArchiveStoreSettings(
+		        parts[0].trim(), defaults);
+		for (int i = 1; i < parts.length; i++)
+		{
+			String[] setting = parts[i].split("=", 2);
+			if (setting.length != 2)
+				throw new IllegalArgumentException(String.format(
+				        "Invalid setting '%s' for %s", parts[i], parts[0]));
+			settings.set(setting[0].trim(), setting[1].trim());
+		}
+		return settings;
+	}
+
+	private void set(String name, String value)
+	{
+		int number;
+		try
+		{
+			number = Integer.parseInt(value);
+		}
+		catch (NumberFormatException e)
+		{
+			throw new IllegalArgumentException(String.format(
+			        "Invalid value '%s' of %s for %s", value, name,
+			        archiveStoreUrl));
+		}
+		if (name.equals("daysToKeep"))
+			daysToKeep = number;
+		else if (name.equals("deleteBatchCount"))
+			deleteBatchCount = number;
+		else if (name.equals("pageSize"))
+			pageSize = number;
+		else if (name.equals("transactionSize"))
+			transactionSize = number;
+		else if (name.equals("deleteWorkers"))
+			deleteWorkers = number;
+		else if (name.equals("maxRunSeconds"))
+			maxRunSeconds = number;
+		else
+			throw new IllegalArgumentException(String.format(
+			        "Unknown setting %s for %s", name, archiveStoreUrl));
+	}
+
+	public String getArchiveStoreUrl()
+	{
+		return archiveStoreUrl;
+	}
+
+	public int getDaysToKeep()
+	{
+		return daysToKeep;
+	}
+
+	public int getDeleteBatchCount()
+	{
+		return deleteBatchCount;
+	}
+
+	public int getPageSize()
+	{
+		return pageSize;
+	}
+
+	public int getTransactionSize()
+	{
+		return transactionSize;
+	}
+
+	public int getDeleteWorkers()
+	{
+		return deleteWorkers;
+	}
+
+	public int getMaxRunSeconds()
+	{
+		return maxRunSeconds;
+	}
+
+	@Override
+	public String toString()
+	{
+		return String.format(
+		        "%s (daysToKeep=%s, deleteBatchCount=%s, maxRunSeconds=%s)",
+		        archiveStoreUrl, daysToKeep, deleteBatchCount, maxRunSeconds);
+	}
+
+}
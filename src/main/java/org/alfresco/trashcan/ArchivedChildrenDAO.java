@@ -0,0 +1,86 @@
+/*
+ * Copyright (C) 2005-2013 Alfresco Software Limited.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+
+ * As a special exception to the terms and conditions of version 2.0 of 
+ * the GPL, you may redistribute this Program in connection with Free/Libre 
+ * and Open Source Software ("FLOSS") applications as described in Alfresco's 
+ * FLOSS exception.  You should have recieved a copy of the text describing 
+ * the FLOSS exception, and it is also available here: 
+ * http://www.alfresco.com/legal/licensing"
+ */
+package org.alfresco.trashcan;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.ibatis.session.RowBounds;
+import org.mybatis.spring.SqlSessionTemplate;
+
+/**
+ * 
+ * It reads the children of the archive store root a page at a time, with a
+ * bounded select: the child associations with an id in a range, in id order,
+ * up to a maximum number of rows. Unlike the streaming
+ * {@link org.alfresco.repo.domain.node.NodeDAO NodeDAO} queries, the database
+ * only returns the rows of the page, and the result set is closed before the
+ * caller loads the nodes.
+ * 
+ * The select is mapped in the <b>alfresco.trashcan</b> MyBatis namespace of
+ * the module and runs on the repository data source, inside the current
+ * transaction.
+ * 
+ * @author Rui Fernandes
+ * 
+ */
+public class ArchivedChildrenDAO
+{
+
+	private static final String SELECT_CHILDREN = "alfresco.trashcan.select_ArchivedChildren";
+
+	private SqlSessionTemplate template;
+
+	public void setSqlSessionTemplate(SqlSessionTemplate template)
+	{
+		this.template = template;
+	}
+
+	/**
+	 * 
+	 * It returns up to <b>maxResults</b> children of the parent node whose
+	 * child association id is greater than <b>fromAssocId</b> and not greater
+	 * than <b>toAssocId</b>, in child association id order.
+	 * 
+	 * @param parentNodeId
+	 * @param fromAssocId
+	 * @param toAssocId
+	 * @param maxResults
+	 * @return
+	 */
+	@SuppressWarnings("unchecked")
+	public List<ArchivedChildEntity> getChildren(Long parentNodeId,
+	        long fromAssocId, long toAssocId, int maxResults)
+	{
+		Map<String, Object> params = new HashMap<String, Object>();
+		params.put("parentNodeId", parentNodeId);
+		params.put("fromAssocId", Long.valueOf(fromAssocId));
+		params.put("toAssocId", Long.valueOf(toAssocId));
+		return (List<ArchivedChildEntity>) template.selectList(SELECT_CHILDREN,
+		        params, new RowBounds(0, maxResults));
+	}
+
+}
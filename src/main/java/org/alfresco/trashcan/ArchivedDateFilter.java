@@ -0,0 +1,163 @@
+/*
+ * Copyright (C) 2005-2013 Alfresco Software Limited.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+
+ * As a special exception to the terms and conditions of version 2.0 of 
+ * the GPL, you may redistribute this Program in connection with Free/Libre 
+ * and Open Source Software ("FLOSS") applications as described in Alfresco's 
+ * FLOSS exception.  You should have recieved a copy of the text describing 
+ * the FLOSS exception, and it is also available here: 
+ * http://www.alfresco.com/legal/licensing"
+ */
+package org.alfresco.trashcan;
+
+import java.util.Date;
+
+import org.alfresco.model.ContentModel;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.cmr.repository.NodeService;
+
+/**
+ * 
+ * This class decides which archived nodes are old enough to be deleted
+ * according to <b>daysToKeep</b>. The cutoff time is computed once when the
+ * filter is created, so all the nodes checked during a <b>clean</b> execution
+ * are compared against the same instant.
+ * 
+ * The <b>sys:archivedDate</b> is read through the
+ * {@link org.alfresco.service.cmr.repository.NodeService NodeService}. When
+ * the nodes come from an {@link org.alfresco.trashcan.ArchiveRootPager
+ * ArchiveRootPager} their properties were already bulk loaded for the whole
+ * page, so those reads are served from the node caches. If
+ * <b>daysToKeep</b> is 0 or negative no property is read at all.
+ * 
+ * Subclasses may give each node a cutoff of its own by overriding
+ * <b>getCutoff(NodeRef)</b> (see {@link org.alfresco.trashcan.RetentionFilter
+ * RetentionFilter}).
+ * 
+ * @author Rui Fernandes
+ * 
+ */
+public class ArchivedDateFilter
+{
+
+	private static final long DAYS_TO_MILLIS = 1000 * 60 * 60 * 24;
+
+	private NodeService nodeService;
+	private boolean keepNone;
+	private long cutoff;
+
+	/**
+	 * 
+	 * Creates the filter with the cutoff relative to the current time.
+	 * 
+	 * @param nodeService
+	 * @param daysToKeep
+	 */
+	public ArchivedDateFilter(NodeService nodeService, int daysToKeep)
+	{
+		this(nodeService, daysToKeep, System.currentTimeMillis());
+	}
+
+	/**
+	 * 
+	 * Creates the filter with the cutoff relative to <b>now</b>.
+	 * 
+	 * @param nodeService
+	 * @param daysToKeep
+	 * @param now
+	 */
+	public ArchivedDateFilter(NodeService nodeService, int daysToKeep,
+	        long now)
+	{
+		this.nodeService = nodeService;
+		this.keepNone = daysToKeep <= 0;
+		this.cutoff = getCutoff(daysToKeep, now);
+	}
+
+	/**
+	 * 
+	 * It checks if the archived node has been archived before the cutoff. If
+	 * <b>daysToKeep</b> is 0 or negative it will return always true.
+	 * 
+	 * @param node
+	 * @return
+	 */
+	public boolean isEligible(NodeRef node)
+	{
+		long nodeCutoff = getCutoff(node);
+		if (nodeCutoff == Long.MAX_VALUE)
+			return true;
+		return getArchivedTime(node) < nodeCutoff;
+	}
+
+	/**
+	 * 
+	 * It returns the archived time of the node in milliseconds. Nodes without
+	 * <b>sys:archivedDate</b> are considered archived at the epoch.
+	 * 
+	 * @param node
+	 * @return
+	 */
+	public long getArchivedTime(NodeRef node)
+	{
+		Date archivedDate = (Date) nodeService.getProperty(node,
+		        ContentModel.PROP_ARCHIVED_DATE);
+		return archivedDate != null ? archivedDate.getTime() : 0;
+	}
+
+	/**
+	 * 
+	 * The time in milliseconds before which archived nodes are eligible for
+	 * deletion. If <b>daysToKeep</b> is 0 or negative all archived nodes are
+	 * eligible and it returns {@link java.lang.Long#MAX_VALUE MAX_VALUE}.
+	 * 
+	 * @return
+	 */
+	public long getCutoff()
+	{
+		return keepNone ? Long.MAX_VALUE : cutoff;
+	}
+
+	/**
+	 * 
+	 * The time in milliseconds before which the archived node is eligible for
+	 * deletion, by default the same for every node.
+	 * 
+	 * @param node
+	 * @return
+	 */
+	public long getCutoff(NodeRef node)
+	{
+		return getCutoff();
+	}
+
+	/**
+	 * 
+	 * The cutoff of <b>daysToKeep</b> relative to <b>now</b>, or
+	 * {@link java.lang.Long#MAX_VALUE MAX_VALUE} if it is 0 or negative.
+	 * 
+	 * @param daysToKeep
+	 * @param now
+	 * @return
+	 */
+	protected static long getCutoff(int daysToKeep, long now)
+	{
+		return daysToKeep > 0 ? now - daysToKeep * DAYS_TO_MILLIS
+		        : Long.MAX_VALUE;
+	}
+
+}
@@ -0,0 +1,607 @@
+/*
+ * Copyright (C) 2005-2013 Alfresco Software Limited.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+
+ * As a special exception to the terms and conditions of version 2.0 of 
+ * the GPL, you may redistribute this Program in connection with Free/Libre 
+ * and Open Source Software ("FLOSS") applications as described in Alfresco's 
+ * FLOSS exception.  You should have recieved a copy of the text describing 
+ * the FLOSS exception, and it is also available here: 
+ * http://www.alfresco.com/legal/licensing"
+ */
+package org.alfresco.trashcan;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import org.alfresco.repo.lock.JobLockService;
+import org.alfresco.repo.transaction.AlfrescoTransactionSupport;
+import org.alfresco.repo.transaction.TransactionListenerAdapter;
+import org.alfresco.service.cmr.attributes.AttributeService;
+import org.alfresco.service.cmr.attributes.AttributeService.AttributeQueryCallback;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.cmr.repository.StoreRef;
+import org.alfresco.util.GUID;
+import org.alfresco.util.Pair;
+
+/**
+ * 
+ * An index of the archived nodes of each archive store ordered by
+ * <b>sys:archivedDate</b>, kept in the
+ * {@link org.alfresco.service.cmr.attributes.AttributeService
+ * AttributeService} and maintained by the
+ * {@link org.alfresco.trashcan.ArchivedDateIndexBehaviour
+ * ArchivedDateIndexBehaviour} when nodes are archived, restored or purged.
+ * 
+ * The entries are grouped in buckets by archived day. Reading the N oldest
+ * nodes archived before a cutoff only reads the buckets of the oldest days,
+ * and of the last one only the entries needed, until N nodes are found,
+ * instead of scanning the whole archive store root. Besides the buckets the
+ * index keeps the set of days with entries and, for each node, the day it was
+ * indexed on, so a node can be removed knowing only its reference. The days
+ * emptied by the purge are dropped from the set when their counts are merged,
+ * so the days read grow with the backlog rather than with the age of the
+ * index.
+ * 
+ * The index also counts the nodes of each day, so the size of the trashcan
+ * and the number of nodes archived before a cutoff are known by reading one
+ * counter per archived day, without reading the archive store root. The
+ * counts changed by a transaction are added up in memory and written once,
+ * just before it commits, as a delta row of its own for each day changed.
+ * Concurrent transactions archiving nodes on the same day then never update
+ * the same row, so no change is lost and they don't wait for each other. The
+ * count of a day is its merged count plus its pending deltas, and
+ * <b>mergeCounts</b> folds the deltas into the merged counts, under a
+ * cluster lock so a single merge runs at a time.
+ * 
+ * When enabled, the index should be built once with
+ * {@link org.alfresco.trashcan.ArchivedDateIndexVerifier
+ * ArchivedDateIndexVerifier}, which can also verify and repair it if it ever
+ * drifts from the archive store content.
+ * 
+ * @author Rui Fernandes
+ * 
+ */
+public class ArchivedDateIndex
+{
+
+	protected static final String ENTRIES_KEY = ".trashcanCleaner.archivedDateIndex";
+	protected static final String NODES_KEY = ".trashcanCleaner.archivedDateIndex.nodes";
+	protected static final String DAYS_KEY = ".trashcanCleaner.archivedDateIndex.days";
+	protected static final String COUNTS_KEY = ".trashcanCleaner.archivedDateIndex.counts";
+	protected static final String COUNT_DELTAS_KEY = ".trashcanCleaner.archivedDateIndex.countDeltas";
+	private static final String COUNTS_LOCK = "counts";
+	private static final String DELTA_SEPARATOR = "|";
+	private static final String COUNT_CHANGES_RESOURCE = "ArchivedDateIndex.countChanges";
+	private static final long DAY_MILLIS = 1000 * 60 * 60 * 24;
+
+	private static final Comparator<Pair<Long, String>> ENTRY_ORDER = new Comparator<Pair<Long, String>>()
+	{
+		public int compare(Pair<Long, String> entry1, Pair<Long, String> entry2)
+		{
+			int result = entry1.getFirst().compareTo(entry2.getFirst());
+			return result != 0 ? result : entry1.getSecond().compareTo(
+			        entry2.getSecond());
+		}
+	};
+
+	private AttributeService attributeService;
+	private JobLockService jobLockService;
+	private boolean enabled;
+
+	public void setAttributeService(AttributeService attributeService)
+	{
+		this.attributeService = attributeService;
+	}
+
+	/**
+	 * 
+	 * The {@link org.alfresco.repo.lock.JobLockService JobLockService} of the
+	 * lock taken while merging the counts. Without it the caller of
+	 * <b>mergeCounts</b> must make sure no other merge runs at the same time.
+	 * 
+	 * @param jobLockService
+	 */
+	public void setJobLockService(JobLockService jobLockService)
+	{
+		this.jobLockService = jobLockService;
+	}
+
+	public void setEnabled(boolean enabled)
+	{
+		this.enabled = enabled;
+	}
+
+	/**
+	 * 
+	 * It checks if the index is maintained and should be used by the cleaner.
+	 * 
+	 * @return
+	 */
+	public boolean isEnabled()
+	{
+		return enabled;
+	}
+
+	/**
+	 * 
+	 * It adds the archived node to the index.
+	 * 
+	 * @param archivedNode
+	 * @param archivedTime
+	 */
+	public void add(NodeRef archivedNode, long archivedTime)
+	{
+		String store = archivedNode.getStoreRef().toString();
+		Long day = Long.valueOf(getDay(archivedTime));
+		attributeService.setAttribute(Long.valueOf(archivedTime), ENTRIES_KEY,
+		        bucket(store, day), archivedNode.getId());
+		attributeService.setAttribute(day, NODES_KEY, store,
+		        archivedNode.getId());
+		if (!attributeService.exists(DAYS_KEY, store, day))
+		{
+			attributeService.setAttribute(Boolean.TRUE, DAYS_KEY, store, day);
+		}
+		changeCount(store, day, 1);
+	}
+
+	/**
+	 * 
+	 * It removes the archived node from the index, if it is there.
+	 * 
+	 * @param archivedNode
+	 * @return true if the node was indexed
+	 */
+	public boolean remove(NodeRef archivedNode)
+	{
+		String store = archivedNode.getStoreRef().toString();
+		Serializable day = attributeService.getAttribute(NODES_KEY, store,
+		        archivedNode.getId());
+		if (day == null)
+			return false;
+		attributeService.removeAttribute(ENTRIES_KEY,
+		        bucket(store, (Long) day), archivedNode.getId());
+		attributeService.removeAttribute(NODES_KEY, store,
+		        archivedNode.getId());
+		changeCount(store, (Long) day, -1);
+		return true;
+	}
+
+	/**
+	 * 
+	 * It returns the number of nodes indexed for the archive store.
+	 * 
+	 * @param store
+	 * @return
+	 */
+	public long count(String store)
+	{
+		return count(store, Long.MAX_VALUE);
+	}
+
+	/**
+	 * 
+	 * It returns the number of nodes indexed for the archive store on the
+	 * days starting before <b>cutoff</b>. The day of the cutoff is counted
+	 * whole, so the result may include nodes archived up to a day after it.
+	 * 
+	 * @param store
+	 * @param cutoff
+	 * @return
+	 */
+	public long count(String store, long cutoff)
+	{
+		long count = 0;
+		for (Map.Entry<Long, Long> dayCount : getCounts(store).entrySet())
+		{
+			if (dayCount.getKey().longValue() * DAY_MILLIS >= cutoff)
+				break;
+			count += dayCount.getValue().longValue();
+		}
+		return count;
+	}
+
+	/**
+	 * 
+	 * It returns the number of nodes indexed for the archive store on each
+	 * day, the oldest day first: the merged count of the day plus its pending
+	 * deltas.
+	 * 
+	 * @param store
+	 * @return
+	 */
+	public SortedMap<Long, Long> getCounts(String store)
+	{
+		SortedMap<Long, Long> counts = getMergedCounts(store);
+		for (Map.Entry<Long, Long> delta : getDeltas(store, null).entrySet())
+		{
+			Long count = counts.get(delta.getKey());
+			counts.put(delta.getKey(), Long.valueOf((count != null ? count
+			        .longValue() : 0) + delta.getValue().longValue()));
+		}
+		for (Iterator<Long> it = counts.values().iterator(); it.hasNext();)
+		{
+			if (it.next().longValue() <= 0)
+				it.remove();
+		}
+		return counts;
+	}
+
+	/**
+	 * 
+	 * It folds the pending count deltas of the archive store into the merged
+	 * count of their day and removes them. Only the deltas read are removed,
+	 * so the ones written meanwhile are kept for the next merge. The days left
+	 * without nodes are dropped from the set of days, unless they are today or
+	 * yesterday, which nodes may still be archived on. It must run inside a
+	 * read write transaction, and the merge lock is released once it
+	 * completes.
+	 * 
+	 * @param store
+	 * @return false if another merge holds the lock
+	 */
+	public boolean mergeCounts(String store)
+	{
+		if (jobLockService != null)
+		{
+			TrashcanJobLock lock = new TrashcanJobLock(jobLockService,
+			        TrashcanJobLock.getLockQName(store, COUNTS_LOCK));
+			if (!lock.acquire())
+				return false;
+			lock.releaseAfterTransaction();
+		}
+		List<Serializable> read = new ArrayList<Serializable>();
+		Map<Long, Long> deltas = getDeltas(store, read);
+		if (read.isEmpty())
+			return true;
+		SortedMap<Long, Long> counts = getMergedCounts(store);
+		long lastPrunableDay = getDay(System.currentTimeMillis()) - 1;
+		for (Map.Entry<Long, Long> delta : deltas.entrySet())
+		{
+			Long day = delta.getKey();
+			Long count = counts.get(day);
+			long merged = (count != null ? count.longValue() : 0)
+			        + delta.getValue().longValue();
+			setCount(store, day, merged);
+			if (merged <= 0 && day.longValue() < lastPrunableDay
+			        && isEmpty(store, day))
+			{
+				attributeService.removeAttribute(DAYS_KEY, store, day);
+			}
+		}
+		for (Serializable key : read)
+		{
+			attributeService.removeAttribute(COUNT_DELTAS_KEY, store, key);
+		}
+		return true;
+	}
+
+	/**
+	 * 
+	 * It overwrites the merged number of nodes indexed for the archive store
+	 * on a day, to repair a count once the deltas are merged.
+	 * 
+	 * @param store
+	 * @param day
+	 * @param count
+	 */
+	public void setCount(String store, Long day, long count)
+	{
+		if (count > 0)
+		{
+			attributeService.setAttribute(Long.valueOf(count), COUNTS_KEY,
+			        store, day);
+		}
+		else
+		{
+			attributeService.removeAttribute(COUNTS_KEY, store, day);
+		}
+	}
+
+	/**
+	 * 
+	 * It adds a change of the count of a day to the changes of the current
+	 * transaction, written when it is about to commit.
+	 * 
+	 * @param store
+	 * @param day
+	 * @param change
+	 */
+	private void changeCount(String store, Long day, long change)
+	{
+		Map<Pair<String, Long>, Long> changes = AlfrescoTransactionSupport
+		        .getResource(COUNT_CHANGES_RESOURCE);
+		if (changes == null)
+		{
+			final Map<Pair<String, Long>, Long> transactionChanges = new HashMap<Pair<String, Long>, Long>();
+			AlfrescoTransactionSupport.bindResource(COUNT_CHANGES_RESOURCE,
+			        transactionChanges);
+			AlfrescoTransactionSupport
+			        .bindListener(new TransactionListenerAdapter()
+			        {
+				        @Override
+				        public void beforeCommit(boolean readOnly)
+				        {
+					        writeCounts(transactionChanges);
+				        }
+			        });
+			changes = transactionChanges;
+		}
+		Pair<String, Long> key = new Pair<String, Long>(store, day);
+		Long previous = changes.get(key);
+		changes.put(key, Long.valueOf(previous != null ? previous.longValue()
+		        + change : change));
+	}
+
+	/**
+	 * 
+	 * It writes the count changes of the transaction. The resource is unbound
+	 * so the changes made afterwards by other listeners start a new set.
+	 * 
+	 * @param changes
+	 */
+	private void writeCounts(Map<Pair<String, Long>, Long> changes)
+	{
+		AlfrescoTransactionSupport.unbindResource(COUNT_CHANGES_RESOURCE);
+		String id = GUID.generate();
+		for (Map.Entry<Pair<String, Long>, Long> change : changes.entrySet())
+		{
+			if (change.getValue().longValue() == 0)
+				continue;
+			attributeService.setAttribute(change.getValue(), COUNT_DELTAS_KEY,
+			        change.getKey().getFirst(), id + DELTA_SEPARATOR
+			                + change.getKey().getSecond());
+		}
+	}
+
+	private SortedMap<Long, Long> getMergedCounts(String store)
+	{
+		final SortedMap<Long, Long> counts = new TreeMap<Long, Long>();
+		attributeService.getAttributes(new AttributeQueryCallback()
+		{
+			public boolean handleAttribute(Long id, Serializable value,
+			        Serializable[] keys)
+			{
+				counts.put((Long) keys[2], (Long) value);
+				return true;
+			}
+		}, COUNTS_KEY, store);
+		return counts;
+	}
+
+	/**
+	 * 
+	 * It adds up the pending count deltas of the archive store by day.
+	 * 
+	 * @param store
+	 * @param read
+	 *            the keys of the deltas read, on return, or null
+	 * @return
+	 */
+	private Map<Long, Long> getDeltas(String store,
+	        final List<Serializable> read)
+	{
+		final Map<Long, Long> deltas = new HashMap<Long, Long>();
+		attributeService.getAttributes(new AttributeQueryCallback()
+		{
+			public boolean handleAttribute(Long id, Serializable value,
+			        Serializable[] keys)
+			{
+				String key = (String) keys[2];
+				Long day = Long.valueOf(key.substring(key
+				        .indexOf(DELTA_SEPARATOR) + 1));
+				Long delta = deltas.get(day);
+				deltas.put(day, Long.valueOf((delta != null ? delta
+				        .longValue() : 0) + ((Long) value).longValue()));
+				if (read != null)
+				{
+					read.add(key);
+				}
+				return true;
+			}
+		}, COUNT_DELTAS_KEY, store);
+		return deltas;
+	}
+
+	/**
+	 * 
+	 * It returns the day the node was indexed on, or null if it isn't indexed.
+	 * 
+	 * @param archivedNode
+	 * @return
+	 */
+	public Long getIndexedDay(NodeRef archivedNode)
+	{
+		return (Long) attributeService.getAttribute(NODES_KEY, archivedNode
+		        .getStoreRef().toString(), archivedNode.getId());
+	}
+
+	/**
+	 * 
+	 * It returns up to <b>max</b> nodes of the archive store, the oldest first,
+	 * archived before <b>cutoff</b>. Only the buckets of the oldest days are
+	 * read, and each one only until the entries still missing are found. The
+	 * entries of a day are read in the order they were indexed, which is the
+	 * order they were archived in unless the index was rebuilt, so the last
+	 * day read may not give exactly its oldest nodes.
+	 * 
+	 * @param archiveStore
+	 * @param max
+	 * @param cutoff
+	 * @return
+	 */
+	public List<NodeRef> getOldest(StoreRef archiveStore, int max,
+	        final long cutoff)
+	{
+		String store = archiveStore.toString();
+		List<NodeRef> oldest = new ArrayList<NodeRef>(max);
+		for (Long day : getDays(store))
+		{
+			if (oldest.size() >= max || day.longValue() * DAY_MILLIS >= cutoff)
+				break;
+			final int remaining = max - oldest.size();
+			final List<Pair<Long, String>> entries = new ArrayList<Pair<Long, String>>(
+			        remaining);
+			attributeService.getAttributes(new AttributeQueryCallback()
+			{
+				public boolean handleAttribute(Long id, Serializable value,
+				        Serializable[] keys)
+				{
+					Long time = (Long) value;
+					if (time.longValue() < cutoff)
+					{
+						entries.add(new Pair<Long, String>(time,
+						        (String) keys[2]));
+					}
+					return entries.size() < remaining;
+				}
+			}, ENTRIES_KEY, bucket(store, day));
+			Collections.sort(entries, ENTRY_ORDER);
+			for (Pair<Long, String> entry : entries)
+			{
+				oldest.add(new NodeRef(archiveStore, entry.getSecond()));
+			}
+		}
+		return oldest;
+	}
+
+	/**
+	 * 
+	 * It returns the days with entries on the index for the archive store.
+	 * 
+	 * @param store
+	 * @return
+	 */
+	public SortedSet<Long> getDays(String store)
+	{
+		final SortedSet<Long> days = new TreeSet<Long>();
+		attributeService.getAttributes(new AttributeQueryCallback()
+		{
+			public boolean handleAttribute(Long id, Serializable value,
+			        Serializable[] keys)
+			{
+				days.add((Long) keys[2]);
+				return true;
+			}
+		}, DAYS_KEY, store);
+		return days;
+	}
+
+	/**
+	 * 
+	 * It removes all the entries of the archive store from the index.
+	 * 
+	 * @param store
+	 */
+	public void clear(String store)
+	{
+		for (Long day : getDays(store))
+		{
+			attributeService.removeAttributes(ENTRIES_KEY, bucket(store, day));
+		}
+		attributeService.removeAttributes(DAYS_KEY, store);
+		attributeService.removeAttributes(NODES_KEY, store);
+		attributeService.removeAttributes(COUNTS_KEY, store);
+		attributeService.removeAttributes(COUNT_DELTAS_KEY, store);
+	}
+
+	/**
+	 * 
+	 * It visits the node ids indexed for the archive store, with the day they
+	 * were indexed on.
+	 * 
+	 * @param store
+	 * @param callback
+	 */
+	public void visitNodes(String store, AttributeQueryCallback callback)
+	{
+		attributeService.getAttributes(callback, NODES_KEY, store);
+	}
+
+	/**
+	 * 
+	 * It removes the days without entries left from the set of days. Their
+	 * counts are left to be merged and repaired, since deltas may still be
+	 * pending for them.
+	 * 
+	 * @param store
+	 * @return the number of days removed
+	 */
+	public int pruneDays(String store)
+	{
+		int pruned = 0;
+		for (Long day : getDays(store))
+		{
+			if (isEmpty(store, day))
+			{
+				attributeService.removeAttribute(DAYS_KEY, store, day);
+				pruned++;
+			}
+		}
+		return pruned;
+	}
+
+	/**
+	 * 
+	 * It checks if the bucket of a day has no entry left, reading at most one.
+	 * 
+	 * @param store
+	 * @param day
+	 * @return
+	 */
+	private boolean isEmpty(String store, Long day)
+	{
+		final boolean[] empty = { true };
+		attributeService.getAttributes(new AttributeQueryCallback()
+		{
+			public boolean handleAttribute(Long id, Serializable value,
+			        Serializable[] keys)
+			{
+				empty[0] = false;
+				return false;
+			}
+		}, ENTRIES_KEY, bucket(store, day));
+		return empty[0];
+	}
+
+	/**
+	 * 
+	 * It returns the archived day of a time in milliseconds.
+	 * 
+	 * @param archivedTime
+	 * @return
+	 */
+	public static long getDay(long archivedTime)
+	{
+		return archivedTime / DAY_MILLIS;
+	}
+
+	private static String bucket(String store, Long day)
+	{
+		return store + "|" + day;
+	}
+
+}
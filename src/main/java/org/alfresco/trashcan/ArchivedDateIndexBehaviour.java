@@ -0,0 +1,206 @@
+/*
+ * Copyright (C) 2005-2013 Alfresco Software Limited.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+
+ * As a special exception to the terms and conditions of version 2.0 of 
+ * the GPL, you may redistribute this Program in connection with Free/Libre 
+ * and Open Source Software ("FLOSS") applications as described in Alfresco's 
+ * FLOSS exception.  You should have recieved a copy of the text describing 
+ * the FLOSS exception, and it is also available here: 
+ * http://www.alfresco.com/legal/licensing"
+ */
+package org.alfresco.trashcan;
+
+import java.util.Date;
+
+import org.alfresco.model.ContentModel;
+import org.alfresco.repo.node.NodeServicePolicies;
+import org.alfresco.repo.node.archive.NodeArchiveService;
+import org.alfresco.repo.policy.Behaviour.NotificationFrequency;
+import org.alfresco.repo.policy.JavaBehaviour;
+import org.alfresco.repo.policy.PolicyComponent;
+import org.alfresco.service.cmr.repository.ChildAssociationRef;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.cmr.repository.NodeService;
+
+/**
+ * 
+ * The behaviours keeping the
+ * {@link org.alfresco.trashcan.ArchivedDateIndex ArchivedDateIndex} and the
+ * {@link org.alfresco.trashcan.TrashcanUsage TrashcanUsage} up to date. A
+ * node is added to them when it is archived and removed when it is restored
+ * or purged from the archive store. Only the nodes archived as children of
+ * the archive store root are indexed and counted, the ones the trashcan
+ * cleaner deletes.
+ * 
+ * Each archived node is also reported to the
+ * {@link org.alfresco.trashcan.TrashcanBacklogTrigger TrashcanBacklogTrigger},
+ * if any, which runs the cleaner once the backlog is large enough.
+ * 
+ * The behaviours are only bound if the index or the usage is enabled, and
+ * each one is only updated if enabled.
+ * 
+ * @author Rui Fernandes
+ * 
+ */
+public class ArchivedDateIndexBehaviour implements
+        NodeServicePolicies.OnDeleteNodePolicy,
+        NodeServicePolicies.BeforeDeleteNodePolicy,
+        NodeServicePolicies.OnRestoreNodePolicy
+{
+
+	private PolicyComponent policyComponent;
+	private NodeService nodeService;
+	private NodeArchiveService nodeArchiveService;
+	private ArchivedDateIndex archivedDateIndex;
+	private TrashcanBacklogTrigger backlogTrigger;
+	private TrashcanUsage usage;
+
+	public void setPolicyComponent(PolicyComponent policyComponent)
+	{
+		this.policyComponent = policyComponent;
+	}
+
+	public void setNodeService(NodeService nodeService)
+	{
+		this.nodeService = nodeService;
+	}
+
+	public void setNodeArchiveService(NodeArchiveService nodeArchiveService)
+	{
+		this.nodeArchiveService = nodeArchiveService;
+	}
+
+	public void setArchivedDateIndex(ArchivedDateIndex archivedDateIndex)
+	{
+		this.archivedDateIndex = archivedDateIndex;
+	}
+
+	public void setBacklogTrigger(TrashcanBacklogTrigger backlogTrigger)
+	{
+		this.backlogTrigger = backlogTrigger;
+	}
+
+	public void setUsage(TrashcanUsage usage)
+	{
+		this.usage = usage;
+	}
+
+	/**
+	 * 
+	 * Binds the behaviours if the index or the usage is enabled.
+	 * 
+	 */
+	public void init()
+	{
+		if (!archivedDateIndex.isEnabled() && !isCountingUsage())
+			return;
+		policyComponent.bindClassBehaviour(
+		        NodeServicePolicies.OnDeleteNodePolicy.QNAME,
+		        ContentModel.TYPE_BASE, new JavaBehaviour(this, "onDeleteNode",
+		                NotificationFrequency.EVERY_EVENT));
+		policyComponent.bindClassBehaviour(
+		        NodeServicePolicies.BeforeDeleteNodePolicy.QNAME,
+		        ContentModel.ASPECT_ARCHIVED, new JavaBehaviour(this,
+		                "beforeDeleteNode", NotificationFrequency.EVERY_EVENT));
+		policyComponent.bindClassBehaviour(
+		        NodeServicePolicies.OnRestoreNodePolicy.QNAME,
+		        ContentModel.TYPE_BASE, new JavaBehaviour(this, "onRestoreNode",
+		                NotificationFrequency.EVERY_EVENT));
+	}
+
+	private boolean isCountingUsage()
+	{
+		return usage != null && usage.isEnabled();
+	}
+
+	/**
+	 * 
+	 * Adds the node to the index and to the usage of the user who archived it
+	 * when it has been archived as a child of the archive store root.
+	 * 
+	 */
+	public void onDeleteNode(ChildAssociationRef childAssocRef,
+	        boolean isNodeArchived)
+	{
+		if (!isNodeArchived)
+			return;
+		NodeRef node = childAssocRef.getChildRef();
+		NodeRef archiveRoot = nodeArchiveService.getStoreArchiveNode(node
+		        .getStoreRef());
+		if (archiveRoot == null)
+			return;
+		NodeRef archivedNode = new NodeRef(archiveRoot.getStoreRef(),
+		        node.getId());
+		if (!nodeService.exists(archivedNode)
+		        || !archiveRoot.equals(nodeService.getPrimaryParent(
+		                archivedNode).getParentRef()))
+			return;
+		if (isCountingUsage())
+		{
+			usage.add(archivedNode);
+		}
+		if (!archivedDateIndex.isEnabled())
+			return;
+		Date archivedDate = (Date) nodeService.getProperty(archivedNode,
+		        ContentModel.PROP_ARCHIVED_DATE);
+		archivedDateIndex.add(archivedNode,
+		        archivedDate != null ? archivedDate.getTime() : 0);
+		if (backlogTrigger != null)
+		{
+			backlogTrigger.onArchived(archivedNode.getStoreRef().toString());
+		}
+	}
+
+	/**
+	 * 
+	 * Removes the archived node from the index and the usage when it is
+	 * purged.
+	 * 
+	 */
+	public void beforeDeleteNode(NodeRef nodeRef)
+	{
+		remove(nodeRef);
+	}
+
+	/**
+	 * 
+	 * Removes the node from the index and the usage when it is restored.
+	 * 
+	 */
+	public void onRestoreNode(ChildAssociationRef childAssocRef)
+	{
+		NodeRef node = childAssocRef.getChildRef();
+		NodeRef archiveRoot = nodeArchiveService.getStoreArchiveNode(node
+		        .getStoreRef());
+		if (archiveRoot == null)
+			return;
+		remove(new NodeRef(archiveRoot.getStoreRef(), node.getId()));
+	}
+
+	private void remove(NodeRef archivedNode)
+	{
+		if (archivedDateIndex.isEnabled())
+		{
+			archivedDateIndex.remove(archivedNode);
+		}
+		if (isCountingUsage())
+		{
+			usage.remove(archivedNode);
+		}
+	}
+
+}
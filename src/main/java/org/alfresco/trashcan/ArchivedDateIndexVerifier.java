@@ -0,0 +1,416 @@
+/*
+ * Copyright (C) 2005-2013 Alfresco Software Limited.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+
+ * As a special exception to the terms and conditions of version 2.0 of 
+ * the GPL, you may redistribute this Program in connection with Free/Libre 
+ * and Open Source Software ("FLOSS") applications as described in Alfresco's 
+ * FLOSS exception.  You should have recieved a copy of the text describing 
+ * the FLOSS exception, and it is also available here: 
+ * http://www.alfresco.com/legal/licensing"
+ */
+package org.alfresco.trashcan;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.alfresco.repo.domain.node.NodeDAO;
+import org.alfresco.repo.transaction.RetryingTransactionHelper.RetryingTransactionCallback;
+import org.alfresco.service.cmr.attributes.AttributeService.AttributeQueryCallback;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.cmr.repository.NodeService;
+import org.alfresco.service.cmr.repository.StoreRef;
+import org.alfresco.service.transaction.TransactionService;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * 
+ * This class rebuilds, verifies and benchmarks the
+ * {@link org.alfresco.trashcan.ArchivedDateIndex ArchivedDateIndex} of an
+ * archive store against its actual content, read page by page with an
+ * {@link org.alfresco.trashcan.ArchiveRootPager ArchiveRootPager}. The index
+ * updates are committed page by page in their own transactions.
+ * 
+ * Rebuilding the index also rebuilds the
+ * {@link org.alfresco.trashcan.TrashcanUsage TrashcanUsage} of the users, if
+ * it is set and enabled.
+ * 
+ * Each operation returns a report with the counts and times measured.
+ * 
+ * @author Rui Fernandes
+ * 
+ */
+public class ArchivedDateIndexVerifier
+{
+
+	private static Log logger = LogFactory
+	        .getLog(ArchivedDateIndexVerifier.class);
+
+	private NodeDAO nodeDAO;
+	private NodeService nodeService;
+	private TransactionService transactionService;
+	private ArchivedDateIndex archivedDateIndex;
+	private ArchivedChildrenDAO archivedChildrenDAO;
+	private TrashcanUsage usage;
+	private int pageSize = ArchiveRootPager.DEFAULT_PAGE_SIZE;
+
+	public void setNodeDAO(NodeDAO nodeDAO)
+	{
+		this.nodeDAO = nodeDAO;
+	}
+
+	public void setNodeService(NodeService nodeService)
+	{
+		this.nodeService = nodeService;
+	}
+
+	public void setTransactionService(TransactionService transactionService)
+	{
+		this.transactionService = transactionService;
+	}
+
+	public void setArchivedDateIndex(ArchivedDateIndex archivedDateIndex)
+	{
+		this.archivedDateIndex = archivedDateIndex;
+	}
+
+	public void setArchivedChildrenDAO(ArchivedChildrenDAO archivedChildrenDAO)
+	{
+		this.archivedChildrenDAO = archivedChildrenDAO;
+	}
+
+	public void setUsage(TrashcanUsage usage)
+	{
+		this.usage = usage;
+	}
+
+	public void setPageSize(int pageSize)
+	{
+		this.pageSize = pageSize;
+	}
+
+	/**
+	 * 
+	 * It clears the index of the archive store and indexes again all its
+	 * archived nodes, and so does with the usage of the users if enabled.
+	 * 
+	 * @param archiveStoreUrl
+	 * @return the report with <b>indexed</b> and <b>millis</b>
+	 */
+	public Map<String, Long> rebuild(final String archiveStoreUrl)
+	{
+		long start = System.currentTimeMillis();
+		inNewTransaction(new RetryingTransactionCallback<Object>()
+		{
+			public Object execute() throws Throwable
+			{
+				archivedDateIndex.clear(archiveStoreUrl);
+				if (isCountingUsage())
+				{
+					usage.clear(archiveStoreUrl);
+				}
+				return null;
+			}
+		});
+		final ArchivedDateFilter dates = new ArchivedDateFilter(nodeService, 0);
+		final long[] indexed = new long[1];
+		newPager(archiveStoreUrl).walk(new ArchiveRootPager.PageCallback()
+		{
+			public boolean handlePage(final List<NodeRef> page)
+			{
+				inNewTransaction(new RetryingTransactionCallback<Object>()
+				{
+					public Object execute() throws Throwable
+					{
+						for (NodeRef node : page)
+						{
+							archivedDateIndex.add(node,
+							        dates.getArchivedTime(node));
+							if (isCountingUsage())
+							{
+								usage.add(node);
+							}
+						}
+						return null;
+					}
+				});
+				indexed[0] += page.size();
+				return true;
+			}
+		});
+		Map<String, Long> report = new LinkedHashMap<String, Long>();
+		report.put("indexed", indexed[0]);
+		report.put("millis", System.currentTimeMillis() - start);
+		log("Rebuilt", archiveStoreUrl, report);
+		return report;
+	}
+
+	/**
+	 * 
+	 * It compares the index of the archive store with its content. Archived
+	 * nodes not indexed or indexed on the wrong day are counted as
+	 * <b>missing</b> and <b>misplaced</b>, index entries of nodes no longer in
+	 * the archive store as <b>stale</b>, and the days whose node count differs
+	 * from the archive store as <b>miscounted</b>. If <b>repair</b> the
+	 * differences are fixed.
+	 * 
+	 * @param archiveStoreUrl
+	 * @param repair
+	 * @return the report with <b>scanned</b>, <b>missing</b>,
+	 *         <b>misplaced</b>, <b>stale</b>, <b>miscounted</b> and
+	 *         <b>millis</b>
+	 */
+	public Map<String, Long> verify(final String archiveStoreUrl,
+	        final boolean repair)
+	{
+		long start = System.currentTimeMillis();
+		final ArchivedDateFilter dates = new ArchivedDateFilter(nodeService, 0);
+		final long[] counts = new long[3];
+		final Map<Long, Long> dayCounts = new HashMap<Long, Long>();
+		newPager(archiveStoreUrl).walk(new ArchiveRootPager.PageCallback()
+		{
+			public boolean handlePage(List<NodeRef> page)
+			{
+				final List<NodeRef> wrong = new ArrayList<NodeRef>();
+				for (NodeRef node : page)
+				{
+					Long indexedDay = archivedDateIndex.getIndexedDay(node);
+					long day = ArchivedDateIndex.getDay(dates
+					        .getArchivedTime(node));
+					Long dayCount = dayCounts.get(Long.valueOf(day));
+					dayCounts.put(Long.valueOf(day), Long
+					        .valueOf(dayCount != null ? dayCount.longValue() + 1
+					                : 1));
+					if (indexedDay == null)
+					{
+						counts[1]++;
+						wrong.add(node);
+					}
+					else if (indexedDay.longValue() != day)
+					{
+						counts[2]++;
+						wrong.add(node);
+					}
+				}
+				counts[0] += page.size();
+				if (repair && !wrong.isEmpty())
+				{
+					inNewTransaction(new RetryingTransactionCallback<Object>()
+					{
+						public Object execute() throws Throwable
+						{
+							for (NodeRef node : wrong)
+							{
+								archivedDateIndex.remove(node);
+								archivedDateIndex.add(node,
+								        dates.getArchivedTime(node));
+							}
+							return null;
+						}
+					});
+				}
+				return true;
+			}
+		});
+
+		final StoreRef archiveStore = new StoreRef(archiveStoreUrl);
+		final List<NodeRef> stale = new ArrayList<NodeRef>();
+		archivedDateIndex.visitNodes(archiveStoreUrl,
+		        new AttributeQueryCallback()
+		        {
+			        public boolean handleAttribute(Long id, Serializable value,
+			                Serializable[] keys)
+			        {
+				        NodeRef node = new NodeRef(archiveStore,
+				                (String) keys[2]);
+				        if (!nodeService.exists(node))
+				        {
+					        stale.add(node);
+				        }
+				        return true;
+			        }
+		        });
+		if (repair)
+		{
+			inNewTransaction(new RetryingTransactionCallback<Object>()
+			{
+				public Object execute() throws Throwable
+				{
+					for (NodeRef node : stale)
+					{
+						archivedDateIndex.remove(node);
+					}
+					archivedDateIndex.pruneDays(archiveStoreUrl);
+					return null;
+				}
+			});
+		}
+
+		final Map<Long, Long> miscounted = getMiscounted(archiveStoreUrl,
+		        dayCounts);
+		if (repair && !miscounted.isEmpty())
+		{
+			inNewTransaction(new RetryingTransactionCallback<Object>()
+			{
+				public Object execute() throws Throwable
+				{
+					if (!archivedDateIndex.mergeCounts(archiveStoreUrl))
+					{
+						logger.warn(String.format("The counts of %s are being "
+						        + "merged, repair them again later",
+						        archiveStoreUrl));
+						return null;
+					}
+					for (Map.Entry<Long, Long> dayCount : miscounted
+					        .entrySet())
+					{
+						archivedDateIndex.setCount(archiveStoreUrl,
+						        dayCount.getKey(), dayCount.getValue()
+						                .longValue());
+					}
+					return null;
+				}
+			});
+		}
+
+		Map<String, Long> report = new LinkedHashMap<String, Long>();
+		report.put("scanned", counts[0]);
+		report.put("missing", counts[1]);
+		report.put("misplaced", counts[2]);
+		report.put("stale", Long.valueOf(stale.size()));
+		report.put("miscounted", Long.valueOf(miscounted.size()));
+		report.put("millis", System.currentTimeMillis() - start);
+		log(repair ? "Repaired" : "Verified", archiveStoreUrl, report);
+		return report;
+	}
+
+	/**
+	 * 
+	 * It measures the time taken to find the <b>count</b> oldest archived
+	 * nodes of the archive store with a full scan of the archive store root
+	 * and with the index, and how many of the nodes found differ.
+	 * 
+	 * @param archiveStoreUrl
+	 * @param count
+	 * @return the report with <b>scanMillis</b>, <b>indexMillis</b>,
+	 *         <b>found</b> and <b>differences</b>
+	 */
+	public Map<String, Long> benchmark(String archiveStoreUrl, final int count)
+	{
+		long start = System.currentTimeMillis();
+		final ArchivedDateFilter dates = new ArchivedDateFilter(nodeService, 0);
+		final RankedNodeSelector selector = new RankedNodeSelector(count);
+		newPager(archiveStoreUrl).walk(new ArchiveRootPager.PageCallback()
+		{
+			public boolean handlePage(List<NodeRef> page)
+			{
+				for (NodeRef node : page)
+				{
+					selector.offer(node, dates.getArchivedTime(node));
+				}
+				return true;
+			}
+		});
+		long scanMillis = System.currentTimeMillis() - start;
+
+		start = System.currentTimeMillis();
+		List<NodeRef> indexed = archivedDateIndex.getOldest(new StoreRef(
+		        archiveStoreUrl), count, Long.MAX_VALUE);
+		long indexMillis = System.currentTimeMillis() - start;
+
+		Set<NodeRef> scanned = new HashSet<NodeRef>(selector.getSelected());
+		long differences = 0;
+		for (NodeRef node : indexed)
+		{
+			if (!scanned.contains(node))
+				differences++;
+		}
+
+		Map<String, Long> report = new LinkedHashMap<String, Long>();
+		report.put("scanMillis", scanMillis);
+		report.put("indexMillis", indexMillis);
+		report.put("found", Long.valueOf(indexed.size()));
+		report.put("differences", differences);
+		log("Benchmarked", archiveStoreUrl, report);
+		return report;
+	}
+
+	/**
+	 * 
+	 * It compares the node counts of the index with the nodes of each day
+	 * found in the archive store.
+	 * 
+	 * @param archiveStoreUrl
+	 * @param dayCounts
+	 * @return the days whose count differs, with the count found
+	 */
+	private Map<Long, Long> getMiscounted(String archiveStoreUrl,
+	        Map<Long, Long> dayCounts)
+	{
+		Map<Long, Long> indexedCounts = archivedDateIndex
+		        .getCounts(archiveStoreUrl);
+		Set<Long> days = new HashSet<Long>(dayCounts.keySet());
+		days.addAll(indexedCounts.keySet());
+		Map<Long, Long> miscounted = new HashMap<Long, Long>();
+		for (Long day : days)
+		{
+			Long found = dayCounts.get(day);
+			Long indexed = indexedCounts.get(day);
+			if (found == null || !found.equals(indexed))
+			{
+				miscounted.put(day, found != null ? found : Long.valueOf(0));
+			}
+		}
+		return miscounted;
+	}
+
+	private boolean isCountingUsage()
+	{
+		return usage != null && usage.isEnabled();
+	}
+
+	private ArchiveRootPager newPager(String archiveStoreUrl)
+	{
+		ArchiveRootPager pager = new ArchiveRootPager(nodeDAO, new StoreRef(
+		        archiveStoreUrl), pageSize);
+		pager.setChildrenDAO(archivedChildrenDAO);
+		return pager;
+	}
+
+	private <R> R inNewTransaction(RetryingTransactionCallback<R> callback)
+	{
+		return transactionService.getRetryingTransactionHelper()
+		        .doInTransaction(callback, false, true);
+	}
+
+	private void log(String operation, String archiveStoreUrl,
+	        Map<String, Long> report)
+	{
+		if (logger.isInfoEnabled())
+		{
+			logger.info(String.format("%s archived date index of %s: %s",
+			        operation, archiveStoreUrl, report));
+		}
+	}
+
+}
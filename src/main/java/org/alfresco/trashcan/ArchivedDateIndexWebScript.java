@@ -0,0 +1,116 @@
+/*
+ * Copyright (C) 2005-2013 Alfresco Software Limited.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+
+ * As a special exception to the terms and conditions of version 2.0 of 
+ * the GPL, you may redistribute this Program in connection with Free/Libre 
+ * and Open Source Software ("FLOSS") applications as described in Alfresco's 
+ * FLOSS exception.  You should have recieved a copy of the text describing 
+ * the FLOSS exception, and it is also available here: 
+ * http://www.alfresco.com/legal/licensing"
+ */
+package org.alfresco.trashcan;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.springframework.extensions.webscripts.Cache;
+import org.springframework.extensions.webscripts.DeclarativeWebScript;
+import org.springframework.extensions.webscripts.Status;
+import org.springframework.extensions.webscripts.WebScriptException;
+import org.springframework.extensions.webscripts.WebScriptRequest;
+
+/**
+ * 
+ * The admin web script running the
+ * {@link org.alfresco.trashcan.ArchivedDateIndexVerifier
+ * ArchivedDateIndexVerifier} operations on the index of an archive store:
+ * <b>rebuild</b>, <b>verify</b>, <b>repair</b> and <b>benchmark</b>.
+ * 
+ * @author Rui Fernandes
+ * 
+ */
+public class ArchivedDateIndexWebScript extends DeclarativeWebScript
+{
+
+	private static final String DEFAULT_STORE = "archive://SpacesStore";
+	private static final int DEFAULT_COUNT = 1000;
+
+	private ArchivedDateIndexVerifier verifier;
+
+	public void setVerifier(ArchivedDateIndexVerifier verifier)
+	{
+		this.verifier = verifier;
+	}
+
+	@Override
+	protected Map<String, Object> executeImpl(WebScriptRequest req,
+	        Status status, Cache cache)
+	{
+		String action = req.getParameter("action");
+		String store = req.getParameter("store");
+		if (store == null || store.length() == 0)
+		{
+			store = DEFAULT_STORE;
+		}
+
+		Map<String, Long> result;
+		if ("rebuild".equals(action))
+		{
+			result = verifier.rebuild(store);
+		}
+		else if ("verify".equals(action))
+		{
+			result = verifier.verify(store, false);
+		}
+		else if ("repair".equals(action))
+		{
+			result = verifier.verify(store, true);
+		}
+		else if ("benchmark".equals(action))
+		{
+			result = verifier.benchmark(store, getCount(req));
+		}
+		else
+		{
+			throw new WebScriptException(Status.STATUS_BAD_REQUEST,
+			        "Unknown action: " + action);
+		}
+
+		Map<String, Object> model = new HashMap<String, Object>();
+		model.put("action", action);
+		model.put("store", store);
+		model.put("result", result);
+		return model;
+	}
+
+	private int getCount(WebScriptRequest req)
+	{
+		String count = req.getParameter("count");
+		if (count == null || count.length() == 0)
+			return DEFAULT_COUNT;
+		try
+		{
+			return Integer.parseInt(count);
+		}
+		catch (NumberFormatException e)
+		{
+			throw new WebScriptException(Status.STATUS_BAD_REQUEST,
+			        "Invalid count: " + count);
+		}
+	}
+
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright (C) 2005-2013 Alfresco Software Limited.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+
+ * As a special exception to the terms and conditions of version 2.0 of 
+ * the GPL, you may redistribute this Program in connection with Free/Libre 
+ * and Open Source Software ("FLOSS") applications as described in Alfresco's 
+ * FLOSS exception.  You should have recieved a copy of the text describing 
+ * the FLOSS exception, and it is also available here: 
+ * http://www.alfresco.com/legal/licensing"
+ */
+package org.alfresco.trashcan;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 
+ * A {@link org.alfresco.trashcan.TrashcanMeter TrashcanMeter} forwarding the
+ * measures to a list of meters, so further meters can be plugged in through
+ * Spring configuration next to the
+ * {@link org.alfresco.trashcan.TrashcanMetrics TrashcanMetrics} exposed by
+ * JMX. Without meters it does nothing.
+ * 
+ * @author Rui Fernandes
+ * 
+ */
+public class CompositeTrashcanMeter implements TrashcanMeter
+{
+
+	private List<TrashcanMeter> meters = new ArrayList<TrashcanMeter>();
+
+	public void setMeters(List<TrashcanMeter> meters)
+	{
+		this.meters = meters;
+	}
+
+	public void nodesRead(int scanned, int archiveUsers, int tooYoung)
+	{
+		for (TrashcanMeter meter : meters)
+		{
+			meter.nodesRead(scanned, archiveUsers, tooYoung);
+		}
+	}
+
+	public void nodesDeleted(int nodes, long millis)
+	{
+		for (TrashcanMeter meter : meters)
+		{
+			meter.nodesDeleted(nodes, millis);
+		}
+	}
+
+	public void bytesReclaimed(long bytes)
+	{
+		for (TrashcanMeter meter : meters)
+		{
+			meter.bytesReclaimed(bytes);
+		}
+	}
+
+	public void bytesFreed(long bytes)
+	{
+		for (TrashcanMeter meter : meters)
+		{
+			meter.bytesFreed(bytes);
+		}
+	}
+
+	public void transactionRetried()
+	{
+		for (TrashcanMeter meter : meters)
+		{
+			meter.transactionRetried();
+		}
+	}
+
+	public void deleteFailed(int nodes)
+	{
+		for (TrashcanMeter meter : meters)
+		{
+			meter.deleteFailed(nodes);
+		}
+	}
+
+	public void nodeQuarantined()
+	{
+		for (TrashcanMeter meter : meters)
+		{
+			meter.nodeQuarantined();
+		}
+	}
+
+	public void runCompleted(long millis, long trashcanSize)
+	{
+		for (TrashcanMeter meter : meters)
+		{
+			meter.runCompleted(millis, trashcanSize);
+		}
+	}
+
+}
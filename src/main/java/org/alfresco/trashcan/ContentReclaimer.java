@@ -0,0 +1,385 @@
+/*
+ * Copyright (C) 2005-2013 Alfresco Software Limited.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+
+ * As a special exception to the terms and conditions of version 2.0 of 
+ * the GPL, you may redistribute this Program in connection with Free/Libre 
+ * and Open Source Software ("FLOSS") applications as described in Alfresco's 
+ * FLOSS exception.  You should have recieved a copy of the text describing 
+ * the FLOSS exception, and it is also available here: 
+ * http://www.alfresco.com/legal/licensing"
+ */
+package org.alfresco.trashcan;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.alfresco.model.ContentModel;
+import org.alfresco.repo.content.cleanup.EagerContentStoreCleaner;
+import org.alfresco.repo.domain.contentdata.ContentDataDAO;
+import org.alfresco.repo.domain.contentdata.ContentUrlEntity;
+import org.alfresco.repo.transaction.AlfrescoTransactionSupport;
+import org.alfresco.repo.transaction.RetryingTransactionHelper.RetryingTransactionCallback;
+import org.alfresco.repo.transaction.TransactionListenerAdapter;
+import org.alfresco.service.cmr.dictionary.DictionaryService;
+import org.alfresco.service.cmr.repository.ChildAssociationRef;
+import org.alfresco.service.cmr.repository.ContentData;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.cmr.repository.NodeService;
+import org.alfresco.service.namespace.RegexQNamePattern;
+import org.alfresco.service.transaction.TransactionService;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * 
+ * It frees the content store space of the purged nodes right after the purge,
+ * instead of leaving their binaries to the content store cleaner job, which
+ * only deletes the orphaned content once it has been orphaned for
+ * <b>system.content.orphanProtectDays</b>.
+ * 
+ * Before the nodes are deleted, the cleaner asks it to <b>collect</b> the
+ * content URLs of their cm:content property, and of the nodes below an
+ * archived folder, up to <b>maxDescendants</b> of them. The URLs are kept
+ * with the deleting transaction and queued once it commits, so a rolled back
+ * deletion frees nothing. At most <b>maxPending</b> URLs are queued, the rest
+ * being left to the content store cleaner job.
+ * 
+ * Once the batches are purged, <b>reclaim</b> takes the queued URLs in
+ * batches of <b>batchSize</b>, each in a transaction of its own. A URL is
+ * only reclaimed if the repository has marked it as orphaned, so the content
+ * shared by a copy or a version still in use is never touched. The orphaned
+ * ones are handed to the
+ * {@link org.alfresco.repo.content.cleanup.EagerContentStoreCleaner
+ * EagerContentStoreCleaner}, which deletes them from the content stores when
+ * the transaction commits. The size of the batches follows the
+ * {@link org.alfresco.trashcan.LoadThrottle LoadThrottle}, if any, pausing
+ * while the repository is busy, so the files are deleted in steady batches
+ * rather than all at once. The bytes of the content handed over are reported
+ * to the meter as freed.
+ * 
+ * @author Rui Fernandes
+ * 
+ */
+public class ContentReclaimer
+{
+
+	protected static final int DEFAULT_BATCH_SIZE = 100;
+	protected static final int DEFAULT_MAX_DESCENDANTS = 1000;
+	protected static final int DEFAULT_MAX_PENDING = 100000;
+	private static final String URLS_RESOURCE = ContentReclaimer.class
+	        .getName() + ".urls";
+
+	private static Log logger = LogFactory.getLog(ContentReclaimer.class);
+
+	private NodeService nodeService;
+	private DictionaryService dictionaryService;
+	private ContentDataDAO contentDataDAO;
+	private EagerContentStoreCleaner contentStoreCleaner;
+	private TransactionService transactionService;
+	private LoadThrottle throttle;
+	private TrashcanMeter meter = new CompositeTrashcanMeter();
+	private boolean enabled;
+	private int batchSize = DEFAULT_BATCH_SIZE;
+	private int maxDescendants = DEFAULT_MAX_DESCENDANTS;
+	private int maxPending = DEFAULT_MAX_PENDING;
+	private ConcurrentLinkedQueue<String> pending = new ConcurrentLinkedQueue<String>();
+	private AtomicInteger pendingCount = new AtomicInteger();
+
+	public void setNodeService(NodeService nodeService)
+	{
+		this.nodeService = nodeService;
+	}
+
+	public void setDictionaryService(DictionaryService dictionaryService)
+	{
+		this.dictionaryService = dictionaryService;
+	}
+
+	public void setContentDataDAO(ContentDataDAO contentDataDAO)
+	{
+		this.contentDataDAO = contentDataDAO;
+	}
+
+	public void setContentStoreCleaner(
+	        EagerContentStoreCleaner contentStoreCleaner)
+	{
+		this.contentStoreCleaner = contentStoreCleaner;
+	}
+
+	public void setTransactionService(TransactionService transactionService)
+	{
+		this.transactionService = transactionService;
+	}
+
+	public void setThrottle(LoadThrottle throttle)
+	{
+		this.throttle = throttle;
+	}
+
+	public void setMeter(TrashcanMeter meter)
+	{
+		if (meter != null)
+			this.meter = meter;
+	}
+
+	public void setEnabled(boolean enabled)
+	{
+		this.enabled = enabled;
+	}
+
+	public boolean isEnabled()
+	{
+		return enabled;
+	}
+
+	public void setBatchSize(int batchSize)
+	{
+		this.batchSize = batchSize > 0 ? batchSize : DEFAULT_BATCH_SIZE;
+	}
+
+	public void setMaxDescendants(int maxDescendants)
+	{
+		this.maxDescendants = maxDescendants;
+	}
+
+	public void setMaxPending(int maxPending)
+	{
+		this.maxPending = maxPending;
+	}
+
+	/**
+	 * 
+	 * It collects the content URLs of the nodes about to be deleted in the
+	 * current transaction and of the nodes below them.
+	 * 
+	 * @param nodes
+	 */
+	public void collect(List<NodeRef> nodes)
+	{
+		Set<String> urls = getTransactionUrls();
+		for (NodeRef node : nodes)
+		{
+			if (!nodeService.exists(node))
+				continue;
+			addContentUrl(node, urls);
+			if (dictionaryService != null && maxDescendants > 0
+			        && isFolder(node))
+			{
+				addDescendantsContentUrls(node, urls);
+			}
+		}
+	}
+
+	/**
+	 * 
+	 * It collects the content URLs of the nodes about to be deleted in the
+	 * current transaction, known to have no children.
+	 * 
+	 * @param leaves
+	 */
+	public void collectLeaves(List<NodeRef> leaves)
+	{
+		Set<String> urls = getTransactionUrls();
+		for (NodeRef leaf : leaves)
+		{
+			addContentUrl(leaf, urls);
+		}
+	}
+
+	/**
+	 * 
+	 * The content URLs queued to be reclaimed.
+	 * 
+	 * @return
+	 */
+	public int getPending()
+	{
+		return pendingCount.get();
+	}
+
+	/**
+	 * 
+	 * It hands the orphaned content of the queued URLs to the eager content
+	 * store cleaner, batch after batch, until the queue is empty.
+	 * 
+	 * @return the bytes freed
+	 */
+	public long reclaim()
+	{
+		long freed = 0;
+		int reclaimed = 0;
+		int checked = 0;
+		while (!pending.isEmpty())
+		{
+			int size = throttle != null && throttle.isEnabled() ? throttle
+			        .acquire(batchSize) : batchSize;
+			final List<String> batch = new ArrayList<String>(size);
+			String url;
+			while (batch.size() < size && (url = pending.poll()) != null)
+			{
+				pendingCount.decrementAndGet();
+				batch.add(url);
+			}
+			if (batch.isEmpty())
+				break;
+			final long[] bytes = new long[1];
+			RetryingTransactionCallback<Integer> callback = new RetryingTransactionCallback<Integer>()
+			{
+				public Integer execute() throws Throwable
+				{
+					bytes[0] = 0;
+					return reclaimOrphaned(batch, bytes);
+				}
+			};
+			int orphaned = transactionService.getRetryingTransactionHelper()
+			        .doInTransaction(
+			                new RetryCountingCallback<Integer>(callback, meter),
+			                false, true);
+			meter.bytesFreed(bytes[0]);
+			freed += bytes[0];
+			reclaimed += orphaned;
+			checked += batch.size();
+		}
+		if (checked > 0 && logger.isDebugEnabled())
+		{
+			logger.debug(String.format(
+			        "%s of %s content URLs reclaimed, %s bytes freed",
+			        reclaimed, checked, freed));
+		}
+		return freed;
+	}
+
+	/**
+	 * 
+	 * It registers the URLs of the batch no longer referenced by any node
+	 * for their deletion once the transaction commits.
+	 * 
+	 * @param urls
+	 * @param bytes
+	 *            the bytes of the orphaned content, on return
+	 * @return the number of orphaned URLs
+	 */
+	private int reclaimOrphaned(List<String> urls, long[] bytes)
+	{
+		int orphaned = 0;
+		for (String url : urls)
+		{
+			ContentUrlEntity entity = contentDataDAO.getContentUrl(url);
+			if (entity == null || entity.getOrphanTime() == null)
+				continue;
+			if (contentStoreCleaner.registerOrphanedContentUrl(url, true))
+			{
+				bytes[0] += entity.getSize();
+				orphaned++;
+			}
+		}
+		return orphaned;
+	}
+
+	/**
+	 * 
+	 * The content URLs collected in the current transaction, queued once it
+	 * commits.
+	 * 
+	 * @return
+	 */
+	private Set<String> getTransactionUrls()
+	{
+		Set<String> urls = AlfrescoTransactionSupport
+		        .getResource(URLS_RESOURCE);
+		if (urls == null)
+		{
+			final Set<String> transactionUrls = new LinkedHashSet<String>();
+			AlfrescoTransactionSupport.bindResource(URLS_RESOURCE,
+			        transactionUrls);
+			AlfrescoTransactionSupport
+			        .bindListener(new TransactionListenerAdapter()
+			        {
+				        @Override
+				        public void afterCommit()
+				        {
+					        enqueue(transactionUrls);
+				        }
+			        });
+			urls = transactionUrls;
+		}
+		return urls;
+	}
+
+	private void enqueue(Set<String> urls)
+	{
+		int dropped = 0;
+		for (String url : urls)
+		{
+			if (pendingCount.get() >= maxPending)
+			{
+				dropped++;
+				continue;
+			}
+			pending.add(url);
+			pendingCount.incrementAndGet();
+		}
+		if (dropped > 0 && logger.isDebugEnabled())
+		{
+			logger.debug(String.format("%s content URLs left to the content "
+			        + "store cleaner, %s already queued", dropped, maxPending));
+		}
+	}
+
+	private void addDescendantsContentUrls(NodeRef folder, Set<String> urls)
+	{
+		int remaining = maxDescendants;
+		LinkedList<NodeRef> folders = new LinkedList<NodeRef>();
+		folders.add(folder);
+		while (!folders.isEmpty() && remaining > 0)
+		{
+			for (ChildAssociationRef childAssoc : nodeService.getChildAssocs(
+			        folders.removeFirst(), RegexQNamePattern.MATCH_ALL,
+			        RegexQNamePattern.MATCH_ALL, remaining, true))
+			{
+				if (!childAssoc.isPrimary())
+					continue;
+				NodeRef child = childAssoc.getChildRef();
+				addContentUrl(child, urls);
+				folders.add(child);
+				remaining--;
+			}
+		}
+	}
+
+	private void addContentUrl(NodeRef node, Set<String> urls)
+	{
+		ContentData content = (ContentData) nodeService.getProperty(node,
+		        ContentModel.PROP_CONTENT);
+		if (content != null && content.getContentUrl() != null)
+		{
+			urls.add(content.getContentUrl());
+		}
+	}
+
+	private boolean isFolder(NodeRef node)
+	{
+		return dictionaryService.isSubClass(nodeService.getType(node),
+		        ContentModel.TYPE_FOLDER);
+	}
+
+}
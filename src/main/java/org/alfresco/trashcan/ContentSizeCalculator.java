@@ -0,0 +1,210 @@
+/*
+ * Copyright (C) 2005-2013 Alfresco Software Limited.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+
+ * As a special exception to the terms and conditions of version 2.0 of 
+ * the GPL, you may redistribute this Program in connection with Free/Libre 
+ * and Open Source Software ("FLOSS") applications as described in Alfresco's 
+ * FLOSS exception.  You should have recieved a copy of the text describing 
+ * the FLOSS exception, and it is also available here: 
+ * http://www.alfresco.com/legal/licensing"
+ */
+package org.alfresco.trashcan;
+
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import org.alfresco.model.ContentModel;
+import org.alfresco.service.cmr.dictionary.DictionaryService;
+import org.alfresco.service.cmr.repository.ChildAssociationRef;
+import org.alfresco.service.cmr.repository.ContentData;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.cmr.repository.NodeService;
+import org.alfresco.service.namespace.RegexQNamePattern;
+
+/**
+ * 
+ * This class tells how many bytes of content an archived node holds, read
+ * from the size of its cm:content property, already cached when the node was
+ * bulk loaded.
+ * 
+ * If a {@link org.alfresco.service.cmr.dictionary.DictionaryService
+ * DictionaryService} and a positive <b>maxDescendants</b> are set, the size
+ * of an archived folder includes the content of the nodes below it, up to
+ * <b>maxDescendants</b> of them. They are read level by level, each level of
+ * children bulk loaded with the child associations query. An archived folder
+ * doesn't change while it is in the trashcan, so the size of its descendants
+ * is kept in a cache of the <b>cacheSize</b> folders last measured, and a
+ * folder ranked on every execution, or ranked and then purged, is only walked
+ * once.
+ * 
+ * @author Rui Fernandes
+ * 
+ */
+public class ContentSizeCalculator
+{
+
+	protected static final int DEFAULT_CACHE_SIZE = 10000;
+
+	private NodeService nodeService;
+	private DictionaryService dictionaryService;
+	private int maxDescendants;
+	private int cacheSize = DEFAULT_CACHE_SIZE;
+	private Map<NodeRef, Long> descendantsSizes = new LinkedHashMap<NodeRef, Long>(
+	        16, 0.75f, true)
+	{
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<NodeRef, Long> eldest)
+		{
+			return size() > cacheSize;
+		}
+	};
+
+	/**
+	 * 
+	 * It will only count the content of the archived node itself.
+	 * 
+	 * @param nodeService
+	 */
+	public ContentSizeCalculator(NodeService nodeService)
+	{
+		this.nodeService = nodeService;
+	}
+
+	/**
+	 * 
+	 * @param nodeService
+	 * @param dictionaryService
+	 * @param maxDescendants
+	 *            the nodes below an archived folder counted at most
+	 */
+	public ContentSizeCalculator(NodeService nodeService,
+	        DictionaryService dictionaryService, int maxDescendants)
+	{
+		this(nodeService);
+		this.dictionaryService = dictionaryService;
+		this.maxDescendants = maxDescendants;
+	}
+
+	/**
+	 * 
+	 * The archived folders whose descendants size is kept at most.
+	 * 
+	 * @param cacheSize
+	 */
+	public void setCacheSize(int cacheSize)
+	{
+		this.cacheSize = cacheSize;
+	}
+
+	/**
+	 * 
+	 * It returns the bytes of content held by the archived node.
+	 * 
+	 * @param node
+	 * @return
+	 */
+	public long getSize(NodeRef node)
+	{
+		long size = getContentSize(node);
+		if (dictionaryService != null && maxDescendants > 0 && isFolder(node))
+		{
+			size += getCachedDescendantsSize(node);
+		}
+		return size;
+	}
+
+	/**
+	 * 
+	 * It returns the bytes of content held by the archived nodes.
+	 * 
+	 * @param nodes
+	 * @param existingOnly
+	 *            if true the nodes that no longer exist are not counted
+	 * @return
+	 */
+	public long getSize(List<NodeRef> nodes, boolean existingOnly)
+	{
+		long size = 0;
+		for (NodeRef node : nodes)
+		{
+			if (!existingOnly || nodeService.exists(node))
+			{
+				size += getSize(node);
+			}
+		}
+		return size;
+	}
+
+	private long getCachedDescendantsSize(NodeRef folder)
+	{
+		Long size;
+		synchronized (descendantsSizes)
+		{
+			size = descendantsSizes.get(folder);
+		}
+		if (size == null)
+		{
+			size = Long.valueOf(getDescendantsSize(folder));
+			synchronized (descendantsSizes)
+			{
+				descendantsSizes.put(folder, size);
+			}
+		}
+		return size.longValue();
+	}
+
+	private long getDescendantsSize(NodeRef folder)
+	{
+		long size = 0;
+		int remaining = maxDescendants;
+		LinkedList<NodeRef> pending = new LinkedList<NodeRef>();
+		pending.add(folder);
+		while (!pending.isEmpty() && remaining > 0)
+		{
+			for (ChildAssociationRef childAssoc : nodeService.getChildAssocs(
+			        pending.removeFirst(), RegexQNamePattern.MATCH_ALL,
+			        RegexQNamePattern.MATCH_ALL, remaining, true))
+			{
+				if (!childAssoc.isPrimary())
+					continue;
+				NodeRef child = childAssoc.getChildRef();
+				size += getContentSize(child);
+				pending.add(child);
+				remaining--;
+			}
+		}
+		return size;
+	}
+
+	private long getContentSize(NodeRef node)
+	{
+		ContentData content = (ContentData) nodeService.getProperty(node,
+		        ContentModel.PROP_CONTENT);
+		return content != null ? content.getSize() : 0;
+	}
+
+	private boolean isFolder(NodeRef node)
+	{
+		return dictionaryService.isSubClass(nodeService.getType(node),
+		        ContentModel.TYPE_FOLDER);
+	}
+
+}
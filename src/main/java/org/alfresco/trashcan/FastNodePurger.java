@@ -0,0 +1,211 @@
+/*
+ * Copyright (C) 2005-2013 Alfresco Software Limited.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+
+ * As a special exception to the terms and conditions of version 2.0 of 
+ * the GPL, you may redistribute this Program in connection with Free/Libre 
+ * and Open Source Software ("FLOSS") applications as described in Alfresco's 
+ * FLOSS exception.  You should have recieved a copy of the text describing 
+ * the FLOSS exception, and it is also available here: 
+ * http://www.alfresco.com/legal/licensing"
+ */
+package org.alfresco.trashcan;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.alfresco.model.ContentModel;
+import org.alfresco.repo.domain.node.NodeDAO;
+import org.alfresco.repo.policy.BehaviourFilter;
+import org.alfresco.service.cmr.dictionary.DictionaryService;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.cmr.repository.NodeService;
+import org.alfresco.service.namespace.QName;
+
+/**
+ * 
+ * This class purges batches of archived nodes with the policy behaviours
+ * disabled, so the deletion of each node, and of each node below it, doesn't
+ * go through the whole behaviour chain. The batch is bulk loaded into the node
+ * caches with a single {@link org.alfresco.repo.domain.node.NodeDAO#cacheNodes(List)
+ * cacheNodes} call before deleting it, instead of loading the nodes one by
+ * one.
+ * 
+ * The nodes are still deleted by the
+ * {@link org.alfresco.service.cmr.repository.NodeService NodeService}, which
+ * removes their children, associations and properties, so the referential
+ * integrity of the repository is kept. The work behaviours would have done
+ * on other data is either done here or left to them: the nodes with an aspect
+ * in <b>behaviourAspects</b> (by default cm:versionable, whose version history
+ * is removed by behaviours) are deleted with the behaviours enabled, and the
+ * entries of the purged nodes are removed from the
+ * {@link org.alfresco.trashcan.ArchivedDateIndex ArchivedDateIndex} and the
+ * {@link org.alfresco.trashcan.TrashcanUsage TrashcanUsage}, if enabled.
+ * 
+ * Which path a node takes is decided from its own type and aspects, already
+ * bulk loaded with the batch, without reading below it. The archived folders
+ * (cm:folder or a subtype) may hold such nodes anywhere in their subtree, so
+ * they are deleted with the behaviours enabled as well. The children of
+ * other nodes, such as their renditions, are not checked.
+ * 
+ * It must run inside a read write transaction. The behaviours are disabled
+ * only for that transaction and enabled back before returning.
+ * 
+ * @author Rui Fernandes
+ * 
+ */
+public class FastNodePurger
+{
+
+	private NodeService nodeService;
+	private NodeDAO nodeDAO;
+	private DictionaryService dictionaryService;
+	private BehaviourFilter behaviourFilter;
+	private ArchivedDateIndex archivedDateIndex;
+	private TrashcanUsage usage;
+	private List<QName> behaviourAspects = Collections
+	        .singletonList(ContentModel.ASPECT_VERSIONABLE);
+
+	/**
+	 * 
+	 * @param nodeService
+	 * @param nodeDAO
+	 *            to bulk load the batch, or null
+	 * @param dictionaryService
+	 *            to tell the folders apart
+	 * @param behaviourFilter
+	 */
+	public FastNodePurger(NodeService nodeService, NodeDAO nodeDAO,
+	        DictionaryService dictionaryService, BehaviourFilter behaviourFilter)
+	{
+		this.nodeService = nodeService;
+		this.nodeDAO = nodeDAO;
+		this.dictionaryService = dictionaryService;
+		this.behaviourFilter = behaviourFilter;
+	}
+
+	public void setArchivedDateIndex(ArchivedDateIndex archivedDateIndex)
+	{
+		this.archivedDateIndex = archivedDateIndex;
+	}
+
+	public void setUsage(TrashcanUsage usage)
+	{
+		this.usage = usage;
+	}
+
+	/**
+	 * 
+	 * The aspects whose nodes are deleted with the behaviours enabled.
+	 * 
+	 * @param behaviourAspects
+	 */
+	public void setBehaviourAspects(List<QName> behaviourAspects)
+	{
+		this.behaviourAspects = behaviourAspects;
+	}
+
+	/**
+	 * 
+	 * It deletes the nodes of the {@link java.util.List List} in the current
+	 * transaction, the last one first.
+	 * 
+	 * @param nodes
+	 * @param existingOnly
+	 *            if true the nodes that no longer exist are skipped
+	 * @return the number of nodes deleted
+	 */
+	public int purge(List<NodeRef> nodes, boolean existingOnly)
+	{
+		if (nodeDAO != null)
+		{
+			nodeDAO.cacheNodes(nodes);
+		}
+		List<NodeRef> withBehaviours = new ArrayList<NodeRef>();
+		List<NodeRef> purged = new ArrayList<NodeRef>(nodes.size());
+		behaviourFilter.disableBehaviour();
+		try
+		{
+			for (int i = nodes.size(); i > 0; i--)
+			{
+				NodeRef node = nodes.get(i - 1);
+				if (existingOnly && !nodeService.exists(node))
+					continue;
+				if (needsBehaviours(node))
+				{
+					withBehaviours.add(node);
+				}
+				else
+				{
+					nodeService.deleteNode(node);
+					purged.add(node);
+				}
+			}
+		} finally
+		{
+			behaviourFilter.enableBehaviour();
+		}
+		for (NodeRef node : withBehaviours)
+		{
+			nodeService.deleteNode(node);
+		}
+		if (archivedDateIndex != null && archivedDateIndex.isEnabled())
+		{
+			for (NodeRef node : purged)
+			{
+				archivedDateIndex.remove(node);
+			}
+		}
+		if (usage != null && usage.isEnabled())
+		{
+			for (NodeRef node : purged)
+			{
+				usage.remove(node);
+			}
+		}
+		return purged.size() + withBehaviours.size();
+	}
+
+	/**
+	 * 
+	 * It checks if the node has one of the <b>behaviourAspects</b>, or if it
+	 * is a folder, whose subtree may hold nodes with them.
+	 * 
+	 * @param node
+	 * @return
+	 */
+	private boolean needsBehaviours(NodeRef node)
+	{
+		if (behaviourAspects.isEmpty())
+			return false;
+		if (hasBehaviourAspect(node))
+			return true;
+		return dictionaryService.isSubClass(nodeService.getType(node),
+		        ContentModel.TYPE_FOLDER);
+	}
+
+	private boolean hasBehaviourAspect(NodeRef node)
+	{
+		for (QName aspect : behaviourAspects)
+		{
+			if (nodeService.hasAspect(node, aspect))
+				return true;
+		}
+		return false;
+	}
+
+}
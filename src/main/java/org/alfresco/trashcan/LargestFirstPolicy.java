@@ -0,0 +1,59 @@
+/*
+ * Copyright (C) 2005-2013 Alfresco Software Limited.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+
+ * As a special exception to the terms and conditions of version 2.0 of 
+ * the GPL, you may redistribute this Program in connection with Free/Libre 
+ * and Open Source Software ("FLOSS") applications as described in Alfresco's 
+ * FLOSS exception.  You should have recieved a copy of the text describing 
+ * the FLOSS exception, and it is also available here: 
+ * http://www.alfresco.com/legal/licensing"
+ */
+package org.alfresco.trashcan;
+
+import org.alfresco.service.cmr.repository.NodeRef;
+
+/**
+ * 
+ * The {@link org.alfresco.trashcan.SelectionPolicy SelectionPolicy} purging
+ * the nodes holding the most content first, so each execution frees as much
+ * space of the content store as its batch allows. The size of each node is
+ * given by a {@link org.alfresco.trashcan.ContentSizeCalculator
+ * ContentSizeCalculator}.
+ * 
+ * @author Rui Fernandes
+ * 
+ */
+public class LargestFirstPolicy implements SelectionPolicy
+{
+
+	private ContentSizeCalculator sizeCalculator;
+
+	/**
+	 * 
+	 * @param sizeCalculator
+	 */
+	public LargestFirstPolicy(ContentSizeCalculator sizeCalculator)
+	{
+		this.sizeCalculator = sizeCalculator;
+	}
+
+	public long getRank(NodeRef node, long archivedTime)
+	{
+		return -sizeCalculator.getSize(node);
+	}
+
+}
@@ -0,0 +1,262 @@
+/*
+ * Copyright (C) 2005-2013 Alfresco Software Limited.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+
+ * As a special exception to the terms and conditions of version 2.0 of 
+ * the GPL, you may redistribute this Program in connection with Free/Libre 
+ * and Open Source Software ("FLOSS") applications as described in Alfresco's 
+ * FLOSS exception.  You should have recieved a copy of the text describing 
+ * the FLOSS exception, and it is also available here: 
+ * http://www.alfresco.com/legal/licensing"
+ */
+package org.alfresco.trashcan;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+
+import javax.sql.DataSource;
+
+import org.apache.commons.dbcp.BasicDataSource;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.jdbc.datasource.DelegatingDataSource;
+
+/**
+ * 
+ * This class slows the deletion down while the repository is busy serving
+ * users. Before each deleting transaction the cleaner asks it for the size of
+ * the next sub-batch. It compares three signals with their budget:
+ * 
+ * <b>maxPoolUsage</b>: the fraction of the connections of the database pool
+ * in use, read from the commons-dbcp
+ * {@link org.apache.commons.dbcp.BasicDataSource BasicDataSource} set as
+ * <b>dataSource</b>. Every running transaction holds a connection, so this is
+ * also the share of the pool taken by the transactions in progress.
+ * 
+ * <b>maxLoadAverage</b>: the system load average per available processor.
+ * 
+ * <b>maxTransactionMillis</b>: the recent latency of the deleting
+ * transactions, a moving average of the times recorded by the cleaner.
+ * 
+ * While any signal is over its budget the sub-batches are halved, down to a
+ * single node, and the cleaner pauses before each one in proportion to the
+ * overload, so that at twice the budget it spends as much time waiting as
+ * deleting, up to <b>maxPauseMillis</b>. As soon as every signal is back
+ * within its budget the sub-batches double again up to their configured size
+ * and the pauses stop, so idle periods are used at full speed.
+ * 
+ * A budget of 0 or negative ignores its signal, and if all of them are
+ * ignored the throttle is disabled. It is defined as a Spring bean shared by
+ * all the archive stores and deletion workers, since the signals are the same
+ * for the whole JVM.
+ * 
+ * @author Rui Fernandes
+ * 
+ */
+public class LoadThrottle
+{
+
+	private static final long MIN_PAUSE_MILLIS = 100L;
+	private static final double LATENCY_WEIGHT = 0.3;
+
+	private static Log logger = LogFactory.getLog(LoadThrottle.class);
+
+	private BasicDataSource pool;
+	private double maxPoolUsage;
+	private double maxLoadAverage;
+	private long maxTransactionMillis;
+	private long maxPauseMillis = 10000L;
+	private OperatingSystemMXBean os = ManagementFactory
+	        .getOperatingSystemMXBean();
+	private double transactionMillis;
+	private int subBatchSize;
+	private boolean overloaded;
+
+	/**
+	 * 
+	 * The database connection pool. Only a commons-dbcp
+	 * {@link org.apache.commons.dbcp.BasicDataSource BasicDataSource},
+	 * possibly wrapped by Spring, tells its usage; with any other
+	 * {@link javax.sql.DataSource DataSource} the pool usage is ignored.
+	 * 
+	 * @param dataSource
+	 */
+	public void setDataSource(DataSource dataSource)
+	{
+		while (dataSource instanceof DelegatingDataSource)
+		{
+			dataSource = ((DelegatingDataSource) dataSource)
+			        .getTargetDataSource();
+		}
+		if (dataSource instanceof BasicDataSource)
+		{
+			pool = (BasicDataSource) dataSource;
+		}
+		else if (dataSource != null)
+		{
+			logger.warn(String.format(
+			        "The usage of the connection pool %s can't be read",
+			        dataSource.getClass().getName()));
+		}
+	}
+
+	public void setMaxPoolUsage(double maxPoolUsage)
+	{
+		this.maxPoolUsage = maxPoolUsage;
+	}
+
+	public void setMaxLoadAverage(double maxLoadAverage)
+	{
+		this.maxLoadAverage = maxLoadAverage;
+	}
+
+	public void setMaxTransactionMillis(long maxTransactionMillis)
+	{
+		this.maxTransactionMillis = maxTransactionMillis;
+	}
+
+	public void setMaxPauseMillis(long maxPauseMillis)
+	{
+		this.maxPauseMillis = maxPauseMillis;
+	}
+
+	/**
+	 * 
+	 * It checks if any signal is compared with a budget.
+	 * 
+	 * @return
+	 */
+	public boolean isEnabled()
+	{
+		return maxPoolUsage > 0 || maxLoadAverage > 0
+		        || maxTransactionMillis > 0;
+	}
+
+	/**
+	 * 
+	 * It returns the highest ratio of a signal to its budget: above 1 the
+	 * repository is busier than the budget allows.
+	 * 
+	 * @return
+	 */
+	public double getLoad()
+	{
+		double load = 0;
+		if (maxPoolUsage > 0 && pool != null && pool.getMaxActive() > 0)
+		{
+			load = Math.max(load, (double) pool.getNumActive()
+			        / pool.getMaxActive() / maxPoolUsage);
+		}
+		double loadAverage = os.getSystemLoadAverage();
+		if (maxLoadAverage > 0 && loadAverage >= 0)
+		{
+			load = Math.max(load, loadAverage / os.getAvailableProcessors()
+			        / maxLoadAverage);
+		}
+		if (maxTransactionMillis > 0)
+		{
+			synchronized (this)
+			{
+				load = Math.max(load, transactionMillis / maxTransactionMillis);
+			}
+		}
+		return load;
+	}
+
+	/**
+	 * 
+	 * It returns the size of the next sub-batch, pausing first if the
+	 * repository is over budget.
+	 * 
+	 * @param maxSubBatchSize
+	 *            the configured size of the sub-batches
+	 * @return
+	 */
+	public int acquire(int maxSubBatchSize)
+	{
+		double load = getLoad();
+		long pause = 0;
+		int size;
+		synchronized (this)
+		{
+			if (subBatchSize <= 0 || subBatchSize > maxSubBatchSize)
+			{
+				subBatchSize = maxSubBatchSize;
+			}
+			if (load > 1)
+			{
+				subBatchSize = Math.max(1, subBatchSize / 2);
+				pause = Math.min(maxPauseMillis, Math.max(MIN_PAUSE_MILLIS,
+				        (long) (transactionMillis * (load - 1))));
+			}
+			else
+			{
+				subBatchSize = (int) Math.min(maxSubBatchSize,
+				        subBatchSize * 2L);
+			}
+			size = subBatchSize;
+			logStateChange(load);
+		}
+		if (pause > 0)
+		{
+			if (logger.isDebugEnabled())
+			{
+				logger.debug(String.format(
+				        "Load %.2f over budget: pausing %s ms before a "
+				                + "sub-batch of %s nodes", load, pause, size));
+			}
+			sleep(pause);
+		}
+		return size;
+	}
+
+	/**
+	 * 
+	 * It records the time taken by a deleting transaction.
+	 * 
+	 * @param millis
+	 */
+	public synchronized void record(long millis)
+	{
+		transactionMillis = transactionMillis == 0 ? millis
+		        : (1 - LATENCY_WEIGHT) * transactionMillis + LATENCY_WEIGHT
+		                * millis;
+	}
+
+	private void logStateChange(double load)
+	{
+		if (overloaded != load > 1 && logger.isInfoEnabled())
+		{
+			logger.info(String.format(load > 1 ? "Load %.2f over budget, "
+			        + "throttling the trashcan cleaner"
+			        : "Load %.2f within budget, trashcan cleaner at full speed",
+			        load));
+		}
+		overloaded = load > 1;
+	}
+
+	private void sleep(long millis)
+	{
+		try
+		{
+			Thread.sleep(millis);
+		} catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+	}
+
+}
@@ -0,0 +1,530 @@
+/*
+ * Copyright (C) 2005-2013 Alfresco Software Limited.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+
+ * As a special exception to the terms and conditions of version 2.0 of 
+ * the GPL, you may redistribute this Program in connection with Free/Libre 
+ * and Open Source Software ("FLOSS") applications as described in Alfresco's 
+ * FLOSS exception.  You should have recieved a copy of the text describing 
+ * the FLOSS exception, and it is also available here: 
+ * http://www.alfresco.com/legal/licensing"
+ */
+package org.alfresco.trashcan;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.alfresco.repo.security.authentication.AuthenticationUtil;
+import org.alfresco.repo.security.authentication.AuthenticationUtil.RunAsWork;
+import org.alfresco.repo.transaction.AlfrescoTransactionSupport;
+import org.alfresco.repo.transaction.RetryingTransactionHelper.RetryingTransactionCallback;
+import org.alfresco.repo.transaction.TransactionListenerAdapter;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.cmr.repository.NodeService;
+import org.alfresco.service.transaction.TransactionService;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * 
+ * This class deletes a batch of archived nodes with a pool of
+ * <b>workers</b>. The batch is split into disjoint slices of <b>sliceSize</b>
+ * nodes and each slice is deleted by a worker in its own retrying transaction
+ * as the system user. The pool queue is bounded: when it is full the calling
+ * thread deletes the slice itself, which throttles the submission.
+ * 
+ * The pool can be shared by the batches of a whole job run, see
+ * {@link #setExecutor(ThreadPoolExecutor) setExecutor}; otherwise one is
+ * created for the batch and shut down once it is deleted.
+ * 
+ * Failed slices are collected instead of stopping the whole batch. If a
+ * {@link org.alfresco.trashcan.TrashcanJobLock TrashcanJobLock} is given it is
+ * checked while submitting the slices, by each worker before its slice and
+ * while waiting for the workers. Once it is lost the pending slices are
+ * cancelled and the rest of the batch is not submitted. Slices already
+ * running are left to finish their transaction. The nodes of the slices
+ * cancelled or never submitted are counted as failed too.
+ * 
+ * If a {@link org.alfresco.trashcan.FastNodePurger FastNodePurger} is set
+ * each slice is purged through it.
+ * 
+ * If a {@link org.alfresco.trashcan.LoadThrottle LoadThrottle} is set each
+ * worker waits for it before deleting a slice. The slices are already cut, so
+ * only the pauses apply, not the shrinking of the sub-batches.
+ * 
+ * If a {@link org.alfresco.trashcan.TrashcanQuarantine TrashcanQuarantine} is
+ * set a failing slice is split until its failing nodes are quarantined, and
+ * the rest of it is deleted.
+ * 
+ * The nodes deleted by each committed slice, the bytes of content they held,
+ * if a {@link org.alfresco.trashcan.ContentSizeCalculator
+ * ContentSizeCalculator} is set, and the transaction retries are reported to
+ * the {@link org.alfresco.trashcan.TrashcanMeter TrashcanMeter} set, if any.
+ * 
+ * @author Rui Fernandes
+ * 
+ */
+public class ParallelNodeDeleter
+{
+
+	private static final long WAIT_MILLIS = 1000L;
+	private static final long KEEP_ALIVE_SECONDS = 60L;
+
+	private static Log logger = LogFactory.getLog(ParallelNodeDeleter.class);
+
+	private NodeService nodeService;
+	private TransactionService transactionService;
+	private int workers;
+	private int sliceSize;
+	private TrashcanJobLock lock;
+	private ThreadPoolExecutor executor;
+	private List<Throwable> failures = Collections
+	        .synchronizedList(new ArrayList<Throwable>());
+	private AtomicInteger failedNodes = new AtomicInteger();
+	private TrashcanMeter meter = new CompositeTrashcanMeter();
+	private FastNodePurger purger;
+	private LoadThrottle throttle;
+	private TrashcanQuarantine quarantine;
+	private ContentReclaimer reclaimer;
+	private ContentSizeCalculator sizeCalculator;
+	private AtomicLong pausedMillis = new AtomicLong();
+
+	/**
+	 * 
+	 * @param nodeService
+	 * @param transactionService
+	 * @param workers
+	 * @param sliceSize
+	 * @param lock
+	 *            the lock to refresh while deleting, or null
+	 */
+	public ParallelNodeDeleter(NodeService nodeService,
+	        TransactionService transactionService, int workers, int sliceSize,
+	        TrashcanJobLock lock)
+	{
+		this.nodeService = nodeService;
+		this.transactionService = transactionService;
+		this.workers = workers;
+		this.sliceSize = sliceSize;
+		this.lock = lock;
+	}
+
+	/**
+	 * 
+	 * It creates a pool of <b>workers</b> threads to be shared by the
+	 * deleters of a job run, with a bounded queue whose overflow runs on the
+	 * calling thread. The idle workers end after a minute, in case the pool is
+	 * never shut down.
+	 * 
+	 * @param workers
+	 * @return
+	 */
+	public static ThreadPoolExecutor newExecutor(int workers)
+	{
+		ThreadPoolExecutor executor = new ThreadPoolExecutor(workers, workers,
+		        KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+		        new ArrayBlockingQueue<Runnable>(workers * 2),
+		        new WorkerThreadFactory(),
+		        new ThreadPoolExecutor.CallerRunsPolicy());
+		executor.allowCoreThreadTimeOut(true);
+		return executor;
+	}
+
+	/**
+	 * 
+	 * The pool of workers deleting the slices, created with
+	 * {@link #newExecutor(int) newExecutor} and shut down by whoever created
+	 * it. If null (the default) each call to {@link #delete(List) delete}
+	 * uses a pool of its own.
+	 * 
+	 * @param executor
+	 */
+	public void setExecutor(ThreadPoolExecutor executor)
+	{
+		this.executor = executor;
+	}
+
+	/**
+	 * 
+	 * The {@link org.alfresco.trashcan.TrashcanMeter TrashcanMeter} receiving
+	 * the measures of each slice.
+	 * 
+	 * @param meter
+	 */
+	public void setMeter(TrashcanMeter meter)
+	{
+		if (meter != null)
+			this.meter = meter;
+	}
+
+	/**
+	 * 
+	 * The {@link org.alfresco.trashcan.FastNodePurger FastNodePurger} purging
+	 * each slice, or null to delete the nodes one by one.
+	 * 
+	 * @param purger
+	 */
+	public void setPurger(FastNodePurger purger)
+	{
+		this.purger = purger;
+	}
+
+	/**
+	 * 
+	 * The {@link org.alfresco.trashcan.LoadThrottle LoadThrottle} each worker
+	 * waits for before deleting a slice, or null to delete at full speed.
+	 * 
+	 * @param throttle
+	 */
+	public void setThrottle(LoadThrottle throttle)
+	{
+		this.throttle = throttle;
+	}
+
+	/**
+	 * 
+	 * The {@link org.alfresco.trashcan.TrashcanQuarantine TrashcanQuarantine}
+	 * isolating the nodes of a failing slice, or null to fail the whole slice.
+	 * 
+	 * @param quarantine
+	 */
+	public void setQuarantine(TrashcanQuarantine quarantine)
+	{
+		this.quarantine = quarantine;
+	}
+
+	/**
+	 * 
+	 * The {@link org.alfresco.trashcan.ContentReclaimer ContentReclaimer}
+	 * collecting the content URLs of each slice before it is deleted, or null.
+	 * 
+	 * @param reclaimer
+	 */
+	public void setReclaimer(ContentReclaimer reclaimer)
+	{
+		this.reclaimer = reclaimer;
+	}
+
+	/**
+	 * 
+	 * The {@link org.alfresco.trashcan.ContentSizeCalculator
+	 * ContentSizeCalculator} measuring the content of each slice, reported
+	 * once it commits, or null.
+	 * 
+	 * @param sizeCalculator
+	 */
+	public void setSizeCalculator(ContentSizeCalculator sizeCalculator)
+	{
+		this.sizeCalculator = sizeCalculator;
+	}
+
+	/**
+	 * 
+	 * It deletes the {@link java.util.List List} of
+	 * {@link org.alfresco.service.cmr.repository.NodeRef NodeRef} received as
+	 * argument and waits for all the workers to finish.
+	 * 
+	 * @param nodes
+	 * @return the number of nodes deleted
+	 */
+	public int delete(List<NodeRef> nodes)
+	{
+		ThreadPoolExecutor pool = executor != null ? executor
+		        : newExecutor(workers);
+		List<Future<Integer>> slices = new ArrayList<Future<Integer>>();
+		List<Integer> sliceSizes = new ArrayList<Integer>();
+		int deleted = 0;
+		try
+		{
+			int from = 0;
+			for (; from < nodes.size() && refreshLock(); from += sliceSize)
+			{
+				List<NodeRef> slice = nodes.subList(from,
+				        Math.min(from + sliceSize, nodes.size()));
+				slices.add(pool.submit(new SliceDeletion(slice)));
+				sliceSizes.add(slice.size());
+			}
+			if (from < nodes.size())
+			{
+				failed(new CancellationException("Lock lost"), nodes.size()
+				        - from);
+			}
+			for (int i = 0; i < slices.size(); i++)
+			{
+				deleted += waitFor(slices.get(i), sliceSizes.get(i));
+			}
+		} finally
+		{
+			if (pool != executor)
+			{
+				pool.shutdown();
+			}
+		}
+		return deleted;
+	}
+
+	/**
+	 * 
+	 * It waits for the slice to be deleted, checking the lock meanwhile. If
+	 * the lock is lost the slice is cancelled and its nodes counted as failed.
+	 * 
+	 * @param slice
+	 * @param size
+	 *            the number of nodes of the slice
+	 * @return the number of nodes deleted by the slice
+	 */
+	private int waitFor(Future<Integer> slice, int size)
+	{
+		while (true)
+		{
+			if (lock != null && !lock.refresh())
+			{
+				slice.cancel(false);
+			}
+			try
+			{
+				return slice.get(WAIT_MILLIS, TimeUnit.MILLISECONDS);
+			} catch (TimeoutException e)
+			{
+				// keep waiting
+			} catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+				slice.cancel(true);
+				failed(e, size);
+				return 0;
+			} catch (ExecutionException e)
+			{
+				failed(e.getCause(), size);
+				return 0;
+			} catch (CancellationException e)
+			{
+				failed(e, size);
+				return 0;
+			}
+		}
+	}
+
+	private void failed(Throwable failure, int nodes)
+	{
+		failures.add(failure);
+		failedNodes.addAndGet(nodes);
+	}
+
+	/**
+	 * 
+	 * The failures of the slices that couldn't be deleted.
+	 * 
+	 * @return
+	 */
+	public List<Throwable> getFailures()
+	{
+		return failures;
+	}
+
+	/**
+	 * 
+	 * The number of nodes on the slices that couldn't be deleted.
+	 * 
+	 * @return
+	 */
+	public int getFailedNodes()
+	{
+		return failedNodes.get();
+	}
+
+	/**
+	 * 
+	 * The time spent by all the workers waiting for the throttle.
+	 * 
+	 * @return
+	 */
+	public long getPausedMillis()
+	{
+		return pausedMillis.get();
+	}
+
+	/**
+	 * 
+	 * It refreshes the lock, if any, when it is due.
+	 * 
+	 * @return false if the lock has been lost
+	 */
+	private boolean refreshLock()
+	{
+		return lock == null || lock.refresh();
+	}
+
+	/**
+	 * 
+	 * The deletion of a slice of nodes in its own transaction as the system
+	 * user.
+	 * 
+	 */
+	private class SliceDeletion implements Callable<Integer>,
+	        TrashcanQuarantine.Deletion
+	{
+		private List<NodeRef> slice;
+		private long millis;
+
+		private SliceDeletion(List<NodeRef> slice)
+		{
+			this.slice = slice;
+		}
+
+		public Integer call()
+		{
+			if (!refreshLock())
+				throw new CancellationException("Lock lost");
+			millis = 0;
+			if (throttle != null)
+			{
+				long start = System.currentTimeMillis();
+				throttle.acquire(slice.size());
+				pausedMillis.addAndGet(System.currentTimeMillis() - start);
+			}
+			try
+			{
+				return AuthenticationUtil.runAsSystem(new RunAsWork<Integer>()
+				{
+					public Integer doWork() throws Exception
+					{
+						if (quarantine != null)
+						{
+							int deleted = quarantine.delete(slice,
+							        SliceDeletion.this);
+							meter.nodesDeleted(deleted, millis);
+							if (throttle != null)
+							{
+								throttle.record(millis);
+							}
+							return deleted;
+						}
+						int deleted = transactionService
+						        .getRetryingTransactionHelper()
+						        .doInTransaction(
+						                new RetryCountingCallback<Integer>(
+						                        new RetryingTransactionCallback<Integer>()
+						                        {
+							                        public Integer execute()
+							                                throws Throwable
+							                        {
+								                        millis = 0;
+								                        return delete(slice);
+							                        }
+						                        }, meter), false, true);
+						meter.nodesDeleted(deleted, millis);
+						if (throttle != null)
+						{
+							throttle.record(millis);
+						}
+						return deleted;
+					}
+				});
+			} catch (RuntimeException e)
+			{
+				logger.warn(String.format(
+				        "Failed to delete a slice of %s nodes", slice.size()), e);
+				failed(e, slice.size());
+				return 0;
+			}
+		}
+
+		public int delete(List<NodeRef> nodes)
+		{
+			if (sizeCalculator != null)
+			{
+				meterReclaimed(sizeCalculator.getSize(nodes, true));
+			}
+			long start = System.currentTimeMillis();
+			int deleted = 0;
+			if (reclaimer != null)
+			{
+				reclaimer.collect(nodes);
+			}
+			if (purger != null)
+			{
+				deleted = purger.purge(nodes, true);
+			}
+			else
+			{
+				for (int i = nodes.size(); i > 0; i--)
+				{
+					NodeRef node = nodes.get(i - 1);
+					if (nodeService.exists(node))
+					{
+						nodeService.deleteNode(node);
+						deleted++;
+					}
+				}
+			}
+			// the quarantine deletes a failing slice in several calls
+			millis += System.currentTimeMillis() - start;
+			return deleted;
+		}
+	}
+
+	/**
+	 * 
+	 * It reports the bytes of content of a slice to the
+	 * {@link org.alfresco.trashcan.TrashcanMeter TrashcanMeter} once the
+	 * current transaction commits.
+	 * 
+	 * @param bytes
+	 */
+	private void meterReclaimed(final long bytes)
+	{
+		AlfrescoTransactionSupport.bindListener(new TransactionListenerAdapter()
+		{
+			@Override
+			public void afterCommit()
+			{
+				meter.bytesReclaimed(bytes);
+			}
+		});
+	}
+
+	/**
+	 * 
+	 * Creates the daemon worker threads.
+	 * 
+	 */
+	private static class WorkerThreadFactory implements ThreadFactory
+	{
+		private AtomicInteger count = new AtomicInteger();
+
+		public Thread newThread(Runnable runnable)
+		{
+			Thread thread = new Thread(runnable, "TrashcanCleanerWorker-"
+			        + count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+
+}
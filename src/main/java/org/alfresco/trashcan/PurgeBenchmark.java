@@ -0,0 +1,239 @@
+/*
+ * Copyright (C) 2005-2013 Alfresco Software Limited.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+
+ * As a special exception to the terms and conditions of version 2.0 of 
+ * the GPL, you may redistribute this Program in connection with Free/Libre 
+ * and Open Source Software ("FLOSS") applications as described in Alfresco's 
+ * FLOSS exception.  You should have recieved a copy of the text describing 
+ * the FLOSS exception, and it is also available here: 
+ * http://www.alfresco.com/legal/licensing"
+ */
+package org.alfresco.trashcan;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.alfresco.model.ContentModel;
+import org.alfresco.repo.domain.node.NodeDAO;
+import org.alfresco.repo.policy.BehaviourFilter;
+import org.alfresco.repo.transaction.RetryingTransactionHelper.RetryingTransactionCallback;
+import org.alfresco.service.cmr.dictionary.DictionaryService;
+import org.alfresco.service.cmr.repository.ChildAssociationRef;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.cmr.repository.NodeService;
+import org.alfresco.service.cmr.repository.StoreRef;
+import org.alfresco.service.namespace.NamespaceService;
+import org.alfresco.service.namespace.QName;
+import org.alfresco.service.transaction.TransactionService;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * 
+ * This class measures, on the installation's own repository, how many nodes
+ * per second are purged through the standard
+ * {@link org.alfresco.service.cmr.repository.NodeService NodeService} path and
+ * through the {@link org.alfresco.trashcan.FastNodePurger FastNodePurger}.
+ * 
+ * For each path it creates <b>count</b> content nodes under the root of the
+ * workspace store, deletes them so they are archived and then times their
+ * purge from the archive store, in transactions of <b>transactionSize</b>
+ * nodes. Only the purge is timed. The nodes are created and purged by the
+ * benchmark itself, nothing else in the trashcan is touched.
+ * 
+ * @author Rui Fernandes
+ * 
+ */
+public class PurgeBenchmark
+{
+
+	private static Log logger = LogFactory.getLog(PurgeBenchmark.class);
+
+	private NodeService nodeService;
+	private NodeDAO nodeDAO;
+	private DictionaryService dictionaryService;
+	private TransactionService transactionService;
+	private BehaviourFilter behaviourFilter;
+	private ArchivedDateIndex archivedDateIndex;
+	private int transactionSize = 1000;
+
+	public void setNodeService(NodeService nodeService)
+	{
+		this.nodeService = nodeService;
+	}
+
+	public void setNodeDAO(NodeDAO nodeDAO)
+	{
+		this.nodeDAO = nodeDAO;
+	}
+
+	public void setDictionaryService(DictionaryService dictionaryService)
+	{
+		this.dictionaryService = dictionaryService;
+	}
+
+	public void setTransactionService(TransactionService transactionService)
+	{
+		this.transactionService = transactionService;
+	}
+
+	public void setBehaviourFilter(BehaviourFilter behaviourFilter)
+	{
+		this.behaviourFilter = behaviourFilter;
+	}
+
+	public void setArchivedDateIndex(ArchivedDateIndex archivedDateIndex)
+	{
+		this.archivedDateIndex = archivedDateIndex;
+	}
+
+	public void setTransactionSize(int transactionSize)
+	{
+		this.transactionSize = transactionSize;
+	}
+
+	/**
+	 * 
+	 * It purges <b>count</b> archived nodes through each path and reports the
+	 * time taken and the throughput of each one.
+	 * 
+	 * @param count
+	 * @return the report with <b>nodes</b>, <b>standardMillis</b>,
+	 *         <b>standardNodesPerSecond</b>, <b>fastMillis</b> and
+	 *         <b>fastNodesPerSecond</b>
+	 */
+	public Map<String, Long> run(int count)
+	{
+		FastNodePurger purger = new FastNodePurger(nodeService, nodeDAO,
+		        dictionaryService, behaviourFilter);
+		purger.setArchivedDateIndex(archivedDateIndex);
+
+		long standardMillis = purge(createArchivedNodes(count), null);
+		long fastMillis = purge(createArchivedNodes(count), purger);
+
+		Map<String, Long> report = new LinkedHashMap<String, Long>();
+		report.put("nodes", Long.valueOf(count));
+		report.put("standardMillis", standardMillis);
+		report.put("standardNodesPerSecond", perSecond(count, standardMillis));
+		report.put("fastMillis", fastMillis);
+		report.put("fastNodesPerSecond", perSecond(count, fastMillis));
+		if (logger.isDebugEnabled())
+		{
+			logger.debug(String.format("Purge benchmark: %s", report));
+		}
+		return report;
+	}
+
+	/**
+	 * 
+	 * It creates and archives <b>count</b> content nodes.
+	 * 
+	 * @param count
+	 * @return the archived nodes
+	 */
+	private List<NodeRef> createArchivedNodes(int count)
+	{
+		final List<NodeRef> archived = new ArrayList<NodeRef>(count);
+		for (int from = 0; from < count; from += transactionSize)
+		{
+			final int nodes = Math.min(transactionSize, count - from);
+			inNewTransaction(new RetryingTransactionCallback<Object>()
+			{
+				public Object execute() throws Throwable
+				{
+					NodeRef root = nodeService
+					        .getRootNode(StoreRef.STORE_REF_WORKSPACE_SPACESSTORE);
+					List<NodeRef> created = new ArrayList<NodeRef>(nodes);
+					for (int i = 0; i < nodes; i++)
+					{
+						String name = "Purge benchmark " + System.nanoTime();
+						Map<QName, Serializable> props = new HashMap<QName, Serializable>();
+						props.put(ContentModel.PROP_NAME, name);
+						ChildAssociationRef childAssoc = nodeService.createNode(
+						        root, ContentModel.ASSOC_CHILDREN, QName
+						                .createQName(
+						                        NamespaceService.CONTENT_MODEL_1_0_URI,
+						                        name), ContentModel.TYPE_CONTENT,
+						        props);
+						nodeService.deleteNode(childAssoc.getChildRef());
+						created.add(new NodeRef(
+						        StoreRef.STORE_REF_ARCHIVE_SPACESSTORE, childAssoc
+						                .getChildRef().getId()));
+					}
+					archived.addAll(created);
+					return null;
+				}
+			});
+		}
+		return archived;
+	}
+
+	/**
+	 * 
+	 * It purges the nodes through the <b>purger</b>, or through the
+	 * {@link org.alfresco.service.cmr.repository.NodeService NodeService} if
+	 * it is null.
+	 * 
+	 * @param nodes
+	 * @param purger
+	 * @return the time taken in milliseconds
+	 */
+	private long purge(List<NodeRef> nodes, final FastNodePurger purger)
+	{
+		long start = System.currentTimeMillis();
+		for (int from = 0; from < nodes.size(); from += transactionSize)
+		{
+			final List<NodeRef> subBatch = nodes.subList(from,
+			        Math.min(from + transactionSize, nodes.size()));
+			inNewTransaction(new RetryingTransactionCallback<Object>()
+			{
+				public Object execute() throws Throwable
+				{
+					if (purger != null)
+					{
+						purger.purge(subBatch, false);
+					}
+					else
+					{
+						for (NodeRef node : subBatch)
+						{
+							nodeService.deleteNode(node);
+						}
+					}
+					return null;
+				}
+			});
+		}
+		return System.currentTimeMillis() - start;
+	}
+
+	private static long perSecond(int nodes, long millis)
+	{
+		return millis > 0 ? nodes * 1000L / millis : 0;
+	}
+
+	private void inNewTransaction(RetryingTransactionCallback<Object> callback)
+	{
+		transactionService.getRetryingTransactionHelper().doInTransaction(
+		        callback, false, true);
+	}
+
+}
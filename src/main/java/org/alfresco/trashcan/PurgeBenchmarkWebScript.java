@@ -0,0 +1,84 @@
+/*
+ * Copyright (C) 2005-2013 Alfresco Software Limited.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+
+ * As a special exception to the terms and conditions of version 2.0 of 
+ * the GPL, you may redistribute this Program in connection with Free/Libre 
+ * and Open Source Software ("FLOSS") applications as described in Alfresco's 
+ * FLOSS exception.  You should have recieved a copy of the text describing 
+ * the FLOSS exception, and it is also available here: 
+ * http://www.alfresco.com/legal/licensing"
+ */
+package org.alfresco.trashcan;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.springframework.extensions.webscripts.Cache;
+import org.springframework.extensions.webscripts.DeclarativeWebScript;
+import org.springframework.extensions.webscripts.Status;
+import org.springframework.extensions.webscripts.WebScriptException;
+import org.springframework.extensions.webscripts.WebScriptRequest;
+
+/**
+ * 
+ * The admin web script running the
+ * {@link org.alfresco.trashcan.PurgeBenchmark PurgeBenchmark}, which compares
+ * the standard and the fast purge of <b>count</b> archived nodes.
+ * 
+ * @author Rui Fernandes
+ * 
+ */
+public class PurgeBenchmarkWebScript extends DeclarativeWebScript
+{
+
+	private static final int DEFAULT_COUNT = 1000;
+
+	private PurgeBenchmark benchmark;
+
+	public void setBenchmark(PurgeBenchmark benchmark)
+	{
+		this.benchmark = benchmark;
+	}
+
+	@Override
+	protected Map<String, Object> executeImpl(WebScriptRequest req,
+	        Status status, Cache cache)
+	{
+		Map<String, Object> model = new HashMap<String, Object>();
+		model.put("result", benchmark.run(getCount(req)));
+		return model;
+	}
+
+	private int getCount(WebScriptRequest req)
+	{
+		String count = req.getParameter("count");
+		if (count == null || count.length() == 0)
+			return DEFAULT_COUNT;
+		try
+		{
+			int value = Integer.parseInt(count);
+			if (value > 0)
+				return value;
+		}
+		catch (NumberFormatException e)
+		{
+		}
+		throw new WebScriptException(Status.STATUS_BAD_REQUEST,
+		        "Invalid count: " + count);
+	}
+
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright (C) 2005-2013 Alfresco Software Limited.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+
+ * As a special exception to the terms and conditions of version 2.0 of 
+ * the GPL, you may redistribute this Program in connection with Free/Libre 
+ * and Open Source Software ("FLOSS") applications as described in Alfresco's 
+ * FLOSS exception.  You should have recieved a copy of the text describing 
+ * the FLOSS exception, and it is also available here: 
+ * http://www.alfresco.com/legal/licensing"
+ */
+package org.alfresco.trashcan;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.util.Pair;
+
+/**
+ * 
+ * This class keeps the <b>max</b> archived nodes with the lowest rank offered
+ * to it, so the first nodes of the trashcan in the order of a
+ * {@link org.alfresco.trashcan.SelectionPolicy SelectionPolicy}, such as the
+ * oldest ones, can be selected while streaming through it without sorting or
+ * holding the whole trashcan in memory. The candidates are kept in a heap
+ * with the highest rank on top, replaced whenever a lower ranked candidate is
+ * offered. Nodes of the same rank are ordered by id, so the selection does
+ * not depend on the order they are offered in.
+ * 
+ * @author Rui Fernandes
+ * 
+ */
+public class RankedNodeSelector
+{
+
+	private static final Comparator<Pair<Long, NodeRef>> LOWEST_FIRST = new Comparator<Pair<Long, NodeRef>>()
+	{
+		public int compare(Pair<Long, NodeRef> entry1,
+		        Pair<Long, NodeRef> entry2)
+		{
+			int result = entry1.getFirst().compareTo(entry2.getFirst());
+			return result != 0 ? result : entry1.getSecond().getId()
+			        .compareTo(entry2.getSecond().getId());
+		}
+	};
+
+	private int max;
+	private PriorityQueue<Pair<Long, NodeRef>> heap;
+
+	/**
+	 * 
+	 * @param max
+	 *            the number of nodes to select
+	 */
+	public RankedNodeSelector(int max)
+	{
+		this.max = max;
+		this.heap = new PriorityQueue<Pair<Long, NodeRef>>(Math.max(1,
+		        max + 1), Collections.reverseOrder(LOWEST_FIRST));
+	}
+
+	/**
+	 * 
+	 * It offers a candidate of the given <b>rank</b>.
+	 * 
+	 * @param node
+	 * @param rank
+	 * @return true if the node is kept, for now, among the lowest ranked
+	 */
+	public boolean offer(NodeRef node, long rank)
+	{
+		if (max <= 0)
+			return false;
+		Pair<Long, NodeRef> entry = new Pair<Long, NodeRef>(
+		        Long.valueOf(rank), node);
+		if (heap.size() < max)
+		{
+			heap.add(entry);
+			return true;
+		}
+		if (LOWEST_FIRST.compare(entry, heap.peek()) >= 0)
+			return false;
+		heap.poll();
+		heap.add(entry);
+		return true;
+	}
+
+	/**
+	 * 
+	 * The number of nodes selected so far.
+	 * 
+	 * @return
+	 */
+	public int size()
+	{
+		return heap.size();
+	}
+
+	/**
+	 * 
+	 * It returns the nodes selected, the lowest ranked first.
+	 * 
+	 * @return
+	 */
+	public List<NodeRef> getSelected()
+	{
+		List<Pair<Long, NodeRef>> entries = new ArrayList<Pair<Long, NodeRef>>(
+		        heap);
+		Collections.sort(entries, LOWEST_FIRST);
+		List<NodeRef> oldest = new ArrayList<NodeRef>(entries.size());
+		for (Pair<Long, NodeRef> entry : entries)
+		{
+			oldest.add(entry.getSecond());
+		}
+		return oldest;
+	}
+
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2005-2013 Alfresco Software Limited.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+
+ * As a special exception to the terms and conditions of version 2.0 of 
+ * the GPL, you may redistribute this Program in connection with Free/Libre 
+ * and Open Source Software ("FLOSS") applications as described in Alfresco's 
+ * FLOSS exception.  You should have recieved a copy of the text describing 
+ * the FLOSS exception, and it is also available here: 
+ * http://www.alfresco.com/legal/licensing"
+ */
+package org.alfresco.trashcan;
+
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.cmr.repository.NodeService;
+
+/**
+ * 
+ * The {@link org.alfresco.trashcan.ArchivedDateFilter ArchivedDateFilter}
+ * giving each archived node the cutoff of the first
+ * {@link org.alfresco.trashcan.RetentionRules RetentionRules} rule it
+ * matches, or the one of the global <b>daysToKeep</b> if none. The cutoff of
+ * every rule is computed once when the filter is created.
+ * 
+ * The cutoff of the filter is the latest of them all, so no node archived
+ * after it is eligible whatever the rule it matches.
+ * 
+ * @author Rui Fernandes
+ * 
+ */
+public class RetentionFilter extends ArchivedDateFilter
+{
+
+	private RetentionRules rules;
+	private long[] ruleCutoffs;
+	private long latestCutoff;
+
+	/**
+	 * 
+	 * Creates the filter with the cutoffs relative to the current time.
+	 * 
+	 * @param nodeService
+	 * @param daysToKeep
+	 * @param rules
+	 */
+	public RetentionFilter(NodeService nodeService, int daysToKeep,
+	        RetentionRules rules)
+	{
+		this(nodeService, daysToKeep, rules, System.currentTimeMillis());
+	}
+
+	/**
+	 * 
+	 * Creates the filter with the cutoffs relative to <b>now</b>.
+	 * 
+	 * @param nodeService
+	 * @param daysToKeep
+	 * @param rules
+	 * @param now
+	 */
+	public RetentionFilter(NodeService nodeService, int daysToKeep,
+	        RetentionRules rules, long now)
+	{
+		super(nodeService, daysToKeep, now);
+		this.rules = rules;
+		int[] days = rules.getDaysToKeep();
+		ruleCutoffs = new long[days.length];
+		latestCutoff = super.getCutoff();
+		for (int i = 0; i < days.length; i++)
+		{
+			ruleCutoffs[i] = getCutoff(days[i], now);
+			latestCutoff = Math.max(latestCutoff, ruleCutoffs[i]);
+		}
+	}
+
+	/**
+	 * 
+	 * It checks the archived date against the latest cutoff first, so the
+	 * rules are only matched against the nodes old enough for some of them.
+	 * 
+	 */
+	@Override
+	public boolean isEligible(NodeRef node)
+	{
+		long archivedTime = getArchivedTime(node);
+		if (archivedTime >= latestCutoff)
+			return false;
+		return archivedTime < getCutoff(node);
+	}
+
+	@Override
+	public long getCutoff()
+	{
+		return latestCutoff;
+	}
+
+	@Override
+	public long getCutoff(NodeRef node)
+	{
+		int rule = rules.match(node);
+		return rule >= 0 ? ruleCutoffs[rule] : super.getCutoff();
+	}
+
+}
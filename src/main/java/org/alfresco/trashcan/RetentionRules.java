@@ -0,0 +1,393 @@
+/*
+ * Copyright (C) 2005-2013 Alfresco Software Limited.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+
+ * As a special exception to the terms and conditions of version 2.0 of 
+ * the GPL, you may redistribute this Program in connection with Free/Libre 
+ * and Open Source Software ("FLOSS") applications as described in Alfresco's 
+ * FLOSS exception.  You should have recieved a copy of the text describing 
+ * the FLOSS exception, and it is also available here: 
+ * http://www.alfresco.com/legal/licensing"
+ */
+package org.alfresco.trashcan;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.alfresco.model.ContentModel;
+import org.alfresco.service.cmr.dictionary.DictionaryService;
+import org.alfresco.service.cmr.repository.ChildAssociationRef;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.cmr.repository.NodeService;
+import org.alfresco.service.namespace.NamespaceService;
+import org.alfresco.service.namespace.QName;
+import org.alfresco.util.ISO9075;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * 
+ * The retention rules giving some archived nodes a <b>daysToKeep</b> of their
+ * own, by the site or the path they were deleted from, their type or their
+ * aspects. The rules are given by <b>trashcan.retention.rules</b>, a comma
+ * separated list of rules, each one a number of days to keep followed by its
+ * conditions separated by semicolons, for example:
+ * 
+ * <pre>
+ * 7;path=/app:company_home/cm:Temp,90;site=legal,30;type=cm:folder;aspect=cm:versionable
+ * </pre>
+ * 
+ * <b>site</b> matches the nodes deleted from anywhere in the site with that
+ * short name, <b>path</b> the nodes deleted from that folder or below it,
+ * given as a prefixed path, <b>type</b> the nodes of that type or a subtype
+ * and <b>aspect</b> the nodes with that aspect. A node matches a rule if it
+ * meets all of its conditions, and the first rule it matches gives its
+ * retention. The nodes matching no rule keep the global <b>daysToKeep</b>.
+ * 
+ * The rules are compiled once per execution, resolving their prefixes, and
+ * matched against the properties, type and aspects of the archived nodes,
+ * already bulk loaded with each page. The site and the path come from the
+ * original parent of the node (sys:archivedOriginalParentAssoc). Many nodes
+ * are deleted from the same folder, so the path of each original parent is
+ * resolved once and kept in a cache of the <b>cacheSize</b> parents last
+ * used, and the type checks are cached by type.
+ * 
+ * @author Rui Fernandes
+ * 
+ */
+public class RetentionRules
+{
+
+	protected static final int DEFAULT_CACHE_SIZE = 10000;
+	private static final String SITES_ELEMENT = "/st:sites/";
+
+	private static Log logger = LogFactory.getLog(RetentionRules.class);
+
+	private NodeService nodeService;
+	private DictionaryService dictionaryService;
+	private NamespaceService namespaceService;
+	private List<Rule> rules = new ArrayList<Rule>();
+	private Map<NodeRef, Location> locations;
+	private long cacheHits;
+	private long cacheMisses;
+
+	/**
+	 * 
+	 * The original location of archived nodes.
+	 * 
+	 */
+	private static class Location
+	{
+		private String path;
+		private String site;
+
+		private Location(String path, String site)
+		{
+			this.path = path;
+			this.site = site;
+		}
+	}
+
+	/**
+	 * 
+	 * A compiled rule: its days to keep and its conditions, null if not set.
+	 * 
+	 */
+	private class Rule
+	{
+		private int daysToKeep;
+		private String site;
+		private String path;
+		private QName type;
+		private QName aspect;
+		private Map<QName, Boolean> typeMatches = new ConcurrentHashMap<QName, Boolean>();
+
+		private boolean isLocated()
+		{
+			return site != null || path != null;
+		}
+
+		private boolean matches(NodeRef node, Location location)
+		{
+			if (type != null && !matchesType(nodeService.getType(node)))
+				return false;
+			if (aspect != null && !nodeService.hasAspect(node, aspect))
+				return false;
+			if (site != null
+			        && (location == null || !site.equals(location.site)))
+				return false;
+			if (path != null
+			        && (location == null || location.path == null || !isBelow(
+			                location.path, path)))
+				return false;
+			return true;
+		}
+
+		private boolean matchesType(QName nodeType)
+		{
+			Boolean matches = typeMatches.get(nodeType);
+			if (matches == null)
+			{
+				matches = Boolean.valueOf(dictionaryService.isSubClass(
+				        nodeType, type));
+				typeMatches.put(nodeType, matches);
+			}
+			return matches.booleanValue();
+		}
+	}
+
+	/**
+	 * 
+	 * @param nodeService
+	 * @param dictionaryService
+	 * @param namespaceService
+	 * @param cacheSize
+	 *            the original parents whose location is kept at most
+	 */
+	public RetentionRules(NodeService nodeService,
+	        DictionaryService dictionaryService,
+	        NamespaceService namespaceService, final int cacheSize)
+	{
+		this.nodeService = nodeService;
+		this.dictionaryService = dictionaryService;
+		this.namespaceService = namespaceService;
+		this.locations = new LinkedHashMap<NodeRef, Location>(16, 0.75f, true)
+		{
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(
+			        Map.Entry<NodeRef, Location> eldest)
+			{
+				return size() > Math.max(1, cacheSize);
+			}
+		};
+	}
+
+	/**
+	 * 
+	 * It compiles the rules.
+	 * 
+	 * @param retentionRules
+	 * @param nodeService
+	 * @param dictionaryService
+	 * @param namespaceService
+	 * @param cacheSize
+	 * @return
+	 * @throws IllegalArgumentException
+	 *             if a rule is not valid
+	 */
+	public static RetentionRules parse(String retentionRules,
+	        NodeService nodeService, DictionaryService dictionaryService,
+	        NamespaceService namespaceService, int cacheSize)
+	{
+		RetentionRules rules = new RetentionRules(nodeService,
+		        dictionaryService, namespaceService, cacheSize);
+		if (retentionRules != null)
+		{
+			for (String rule : retentionRules.split(","))
+			{
+				if (rule.trim().length() > 0)
+				{
+					rules.parseRule(rule);
+				}
+			}
+		}
+		return rules;
+	}
+
+	private void parseRule(String ruleString)
+	{
+		String[] parts = ruleString.split(";");
+		Rule rule = new Rule();
+		try
+		{
+			rule.daysToKeep = Integer.parseInt(parts[0].trim());
+		}
+		catch (NumberFormatException e)
+		{
+			throw new IllegalArgumentException(String.format(
+			        "Invalid days to keep '%s' of rule %s", parts[0],
+			        ruleString));
+		}
+		for (int i = 1; i < parts.length; i++)
+		{
+			String[] condition = parts[i].split("=", 2);
+			if (condition.length != 2 || condition[1].trim().length() == 0)
+				throw new IllegalArgumentException(String.format(
+				        "Invalid condition '%s' of rule %s", parts[i],
+				        ruleString));
+			String name = condition[0].trim();
+			String value = condition[1].trim();
+			if (name.equals("site"))
+				rule.site = value;
+			else if (name.equals("path"))
+				rule.path = value.endsWith("/") ? value.substring(0,
+				        value.length() - 1) : value;
+			else if (name.equals("type"))
+				rule.type = QName.createQName(value, namespaceService);
+			else if (name.equals("aspect"))
+				rule.aspect = QName.createQName(value, namespaceService);
+			else
+				throw new IllegalArgumentException(String.format(
+				        "Unknown condition %s of rule %s", name, ruleString));
+		}
+		rules.add(rule);
+	}
+
+	/**
+	 * 
+	 * It checks if there is any rule.
+	 * 
+	 * @return
+	 */
+	public boolean isEnabled()
+	{
+		return !rules.isEmpty();
+	}
+
+	/**
+	 * 
+	 * The days to keep of each rule, in order.
+	 * 
+	 * @return
+	 */
+	public int[] getDaysToKeep()
+	{
+		int[] days = new int[rules.size()];
+		for (int i = 0; i < days.length; i++)
+		{
+			days[i] = rules.get(i).daysToKeep;
+		}
+		return days;
+	}
+
+	/**
+	 * 
+	 * It returns the index of the first rule the archived node matches, or -1
+	 * if none.
+	 * 
+	 * @param node
+	 * @return
+	 */
+	public int match(NodeRef node)
+	{
+		Location location = null;
+		boolean located = false;
+		for (int i = 0; i < rules.size(); i++)
+		{
+			Rule rule = rules.get(i);
+			if (rule.isLocated() && !located)
+			{
+				location = getLocation(node);
+				located = true;
+			}
+			if (rule.matches(node, location))
+				return i;
+		}
+		return -1;
+	}
+
+	/**
+	 * 
+	 * The lookups of the location of an original parent served by the cache.
+	 * 
+	 * @return
+	 */
+	public synchronized long getCacheHits()
+	{
+		return cacheHits;
+	}
+
+	/**
+	 * 
+	 * The lookups of the location of an original parent that had to resolve
+	 * its path.
+	 * 
+	 * @return
+	 */
+	public synchronized long getCacheMisses()
+	{
+		return cacheMisses;
+	}
+
+	/**
+	 * 
+	 * It returns the location the archived node was deleted from, or null if
+	 * unknown.
+	 * 
+	 * @param node
+	 * @return
+	 */
+	private Location getLocation(NodeRef node)
+	{
+		Serializable originalAssoc = nodeService.getProperty(node,
+		        ContentModel.PROP_ARCHIVED_ORIGINAL_PARENT_ASSOC);
+		if (!(originalAssoc instanceof ChildAssociationRef))
+			return null;
+		NodeRef parent = ((ChildAssociationRef) originalAssoc).getParentRef();
+		synchronized (this)
+		{
+			Location location = locations.get(parent);
+			if (location != null)
+			{
+				cacheHits++;
+				return location;
+			}
+			cacheMisses++;
+		}
+		Location location = resolve(parent);
+		synchronized (this)
+		{
+			locations.put(parent, location);
+		}
+		return location;
+	}
+
+	private Location resolve(NodeRef parent)
+	{
+		if (!nodeService.exists(parent))
+			return new Location(null, null);
+		String path = nodeService.getPath(parent).toPrefixString(
+		        namespaceService);
+		String site = null;
+		int sites = path.indexOf(SITES_ELEMENT);
+		if (sites >= 0)
+		{
+			String element = path.substring(sites + SITES_ELEMENT.length());
+			int end = element.indexOf('/');
+			element = end >= 0 ? element.substring(0, end) : element;
+			int prefix = element.indexOf(':');
+			site = ISO9075.decode(element.substring(prefix + 1));
+		}
+		if (logger.isDebugEnabled())
+		{
+			logger.debug(String.format("Original parent %s at %s, site %s",
+			        parent, path, site));
+		}
+		return new Location(path, site);
+	}
+
+	private static boolean isBelow(String path, String folder)
+	{
+		return path.equals(folder) || path.startsWith(folder + "/");
+	}
+
+}
@@ -0,0 +1,68 @@
+/*
+ * Copyright (C) 2005-2013 Alfresco Software Limited.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+
+ * As a special exception to the terms and conditions of version 2.0 of 
+ * the GPL, you may redistribute this Program in connection with Free/Libre 
+ * and Open Source Software ("FLOSS") applications as described in Alfresco's 
+ * FLOSS exception.  You should have recieved a copy of the text describing 
+ * the FLOSS exception, and it is also available here: 
+ * http://www.alfresco.com/legal/licensing"
+ */
+package org.alfresco.trashcan;
+
+import org.alfresco.repo.transaction.RetryingTransactionHelper.RetryingTransactionCallback;
+
+/**
+ * 
+ * A {@link org.alfresco.repo.transaction.RetryingTransactionHelper.RetryingTransactionCallback
+ * RetryingTransactionCallback} reporting to a
+ * {@link org.alfresco.trashcan.TrashcanMeter TrashcanMeter} each time the
+ * wrapped callback is executed again because its transaction is retried.
+ * 
+ * @author Rui Fernandes
+ * 
+ */
+public class RetryCountingCallback<R> implements RetryingTransactionCallback<R>
+{
+
+	private RetryingTransactionCallback<R> callback;
+	private TrashcanMeter meter;
+	private boolean executed;
+
+	/**
+	 * 
+	 * @param callback
+	 * @param meter
+	 */
+	public RetryCountingCallback(RetryingTransactionCallback<R> callback,
+	        TrashcanMeter meter)
+	{
+		this.callback = callback;
+		this.meter = meter;
+	}
+
+	public R execute() throws Throwable
+	{
+		if (executed)
+		{
+			meter.transactionRetried();
+		}
+		executed = true;
+		return callback.execute();
+	}
+
+}
@@ -0,0 +1,60 @@
+/*
+ * Copyright (C) 2005-2013 Alfresco Software Limited.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+
+ * As a special exception to the terms and conditions of version 2.0 of 
+ * the GPL, you may redistribute this Program in connection with Free/Libre 
+ * and Open Source Software ("FLOSS") applications as described in Alfresco's 
+ * FLOSS exception.  You should have recieved a copy of the text describing 
+ * the FLOSS exception, and it is also available here: 
+ * http://www.alfresco.com/legal/licensing"
+ */
+package org.alfresco.trashcan;
+
+import org.alfresco.service.cmr.repository.NodeRef;
+
+/**
+ * 
+ * The order in which the {@link org.alfresco.trashcan.TrashcanCleaner
+ * TrashcanCleaner} selects the eligible archived nodes of the trashcan. Each
+ * eligible node is given a rank and the <b>deleteBatchCount</b> nodes with
+ * the lowest ranks of the whole trashcan are purged first (see
+ * {@link org.alfresco.trashcan.RankedNodeSelector RankedNodeSelector}).
+ * 
+ * The rank is asked once per eligible node while streaming through the
+ * trashcan, whose nodes are already bulk loaded into the caches, so
+ * implementations should rely on the cached node properties rather than on
+ * further queries.
+ * 
+ * @author Rui Fernandes
+ * 
+ */
+public interface SelectionPolicy
+{
+
+	/**
+	 * 
+	 * It returns the rank of an eligible archived node, the lowest ranks being
+	 * purged first.
+	 * 
+	 * @param node
+	 * @param archivedTime
+	 *            the time the node was archived at, 0 if unknown
+	 * @return
+	 */
+	long getRank(NodeRef node, long archivedTime);
+
+}
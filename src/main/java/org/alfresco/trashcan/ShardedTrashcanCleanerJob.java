@@ -0,0 +1,60 @@
+/*
+ * Copyright (C) 2005-2013 Alfresco Software Limited.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+
+ * As a special exception to the terms and conditions of version 2.0 of 
+ * the GPL, you may redistribute this Program in connection with Free/Libre 
+ * and Open Source Software ("FLOSS") applications as described in Alfresco's 
+ * FLOSS exception.  You should have recieved a copy of the text describing 
+ * the FLOSS exception, and it is also available here: 
+ * http://www.alfresco.com/legal/licensing"
+ */
+package org.alfresco.trashcan;
+
+import org.quartz.Job;
+import org.quartz.JobExecutionContext;
+import org.quartz.JobExecutionException;
+
+/**
+ * 
+ * The {@link org.alfresco.trashcan.TrashcanCleanerJob TrashcanCleanerJob}
+ * without a cluster wide job lock letting a single member of the cluster run
+ * at a time. Each member runs the job and cleans the shards of the trashcan
+ * (see <b>trashcan.shards</b>) whose {@link org.alfresco.trashcan.TrashcanJobLock
+ * TrashcanJobLock} it gets, so the purge work is spread over the cluster while
+ * each shard is still cleaned by one member at a time.
+ * 
+ * It is the job class of the trashcanCleaner job detail. With a single shard
+ * the members still take turns on the lock of each archive store, so only one
+ * of them cleans it at a time.
+ * 
+ * It takes the same job data as the
+ * {@link org.alfresco.trashcan.TrashcanCleanerJob TrashcanCleanerJob}. Every
+ * member must use the same <b>trashcan.shards</b>.
+ * 
+ * @author Rui Fernandes
+ * 
+ */
+public class ShardedTrashcanCleanerJob implements Job
+{
+
+	public void execute(JobExecutionContext jobContext)
+	        throws JobExecutionException
+	{
+		new TrashcanCleanerJob().execute(jobContext);
+	}
+
+}
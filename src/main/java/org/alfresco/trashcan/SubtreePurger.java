@@ -0,0 +1,364 @@
+/*
+ * Copyright (C) 2005-2013 Alfresco Software Limited.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+
+ * As a special exception to the terms and conditions of version 2.0 of 
+ * the GPL, you may redistribute this Program in connection with Free/Libre 
+ * and Open Source Software ("FLOSS") applications as described in Alfresco's 
+ * FLOSS exception.  You should have recieved a copy of the text describing 
+ * the FLOSS exception, and it is also available here: 
+ * http://www.alfresco.com/legal/licensing"
+ */
+package org.alfresco.trashcan;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+
+import org.alfresco.repo.transaction.RetryingTransactionHelper.RetryingTransactionCallback;
+import org.alfresco.service.cmr.attributes.AttributeService;
+import org.alfresco.service.cmr.repository.ChildAssociationRef;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.cmr.repository.NodeService;
+import org.alfresco.service.namespace.RegexQNamePattern;
+import org.alfresco.service.transaction.TransactionService;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * 
+ * This class purges archived nodes with more than <b>threshold</b> nodes below
+ * them, such as a deleted folder holding a whole project, which a single
+ * <b>deleteNode</b> call would try to remove in one transaction. The subtree
+ * is purged bottom-up instead: each chunk of up to <b>chunkSize</b> nodes
+ * without children is deleted in its own retrying transaction, so their
+ * parents become the leaves of the next chunks, until the archived node itself
+ * is left alone and deleted.
+ * 
+ * Each <b>purge</b> call deletes at most <b>budget</b> nodes. The archived
+ * nodes whose subtree is not purged yet are persisted in the
+ * {@link org.alfresco.service.cmr.attributes.AttributeService
+ * AttributeService}, per archive store and shard, and returned by
+ * {@link #getInProgress() getInProgress} so the next execution carries on with
+ * them, even if it runs on another node of the cluster.
+ * 
+ * If an enabled {@link org.alfresco.trashcan.LoadThrottle LoadThrottle} is
+ * set it chooses the size of each chunk, and pauses before it, while the
+ * repository is busy.
+ * 
+ * @author Rui Fernandes
+ * 
+ */
+public class SubtreePurger
+{
+
+	private static final String PROGRESS_KEY = "subtreesInProgress";
+
+	private static Log logger = LogFactory.getLog(SubtreePurger.class);
+
+	private NodeService nodeService;
+	private TransactionService transactionService;
+	private int threshold;
+	private int chunkSize;
+	private AttributeService attributeService;
+	private String archiveStoreUrl;
+	private String progressKey = PROGRESS_KEY;
+	private TrashcanJobLock jobLock;
+	private TrashcanMeter meter = new CompositeTrashcanMeter();
+	private LoadThrottle throttle;
+	private ContentReclaimer reclaimer;
+	private int deleted;
+
+	/**
+	 * 
+	 * @param nodeService
+	 * @param transactionService
+	 * @param threshold
+	 *            the number of nodes below an archived node above which its
+	 *            subtree is purged in chunks
+	 * @param chunkSize
+	 *            the number of nodes deleted in each transaction
+	 */
+	public SubtreePurger(NodeService nodeService,
+	        TransactionService transactionService, int threshold, int chunkSize)
+	{
+		this.nodeService = nodeService;
+		this.transactionService = transactionService;
+		this.threshold = threshold;
+		this.chunkSize = Math.max(1, chunkSize);
+	}
+
+	/**
+	 * 
+	 * Setting the {@link org.alfresco.service.cmr.attributes.AttributeService
+	 * AttributeService} persists the subtrees in progress of the archive store
+	 * and shard, if any.
+	 * 
+	 * @param attributeService
+	 * @param archiveStoreUrl
+	 * @param shard
+	 */
+	public void setAttributeService(AttributeService attributeService,
+	        String archiveStoreUrl, TrashcanShard shard)
+	{
+		this.attributeService = attributeService;
+		this.archiveStoreUrl = archiveStoreUrl;
+		this.progressKey = shard != null ? PROGRESS_KEY + "-shard"
+		        + shard.getShard() : PROGRESS_KEY;
+	}
+
+	public void setJobLock(TrashcanJobLock jobLock)
+	{
+		this.jobLock = jobLock;
+	}
+
+	public void setMeter(TrashcanMeter meter)
+	{
+		if (meter != null)
+			this.meter = meter;
+	}
+
+	public void setThrottle(LoadThrottle throttle)
+	{
+		this.throttle = throttle;
+	}
+
+	public void setReclaimer(ContentReclaimer reclaimer)
+	{
+		this.reclaimer = reclaimer;
+	}
+
+	/**
+	 * 
+	 * It checks if the archived node has more than <b>threshold</b> nodes
+	 * below it. It stops counting as soon as the threshold is passed.
+	 * 
+	 * @param node
+	 * @return
+	 */
+	public boolean isLarge(NodeRef node)
+	{
+		int count = 0;
+		LinkedList<NodeRef> pending = new LinkedList<NodeRef>();
+		pending.add(node);
+		while (!pending.isEmpty())
+		{
+			List<NodeRef> children = getPrimaryChildren(pending.removeFirst(),
+			        threshold - count + 1);
+			count += children.size();
+			if (count > threshold)
+				return true;
+			pending.addAll(children);
+		}
+		return false;
+	}
+
+	/**
+	 * 
+	 * It returns the archived nodes whose subtree purge was left unfinished.
+	 * 
+	 * @return
+	 */
+	@SuppressWarnings("unchecked")
+	public List<NodeRef> getInProgress()
+	{
+		List<NodeRef> nodes = new ArrayList<NodeRef>();
+		if (attributeService == null)
+			return nodes;
+		Serializable value = attributeService.getAttribute(
+		        TrashcanResumeCursor.ATTRIBUTE_KEY, archiveStoreUrl,
+		        progressKey);
+		if (value != null)
+		{
+			for (String node : (List<String>) value)
+			{
+				nodes.add(new NodeRef(node));
+			}
+		}
+		return nodes;
+	}
+
+	/**
+	 * 
+	 * It purges the subtrees of the archived nodes bottom-up, deleting at most
+	 * <b>budget</b> nodes, and persists the ones left unfinished. It must run
+	 * outside of any transaction it should not be part of, since each chunk
+	 * commits its own.
+	 * 
+	 * @param roots
+	 * @param budget
+	 * @return the number of nodes deleted
+	 */
+	public int purge(List<NodeRef> roots, int budget)
+	{
+		deleted = 0;
+		final ArrayList<String> unfinished = new ArrayList<String>();
+		for (NodeRef root : roots)
+		{
+			if (!purgeSubtree(root, budget))
+			{
+				unfinished.add(root.toString());
+			}
+		}
+		if (attributeService != null)
+		{
+			inNewTransaction(new RetryingTransactionCallback<Object>()
+			{
+				public Object execute() throws Throwable
+				{
+					if (unfinished.isEmpty())
+						attributeService.removeAttribute(
+						        TrashcanResumeCursor.ATTRIBUTE_KEY,
+						        archiveStoreUrl, progressKey);
+					else
+						attributeService.setAttribute(unfinished,
+						        TrashcanResumeCursor.ATTRIBUTE_KEY,
+						        archiveStoreUrl, progressKey);
+					return null;
+				}
+			});
+		}
+		if (logger.isDebugEnabled())
+		{
+			logger.debug(String.format(
+			        "%s nodes of large subtrees purged, %s subtrees left",
+			        deleted, unfinished.size()));
+		}
+		return deleted;
+	}
+
+	/**
+	 * 
+	 * It purges the subtree of an archived node chunk by chunk, until
+	 * <b>budget</b> nodes are deleted by the current <b>purge</b>.
+	 * 
+	 * @param root
+	 * @param budget
+	 * @return true if the whole subtree is purged
+	 */
+	private boolean purgeSubtree(final NodeRef root, int budget)
+	{
+		while (deleted < budget && (jobLock == null || jobLock.refresh()))
+		{
+			int size = throttle != null && throttle.isEnabled() ? throttle
+			        .acquire(chunkSize) : chunkSize;
+			final int max = Math.min(size, budget - deleted);
+			long start = System.currentTimeMillis();
+			int chunk = inNewTransaction(new RetryingTransactionCallback<Integer>()
+			{
+				public Integer execute() throws Throwable
+				{
+					if (!nodeService.exists(root))
+						return 0;
+					List<NodeRef> leaves = collectLeaves(root, max);
+					if (leaves.isEmpty())
+					{
+						if (reclaimer != null)
+						{
+							reclaimer.collectLeaves(Collections
+							        .singletonList(root));
+						}
+						nodeService.deleteNode(root);
+						return -1;
+					}
+					if (reclaimer != null)
+					{
+						reclaimer.collectLeaves(leaves);
+					}
+					for (NodeRef leaf : leaves)
+					{
+						nodeService.deleteNode(leaf);
+					}
+					return leaves.size();
+				}
+			});
+			long millis = System.currentTimeMillis() - start;
+			meter.nodesDeleted(Math.abs(chunk), millis);
+			if (throttle != null)
+			{
+				throttle.record(millis);
+			}
+			deleted += Math.abs(chunk);
+			if (chunk <= 0)
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * 
+	 * It returns up to <b>max</b> nodes without children below the archived
+	 * node, walking its subtree depth first.
+	 * 
+	 * @param root
+	 * @param max
+	 * @return
+	 */
+	private List<NodeRef> collectLeaves(NodeRef root, int max)
+	{
+		List<NodeRef> leaves = new ArrayList<NodeRef>(max);
+		LinkedList<NodeRef> pending = new LinkedList<NodeRef>(
+		        getPrimaryChildren(root, max));
+		while (!pending.isEmpty() && leaves.size() < max)
+		{
+			NodeRef node = pending.removeFirst();
+			List<NodeRef> children = getPrimaryChildren(node, max);
+			if (children.isEmpty())
+			{
+				leaves.add(node);
+			}
+			else
+			{
+				pending.addAll(0, children);
+			}
+		}
+		return leaves;
+	}
+
+	/**
+	 * 
+	 * It returns up to <b>max</b> primary children of the node.
+	 * 
+	 * @param node
+	 * @param max
+	 * @return
+	 */
+	private List<NodeRef> getPrimaryChildren(NodeRef node, int max)
+	{
+		List<NodeRef> children = new ArrayList<NodeRef>();
+		for (ChildAssociationRef childAssoc : nodeService.getChildAssocs(node,
+		        RegexQNamePattern.MATCH_ALL, RegexQNamePattern.MATCH_ALL, max,
+		        false))
+		{
+			if (childAssoc.isPrimary())
+			{
+				children.add(childAssoc.getChildRef());
+			}
+		}
+		return children;
+	}
+
+	private <R> R inNewTransaction(RetryingTransactionCallback<R> callback)
+	{
+		return transactionService.getRetryingTransactionHelper()
+		        .doInTransaction(
+		                new RetryCountingCallback<R>(callback, meter), false,
+		                true);
+	}
+
+}
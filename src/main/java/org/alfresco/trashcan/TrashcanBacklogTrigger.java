@@ -0,0 +1,288 @@
+/*
+ * Copyright (C) 2005-2013 Alfresco Software Limited.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+
+ * As a special exception to the terms and conditions of version 2.0 of 
+ * the GPL, you may redistribute this Program in connection with Free/Libre 
+ * and Open Source Software ("FLOSS") applications as described in Alfresco's 
+ * FLOSS exception.  You should have recieved a copy of the text describing 
+ * the FLOSS exception, and it is also available here: 
+ * http://www.alfresco.com/legal/licensing"
+ */
+package org.alfresco.trashcan;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import org.alfresco.repo.security.authentication.AuthenticationUtil;
+import org.alfresco.repo.security.authentication.AuthenticationUtil.RunAsWork;
+import org.alfresco.repo.transaction.AlfrescoTransactionSupport;
+import org.alfresco.repo.transaction.RetryingTransactionHelper.RetryingTransactionCallback;
+import org.alfresco.repo.transaction.TransactionListenerAdapter;
+import org.alfresco.service.transaction.TransactionService;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.quartz.Scheduler;
+import org.quartz.SchedulerException;
+
+/**
+ * 
+ * This class runs the trashcan cleaner job as soon as the backlog of an
+ * archive store reaches <b>backlog</b> nodes, instead of waiting for its next
+ * scheduled execution. The backlog is the number of nodes archived more than
+ * <b>daysToKeep</b> days ago, or all of them if <b>daysToKeep</b> is 0 or
+ * negative, read from the day counts of the
+ * {@link org.alfresco.trashcan.ArchivedDateIndex ArchivedDateIndex}.
+ * 
+ * The {@link org.alfresco.trashcan.ArchivedDateIndexBehaviour
+ * ArchivedDateIndexBehaviour} tells it about every node archived. The backlog
+ * of each archive store is checked after the archiving transaction commits,
+ * at most once every <b>minIntervalSeconds</b> per store, so archiving costs
+ * no more than a time comparison between checks. The check itself runs in a
+ * background thread of its own, not in the thread of the archiving
+ * transaction. If the backlog is reached the Quartz job <b>jobName</b> of
+ * <b>jobGroup</b> is triggered on the <b>scheduler</b>; the lock of each
+ * store keeps it from being cleaned twice at once.
+ * 
+ * It is disabled if <b>backlog</b> is 0 or negative.
+ * 
+ * @author Rui Fernandes
+ * 
+ */
+public class TrashcanBacklogTrigger
+{
+
+	private static final long DAY_MILLIS = 1000L * 60 * 60 * 24;
+	private static final String CHECK_RESOURCE = "TrashcanBacklogTrigger.check.";
+
+	private static Log logger = LogFactory.getLog(TrashcanBacklogTrigger.class);
+
+	private Scheduler scheduler;
+	private String jobName;
+	private String jobGroup = Scheduler.DEFAULT_GROUP;
+	private ArchivedDateIndex archivedDateIndex;
+	private TransactionService transactionService;
+	private long backlog;
+	private int daysToKeep;
+	private long minIntervalSeconds = 300;
+	private Map<String, Long> lastChecks = new ConcurrentHashMap<String, Long>();
+	private ExecutorService executor = Executors
+	        .newSingleThreadExecutor(new ThreadFactory()
+	        {
+		        public Thread newThread(Runnable runnable)
+		        {
+			        Thread thread = new Thread(runnable,
+			                "TrashcanBacklogTrigger");
+			        thread.setDaemon(true);
+			        return thread;
+		        }
+	        });
+
+	public void setScheduler(Scheduler scheduler)
+	{
+		this.scheduler = scheduler;
+	}
+
+	public void setJobName(String jobName)
+	{
+		this.jobName = jobName;
+	}
+
+	public void setJobGroup(String jobGroup)
+	{
+		this.jobGroup = jobGroup;
+	}
+
+	public void setArchivedDateIndex(ArchivedDateIndex archivedDateIndex)
+	{
+		this.archivedDateIndex = archivedDateIndex;
+	}
+
+	public void setTransactionService(TransactionService transactionService)
+	{
+		this.transactionService = transactionService;
+	}
+
+	public void setBacklog(long backlog)
+	{
+		this.backlog = backlog;
+	}
+
+	public void setDaysToKeep(int daysToKeep)
+	{
+		this.daysToKeep = daysToKeep;
+	}
+
+	public void setMinIntervalSeconds(long minIntervalSeconds)
+	{
+		this.minIntervalSeconds = minIntervalSeconds;
+	}
+
+	/**
+	 * 
+	 * It checks if the job is triggered by the backlog.
+	 * 
+	 * @return
+	 */
+	public boolean isEnabled()
+	{
+		return backlog > 0 && archivedDateIndex.isEnabled();
+	}
+
+	/**
+	 * 
+	 * It is told a node was archived to the archive store in the current
+	 * transaction. Unless the backlog of the store was checked less than
+	 * <b>minIntervalSeconds</b> ago, it is checked in the background once the
+	 * transaction commits.
+	 * 
+	 * @param store
+	 */
+	public void onArchived(final String store)
+	{
+		String resource = CHECK_RESOURCE + store;
+		if (!isEnabled() || !isCheckDue(store)
+		        || AlfrescoTransactionSupport.getResource(resource) != null)
+			return;
+		AlfrescoTransactionSupport.bindResource(resource, Boolean.TRUE);
+		AlfrescoTransactionSupport.bindListener(new TransactionListenerAdapter()
+		{
+			@Override
+			public void afterCommit()
+			{
+				checkInBackground(store);
+			}
+		});
+	}
+
+	/**
+	 * 
+	 * It stops the background thread, when the application context is closed.
+	 * 
+	 */
+	public void destroy()
+	{
+		executor.shutdown();
+	}
+
+	/**
+	 * 
+	 * It triggers the job if the backlog of the archive store is reached,
+	 * unless another thread checked it less than <b>minIntervalSeconds</b>
+	 * ago.
+	 * 
+	 * @param store
+	 * @return true if the job was triggered
+	 */
+	public boolean check(String store)
+	{
+		if (!claimCheck(store))
+			return false;
+		return countAndTrigger(store);
+	}
+
+	/**
+	 * 
+	 * It checks the backlog of the archive store in the background thread, as
+	 * the system user, unless another check of the store was claimed less
+	 * than <b>minIntervalSeconds</b> ago.
+	 * 
+	 * @param store
+	 */
+	private void checkInBackground(final String store)
+	{
+		if (!claimCheck(store))
+			return;
+		executor.execute(new Runnable()
+		{
+			public void run()
+			{
+				AuthenticationUtil.runAsSystem(new RunAsWork<Object>()
+				{
+					public Object doWork() throws Exception
+					{
+						countAndTrigger(store);
+						return null;
+					}
+				});
+			}
+		});
+	}
+
+	/**
+	 * 
+	 * It records a check of the archive store, if one is due.
+	 * 
+	 * @param store
+	 * @return false if the store was checked less than
+	 *         <b>minIntervalSeconds</b> ago
+	 */
+	private synchronized boolean claimCheck(String store)
+	{
+		if (!isCheckDue(store))
+			return false;
+		lastChecks.put(store, Long.valueOf(System.currentTimeMillis()));
+		return true;
+	}
+
+	private boolean countAndTrigger(String store)
+	{
+		long count = countBacklog(store);
+		if (count < backlog)
+			return false;
+		if (logger.isInfoEnabled())
+		{
+			logger.info(String.format(
+			        "Backlog of %s nodes in %s reached %s, triggering %s",
+			        count, store, backlog, jobName));
+		}
+		try
+		{
+			scheduler.triggerJob(jobName, jobGroup);
+			return true;
+		} catch (SchedulerException e)
+		{
+			logger.warn(String.format("Failed to trigger %s", jobName), e);
+			return false;
+		}
+	}
+
+	private boolean isCheckDue(String store)
+	{
+		Long lastCheck = lastChecks.get(store);
+		long elapsed = System.currentTimeMillis()
+		        - (lastCheck != null ? lastCheck.longValue() : 0);
+		return elapsed >= minIntervalSeconds * 1000L;
+	}
+
+	private long countBacklog(final String store)
+	{
+		final long cutoff = daysToKeep > 0 ? System.currentTimeMillis()
+		        - daysToKeep * DAY_MILLIS : Long.MAX_VALUE;
+		return transactionService.getRetryingTransactionHelper()
+		        .doInTransaction(new RetryingTransactionCallback<Long>()
+		        {
+			        public Long execute() throws Throwable
+			        {
+				        return archivedDateIndex.count(store, cutoff);
+			        }
+		        }, true, true);
+	}
+
+}
@@ -25,14 +25,28 @@
 package org.alfresco.trashcan;
 
 import java.util.ArrayList;
-import java.util.Date;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ThreadPoolExecutor;
 
 import org.alfresco.model.ContentModel;
+import org.alfresco.repo.domain.node.NodeDAO;
+import org.alfresco.repo.transaction.AlfrescoTransactionSupport;
+import org.alfresco.repo.transaction.RetryingTransactionHelper;
+import org.alfresco.repo.transaction.RetryingTransactionHelper.RetryingTransactionCallback;
+import org.alfresco.repo.transaction.TransactionListenerAdapter;
+import org.alfresco.service.cmr.attributes.AttributeService;
 import org.alfresco.service.cmr.repository.ChildAssociationRef;
+import org.alfresco.service.cmr.repository.ContentData;
 import org.alfresco.service.cmr.repository.NodeRef;
 import org.alfresco.service.cmr.repository.NodeService;
 import org.alfresco.service.cmr.repository.StoreRef;
+import org.alfresco.service.transaction.TransactionService;
+import org.alfresco.util.Pair;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
@@ -55,6 +69,100 @@ import org.apache.commons.logging.LogFactory;
  * trashcan: archive://SpacesStore. If you want you can also specify a different
  * <b>archiveStoreUrl</b> than the default.
  * 
+ * If a {@link org.alfresco.repo.domain.node.NodeDAO NodeDAO} is set the
+ * archive store root is read in pages of <b>pageSize</b> nodes (see
+ * {@link org.alfresco.trashcan.ArchiveRootPager ArchiveRootPager}) and the
+ * reading stops as soon as <b>deleteBatchCount</b> eligible nodes are found,
+ * so the memory used by each execution depends on the batch size and not on
+ * the size of the trashcan. Each page is bulk loaded at once and the
+ * archiveuser nodes are dropped while paging, so there is no node by node
+ * type lookup either.
+ * 
+ * If a {@link org.alfresco.service.transaction.TransactionService
+ * TransactionService} and a positive <b>transactionSize</b> are set the
+ * cleaner manages its own transactions: the batch is selected in a read only
+ * transaction and then deleted in sub-batches of <b>transactionSize</b> nodes,
+ * each one committed in its own retrying transaction. A retry only replays
+ * the sub-batch that failed. With more than one <b>deleteWorkers</b> the
+ * sub-batches are deleted concurrently by a
+ * {@link org.alfresco.trashcan.ParallelNodeDeleter ParallelNodeDeleter}.
+ * Otherwise <b>clean</b> runs in the caller transaction.
+ * 
+ * If an {@link org.alfresco.service.cmr.attributes.AttributeService
+ * AttributeService} is set together with the paged enumeration, each
+ * execution persists where it stopped reading the archive store root (see
+ * {@link org.alfresco.trashcan.TrashcanResumeCursor TrashcanResumeCursor})
+ * and the next one resumes from there, wrapping around to the beginning once
+ * the end is reached. Nodes skipped as too young are not examined again until
+ * the next sweep over the trashcan.
+ * 
+ * If an enabled {@link org.alfresco.trashcan.AdaptiveBatchSizer
+ * AdaptiveBatchSizer} is set, it chooses the size of each transaction from
+ * the delete latency, commit included, observed on the previous ones: the
+ * <b>deleteBatchCount</b> of each execution when the batch is deleted in the
+ * caller transaction, or the size of the sub-batches when the cleaner runs
+ * its own transactions.
+ * 
+ * If an enabled {@link org.alfresco.trashcan.LoadThrottle LoadThrottle} is
+ * set while the cleaner manages its own transactions, the sub-batches shrink
+ * and the deletion pauses between them while the repository is over the
+ * throttle budget, and they grow back to <b>transactionSize</b> once it is
+ * idle again.
+ * 
+ * If a positive <b>subtreeThreshold</b> and a
+ * {@link org.alfresco.service.transaction.TransactionService
+ * TransactionService} are set, the selected nodes with more than
+ * <b>subtreeThreshold</b> nodes below them are not deleted with a single call
+ * but purged bottom-up in chunks of their own transactions by a
+ * {@link org.alfresco.trashcan.SubtreePurger SubtreePurger}, up to
+ * <b>deleteBatchCount</b> nodes per execution. When the batch is deleted in
+ * the caller transaction they are only purged once it commits, outside of
+ * it. The subtrees left unfinished are carried on first by the next
+ * executions.
+ * 
+ * If a {@link org.alfresco.trashcan.FastNodePurger FastNodePurger} is set the
+ * nodes are purged through it, with the policy behaviours disabled.
+ * 
+ * If {@link org.alfresco.trashcan.RetentionRules RetentionRules} are set,
+ * each archived node is kept for the days of the first rule it matches, by
+ * its original location, type or aspects, and for <b>daysToKeep</b> if it
+ * matches none.
+ * 
+ * The nodes read, filtered and deleted, the bytes of content held by the
+ * nodes of each committed transaction, the delete latency and the
+ * transaction retries are reported to the
+ * {@link org.alfresco.trashcan.TrashcanMeter TrashcanMeter} set, if any, once
+ * per batch selection and once per committed transaction.
+ * 
+ * If a {@link org.alfresco.trashcan.TrashcanShard TrashcanShard} is set the
+ * cleaner only selects the nodes of that shard, and resumes
+ * from a position of its own, so several cleaners can work on different
+ * shards of the same trashcan at once.
+ * 
+ * If a {@link org.alfresco.trashcan.TrashcanQuarantine TrashcanQuarantine} is
+ * set the nodes it holds are left out of the batch selection, and a
+ * sub-batch that fails to delete is split until the failing nodes are
+ * isolated and quarantined, the rest of it being deleted. When <b>clean</b>
+ * runs in the caller transaction and fails, <b>cleanIsolating</b> deletes the
+ * same batch that way in transactions of its own.
+ * 
+ * If an enabled {@link org.alfresco.trashcan.TrashcanUsage TrashcanUsage} and
+ * the {@link org.alfresco.trashcan.TrashcanQuotas TrashcanQuotas} of the
+ * users are set, each batch starts with the oldest nodes of the users over
+ * their quota, whatever <b>daysToKeep</b>, until they are back within it. The
+ * usage of each user is read from its running totals, so finding the users
+ * over quota doesn't read the trashcan. The rest of the batch, if any, is
+ * selected as usual.
+ * 
+ * With an enabled {@link org.alfresco.trashcan.ArchivedDateIndex
+ * ArchivedDateIndex} the trashcan is counted, and checked for eligible nodes
+ * with <b>hasEligibleNodes</b>, from the node counts the index keeps per
+ * archived day and the usage totals of the users over quota, without reading
+ * the archive store root.
+ * 
+ * The <b>estimate</b> method is a dry run: it tells what <b>clean</b> would
+ * purge with the configured <b>daysToKeep</b> without deleting anything.
+ * 
  * @author Rui Fernandes
  * 
  */
@@ -63,7 +171,8 @@ public class TrashcanCleaner
 
 	protected static final int DEFAULT_DAYS_TO_KEEP = -1;
 	protected static final int DEFAULT_DELETE_BATCH_COUNT = 1000;
-	private static final long DAYS_TO_MILLIS = 1000 * 60 * 60 * 24;
+	protected static final int DEFAULT_TRANSACTION_SIZE = 0;
+	protected static final int DEFAULT_DELETE_WORKERS = 1;
 
 	private static Log logger = LogFactory.getLog(TrashcanCleaner.class);
 
@@ -71,113 +180,1457 @@ public class TrashcanCleaner
 	private String archiveStoreUrl = "archive://SpacesStore";
 	private int deleteBatchCount = DEFAULT_DELETE_BATCH_COUNT;
 	private int daysToKeep = DEFAULT_DAYS_TO_KEEP;
+	private NodeDAO nodeDAO;
+	private int pageSize = ArchiveRootPager.DEFAULT_PAGE_SIZE;
+	private TransactionService transactionService;
+	private int transactionSize = DEFAULT_TRANSACTION_SIZE;
+	private int deleteWorkers = DEFAULT_DELETE_WORKERS;
+	private ThreadPoolExecutor deleteExecutor;
+	private TrashcanJobLock jobLock;
+	private AdaptiveBatchSizer batchSizer;
+	private LoadThrottle throttle;
+	private long pausedMillis;
+	private int fullSubBatches;
+	private long fullSubBatchesMillis;
+	private AttributeService attributeService;
+	private TrashcanResumeCursor resumeCursor;
+	private TrashcanShard shard;
+	private FastNodePurger purger;
+	private int subtreeThreshold;
+	private SubtreePurger subtreePurger;
+	private List<NodeRef> largeSubtrees;
+	private int largeSubtreesSelected;
+	private Long nextCursor;
+	private ArchivedDateIndex archivedDateIndex;
+	private ArchivedChildrenDAO archivedChildrenDAO;
+	private List<NodeRef> staleIndexEntries;
+	private SelectionPolicy selectionPolicy;
+	private ContentSizeCalculator sizeCalculator;
+	private TrashcanQuarantine quarantine;
+	private ContentReclaimer reclaimer;
+	private RetentionRules retentionRules;
+	private TrashcanUsage usage;
+	private TrashcanQuotas quotas;
+	private List<NodeRef> lastBatch;
+	private TrashcanMeter meter = new CompositeTrashcanMeter();
+	private int nodesExamined;
+	private int archiveUsers;
+	private int tooYoung;
+
+	/**
+	 * 
+	 * It will use the default values for <b>deleteBatchCount</b> and
+	 * <b>daysToKeep</b>, 1000 and -1.
+	 * 
+	 * @param nodeService
+	 */
+	public TrashcanCleaner(NodeService nodeService)
+	{
+		this.nodeService = nodeService;
+	}
+
+	/**
+	 * 
+	 * If you need to set explicit values different than default for
+	 * <b>deleteBatchCount</b> and <b>daysToKeep</b>.
+	 * 
+	 * @param nodeService
+	 * @param deleteBatchCount
+	 * @param daysToKeep
+	 */
+	public TrashcanCleaner(NodeService nodeService, int deleteBatchCount,
+	        int daysToKeep)
+	{
+		this(nodeService);
+		this.deleteBatchCount = deleteBatchCount;
+		this.daysToKeep = daysToKeep;
+	}
+
+	/**
+	 * 
+	 * In case you also need to set a different store for <b>archiveStoreUrl</b>
+	 * than the default archive://SpacesStore.
+	 * 
+	 * @param nodeService
+	 * @param archiveStoreUrl
+	 * @param deleteBatchCount
+	 * @param daysToKeep
+	 */
+	public TrashcanCleaner(NodeService nodeService, String archiveStoreUrl,
+	        int deleteBatchCount, int daysToKeep)
+	{
+		this(nodeService, deleteBatchCount, daysToKeep);
+		this.archiveStoreUrl = archiveStoreUrl;
+	}
+
+	/**
+	 * 
+	 * Setting the {@link org.alfresco.repo.domain.node.NodeDAO NodeDAO}
+	 * switches the cleaner to the paged enumeration of the archive store root.
+	 * 
+	 * @param nodeDAO
+	 */
+	public void setNodeDAO(NodeDAO nodeDAO)
+	{
+		this.nodeDAO = nodeDAO;
+	}
+
+	/**
+	 * 
+	 * The number of archived nodes read at once from the archive store root
+	 * when using the paged enumeration. By default the value is 250.
+	 * 
+	 * @param pageSize
+	 */
+	public void setPageSize(int pageSize)
+	{
+		this.pageSize = pageSize;
+	}
+
+	/**
+	 * 
+	 * The {@link org.alfresco.service.transaction.TransactionService
+	 * TransactionService} used to run each sub-batch in its own transaction.
+	 * 
+	 * @param transactionService
+	 */
+	public void setTransactionService(TransactionService transactionService)
+	{
+		this.transactionService = transactionService;
+	}
+
+	/**
+	 * 
+	 * The number of nodes deleted in each transaction. If the value is 0 or
+	 * negative (the default) all nodes are deleted in the caller transaction.
+	 * 
+	 * @param transactionSize
+	 */
+	public void setTransactionSize(int transactionSize)
+	{
+		this.transactionSize = transactionSize;
+	}
+
+	/**
+	 * 
+	 * The number of workers deleting sub-batches concurrently, each one in its
+	 * own transaction. By default the value is 1. The workers are started with
+	 * the first batch and kept for the next ones until
+	 * {@link #shutdown() shutdown}.
+	 * 
+	 * @param deleteWorkers
+	 */
+	public void setDeleteWorkers(int deleteWorkers)
+	{
+		this.deleteWorkers = deleteWorkers;
+	}
+
+	/**
+	 * 
+	 * It stops the delete workers, if any were started. It must be called
+	 * once the cleaner is no longer used; idle workers end on their own after
+	 * a minute otherwise.
+	 * 
+	 */
+	public void shutdown()
+	{
+		if (deleteExecutor != null)
+		{
+			deleteExecutor.shutdown();
+			deleteExecutor = null;
+		}
+	}
+
+	/**
+	 * 
+	 * The {@link org.alfresco.trashcan.TrashcanJobLock TrashcanJobLock} held by
+	 * the caller. It is refreshed during the deletion and the deletion stops if
+	 * it is lost.
+	 * 
+	 * @param jobLock
+	 */
+	public void setJobLock(TrashcanJobLock jobLock)
+	{
+		this.jobLock = jobLock;
+	}
+
+	/**
+	 * 
+	 * The {@link org.alfresco.trashcan.AdaptiveBatchSizer AdaptiveBatchSizer}
+	 * adapting the size of each transaction to the delete latency.
+	 * 
+	 * @param batchSizer
+	 */
+	public void setBatchSizer(AdaptiveBatchSizer batchSizer)
+	{
+		this.batchSizer = batchSizer;
+	}
+
+	/**
+	 * 
+	 * The {@link org.alfresco.trashcan.LoadThrottle LoadThrottle} slowing the
+	 * deletion down while the repository is busy.
+	 * 
+	 * @param throttle
+	 */
+	public void setThrottle(LoadThrottle throttle)
+	{
+		this.throttle = throttle;
+	}
+
+	/**
+	 * 
+	 * Setting the {@link org.alfresco.service.cmr.attributes.AttributeService
+	 * AttributeService} makes the paged enumeration resume each execution
+	 * where the previous one stopped.
+	 * 
+	 * @param attributeService
+	 */
+	public void setAttributeService(AttributeService attributeService)
+	{
+		this.attributeService = attributeService;
+		newResumeCursor();
+	}
+
+	/**
+	 * 
+	 * Setting a {@link org.alfresco.trashcan.TrashcanShard TrashcanShard}
+	 * limits the cleaner to the nodes of that shard of the trashcan.
+	 * 
+	 * @param shard
+	 */
+	public void setShard(TrashcanShard shard)
+	{
+		this.shard = shard;
+		newResumeCursor();
+	}
+
+	private void newResumeCursor()
+	{
+		this.resumeCursor = attributeService != null ? new TrashcanResumeCursor(
+		        attributeService, archiveStoreUrl, shard) : null;
+	}
+
+	/**
+	 * 
+	 * Setting an enabled {@link org.alfresco.trashcan.ArchivedDateIndex
+	 * ArchivedDateIndex} makes the batch selection read the oldest nodes from
+	 * the index instead of scanning the archive store root.
+	 * 
+	 * @param archivedDateIndex
+	 */
+	public void setArchivedDateIndex(ArchivedDateIndex archivedDateIndex)
+	{
+		this.archivedDateIndex = archivedDateIndex;
+	}
+
+	/**
+	 * 
+	 * The {@link org.alfresco.trashcan.ArchivedChildrenDAO ArchivedChildrenDAO}
+	 * reading the children of the archive store root a page at a time with a
+	 * bounded select. Without it each page streams all the child associations
+	 * of the archive store root.
+	 * 
+	 * @param archivedChildrenDAO
+	 */
+	public void setArchivedChildrenDAO(ArchivedChildrenDAO archivedChildrenDAO)
+	{
+		this.archivedChildrenDAO = archivedChildrenDAO;
+	}
+
+	/**
+	 * 
+	 * If true each <b>clean</b> execution selects the oldest eligible nodes of
+	 * the whole trashcan, instead of the first eligible nodes it reaches.
+	 * Without an enabled {@link org.alfresco.trashcan.ArchivedDateIndex
+	 * ArchivedDateIndex} this reads the whole trashcan on each execution,
+	 * keeping only <b>deleteBatchCount</b> candidates in memory.
+	 * 
+	 * @param oldestFirst
+	 */
+	public void setOldestFirst(boolean oldestFirst)
+	{
+		setSelectionPolicy(oldestFirst ? new OldestFirstPolicy() : null);
+	}
+
+	/**
+	 * 
+	 * The {@link org.alfresco.trashcan.SelectionPolicy SelectionPolicy} giving
+	 * the order in which each <b>clean</b> execution selects the eligible
+	 * nodes of the whole trashcan. It reads the whole trashcan on each
+	 * execution, keeping only <b>deleteBatchCount</b> candidates in memory,
+	 * unless the policy is an
+	 * {@link org.alfresco.trashcan.OldestFirstPolicy OldestFirstPolicy} and
+	 * an enabled {@link org.alfresco.trashcan.ArchivedDateIndex
+	 * ArchivedDateIndex} is set. If null (the default) the first eligible nodes
+	 * reached are selected.
+	 * 
+	 * @param selectionPolicy
+	 */
+	public void setSelectionPolicy(SelectionPolicy selectionPolicy)
+	{
+		this.selectionPolicy = selectionPolicy;
+	}
+
+	/**
+	 * 
+	 * The {@link org.alfresco.trashcan.ContentSizeCalculator
+	 * ContentSizeCalculator} measuring the bytes held by the nodes deleted,
+	 * reported to the meter once their transaction commits. By default only
+	 * the content of the archived nodes themselves is counted.
+	 * 
+	 * @param sizeCalculator
+	 */
+	public void setSizeCalculator(ContentSizeCalculator sizeCalculator)
+	{
+		this.sizeCalculator = sizeCalculator;
+	}
+
+	/**
+	 * 
+	 * Setting a {@link org.alfresco.trashcan.FastNodePurger FastNodePurger}
+	 * makes the cleaner purge the nodes with the policy behaviours disabled.
+	 * 
+	 * @param purger
+	 */
+	public void setPurger(FastNodePurger purger)
+	{
+		this.purger = purger;
+	}
+
+	/**
+	 * 
+	 * The number of nodes below an archived node above which its subtree is
+	 * purged in chunks. If the value is 0 or negative (the default) every node
+	 * is deleted with a single call.
+	 * 
+	 * @param subtreeThreshold
+	 */
+	public void setSubtreeThreshold(int subtreeThreshold)
+	{
+		this.subtreeThreshold = subtreeThreshold;
+	}
+
+	/**
+	 * 
+	 * The {@link org.alfresco.trashcan.TrashcanQuarantine TrashcanQuarantine}
+	 * of the archive store, isolating the nodes that fail to delete.
+	 * 
+	 * @param quarantine
+	 */
+	public void setQuarantine(TrashcanQuarantine quarantine)
+	{
+		this.quarantine = quarantine;
+	}
+
+	/**
+	 * 
+	 * The {@link org.alfresco.trashcan.ContentReclaimer ContentReclaimer}
+	 * collecting the content URLs of the nodes before they are deleted, to
+	 * free their content once purged.
+	 * 
+	 * @param reclaimer
+	 */
+	public void setReclaimer(ContentReclaimer reclaimer)
+	{
+		this.reclaimer = reclaimer;
+	}
+
+	/**
+	 * 
+	 * The {@link org.alfresco.trashcan.RetentionRules RetentionRules} giving
+	 * some archived nodes a retention of their own instead of
+	 * <b>daysToKeep</b>. The batches are then selected from the archive store
+	 * rather than the archived date index, which only knows the dates.
+	 * 
+	 * @param retentionRules
+	 */
+	public void setRetentionRules(RetentionRules retentionRules)
+	{
+		this.retentionRules = retentionRules != null
+		        && retentionRules.isEnabled() ? retentionRules : null;
+	}
+
+	/**
+	 * 
+	 * The {@link org.alfresco.trashcan.TrashcanUsage TrashcanUsage} of the
+	 * users and their {@link org.alfresco.trashcan.TrashcanQuotas
+	 * TrashcanQuotas}, making each batch start with the oldest nodes of the
+	 * users over quota.
+	 * 
+	 * @param usage
+	 * @param quotas
+	 */
+	public void setQuotas(TrashcanUsage usage, TrashcanQuotas quotas)
+	{
+		this.usage = usage;
+		this.quotas = quotas;
+	}
+
+	/**
+	 * 
+	 * The {@link org.alfresco.trashcan.TrashcanMeter TrashcanMeter} receiving
+	 * the cleaner measures.
+	 * 
+	 * @param meter
+	 */
+	public void setMeter(TrashcanMeter meter)
+	{
+		if (meter != null)
+			this.meter = meter;
+	}
+
+	/**
+	 * 
+	 * It changes the maximum number of nodes selected by the next <b>clean</b>
+	 * executions.
+	 * 
+	 * @param deleteBatchCount
+	 */
+	public void setDeleteBatchCount(int deleteBatchCount)
+	{
+		this.deleteBatchCount = deleteBatchCount;
+	}
+
+	/**
+	 * 
+	 * The maximum number of nodes selected by each <b>clean</b> execution.
+	 * 
+	 * @return
+	 */
+	public int getDeleteBatchCount()
+	{
+		return deleteBatchCount;
+	}
+
+	/**
+	 * 
+	 * It checks if <b>clean</b> runs its own transactions instead of running in
+	 * the caller transaction.
+	 * 
+	 * @return
+	 */
+	public boolean isManagingTransactions()
+	{
+		return transactionService != null
+		        && (transactionSize > 0 || deleteWorkers > 1);
+	}
+
+	/**
+	 * 
+	 * The method that will clean the specified <b>archiveStoreUrl</b> to the
+	 * limits defined by the values set for <b>deleteBatchCount</b> and
+	 * <b>daysToKeep</b>.
+	 * 
+	 * @return the number of nodes selected for deletion, lower than
+	 *         <b>deleteBatchCount</b> when there are no more eligible nodes
+	 */
+	public int clean()
+	{
+		if (isManagingTransactions())
+		{
+			return cleanInSubBatches();
+		}
+		if (isAdaptingBatchCount())
+		{
+			deleteBatchCount = batchSizer.getBatchCount(deleteBatchCount);
+		}
+
+		lastBatch = null;
+		List<NodeRef> nodes = getBatchToDelete();
+		lastBatch = nodes;
+
+		if (logger.isDebugEnabled())
+		{
+			logger.debug(String.format("Number of nodes to delete: %s",
+			        nodes.size()));
+		}
+
+		long bytes = getSize(nodes);
+		long start = System.currentTimeMillis();
+		deleteNodes(nodes);
+		long millis = System.currentTimeMillis() - start;
+		recordLatencyAfterCommit(nodes.size(), start);
+		meterDeleted(nodes.size(), millis);
+		meterReclaimed(bytes);
+		saveProgress();
+		purgeLargeSubtreesAfterCommit();
+
+		if (logger.isDebugEnabled())
+		{
+			logger.debug("Nodes deleted");
+		}
+		return nodes.size() + largeSubtreesSelected;
+	}
+
+	/**
+	 * 
+	 * It checks if the batch selected by the last <b>clean</b> in the caller
+	 * transaction can be deleted again by <b>cleanIsolating</b>, since a
+	 * {@link org.alfresco.trashcan.TrashcanQuarantine TrashcanQuarantine} is
+	 * set.
+	 * 
+	 * @return
+	 */
+	public boolean canIsolateFailures()
+	{
+		return quarantine != null && transactionService != null
+		        && lastBatch != null;
+	}
+
+	/**
+	 * 
+	 * It deletes again the batch selected by the last <b>clean</b>, whose
+	 * caller transaction rolled back, through the
+	 * {@link org.alfresco.trashcan.TrashcanQuarantine TrashcanQuarantine}: the
+	 * batch is split in transactions of its own until the failing nodes are
+	 * isolated and quarantined, and the rest of it is deleted.
+	 * 
+	 * @return the number of nodes selected for deletion
+	 */
+	public int cleanIsolating()
+	{
+		List<NodeRef> nodes = lastBatch;
+		lastBatch = null;
+		long start = System.currentTimeMillis();
+		int deleted = quarantine.delete(nodes, newDeletion());
+		transactionService.getRetryingTransactionHelper().doInTransaction(
+		        new RetryCountingCallback<Object>(
+		                new RetryingTransactionCallback<Object>()
+		                {
+			                public Object execute() throws Throwable
+			                {
+				                saveProgress();
+				                return null;
+			                }
+		                }, meter), false, true);
+		purgeLargeSubtrees();
+
+		if (logger.isDebugEnabled())
+		{
+			logger.debug(String.format(
+			        "%s of %s nodes deleted isolating failures in %s ms",
+			        deleted, nodes.size(), System.currentTimeMillis() - start));
+		}
+		return nodes.size() + largeSubtreesSelected;
+	}
+
+	/**
+	 * 
+	 * It selects the batch to delete in a read only transaction and deletes it
+	 * committing every <b>transactionSize</b> nodes in a new retrying
+	 * transaction.
+	 * 
+	 * @return the number of nodes selected for deletion
+	 */
+	private int cleanInSubBatches()
+	{
+		RetryingTransactionHelper txnHelper = transactionService
+		        .getRetryingTransactionHelper();
+		List<NodeRef> nodes = txnHelper.doInTransaction(
+		        new RetryCountingCallback<List<NodeRef>>(
+		                new RetryingTransactionCallback<List<NodeRef>>()
+		                {
+			                public List<NodeRef> execute() throws Throwable
+			                {
+				                return getBatchToDelete();
+			                }
+		                }, meter), true, true);
+
+		int subBatchSize = transactionSize > 0 ? transactionSize : Math.max(1,
+		        (nodes.size() + deleteWorkers - 1) / deleteWorkers);
+		if (isAdaptingBatchCount())
+		{
+			subBatchSize = batchSizer.getBatchCount(subBatchSize);
+		}
+
+		if (logger.isDebugEnabled())
+		{
+			logger.debug(String.format(
+			        "Number of nodes to delete: %s in transactions of %s",
+			        nodes.size(), subBatchSize));
+		}
+
+		long start = System.currentTimeMillis();
+		pausedMillis = 0;
+		fullSubBatches = 0;
+		fullSubBatchesMillis = 0;
+		int transactions;
+		int rounds;
+		if (deleteWorkers > 1)
+		{
+			transactions = deleteInParallel(nodes, subBatchSize);
+			rounds = (transactions + deleteWorkers - 1) / deleteWorkers;
+		}
+		else
+		{
+			transactions = deleteInSubBatches(txnHelper, nodes, subBatchSize);
+			rounds = transactions;
+		}
+		long deleteMillis = System.currentTimeMillis() - start - pausedMillis;
+		long roundMillis = rounds > 0 ? deleteMillis / rounds : 0;
+		if (fullSubBatches > 0)
+		{
+			// the last, partial sub-batch would make the batch look not full
+			recordLatency(subBatchSize, fullSubBatchesMillis > 0
+			        ? fullSubBatchesMillis / fullSubBatches : roundMillis);
+		}
+		else if (transactions > 0)
+		{
+			recordLatency((nodes.size() + transactions - 1) / transactions,
+			        roundMillis);
+		}
+		txnHelper.doInTransaction(new RetryCountingCallback<Object>(
+		        new RetryingTransactionCallback<Object>()
+		        {
+			        public Object execute() throws Throwable
+			        {
+				        saveProgress();
+				        return null;
+			        }
+		        }, meter), false, true);
+		purgeLargeSubtrees();
+
+		if (logger.isDebugEnabled())
+		{
+			logger.debug(String.format("%s nodes deleted in %s ms",
+			        nodes.size(), System.currentTimeMillis() - start));
+		}
+		return nodes.size() + largeSubtreesSelected;
+	}
+
+	/**
+	 * 
+	 * It checks if <b>deleteBatchCount</b> is chosen by an enabled
+	 * {@link org.alfresco.trashcan.AdaptiveBatchSizer AdaptiveBatchSizer}.
+	 * 
+	 * @return
+	 */
+	private boolean isAdaptingBatchCount()
+	{
+		return batchSizer != null && batchSizer.isEnabled();
+	}
+
+	/**
+	 * 
+	 * It reports the delete latency to the
+	 * {@link org.alfresco.trashcan.AdaptiveBatchSizer AdaptiveBatchSizer}, if
+	 * any.
+	 * 
+	 * @param transactionNodes
+	 *            the nodes deleted by each transaction, on average
+	 * @param transactionMillis
+	 *            the time taken by each transaction, commit included
+	 */
+	private void recordLatency(int transactionNodes, long transactionMillis)
+	{
+		if (isAdaptingBatchCount())
+		{
+			batchSizer.record(transactionNodes, transactionMillis);
+		}
+	}
+
+	/**
+	 * 
+	 * It reports the latency of the caller transaction deleting the batch to
+	 * the {@link org.alfresco.trashcan.AdaptiveBatchSizer AdaptiveBatchSizer},
+	 * if any, once it commits, so the time of the commit is included.
+	 * 
+	 * @param nodes
+	 * @param start
+	 *            the time the deletion started
+	 */
+	private void recordLatencyAfterCommit(final int nodes, final long start)
+	{
+		if (!isAdaptingBatchCount())
+			return;
+		AlfrescoTransactionSupport.bindListener(new TransactionListenerAdapter()
+		{
+			@Override
+			public void afterCommit()
+			{
+				recordLatency(nodes, System.currentTimeMillis() - start);
+			}
+		});
+	}
+
+	/**
+	 * 
+	 * It checks if the deletion is slowed down by an enabled
+	 * {@link org.alfresco.trashcan.LoadThrottle LoadThrottle}.
+	 * 
+	 * @return
+	 */
+	private boolean isThrottling()
+	{
+		return throttle != null && throttle.isEnabled();
+	}
+
+	/**
+	 * 
+	 * It deletes the nodes committing every <b>subBatchSize</b> nodes in a new
+	 * retrying transaction, or fewer while the
+	 * {@link org.alfresco.trashcan.LoadThrottle LoadThrottle} holds the
+	 * deletion back. With a {@link org.alfresco.trashcan.TrashcanQuarantine
+	 * TrashcanQuarantine} a failing sub-batch is split instead of failing the
+	 * whole execution.
+	 * 
+	 * @param txnHelper
+	 * @param nodes
+	 * @param subBatchSize
+	 * @return the number of transactions run
+	 */
+	private int deleteInSubBatches(RetryingTransactionHelper txnHelper,
+	        List<NodeRef> nodes, int subBatchSize)
+	{
+		int transactions = 0;
+		for (int from = 0; from < nodes.size()
+		        && (jobLock == null || jobLock.refresh()); transactions++)
+		{
+			int size = subBatchSize;
+			if (isThrottling())
+			{
+				long pauseStart = System.currentTimeMillis();
+				size = throttle.acquire(subBatchSize);
+				pausedMillis += System.currentTimeMillis() - pauseStart;
+			}
+			final List<NodeRef> subBatch = nodes.subList(from,
+			        Math.min(from + size, nodes.size()));
+			from += subBatch.size();
+			long subBatchStart = System.currentTimeMillis();
+			if (quarantine != null)
+			{
+				quarantine.delete(subBatch, newDeletion());
+			}
+			else
+			{
+				txnHelper.doInTransaction(new RetryCountingCallback<Object>(
+				        new RetryingTransactionCallback<Object>()
+				        {
+					        public Object execute() throws Throwable
+					        {
+						        deleteExistingNodes(subBatch);
+						        return null;
+					        }
+				        }, meter), false, true);
+			}
+			long subBatchMillis = System.currentTimeMillis() - subBatchStart;
+			if (subBatch.size() == subBatchSize)
+			{
+				fullSubBatches++;
+				fullSubBatchesMillis += subBatchMillis;
+			}
+			if (throttle != null)
+			{
+				throttle.record(subBatchMillis);
+			}
+			if (logger.isDebugEnabled())
+			{
+				logger.debug(String.format(
+				        "Sub-batch of %s nodes deleted in %s ms",
+				        subBatch.size(), subBatchMillis));
+			}
+		}
+		return transactions;
+	}
+
+	/**
+	 * 
+	 * It deletes the nodes with <b>deleteWorkers</b> concurrent workers, each
+	 * one deleting slices of <b>subBatchSize</b> nodes in its own transaction.
+	 * 
+	 * @param nodes
+	 * @param subBatchSize
+	 * @return the number of slices
+	 */
+	private int deleteInParallel(List<NodeRef> nodes, int subBatchSize)
+	{
+		if (deleteExecutor == null)
+		{
+			deleteExecutor = ParallelNodeDeleter.newExecutor(deleteWorkers);
+		}
+		ParallelNodeDeleter deleter = new ParallelNodeDeleter(nodeService,
+		        transactionService, deleteWorkers, subBatchSize, jobLock);
+		deleter.setExecutor(deleteExecutor);
+		deleter.setMeter(meter);
+		deleter.setPurger(purger);
+		deleter.setThrottle(isThrottling() ? throttle : null);
+		deleter.setQuarantine(quarantine);
+		deleter.setReclaimer(reclaimer);
+		deleter.setSizeCalculator(getSizeCalculator());
+		int deleted = deleter.delete(nodes);
+		if (deleter.getFailedNodes() > 0)
+		{
+			logger.warn(String.format(
+			        "%s nodes could not be deleted, %s slices failed",
+			        deleter.getFailedNodes(), deleter.getFailures().size()));
+		}
+		if (logger.isDebugEnabled())
+		{
+			logger.debug(String.format("%s nodes deleted by %s workers",
+			        deleted, deleteWorkers));
+		}
+		pausedMillis = deleter.getPausedMillis() / deleteWorkers;
+		// the workers run their slices side by side, timed by round
+		fullSubBatches = nodes.size() / subBatchSize;
+		return (nodes.size() + subBatchSize - 1) / subBatchSize;
+	}
+
+	/**
+	 * 
+	 * It deletes the nodes of the {@link java.util.List List} that still exist.
+	 * Since the batch is selected in a previous transaction some of its nodes
+	 * might have been restored or deleted in the meantime.
+	 * 
+	 * @param nodes
+	 * @return the number of nodes deleted
+	 */
+	private int deleteExistingNodes(List<NodeRef> nodes)
+	{
+		long bytes = getSizeCalculator().getSize(nodes, true);
+		long start = System.currentTimeMillis();
+		int deleted = 0;
+		if (reclaimer != null)
+		{
+			reclaimer.collect(nodes);
+		}
+		if (purger != null)
+		{
+			deleted = purger.purge(nodes, true);
+		}
+		else
+		{
+			for (int i = nodes.size(); i > 0; i--)
+			{
+				NodeRef node = nodes.get(i - 1);
+				if (nodeService.exists(node))
+				{
+					nodeService.deleteNode(node);
+					deleted++;
+				}
+			}
+		}
+		meterDeleted(deleted, System.currentTimeMillis() - start);
+		meterReclaimed(bytes);
+		return deleted;
+	}
+
+	/**
+	 * 
+	 * The {@link org.alfresco.trashcan.TrashcanQuarantine.Deletion Deletion}
+	 * of the nodes that still exist, for the
+	 * {@link org.alfresco.trashcan.TrashcanQuarantine TrashcanQuarantine}.
+	 * 
+	 * @return
+	 */
+	private TrashcanQuarantine.Deletion newDeletion()
+	{
+		return new TrashcanQuarantine.Deletion()
+		{
+			public int delete(List<NodeRef> nodes)
+			{
+				return deleteExistingNodes(nodes);
+			}
+		};
+	}
+
+	/**
+	 * 
+	 * It reports the nodes deleted to the
+	 * {@link org.alfresco.trashcan.TrashcanMeter TrashcanMeter} once the
+	 * current transaction commits, so retried or rolled back deletions are not
+	 * counted.
+	 * 
+	 * @param nodes
+	 * @param millis
+	 */
+	private void meterDeleted(final int nodes, final long millis)
+	{
+		AlfrescoTransactionSupport.bindListener(new TransactionListenerAdapter()
+		{
+			@Override
+			public void afterCommit()
+			{
+				meter.nodesDeleted(nodes, millis);
+			}
+		});
+	}
+
+	/**
+	 * 
+	 * It reports the bytes of content purged by the batch to the
+	 * {@link org.alfresco.trashcan.TrashcanMeter TrashcanMeter} once the
+	 * current transaction commits.
+	 * 
+	 * @param bytes
+	 */
+	private void meterReclaimed(final long bytes)
+	{
+		AlfrescoTransactionSupport.bindListener(new TransactionListenerAdapter()
+		{
+			@Override
+			public void afterCommit()
+			{
+				meter.bytesReclaimed(bytes);
+			}
+		});
+	}
+
+	/**
+	 * 
+	 * It deletes the {@link java.util.List List} of
+	 * {@link org.alfresco.service.cmr.repository.NodeRef NodeRef} received as
+	 * argument.
+	 * 
+	 * @param nodes
+	 */
+	void deleteNodes(List<NodeRef> nodes)
+	{
+		if (reclaimer != null)
+		{
+			reclaimer.collect(nodes);
+		}
+		if (purger != null)
+		{
+			purger.purge(nodes, false);
+			return;
+		}
+		for (int i = nodes.size(); i > 0; i--)
+		{
+			nodeService.deleteNode(nodes.get(i - 1));
+		}
+	}
+
+	/**
+	 * 
+	 * It returns the {@link java.util.List List} of
+	 * {@link org.alfresco.service.cmr.repository.NodeRef NodeRef} of the
+	 * archive store set to be deleted according to configuration for
+	 * <b>deleteBatchCount</b> and <b>daysToKeep</b>.
+	 * 
+	 * @return
+	 */
+	List<NodeRef> getBatchToDelete()
+	{
+		nodesExamined = 0;
+		archiveUsers = 0;
+		tooYoung = 0;
+		if (quarantine != null)
+		{
+			quarantine.load();
+		}
+		List<NodeRef> batch;
+		if (isEnforcingQuotas())
+		{
+			batch = getOverQuotaToDelete();
+			if (batch.size() < deleteBatchCount)
+			{
+				addNew(batch, selectBatchToDelete());
+			}
+		}
+		else
+		{
+			batch = selectBatchToDelete();
+		}
+		meter.nodesRead(nodesExamined + archiveUsers, archiveUsers, tooYoung);
+		if (isPurgingSubtrees())
+		{
+			batch = separateLargeSubtrees(batch);
+		}
+		return batch;
+	}
+
+	/**
+	 * 
+	 * It returns the bytes of content held by the nodes.
+	 * 
+	 * @param nodes
+	 * @return
+	 */
+	private long getSize(List<NodeRef> nodes)
+	{
+		return getSizeCalculator().getSize(nodes, false);
+	}
+
+	private ContentSizeCalculator getSizeCalculator()
+	{
+		if (sizeCalculator == null)
+		{
+			sizeCalculator = new ContentSizeCalculator(nodeService);
+		}
+		return sizeCalculator;
+	}
+
+	/**
+	 * 
+	 * It checks if the batches start with the nodes of the users over quota.
+	 * 
+	 * @return
+	 */
+	private boolean isEnforcingQuotas()
+	{
+		return usage != null && usage.isEnabled() && quotas != null
+		        && quotas.isEnabled();
+	}
+
+	/**
+	 * 
+	 * It checks if any user is over quota, reading the usage totals only.
+	 * 
+	 * @return
+	 */
+	private boolean hasUsersOverQuota()
+	{
+		for (Map.Entry<String, TrashcanUsage.Usage> userUsage : usage
+		        .getUsage(archiveStoreUrl).entrySet())
+		{
+			String user = userUsage.getKey();
+			if (quotas.getExcessNodes(user, userUsage.getValue()) > 0
+			        || quotas.getExcessBytes(user, userUsage.getValue()) > 0)
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * 
+	 * It returns up to <b>deleteBatchCount</b> of the oldest nodes of the
+	 * users over quota, as many as needed to bring each one back within it,
+	 * reading the usage totals and the entries of those users only.
+	 * 
+	 * @return
+	 */
+	private List<NodeRef> getOverQuotaToDelete()
+	{
+		List<NodeRef> batch = new ArrayList<NodeRef>();
+		int quarantined = quarantine != null ? quarantine.size() : 0;
+		for (Map.Entry<String, TrashcanUsage.Usage> userUsage : usage
+		        .getUsage(archiveStoreUrl).entrySet())
+		{
+			if (batch.size() >= deleteBatchCount)
+				break;
+			String user = userUsage.getKey();
+			long excessNodes = quotas.getExcessNodes(user, userUsage.getValue());
+			long excessBytes = quotas.getExcessBytes(user, userUsage.getValue());
+			if (excessNodes == 0 && excessBytes == 0)
+				continue;
+			if (logger.isDebugEnabled())
+			{
+				logger.debug(String.format("User '%s' over quota with %s",
+				        user, userUsage.getValue()));
+			}
+			for (Pair<NodeRef, Long> oldest : usage.getOldest(archiveStoreUrl,
+			        user, deleteBatchCount - batch.size() + quarantined))
+			{
+				if (batch.size() >= deleteBatchCount
+				        || (excessNodes <= 0 && excessBytes <= 0))
+					break;
+				NodeRef node = oldest.getFirst();
+				if ((shard != null && !shard.contains(node))
+				        || isQuarantined(node) || !nodeService.exists(node))
+					continue;
+				nodesExamined++;
+				batch.add(node);
+				excessNodes--;
+				excessBytes -= oldest.getSecond().longValue();
+			}
+		}
+		return batch;
+	}
+
+	/**
+	 * 
+	 * It adds to the batch the nodes selected it doesn't have yet, up to
+	 * <b>deleteBatchCount</b>.
+	 * 
+	 * @param batch
+	 * @param selected
+	 */
+	private void addNew(List<NodeRef> batch, List<NodeRef> selected)
+	{
+		Set<NodeRef> present = new HashSet<NodeRef>(batch);
+		for (NodeRef node : selected)
+		{
+			if (batch.size() >= deleteBatchCount)
+				break;
+			if (present.add(node))
+			{
+				batch.add(node);
+			}
+		}
+	}
+
+	/**
+	 * 
+	 * It checks if the node is held by the
+	 * {@link org.alfresco.trashcan.TrashcanQuarantine TrashcanQuarantine}, if
+	 * any, and must be left out of the batch.
+	 * 
+	 * @param node
+	 * @return
+	 */
+	private boolean isQuarantined(NodeRef node)
+	{
+		return quarantine != null && quarantine.isQuarantined(node);
+	}
 
 	/**
 	 * 
-	 * It will use the default values for <b>deleteBatchCount</b> and
-	 * <b>daysToKeep</b>, 1000 and -1.
+	 * It checks if the large subtrees are purged in chunks.
 	 * 
-	 * @param nodeService
+	 * @return
 	 */
-	public TrashcanCleaner(NodeService nodeService)
+	private boolean isPurgingSubtrees()
 	{
-		this.nodeService = nodeService;
+		return subtreeThreshold > 0 && transactionService != null;
 	}
 
 	/**
 	 * 
-	 * If you need to set explicit values different than default for
-	 * <b>deleteBatchCount</b> and <b>daysToKeep</b>.
+	 * It takes out of the batch the archived nodes with large subtrees and
+	 * keeps them, after the subtrees left unfinished by previous executions,
+	 * to be purged by the {@link org.alfresco.trashcan.SubtreePurger
+	 * SubtreePurger}.
 	 * 
-	 * @param nodeService
-	 * @param deleteBatchCount
-	 * @param daysToKeep
+	 * @param batch
+	 * @return the rest of the batch
 	 */
-	public TrashcanCleaner(NodeService nodeService, int deleteBatchCount,
-	        int daysToKeep)
+	private List<NodeRef> separateLargeSubtrees(List<NodeRef> batch)
 	{
-		this(nodeService);
-		this.deleteBatchCount = deleteBatchCount;
-		this.daysToKeep = daysToKeep;
+		SubtreePurger subtrees = getSubtreePurger();
+		largeSubtrees = subtrees.getInProgress();
+		largeSubtreesSelected = 0;
+		List<NodeRef> rest = new ArrayList<NodeRef>(batch.size());
+		for (NodeRef node : batch)
+		{
+			if (largeSubtrees.contains(node))
+				continue;
+			if (subtrees.isLarge(node))
+			{
+				largeSubtrees.add(node);
+				largeSubtreesSelected++;
+			}
+			else
+			{
+				rest.add(node);
+			}
+		}
+		if (logger.isDebugEnabled() && !largeSubtrees.isEmpty())
+		{
+			logger.debug(String.format(
+			        "%s large subtrees to purge in chunks, %s new",
+			        largeSubtrees.size(), largeSubtreesSelected));
+		}
+		return rest;
 	}
 
 	/**
 	 * 
-	 * In case you also need to set a different store for <b>archiveStoreUrl</b>
-	 * than the default archive://SpacesStore.
+	 * It purges the large subtrees taken out of the batch, if any, up to
+	 * <b>deleteBatchCount</b> nodes.
 	 * 
-	 * @param nodeService
-	 * @param archiveStoreUrl
-	 * @param deleteBatchCount
-	 * @param daysToKeep
 	 */
-	public TrashcanCleaner(NodeService nodeService, String archiveStoreUrl,
-	        int deleteBatchCount, int daysToKeep)
+	private void purgeLargeSubtrees()
 	{
-		this(nodeService, deleteBatchCount, daysToKeep);
-		this.archiveStoreUrl = archiveStoreUrl;
+		if (largeSubtrees != null && !largeSubtrees.isEmpty())
+		{
+			getSubtreePurger().purge(largeSubtrees, deleteBatchCount);
+		}
+		largeSubtrees = null;
 	}
 
 	/**
 	 * 
-	 * The method that will clean the specified <b>archiveStoreUrl</b> to the
-	 * limits defined by the values set for <b>deleteBatchCount</b> and
-	 * <b>daysToKeep</b>.
+	 * It purges the large subtrees taken out of the batch once the caller
+	 * transaction commits, so the chunks of the
+	 * {@link org.alfresco.trashcan.SubtreePurger SubtreePurger} never wait
+	 * for the rows it holds. If it rolls back they are left for
+	 * <b>cleanIsolating</b> or the next execution.
 	 * 
 	 */
-	public void clean()
+	private void purgeLargeSubtreesAfterCommit()
 	{
-		List<NodeRef> nodes = getBatchToDelete();
+		if (largeSubtrees == null || largeSubtrees.isEmpty())
+		{
+			largeSubtrees = null;
+			return;
+		}
+		AlfrescoTransactionSupport.bindListener(new TransactionListenerAdapter()
+		{
+			@Override
+			public void afterCommit()
+			{
+				purgeLargeSubtrees();
+			}
+		});
+	}
 
-		if (logger.isDebugEnabled())
+	private SubtreePurger getSubtreePurger()
+	{
+		if (subtreePurger == null)
 		{
-			logger.debug(String.format("Number of nodes to delete: %s",
-			        nodes.size()));
+			subtreePurger = new SubtreePurger(nodeService, transactionService,
+			        subtreeThreshold, transactionSize > 0 ? transactionSize
+			                : DEFAULT_DELETE_BATCH_COUNT);
+			subtreePurger.setAttributeService(attributeService,
+			        archiveStoreUrl, shard);
+			subtreePurger.setJobLock(jobLock);
+			subtreePurger.setMeter(meter);
+			subtreePurger.setThrottle(throttle);
+			subtreePurger.setReclaimer(reclaimer);
 		}
+		return subtreePurger;
+	}
 
-		deleteNodes(nodes);
+	/**
+	 * 
+	 * It selects the batch with the index, by rank, page by page or
+	 * from the whole list of archive store root children, depending on the
+	 * configuration.
+	 * 
+	 * @return
+	 */
+	private List<NodeRef> selectBatchToDelete()
+	{
+		ArchivedDateFilter filter = newFilter(System.currentTimeMillis());
+		if (isIndexEnabled() && retentionRules == null
+		        && (selectionPolicy == null
+		                || selectionPolicy instanceof OldestFirstPolicy))
+		{
+			return getBatchToDeleteFromIndex(filter);
+		}
+		if (selectionPolicy != null)
+		{
+			return getRankedToDelete(filter);
+		}
+		if (nodeDAO != null)
+		{
+			return getBatchToDeleteByPages(filter);
+		}
+		List<ChildAssociationRef> childAssocs = getShardChildAssocs(
+		        getTrashcanChildAssocs());
+		List<NodeRef> nodes = new ArrayList<NodeRef>(deleteBatchCount);
+		if (logger.isDebugEnabled())
+		{
+			logger.debug(String.format("Found %s nodes on trashcan",
+			        childAssocs.size()));
+		}
+		return fillBatchToDelete(nodes, childAssocs, filter);
+	}
 
+	/**
+	 * 
+	 * It returns the {@link java.util.List List} of the
+	 * <b>deleteBatchCount</b> eligible
+	 * {@link org.alfresco.service.cmr.repository.NodeRef NodeRef} of the
+	 * archive store set with the lowest ranks given by the
+	 * <b>selectionPolicy</b>, streaming through the whole trashcan with a
+	 * {@link org.alfresco.trashcan.RankedNodeSelector RankedNodeSelector}.
+	 * 
+	 * @param filter
+	 * @return
+	 */
+	private List<NodeRef> getRankedToDelete(final ArchivedDateFilter filter)
+	{
+		final RankedNodeSelector selector = new RankedNodeSelector(
+		        deleteBatchCount);
+		final long cutoff = filter.getCutoff();
+		if (nodeDAO != null)
+		{
+			ArchiveRootPager pager = newPager();
+			pager.walk(new ArchiveRootPager.PageCallback()
+			{
+				public boolean handlePage(List<NodeRef> page)
+				{
+					for (NodeRef node : page)
+					{
+						offer(selector, node, filter, cutoff);
+					}
+					return true;
+				}
+			});
+			archiveUsers += pager.getArchiveUsers();
+		}
+		else
+		{
+			for (ChildAssociationRef childAssoc : getShardChildAssocs(
+			        getTrashcanChildAssocs()))
+			{
+				offer(selector, childAssoc.getChildRef(), filter, cutoff);
+			}
+		}
 		if (logger.isDebugEnabled())
 		{
-			logger.debug("Nodes deleted");
+			logger.debug(String.format(
+			        "Selected the %s first eligible nodes by %s", selector
+			                .size(), selectionPolicy.getClass().getSimpleName()));
+		}
+		return selector.getSelected();
+	}
+
+	private void offer(RankedNodeSelector selector, NodeRef node,
+	        ArchivedDateFilter filter, long cutoff)
+	{
+		if (isQuarantined(node))
+			return;
+		nodesExamined++;
+		long archivedTime = filter.getArchivedTime(node);
+		if (archivedTime < cutoff && archivedTime < filter.getCutoff(node))
+		{
+			selector.offer(node, selectionPolicy.getRank(node, archivedTime));
+		}
+		else
+		{
+			tooYoung++;
 		}
 	}
 
 	/**
 	 * 
-	 * It deletes the {@link java.util.List List} of
-	 * {@link org.alfresco.service.cmr.repository.NodeRef NodeRef} received as
-	 * argument.
+	 * It returns the {@link java.util.List List} of
+	 * {@link org.alfresco.service.cmr.repository.NodeRef NodeRef} to be
+	 * deleted reading the oldest eligible nodes from the
+	 * {@link org.alfresco.trashcan.ArchivedDateIndex ArchivedDateIndex}.
+	 * Index entries of nodes no longer in the archive store are removed after
+	 * the batch is deleted. With a shard set, the oldest nodes of all the
+	 * shards are read and those of the other shards dropped.
 	 * 
-	 * @param nodes
+	 * @param filter
+	 * @return
 	 */
-	private void deleteNodes(List<NodeRef> nodes)
+	private List<NodeRef> getBatchToDeleteFromIndex(ArchivedDateFilter filter)
 	{
-		for (int i = nodes.size(); i > 0; i--)
+		int shardCount = shard != null ? shard.getShardCount() : 1;
+		int quarantined = quarantine != null ? quarantine.size() : 0;
+		List<NodeRef> oldest = archivedDateIndex.getOldest(new StoreRef(
+		        archiveStoreUrl), deleteBatchCount * shardCount + quarantined,
+		        filter.getCutoff());
+		List<NodeRef> batch = new ArrayList<NodeRef>(Math.min(
+		        deleteBatchCount, oldest.size()));
+		staleIndexEntries = new ArrayList<NodeRef>();
+		for (NodeRef node : oldest)
 		{
-			nodeService.deleteNode(nodes.get(i - 1));
+			if (batch.size() >= deleteBatchCount)
+				break;
+			if ((shard != null && !shard.contains(node)) || isQuarantined(node))
+				continue;
+			nodesExamined++;
+			if (nodeService.exists(node))
+			{
+				batch.add(node);
+			}
+			else
+			{
+				staleIndexEntries.add(node);
+			}
 		}
+		if (logger.isDebugEnabled())
+		{
+			logger.debug(String.format(
+			        "Found %s eligible nodes on the archived date index",
+			        batch.size()));
+		}
+		return batch;
 	}
 
 	/**
 	 * 
 	 * It returns the {@link java.util.List List} of
-	 * {@link org.alfresco.service.cmr.repository.NodeRef NodeRef} of the
-	 * archive store set to be deleted according to configuration for
-	 * <b>deleteBatchCount</b> and <b>daysToKeep</b>.
+	 * {@link org.alfresco.service.cmr.repository.NodeRef NodeRef} to be
+	 * deleted reading the archive store root page by page and stopping as soon
+	 * as <b>deleteBatchCount</b> eligible nodes are found.
 	 * 
+	 * @param filter
 	 * @return
 	 */
-	private List<NodeRef> getBatchToDelete()
+	private List<NodeRef> getBatchToDeleteByPages(
+	        final ArchivedDateFilter filter)
 	{
-		List<ChildAssociationRef> childAssocs = getTrashcanChildAssocs();
-		List<NodeRef> nodes = new ArrayList<NodeRef>(deleteBatchCount);
+		final List<NodeRef> batch = new ArrayList<NodeRef>(deleteBatchCount);
+		ArchiveRootPager.PageCallback callback = new ArchiveRootPager.PageCallback()
+		{
+			public boolean handlePage(List<NodeRef> page)
+			{
+				for (NodeRef node : page)
+				{
+					if (batch.size() >= deleteBatchCount)
+						break;
+					if (isQuarantined(node))
+						continue;
+					nodesExamined++;
+					if (filter.isEligible(node))
+					{
+						batch.add(node);
+					}
+					else
+					{
+						tooYoung++;
+					}
+				}
+				return batch.size() < deleteBatchCount;
+			}
+		};
+		if (resumeCursor == null)
+		{
+			ArchiveRootPager pager = newPager();
+			pager.walk(callback);
+			archiveUsers += pager.getArchiveUsers();
+			return batch;
+		}
+
+		long cursor = resumeCursor.load();
+		ArchiveRootPager pager = newPager();
+		pager.setRange(cursor, Long.MAX_VALUE);
+		pager.walk(callback);
+		archiveUsers += pager.getArchiveUsers();
+		if (!pager.isCompleted())
+		{
+			nextCursor = pager.getLastAssocId();
+		}
+		else if (cursor > 0)
+		{
+			// end of the trashcan reached, wrap around to the beginning
+			ArchiveRootPager wrapPager = newPager();
+			wrapPager.setRange(0, cursor);
+			wrapPager.walk(callback);
+			archiveUsers += wrapPager.getArchiveUsers();
+			nextCursor = wrapPager.isCompleted() ? 0 : wrapPager
+			        .getLastAssocId();
+		}
+		else
+		{
+			nextCursor = 0L;
+		}
 		if (logger.isDebugEnabled())
 		{
-			logger.debug(String.format("Found %s nodes on trashcan",
-			        childAssocs.size()));
+			logger.debug(String.format(
+			        "Trashcan read from position %s up to %s", cursor,
+			        nextCursor));
+		}
+		return batch;
+	}
+
+	/**
+	 * 
+	 * It persists the position reached by the last batch selection and removes
+	 * the stale index entries it found, if any.
+	 * 
+	 */
+	private void saveProgress()
+	{
+		if (staleIndexEntries != null)
+		{
+			for (NodeRef node : staleIndexEntries)
+			{
+				archivedDateIndex.remove(node);
+			}
+			staleIndexEntries = null;
+		}
+		if (nextCursor != null)
+		{
+			resumeCursor.save(nextCursor);
+			nextCursor = null;
 		}
-		return fillBatchToDelete(nodes, childAssocs);
 	}
 
 	/**
@@ -190,20 +1643,29 @@ public class TrashcanCleaner
 	 * 
 	 * @param batch
 	 * @param trashChildAssocs
+	 * @param filter
 	 * @return
 	 */
-	private List<NodeRef> fillBatchToDelete(List<NodeRef> batch,
-	        List<ChildAssociationRef> trashChildAssocs)
+	List<NodeRef> fillBatchToDelete(List<NodeRef> batch,
+	        List<ChildAssociationRef> trashChildAssocs,
+	        ArchivedDateFilter filter)
 	{
 		for (int j = trashChildAssocs.size(); j > 0
 		        && batch.size() < deleteBatchCount; j--)
 		{
 			ChildAssociationRef childAssoc = trashChildAssocs.get(j - 1);
 			NodeRef childRef = childAssoc.getChildRef();
-			if (olderThanDaysToKeep(childRef))
+			if (isQuarantined(childRef))
+				continue;
+			nodesExamined++;
+			if (filter.isEligible(childRef))
 			{
 				batch.add(childRef);
 			}
+			else
+			{
+				tooYoung++;
+			}
 		}
 		return batch;
 	}
@@ -216,26 +1678,270 @@ public class TrashcanCleaner
 	 * 
 	 * @return
 	 */
-	private List<ChildAssociationRef> getTrashcanChildAssocs()
+	List<ChildAssociationRef> getTrashcanChildAssocs()
 	{
-		StoreRef archiveStore = new StoreRef(archiveStoreUrl);
-		NodeRef archiveRoot = nodeService.getRootNode(archiveStore);
-		List<ChildAssociationRef> allChilds= nodeService.getChildAssocs(archiveRoot);
-		return filterArchiveUsers(allChilds);
+		return filterArchiveUsers(getAllTrashcanChildAssocs());
 	}
 	
 	
 	/**
 	 * 
-	 * It returns the number of nodes present on trashcan.
+	 * It estimates, without deleting anything, how many nodes and how much
+	 * content the configured <b>daysToKeep</b> makes eligible for deletion,
+	 * how old the trashcan nodes are and how long purging the eligible ones
+	 * would take at <b>nodesPerSecond</b>.
+	 * 
+	 * If <b>sampleSize</b> is 0 or negative every child of the archive store
+	 * root is examined in a streaming pass and the figures are exact.
+	 * Otherwise only <b>sampleSize</b> children picked at random are examined
+	 * and the figures come with their error bounds (see
+	 * {@link org.alfresco.trashcan.TrashcanEstimate TrashcanEstimate}).
+	 * 
+	 * @param sampleSize
+	 * @param nodesPerSecond
+	 *            the measured delete throughput, 0 if unknown
+	 * @return
+	 */
+	public TrashcanEstimate estimate(int sampleSize, double nodesPerSecond)
+	{
+		long now = System.currentTimeMillis();
+		final ArchivedDateFilter filter = newFilter(now);
+		final TrashcanEstimate estimate = new TrashcanEstimate(now,
+		        sampleSize > 0);
+		if (sampleSize > 0)
+		{
+			for (NodeRef node : getSample(sampleSize, estimate))
+			{
+				addToEstimate(estimate, node, filter);
+			}
+		}
+		else if (nodeDAO != null)
+		{
+			ArchiveRootPager pager = newPager();
+			pager.walk(new ArchiveRootPager.PageCallback()
+			{
+				public boolean handlePage(List<NodeRef> page)
+				{
+					for (NodeRef node : page)
+					{
+						addToEstimate(estimate, node, filter);
+					}
+					return true;
+				}
+			});
+			estimate.addArchiveUsers(pager.getArchiveUsers());
+			estimate.setPopulation(estimate.getExamined());
+		}
+		else
+		{
+			for (ChildAssociationRef childAssoc : getAllTrashcanChildAssocs())
+			{
+				NodeRef node = childAssoc.getChildRef();
+				if (isArchiveUser(node))
+					estimate.addArchiveUsers(1);
+				else
+					addToEstimate(estimate, node, filter);
+			}
+			estimate.setPopulation(estimate.getExamined());
+		}
+		estimate.setNodesPerSecond(nodesPerSecond);
+		return estimate;
+	}
+
+	/**
+	 * 
+	 * It picks <b>sampleSize</b> children of the archive store root at random
+	 * and returns the archived nodes among them. The archiveuser nodes picked
+	 * and the total number of children are accounted on the estimate.
+	 * 
+	 * @param sampleSize
+	 * @param estimate
+	 * @return
+	 */
+	private List<NodeRef> getSample(int sampleSize, TrashcanEstimate estimate)
+	{
+		if (nodeDAO != null)
+		{
+			ArchiveRootPager pager = newPager();
+			List<NodeRef> sample = pager.sample(sampleSize, new Random());
+			estimate.addArchiveUsers(pager.getArchiveUsers());
+			estimate.setPopulation(pager.getScanned());
+			return sample;
+		}
+		List<ChildAssociationRef> childAssocs = new ArrayList<ChildAssociationRef>(
+		        getAllTrashcanChildAssocs());
+		estimate.setPopulation(childAssocs.size());
+		Collections.shuffle(childAssocs);
+		List<NodeRef> sample = new ArrayList<NodeRef>(sampleSize);
+		for (ChildAssociationRef childAssoc : childAssocs.subList(0,
+		        Math.min(sampleSize, childAssocs.size())))
+		{
+			NodeRef node = childAssoc.getChildRef();
+			if (isArchiveUser(node))
+				estimate.addArchiveUsers(1);
+			else
+				sample.add(node);
+		}
+		return sample;
+	}
+
+	private void addToEstimate(TrashcanEstimate estimate, NodeRef node,
+	        ArchivedDateFilter filter)
+	{
+		long archivedTime = filter.getArchivedTime(node);
+		ContentData content = (ContentData) nodeService.getProperty(node,
+		        ContentModel.PROP_CONTENT);
+		estimate.addNode(archivedTime, content != null ? content.getSize() : 0,
+		        archivedTime < filter.getCutoff(node));
+	}
+
+	/**
+	 * 
+	 * It returns the child associations of the nodes of the shard set, or all
+	 * of them if there is no shard.
+	 * 
+	 * @param childAssocs
+	 * @return
+	 */
+	private List<ChildAssociationRef> getShardChildAssocs(
+	        List<ChildAssociationRef> childAssocs)
+	{
+		if (shard == null)
+			return childAssocs;
+		List<ChildAssociationRef> shardChildAssocs = new ArrayList<ChildAssociationRef>();
+		for (ChildAssociationRef childAssoc : childAssocs)
+		{
+			if (shard.contains(childAssoc.getChildRef()))
+			{
+				shardChildAssocs.add(childAssoc);
+			}
+		}
+		return shardChildAssocs;
+	}
+
+	/**
+	 * 
+	 * It will return all
+	 * {@link org.alfresco.service.cmr.repository.ChildAssociationRef
+	 * ChildAssociationRef} of the archive store set, archiveuser nodes
+	 * included.
+	 * 
+	 * @return
+	 */
+	private List<ChildAssociationRef> getAllTrashcanChildAssocs()
+	{
+		StoreRef archiveStore = new StoreRef(archiveStoreUrl);
+		return nodeService.getChildAssocs(nodeService.getRootNode(archiveStore));
+	}
+
+	/**
+	 * 
+	 * It checks if the trashcan may hold nodes archived more than
+	 * <b>daysToKeep</b> days ago, or nodes of users over their quota. With an
+	 * enabled {@link org.alfresco.trashcan.ArchivedDateIndex ArchivedDateIndex}
+	 * the answer comes from its day counts, exact to the day, and from the
+	 * usage totals; otherwise the trashcan is assumed to hold some.
+	 * 
+	 * @return
+	 */
+	public boolean hasEligibleNodes()
+	{
+		if (!isIndexEnabled())
+			return true;
+		if (archivedDateIndex.count(archiveStoreUrl, newFilter(
+		        System.currentTimeMillis()).getCutoff()) > 0)
+			return true;
+		return isEnforcingQuotas() && hasUsersOverQuota();
+	}
+
+	/**
+	 * 
+	 * It creates the filter of the archived nodes old enough to be deleted,
+	 * applying the retention rules if any.
+	 * 
+	 * @param now
+	 * @return
+	 */
+	private ArchivedDateFilter newFilter(long now)
+	{
+		return retentionRules != null ? new RetentionFilter(nodeService,
+		        daysToKeep, retentionRules, now) : new ArchivedDateFilter(
+		        nodeService, daysToKeep, now);
+	}
+
+	/**
+	 * 
+	 * It checks if the trashcan is read and counted from an enabled
+	 * {@link org.alfresco.trashcan.ArchivedDateIndex ArchivedDateIndex}.
+	 * 
+	 * @return
+	 */
+	public boolean isIndexEnabled()
+	{
+		return archivedDateIndex != null && archivedDateIndex.isEnabled();
+	}
+
+	/**
+	 * 
+	 * It returns the number of nodes present on trashcan, all the shards
+	 * included. With an enabled {@link org.alfresco.trashcan.ArchivedDateIndex
+	 * ArchivedDateIndex} it is read from its day counts.
 	 * 
 	 * @return
 	 */
 	public long getNumberOfNodesInTrashcan()
 	{
+		if (isIndexEnabled())
+		{
+			return archivedDateIndex.count(archiveStoreUrl);
+		}
+		if (nodeDAO != null)
+		{
+			return countNodesByPages();
+		}
 		return getTrashcanChildAssocs().size();
 
 	}
+
+	/**
+	 * 
+	 * It counts the nodes present on trashcan reading the archive store root
+	 * page by page.
+	 * 
+	 * @return
+	 */
+	private long countNodesByPages()
+	{
+		final long[] count = new long[1];
+		ArchiveRootPager pager = new ArchiveRootPager(nodeDAO, new StoreRef(
+		        archiveStoreUrl), pageSize);
+		pager.setChildrenDAO(archivedChildrenDAO);
+		pager.walk(new ArchiveRootPager.PageCallback()
+		{
+			public boolean handlePage(List<NodeRef> page)
+			{
+				count[0] += page.size();
+				return true;
+			}
+		});
+		return count[0];
+	}
+
+	/**
+	 * 
+	 * It creates the {@link org.alfresco.trashcan.ArchiveRootPager
+	 * ArchiveRootPager} for the archive store and shard set.
+	 * 
+	 * @return
+	 */
+	private ArchiveRootPager newPager()
+	{
+		ArchiveRootPager pager = new ArchiveRootPager(nodeDAO, new StoreRef(
+		        archiveStoreUrl), pageSize);
+		pager.setShard(shard);
+		pager.setChildrenDAO(archivedChildrenDAO);
+		return pager;
+	}
 	
 	/**
 	 * 
@@ -243,37 +1949,30 @@ public class TrashcanCleaner
 	 * 
 	 * @return
 	 */
-	private List<ChildAssociationRef> filterArchiveUsers(List<ChildAssociationRef> allChilds){
+	List<ChildAssociationRef> filterArchiveUsers(List<ChildAssociationRef> allChilds){
 		List<ChildAssociationRef> childs=new ArrayList<ChildAssociationRef>();
 		for(ChildAssociationRef childAssoc:allChilds){
 			NodeRef child=childAssoc.getChildRef();
-			if(!ContentModel.TYPE_ARCHIVE_USER.equals(nodeService.getType(child))){
+			if(!isArchiveUser(child)){
 				childs.add(childAssoc);
 			}
+			else{
+				archiveUsers++;
+			}
 		}
 		return childs;
 	}
 
 	/**
 	 * 
-	 * It checks if the archived node has been archived since longer than
-	 * <b>daysToKeep</b>. If <b>daysToKeep</b> is 0 or negative it will return
-	 * always true.
+	 * It checks if the node is an archiveuser node type.
 	 * 
 	 * @param node
 	 * @return
 	 */
-	private boolean olderThanDaysToKeep(NodeRef node)
+	private boolean isArchiveUser(NodeRef node)
 	{
-		if (daysToKeep <= 0)
-			return true;
-		Date archivedDate = (Date) nodeService.getProperty(node,
-		        ContentModel.PROP_ARCHIVED_DATE);
-		long archivedDateValue=0;
-		if(archivedDate!=null)
-			archivedDateValue=archivedDate.getTime();
-		return daysToKeep * DAYS_TO_MILLIS < System.currentTimeMillis()
-		        - archivedDateValue;
+		return ContentModel.TYPE_ARCHIVE_USER.equals(nodeService.getType(node));
 	}
 
 }
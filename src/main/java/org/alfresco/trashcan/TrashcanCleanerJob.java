@@ -24,11 +24,30 @@
  */
 package org.alfresco.trashcan;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.alfresco.repo.domain.node.NodeDAO;
+import org.alfresco.repo.lock.JobLockService;
+import org.alfresco.repo.policy.BehaviourFilter;
 import org.alfresco.repo.security.authentication.AuthenticationComponent;
+import org.alfresco.repo.security.authentication.AuthenticationUtil;
+import org.alfresco.repo.security.authentication.AuthenticationUtil.RunAsWork;
 import org.alfresco.repo.transaction.RetryingTransactionHelper.RetryingTransactionCallback;
-import org.alfresco.schedule.AbstractScheduledLockedJob;
+import org.alfresco.service.cmr.attributes.AttributeService;
+import org.alfresco.service.cmr.dictionary.DictionaryService;
 import org.alfresco.service.cmr.repository.NodeService;
+import org.alfresco.service.namespace.NamespaceService;
 import org.alfresco.service.transaction.TransactionService;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.quartz.Job;
 import org.quartz.JobExecutionContext;
 import org.quartz.JobExecutionException;
 
@@ -36,10 +55,10 @@ import org.quartz.JobExecutionException;
  * 
  * This class is the job responsible for cleaning the trashcan periodically
  * according to <b>trashcan.deleteBatchCount</b> and <b>trashcan.daysToKeep</b>
- * set. It's a {@link org.springframework.scheduling.quartz.QuartzJobBean
- * QuartzJobBean} implemented through extension of the
- * {@link org.alfresco.schedule.AbstractScheduledLockedJob
- * AbstractScheduledLockedJob}.
+ * set. It's a plain Quartz {@link org.quartz.Job Job}, scheduled through the
+ * {@link org.alfresco.trashcan.ShardedTrashcanCleanerJob
+ * ShardedTrashcanCleanerJob}, without a cluster wide job lock, since each
+ * archive store or shard is cleaned under a lock of its own.
  * 
  * <b>trashcan.deleteBatchCount</b>: It will set how many nodes in trashcan to
  * delete at maximum during <b>clean</b> execution. By default the value is
@@ -47,65 +66,664 @@ import org.quartz.JobExecutionException;
  * trashcan since its deletion. Any node archived less than the value specified
  * won't be deleted during <b>clean</b> execution. If the value is 0 or negative
  * any archived will be eligible for deletion (default behavior if no positive
- * value is explicitly set).
+ * value is explicitly set). <b>trashcan.pageSize</b>: The number of archived
+ * nodes read at once from the archive store root. By default the value is 250.
+ * <b>trashcan.transactionSize</b>: The number of nodes deleted in each
+ * transaction. If the value is 0 or negative (the default) the whole
+ * execution runs in a single transaction. <b>trashcan.deleteWorkers</b>: The
+ * number of workers deleting sub-batches concurrently. By default the value is
+ * 1. <b>trashcan.maxRunSeconds</b>: If positive the job runs in drain mode,
+ * cleaning batch after batch until no eligible nodes are left or the time
+ * budget runs out. By default the value is 0, a single batch per execution.
+ * <b>trashcan.oldestFirst</b>: If true each execution deletes the oldest
+ * eligible nodes of the trashcan first. By default the value is false.
+ * <b>trashcan.metrics.countTrashcan</b>: If true the nodes left in the
+ * trashcan are counted after each execution for the <b>meter</b> even
+ * without the archived date index, walking the whole archive store root. By
+ * default the value is false and the trashcan is only counted from the day
+ * counts of the index.
+ * <b>trashcan.archiveStores</b>: The archive stores to clean, each one with
+ * its own settings overriding the ones above (see
+ * {@link org.alfresco.trashcan.ArchiveStoreSettings ArchiveStoreSettings}). By
+ * default only archive://SpacesStore is cleaned. <b>trashcan.shards</b>: The
+ * number of {@link org.alfresco.trashcan.TrashcanShard TrashcanShard} each
+ * trashcan is partitioned into, each one cleaned under a lock of its own. By
+ * default the value is 1, no partition. <b>trashcan.fastPurge</b>: If true
+ * the nodes are purged with the policy behaviours disabled by a
+ * {@link org.alfresco.trashcan.FastNodePurger FastNodePurger}, using the
+ * <b>behaviourFilter</b> of the job data. By default the value is false.
+ * <b>trashcan.subtreeThreshold</b>: If positive, the archived nodes with more
+ * nodes below them are purged bottom-up in chunks across transactions and
+ * executions. By default the value is 0, every node deleted at once.
+ * <b>trashcan.selectionPolicy</b>: The order in which the eligible nodes are
+ * purged, <b>oldestFirst</b> or <b>largestFirst</b> (see
+ * {@link org.alfresco.trashcan.SelectionPolicy SelectionPolicy}). By default
+ * empty, the first eligible nodes reached, or the oldest first if
+ * <b>trashcan.oldestFirst</b> is true. A <b>selectionPolicy</b> bean in the
+ * job data takes precedence. <b>trashcan.largestFirst.maxDescendants</b>: The
+ * nodes below an archived folder whose content is counted in its size when
+ * purging the largest first. By default the value is 10000. A
+ * <b>sizeCalculator</b> {@link org.alfresco.trashcan.ContentSizeCalculator
+ * ContentSizeCalculator} in the job data is used instead, keeping the folder
+ * sizes between executions. An <b>archivedChildrenDAO</b>
+ * {@link org.alfresco.trashcan.ArchivedChildrenDAO ArchivedChildrenDAO} in
+ * the job data reads the archive store root a page at a time with a bounded
+ * select.
+ * <b>trashcan.quarantine.enabled</b>: If true the archived nodes that fail to
+ * delete are isolated and kept in a
+ * {@link org.alfresco.trashcan.TrashcanQuarantine TrashcanQuarantine}, using
+ * the <b>attributeService</b> of the job data, instead of failing their whole
+ * batch on every execution. By default the value is false.
+ * <b>trashcan.quarantine.retryDays</b>: The days after which a quarantined
+ * node is tried again. If the value is 0 or negative it never is. By default
+ * the value is 7. <b>trashcan.quota.maxNodes</b> and
+ * <b>trashcan.quota.maxBytes</b>: The number of archived nodes and bytes of
+ * archived content each user may keep in an archive store before the oldest
+ * of them are purged first, whatever <b>trashcan.daysToKeep</b>. By default
+ * the values are 0, no quota. <b>trashcan.quota.users</b>: The users with
+ * quotas of their own (see {@link org.alfresco.trashcan.TrashcanQuotas
+ * TrashcanQuotas}). The quotas need the enabled <b>usage</b>
+ * {@link org.alfresco.trashcan.TrashcanUsage TrashcanUsage} of the job data.
+ * <b>trashcan.retention.rules</b>: The rules giving the archived nodes a
+ * retention of their own by original site or path, type or aspect (see
+ * {@link org.alfresco.trashcan.RetentionRules RetentionRules}), using the
+ * <b>dictionaryService</b> and <b>namespaceService</b> of the job data. By
+ * default empty, every node kept for <b>trashcan.daysToKeep</b>.
+ * <b>trashcan.retention.cacheSize</b>: The original parents whose location
+ * is cached while matching the rules. By default the value is 10000.
+ * 
+ * When there are several archive stores they are cleaned concurrently, each
+ * one by a worker of its own holding the lock of its store, so a large store
+ * doesn't hold back the others.
+ * 
+ * If the job data includes a <b>batchSizer</b>
+ * {@link org.alfresco.trashcan.AdaptiveBatchSizer AdaptiveBatchSizer} it is
+ * used to adapt the transaction size to the delete latency. If it includes a
+ * <b>throttle</b> {@link org.alfresco.trashcan.LoadThrottle LoadThrottle} the
+ * deletion slows down while the repository is busy. If it includes the
+ * <b>attributeService</b> each execution resumes reading the trashcan where
+ * the previous one stopped, even if it ran on another node of the cluster.
+ * If it includes an enabled <b>archivedDateIndex</b>
+ * {@link org.alfresco.trashcan.ArchivedDateIndex ArchivedDateIndex} the
+ * oldest nodes are read from the index instead, the trashcan is counted from
+ * its day counts and a store without nodes old enough to be purged is skipped.
+ * If it includes a <b>meter</b>
+ * {@link org.alfresco.trashcan.TrashcanMeter TrashcanMeter} the cleaner
+ * measures and the duration of each execution are reported to it.
+ * If it includes an enabled <b>reclaimer</b>
+ * {@link org.alfresco.trashcan.ContentReclaimer ContentReclaimer} the
+ * orphaned content of the purged nodes is deleted from the content stores
+ * once each store or shard is cleaned.
+ * 
+ * While cleaning a store the job holds its
+ * {@link org.alfresco.trashcan.TrashcanJobLock TrashcanJobLock}, kept alive
+ * in the background however long a batch takes. If the lock is lost the
+ * deletion of that store stops at the next transaction.
  * 
  * @author Rui Fernandes
  * 
  */
-public class TrashcanCleanerJob extends AbstractScheduledLockedJob
+public class TrashcanCleanerJob implements Job
 {
 
+	protected static final int DEFAULT_MAX_RUN_SECONDS = 0;
+	protected static final int DEFAULT_SHARDS = 1;
+	protected static final int DEFAULT_SUBTREE_THRESHOLD = 0;
+	protected static final int DEFAULT_MAX_DESCENDANTS = 10000;
+	protected static final int DEFAULT_QUARANTINE_RETRY_DAYS = 7;
+	private static final String OLDEST_FIRST = "oldestFirst";
+	private static final String LARGEST_FIRST = "largestFirst";
+	protected static final String DEFAULT_ARCHIVE_STORE = "archive://SpacesStore";
+
+	private static Log logger = LogFactory.getLog(TrashcanCleanerJob.class);
+
 	protected NodeService nodeService;
 	protected TransactionService transactionService;
 	protected AuthenticationComponent authenticationComponent;
-	private int deleteBatchCount;
-	private int daysToKeep;
+	protected NodeDAO nodeDAO;
+	protected JobLockService jobLockService;
+	protected AdaptiveBatchSizer batchSizer;
+	protected LoadThrottle throttle;
+	protected AttributeService attributeService;
+	protected ArchivedDateIndex archivedDateIndex;
+	protected TrashcanUsage usage;
+	protected ContentReclaimer reclaimer;
+	protected ContentSizeCalculator sizeCalculator;
+	protected ArchivedChildrenDAO archivedChildrenDAO;
+	protected TrashcanMeter meter;
+	protected BehaviourFilter behaviourFilter;
+	private List<ArchiveStoreSettings> archiveStores;
+	private boolean oldestFirst;
+	private String selectionPolicyName;
+	private SelectionPolicy selectionPolicy;
+	private DictionaryService dictionaryService;
+	private int maxDescendants;
+	private boolean countTrashcan;
+	private boolean quarantineEnabled;
+	private int quarantineRetryDays;
+	private TrashcanQuotas quotas;
+	private RetentionRules retentionRules;
+	private int shardCount;
+	private boolean fastPurge;
+	private int subtreeThreshold;
+	private Random random = new Random();
 
 	/**
-	 * The implementation of the
-	 * {@link org.alfresco.schedule.AbstractScheduledLockedJob
-	 * AbstractScheduledLockedJob} abstract executeJob method.
+	 * 
+	 * It cleans the archive stores, each one under its own
+	 * {@link org.alfresco.trashcan.TrashcanJobLock TrashcanJobLock}.
+	 * 
 	 */
-	@Override
-	public void executeJob(JobExecutionContext jobContext)
+	public void execute(JobExecutionContext jobContext)
 	        throws JobExecutionException
 	{
 		setUp(jobContext);
 		authenticationComponent.setSystemUserAsCurrentUser();
-		cleanInTransaction();
+		long start = System.currentTimeMillis();
+		long trashcanSize;
+		if (archiveStores.size() == 1)
+		{
+			trashcanSize = cleanStore(archiveStores.get(0));
+		}
+		else
+		{
+			trashcanSize = cleanStoresConcurrently();
+		}
+		if (meter != null)
+		{
+			meter.runCompleted(System.currentTimeMillis() - start,
+			        trashcanSize);
+		}
+	}
+
+	/**
+	 * 
+	 * It cleans each archive store with a worker of its own and waits for all
+	 * of them to finish.
+	 * 
+	 * @return the nodes left in the trashcans, or -1 if not counted
+	 */
+	private long cleanStoresConcurrently()
+	{
+		ExecutorService executor = Executors.newFixedThreadPool(archiveStores
+		        .size());
+		List<Future<Long>> workers = new ArrayList<Future<Long>>();
+		try
+		{
+			for (final ArchiveStoreSettings store : archiveStores)
+			{
+				workers.add(executor.submit(new Callable<Long>()
+				{
+					public Long call()
+					{
+						return AuthenticationUtil
+						        .runAsSystem(new RunAsWork<Long>()
+						        {
+							        public Long doWork() throws Exception
+							        {
+								        return cleanStore(store);
+							        }
+						        });
+					}
+				}));
+			}
+			long trashcanSize = 0;
+			for (int i = 0; i < workers.size(); i++)
+			{
+				long storeSize = waitFor(workers.get(i), archiveStores.get(i));
+				trashcanSize = trashcanSize >= 0 && storeSize >= 0 ? trashcanSize
+				        + storeSize
+				        : -1;
+			}
+			return trashcanSize;
+		} finally
+		{
+			executor.shutdown();
+		}
+	}
+
+	/**
+	 * 
+	 * It waits for the worker cleaning an archive store, logging its failure
+	 * if any.
+	 * 
+	 * @param worker
+	 * @param store
+	 * @return the nodes left in the trashcan, or -1 if not counted
+	 */
+	private long waitFor(Future<Long> worker, ArchiveStoreSettings store)
+	{
+		try
+		{
+			return worker.get();
+		} catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			return -1;
+		} catch (ExecutionException e)
+		{
+			logger.error(String.format("Failed to clean %s", store),
+			        e.getCause());
+			return -1;
+		}
+	}
+
+	/**
+	 * 
+	 * It cleans an archive store while holding its
+	 * {@link org.alfresco.trashcan.TrashcanJobLock TrashcanJobLock}. If the
+	 * lock is held elsewhere the store is skipped.
+	 * 
+	 * @param store
+	 * @return the nodes left in the trashcan, or -1 if not counted
+	 */
+	private long cleanStore(ArchiveStoreSettings store)
+	{
+		mergeDeltasInTransaction(store.getArchiveStoreUrl());
+		if (!hasEligibleNodesInTransaction(createCleaner(store, null)))
+		{
+			if (logger.isDebugEnabled())
+			{
+				logger.debug(String.format(
+				        "Skipped %s, no nodes old enough to be purged",
+				        store.getArchiveStoreUrl()));
+			}
+			return countAfterRun(store);
+		}
+		long deadline = System.currentTimeMillis()
+		        + store.getMaxRunSeconds() * 1000L;
+		boolean cleaned;
+		if (shardCount > 1)
+		{
+			cleaned = cleanShards(store, deadline);
+		}
+		else
+		{
+			cleaned = cleanShard(store, null, deadline);
+		}
+		if (!cleaned)
+			return -1;
+		mergeDeltasInTransaction(store.getArchiveStoreUrl());
+		return countAfterRun(store);
+	}
+
+	/**
+	 * 
+	 * It counts the nodes left in the trashcan of an archive store from the
+	 * archived date index, or walking the archive store root if
+	 * <b>trashcan.metrics.countTrashcan</b> is set.
+	 * 
+	 * @param store
+	 * @return the nodes left in the trashcan, or -1 if not counted
+	 */
+	private long countAfterRun(ArchiveStoreSettings store)
+	{
+		TrashcanCleaner cleaner = createCleaner(store, null);
+		if (!countTrashcan && !cleaner.isIndexEnabled())
+			return -1;
+		return countInTransaction(cleaner);
+	}
+
+	/**
+	 * 
+	 * It cleans every shard of an archive store whose lock is free, starting
+	 * from a random one so the members of a cluster running at the same time
+	 * spread over different shards. In drain mode no further shard is started
+	 * once <b>deadline</b> has passed.
+	 * 
+	 * @param store
+	 * @param deadline
+	 * @return true if any shard was cleaned
+	 */
+	private boolean cleanShards(ArchiveStoreSettings store, long deadline)
+	{
+		boolean cleaned = false;
+		int first = random.nextInt(shardCount);
+		for (int i = 0; i < shardCount; i++)
+		{
+			if (store.getMaxRunSeconds() > 0
+			        && System.currentTimeMillis() >= deadline)
+				break;
+			TrashcanShard shard = new TrashcanShard((first + i) % shardCount,
+			        shardCount);
+			if (cleanShard(store, shard, deadline))
+			{
+				cleaned = true;
+			}
+			else if (logger.isDebugEnabled())
+			{
+				logger.debug(String.format("Skipped %s of %s, cleaned elsewhere",
+				        shard, store.getArchiveStoreUrl()));
+			}
+		}
+		return cleaned;
+	}
+
+	/**
+	 * 
+	 * It cleans a shard of an archive store, or the whole store if
+	 * <b>shard</b> is null, while holding its
+	 * {@link org.alfresco.trashcan.TrashcanJobLock TrashcanJobLock}.
+	 * 
+	 * @param store
+	 * @param shard
+	 * @param deadline
+	 *            the end of the drain, if the store drains
+	 * @return false if the lock is held elsewhere
+	 */
+	private boolean cleanShard(ArchiveStoreSettings store,
+	        TrashcanShard shard, long deadline)
+	{
+		String archiveStoreUrl = store.getArchiveStoreUrl();
+		TrashcanJobLock jobLock = new TrashcanJobLock(jobLockService,
+		        shard != null ? shard.getLockQName(archiveStoreUrl)
+		                : TrashcanJobLock.getLockQName(archiveStoreUrl));
+		if (!jobLock.acquire())
+		{
+			return false;
+		}
+		try
+		{
+			TrashcanCleaner cleaner = createCleaner(store, jobLock);
+			cleaner.setShard(shard);
+			try
+			{
+				if (store.getMaxRunSeconds() > 0)
+				{
+					drain(cleaner, jobLock, deadline);
+				}
+				else
+				{
+					cleanBatch(cleaner);
+				}
+			} finally
+			{
+				cleaner.shutdown();
+			}
+			if (isReclaimingContent())
+			{
+				reclaimer.reclaim();
+			}
+			return true;
+		} finally
+		{
+			jobLock.release();
+		}
+	}
+
+	/**
+	 * 
+	 * It cleans batch after batch until a batch finds less eligible nodes than
+	 * <b>trashcan.deleteBatchCount</b>, the <b>deadline</b> has passed or the
+	 * lock is lost. The lock is checked between batches.
+	 * 
+	 * @param cleaner
+	 * @param jobLock
+	 * @param deadline
+	 */
+	void drain(TrashcanCleaner cleaner, TrashcanJobLock jobLock,
+	        long deadline)
+	{
+		int batches = 0;
+		long selected = 0;
+		while (System.currentTimeMillis() < deadline && jobLock.refresh())
+		{
+			int batchSize = cleanBatch(cleaner);
+			batches++;
+			selected += batchSize;
+			if (batchSize < cleaner.getDeleteBatchCount())
+				break;
+		}
+		if (logger.isDebugEnabled())
+		{
+			logger.debug(String.format(
+			        "Drain finished after %s batches and %s nodes", batches,
+			        selected));
+		}
+	}
+
+	/**
+	 * 
+	 * It cleans a single batch, inside a transaction unless the cleaner
+	 * manages its own transactions. If the transaction fails and the cleaner
+	 * has a {@link org.alfresco.trashcan.TrashcanQuarantine
+	 * TrashcanQuarantine}, the batch is deleted again isolating the failing
+	 * nodes.
+	 * 
+	 * @param cleaner
+	 * @return the number of nodes selected for deletion
+	 */
+	private int cleanBatch(TrashcanCleaner cleaner)
+	{
+		if (cleaner.isManagingTransactions())
+		{
+			return cleaner.clean();
+		}
+		try
+		{
+			return cleanInTransaction(cleaner);
+		} catch (RuntimeException e)
+		{
+			if (!cleaner.canIsolateFailures())
+				throw e;
+			logger.warn("Failed to delete the batch, isolating the failing nodes",
+			        e);
+			return cleaner.cleanIsolating();
+		}
+	}
+
+	/**
+	 * 
+	 * Instantiates the {@link org.alfresco.trashcan.TrashcanCleaner
+	 * TrashcanCleaner} of an archive store with the configuration set.
+	 * 
+	 * @param store
+	 * @param jobLock
+	 * @return
+	 */
+	private TrashcanCleaner createCleaner(ArchiveStoreSettings store,
+	        TrashcanJobLock jobLock)
+	{
+		TrashcanCleaner cleaner = new TrashcanCleaner(nodeService,
+		        store.getArchiveStoreUrl(), store.getDeleteBatchCount(),
+		        store.getDaysToKeep());
+		cleaner.setNodeDAO(nodeDAO);
+		cleaner.setPageSize(store.getPageSize());
+		cleaner.setTransactionService(transactionService);
+		cleaner.setTransactionSize(store.getTransactionSize());
+		cleaner.setDeleteWorkers(store.getDeleteWorkers());
+		cleaner.setJobLock(jobLock);
+		cleaner.setBatchSizer(batchSizer != null ? batchSizer
+		        .forStore(store.getArchiveStoreUrl()) : null);
+		cleaner.setThrottle(throttle);
+		cleaner.setAttributeService(attributeService);
+		cleaner.setArchivedDateIndex(archivedDateIndex);
+		cleaner.setArchivedChildrenDAO(archivedChildrenDAO);
+		if (LARGEST_FIRST.equals(selectionPolicyName))
+		{
+			ContentSizeCalculator calculator = sizeCalculator;
+			if (calculator == null)
+			{
+				calculator = new ContentSizeCalculator(nodeService,
+				        dictionaryService, maxDescendants);
+			}
+			cleaner.setSizeCalculator(calculator);
+			cleaner.setSelectionPolicy(new LargestFirstPolicy(calculator));
+		}
+		else
+		{
+			cleaner.setOldestFirst(oldestFirst
+			        || OLDEST_FIRST.equals(selectionPolicyName));
+		}
+		if (selectionPolicy != null)
+		{
+			cleaner.setSelectionPolicy(selectionPolicy);
+		}
+		cleaner.setMeter(meter);
+		cleaner.setSubtreeThreshold(subtreeThreshold);
+		if (quarantineEnabled && attributeService != null)
+		{
+			TrashcanQuarantine quarantine = new TrashcanQuarantine(
+			        attributeService, transactionService,
+			        store.getArchiveStoreUrl());
+			quarantine.setRetryDays(quarantineRetryDays);
+			quarantine.setMeter(meter);
+			cleaner.setQuarantine(quarantine);
+		}
+		if (usage != null && usage.isEnabled() && quotas.isEnabled())
+		{
+			cleaner.setQuotas(usage, quotas);
+		}
+		if (isReclaimingContent())
+		{
+			cleaner.setReclaimer(reclaimer);
+		}
+		cleaner.setRetentionRules(retentionRules);
+		if (fastPurge)
+		{
+			FastNodePurger purger = new FastNodePurger(nodeService, nodeDAO,
+			        dictionaryService, behaviourFilter);
+			purger.setArchivedDateIndex(archivedDateIndex);
+			purger.setUsage(usage);
+			cleaner.setPurger(purger);
+		}
+		return cleaner;
+	}
+
+	/**
+	 * 
+	 * It checks if the content of the purged nodes is freed right after the
+	 * purge by the {@link org.alfresco.trashcan.ContentReclaimer
+	 * ContentReclaimer}.
+	 * 
+	 * @return
+	 */
+	private boolean isReclaimingContent()
+	{
+		return reclaimer != null && reclaimer.isEnabled();
 	}
 
 	/**
 	 * 
-	 * This method instantiates the
-	 * {@link org.alfresco.trashcan.TrashcanCleaner TrashcanCleaner} and calls
-	 * the execution of the <b>clean</b> method inside a transaction.
+	 * This method calls the execution of the <b>clean</b> method of the
+	 * {@link org.alfresco.trashcan.TrashcanCleaner TrashcanCleaner} inside a
+	 * transaction.
+	 * 
+	 * @param cleaner
+	 * @return the number of nodes selected for deletion
 	 */
-	private void cleanInTransaction()
+	private int cleanInTransaction(final TrashcanCleaner cleaner)
 	{
+		RetryingTransactionCallback<Integer> txnWork = new RetryingTransactionCallback<Integer>()
+		{
+			public Integer execute() throws Exception
+			{
+				return cleaner.clean();
+			}
+		};
+		return transactionService.getRetryingTransactionHelper()
+		        .doInTransaction(meter != null ? new RetryCountingCallback<Integer>(
+		                txnWork, meter) : txnWork);
+	}
+
+	/**
+	 * 
+	 * It folds the count and usage deltas written since the last merge into
+	 * the totals of the archive store inside a read write transaction, so they
+	 * do not pile up between verifier runs, and the days emptied by the purge
+	 * are dropped from the archived date index. It runs before and after each
+	 * store is cleaned. A merge already running elsewhere is
+	 * left to finish on its own.
+	 * 
+	 * @param archiveStoreUrl
+	 */
+	private void mergeDeltasInTransaction(final String archiveStoreUrl)
+	{
+		final boolean mergeCounts = archivedDateIndex != null
+		        && archivedDateIndex.isEnabled();
+		final boolean mergeUsage = usage != null && usage.isEnabled();
+		if (!mergeCounts && !mergeUsage)
+			return;
 		RetryingTransactionCallback<Object> txnWork = new RetryingTransactionCallback<Object>()
 		{
 			public Object execute() throws Exception
 			{
-				TrashcanCleaner cleaner = new TrashcanCleaner(nodeService,
-				        deleteBatchCount, daysToKeep);
-				cleaner.clean();
+				if (mergeCounts)
+				{
+					archivedDateIndex.mergeCounts(archiveStoreUrl);
+				}
+				if (mergeUsage)
+				{
+					usage.mergeUsage(archiveStoreUrl);
+				}
 				return null;
 			}
 		};
 		transactionService.getRetryingTransactionHelper().doInTransaction(
-		        txnWork);
+		        txnWork, false);
+	}
+
+	/**
+	 * 
+	 * It checks if the trashcan holds nodes eligible for deletion inside a
+	 * read only transaction.
+	 * 
+	 * @param cleaner
+	 * @return
+	 */
+	private boolean hasEligibleNodesInTransaction(final TrashcanCleaner cleaner)
+	{
+		RetryingTransactionCallback<Boolean> txnWork = new RetryingTransactionCallback<Boolean>()
+		{
+			public Boolean execute() throws Exception
+			{
+				return cleaner.hasEligibleNodes();
+			}
+		};
+		return transactionService.getRetryingTransactionHelper()
+		        .doInTransaction(txnWork, true);
+	}
+
+	/**
+	 * 
+	 * It counts the nodes left in the trashcan inside a read only transaction.
+	 * 
+	 * @param cleaner
+	 * @return
+	 */
+	private long countInTransaction(final TrashcanCleaner cleaner)
+	{
+		RetryingTransactionCallback<Long> txnWork = new RetryingTransactionCallback<Long>()
+		{
+			public Long execute() throws Exception
+			{
+				return cleaner.getNumberOfNodesInTrashcan();
+			}
+		};
+		return transactionService.getRetryingTransactionHelper()
+		        .doInTransaction(txnWork, true);
 	}
 
 	/**
 	 * 
 	 * Extracts the necessary services and configuration for trashcan cleaning:
-	 * <b>trashcan.deleteBatchCount</b> and <b>trashcan.daysToKeep</b>. The
-	 * services needed to be injected are the <b>nodeService</b>,
-	 * <b>transactionService</b> and <b>authenticationComponent</b>. Since iots
-	 * an extension of {@link org.alfresco.schedule.AbstractScheduledLockedJob
-	 * AbstractScheduledLockedJob} it should also receive reference to the
-	 * service {@link org.alfresco.repo.lock.JobLockService jobLockService}.
+	 * <b>trashcan.deleteBatchCount</b>, <b>trashcan.daysToKeep</b>,
+	 * <b>trashcan.pageSize</b>, <b>trashcan.transactionSize</b>,
+	 * <b>trashcan.deleteWorkers</b>, <b>trashcan.maxRunSeconds</b>,
+	 * <b>trashcan.oldestFirst</b>, <b>trashcan.metrics.countTrashcan</b>,
+	 * <b>trashcan.archiveStores</b>, <b>trashcan.shards</b>,
+	 * <b>trashcan.fastPurge</b>, <b>trashcan.subtreeThreshold</b>,
+	 * <b>trashcan.selectionPolicy</b>,
+	 * <b>trashcan.largestFirst.maxDescendants</b>,
+	 * <b>trashcan.quarantine.enabled</b>,
+	 * <b>trashcan.quarantine.retryDays</b>, <b>trashcan.quota.maxNodes</b>,
+	 * <b>trashcan.quota.maxBytes</b> and <b>trashcan.quota.users</b>. The
+	 * services needed to be injected are the
+	 * <b>nodeService</b>, <b>nodeDAO</b>, <b>transactionService</b> and
+	 * <b>authenticationComponent</b>. It should also receive reference to the
+	 * service {@link org.alfresco.repo.lock.JobLockService jobLockService},
+	 * which is used for the
+	 * {@link org.alfresco.trashcan.TrashcanJobLock TrashcanJobLock}.
 	 * 
 	 * @param jobContext
 	 */
@@ -117,10 +735,87 @@ public class TrashcanCleanerJob extends AbstractScheduledLockedJob
 		        .getJobDataMap().get("transactionService");
 		authenticationComponent = (AuthenticationComponent) jobContext
 		        .getJobDetail().getJobDataMap().get("authenticationComponent");
-		daysToKeep = getSetupValue("trashcan.daysToKeep",
-		        TrashcanCleaner.DEFAULT_DAYS_TO_KEEP, jobContext);
-		deleteBatchCount = getSetupValue("trashcan.deleteBatchCount",
-		        TrashcanCleaner.DEFAULT_DELETE_BATCH_COUNT, jobContext);
+		nodeDAO = (NodeDAO) jobContext.getJobDetail().getJobDataMap()
+		        .get("nodeDAO");
+		jobLockService = (JobLockService) jobContext.getJobDetail()
+		        .getJobDataMap().get("jobLockService");
+		batchSizer = (AdaptiveBatchSizer) jobContext.getJobDetail()
+		        .getJobDataMap().get("batchSizer");
+		throttle = (LoadThrottle) jobContext.getJobDetail().getJobDataMap()
+		        .get("throttle");
+		attributeService = (AttributeService) jobContext.getJobDetail()
+		        .getJobDataMap().get("attributeService");
+		archivedDateIndex = (ArchivedDateIndex) jobContext.getJobDetail()
+		        .getJobDataMap().get("archivedDateIndex");
+		ArchiveStoreSettings defaults = new ArchiveStoreSettings(
+		        DEFAULT_ARCHIVE_STORE, getSetupValue("trashcan.daysToKeep",
+		                TrashcanCleaner.DEFAULT_DAYS_TO_KEEP, jobContext),
+		        getSetupValue("trashcan.deleteBatchCount",
+		                TrashcanCleaner.DEFAULT_DELETE_BATCH_COUNT, jobContext),
+		        getSetupValue("trashcan.pageSize",
+		                ArchiveRootPager.DEFAULT_PAGE_SIZE, jobContext),
+		        getSetupValue("trashcan.transactionSize",
+		                TrashcanCleaner.DEFAULT_TRANSACTION_SIZE, jobContext),
+		        getSetupValue("trashcan.deleteWorkers",
+		                TrashcanCleaner.DEFAULT_DELETE_WORKERS, jobContext),
+		        getSetupValue("trashcan.maxRunSeconds",
+		                DEFAULT_MAX_RUN_SECONDS, jobContext));
+		archiveStores = ArchiveStoreSettings.parseList((String) jobContext
+		        .getJobDetail().getJobDataMap().get("trashcan.archiveStores"),
+		        defaults);
+		oldestFirst = Boolean.parseBoolean((String) jobContext.getJobDetail()
+		        .getJobDataMap().get("trashcan.oldestFirst"));
+		selectionPolicyName = (String) jobContext.getJobDetail()
+		        .getJobDataMap().get("trashcan.selectionPolicy");
+		selectionPolicyName = selectionPolicyName != null ? selectionPolicyName
+		        .trim() : "";
+		if (selectionPolicyName.length() > 0
+		        && !OLDEST_FIRST.equals(selectionPolicyName)
+		        && !LARGEST_FIRST.equals(selectionPolicyName))
+			throw new IllegalArgumentException(String.format(
+			        "Unknown selection policy %s", selectionPolicyName));
+		selectionPolicy = (SelectionPolicy) jobContext.getJobDetail()
+		        .getJobDataMap().get("selectionPolicy");
+		dictionaryService = (DictionaryService) jobContext.getJobDetail()
+		        .getJobDataMap().get("dictionaryService");
+		maxDescendants = getSetupValue("trashcan.largestFirst.maxDescendants",
+		        DEFAULT_MAX_DESCENDANTS, jobContext);
+		meter = (TrashcanMeter) jobContext.getJobDetail().getJobDataMap()
+		        .get("meter");
+		countTrashcan = Boolean.parseBoolean((String) jobContext
+		        .getJobDetail().getJobDataMap()
+		        .get("trashcan.metrics.countTrashcan"));
+		shardCount = getSetupValue("trashcan.shards", DEFAULT_SHARDS,
+		        jobContext);
+		behaviourFilter = (BehaviourFilter) jobContext.getJobDetail()
+		        .getJobDataMap().get("behaviourFilter");
+		fastPurge = Boolean.parseBoolean((String) jobContext.getJobDetail()
+		        .getJobDataMap().get("trashcan.fastPurge"));
+		subtreeThreshold = getSetupValue("trashcan.subtreeThreshold",
+		        DEFAULT_SUBTREE_THRESHOLD, jobContext);
+		quarantineEnabled = Boolean.parseBoolean((String) jobContext
+		        .getJobDetail().getJobDataMap()
+		        .get("trashcan.quarantine.enabled"));
+		quarantineRetryDays = getSetupValue("trashcan.quarantine.retryDays",
+		        DEFAULT_QUARANTINE_RETRY_DAYS, jobContext);
+		usage = (TrashcanUsage) jobContext.getJobDetail().getJobDataMap()
+		        .get("usage");
+		reclaimer = (ContentReclaimer) jobContext.getJobDetail()
+		        .getJobDataMap().get("reclaimer");
+		sizeCalculator = (ContentSizeCalculator) jobContext.getJobDetail()
+		        .getJobDataMap().get("sizeCalculator");
+		archivedChildrenDAO = (ArchivedChildrenDAO) jobContext.getJobDetail()
+		        .getJobDataMap().get("archivedChildrenDAO");
+		retentionRules = RetentionRules.parse((String) jobContext
+		        .getJobDetail().getJobDataMap().get("trashcan.retention.rules"),
+		        nodeService, dictionaryService, (NamespaceService) jobContext
+		                .getJobDetail().getJobDataMap().get("namespaceService"),
+		        getSetupValue("trashcan.retention.cacheSize",
+		                RetentionRules.DEFAULT_CACHE_SIZE, jobContext));
+		quotas = TrashcanQuotas.parse((String) jobContext.getJobDetail()
+		        .getJobDataMap().get("trashcan.quota.users"),
+		        getSetupLongValue("trashcan.quota.maxNodes", 0, jobContext),
+		        getSetupLongValue("trashcan.quota.maxBytes", 0, jobContext));
 
 	}
 
@@ -144,4 +839,25 @@ public class TrashcanCleanerJob extends AbstractScheduledLockedJob
 		        .parseInt(parameterValue) : defaultValue;
 	}
 
+	/**
+	 * 
+	 * Extracts the specified parameter value from the
+	 * {@link org.quartz.JobExecutionContext jobContext} as a long, for the
+	 * values that may not fit an int. If it is not specified returns the
+	 * corresponding default value.
+	 * 
+	 * @param parameterName
+	 * @param defaultValue
+	 * @param jobContext
+	 * @return
+	 */
+	private static long getSetupLongValue(String parameterName,
+	        long defaultValue, JobExecutionContext jobContext)
+	{
+		String parameterValue = (String) jobContext.getJobDetail()
+		        .getJobDataMap().get(parameterName);
+		return parameterValue != null && !parameterValue.trim().equals("") ? Long
+		        .parseLong(parameterValue.trim()) : defaultValue;
+	}
+
 }
@@ -0,0 +1,279 @@
+/*
+ * Copyright (C) 2005-2013 Alfresco Software Limited.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+
+ * As a special exception to the terms and conditions of version 2.0 of 
+ * the GPL, you may redistribute this Program in connection with Free/Libre 
+ * and Open Source Software ("FLOSS") applications as described in Alfresco's 
+ * FLOSS exception.  You should have recieved a copy of the text describing 
+ * the FLOSS exception, and it is also available here: 
+ * http://www.alfresco.com/legal/licensing"
+ */
+package org.alfresco.trashcan;
+
+/**
+ * 
+ * The result of a dry run of the trashcan cleaner (see
+ * {@link org.alfresco.trashcan.TrashcanCleaner#estimate(int, double)
+ * estimate}): how many nodes would be purged with the configured
+ * <b>daysToKeep</b>, how much content they hold, how old the trashcan nodes
+ * are and how long purging them would take.
+ * 
+ * The figures are exact when every child of the archive store root was
+ * examined. When only a random sample was examined they are scaled to the
+ * whole trashcan and the low and high values bound them with 95% confidence.
+ * The content size is the one of the archived nodes themselves, not of their
+ * archived children.
+ * 
+ * @author Rui Fernandes
+ * 
+ */
+public class TrashcanEstimate
+{
+
+	private static final long DAY_MILLIS = 1000 * 60 * 60 * 24;
+	private static final double Z_95 = 1.96;
+	private static final int[] AGE_BUCKET_DAYS = { 1, 7, 30, 90, 365 };
+
+	private long now;
+	private boolean sampled;
+	private long population;
+	private long examined;
+	private long eligible;
+	private double eligibleBytes;
+	private double eligibleBytesSquares;
+	private long[] ageCounts = new long[AGE_BUCKET_DAYS.length + 1];
+	private double nodesPerSecond;
+
+	/**
+	 * 
+	 * @param now
+	 *            the time the ages are relative to
+	 * @param sampled
+	 *            if only a sample of the trashcan is examined
+	 */
+	TrashcanEstimate(long now, boolean sampled)
+	{
+		this.now = now;
+		this.sampled = sampled;
+	}
+
+	/**
+	 * 
+	 * It accounts an examined archived node.
+	 * 
+	 * @param archivedTime
+	 * @param contentSize
+	 * @param isEligible
+	 */
+	void addNode(long archivedTime, long contentSize, boolean isEligible)
+	{
+		examined++;
+		long ageDays = (now - archivedTime) / DAY_MILLIS;
+		int bucket = 0;
+		while (bucket < AGE_BUCKET_DAYS.length
+		        && ageDays >= AGE_BUCKET_DAYS[bucket])
+		{
+			bucket++;
+		}
+		ageCounts[bucket]++;
+		if (isEligible)
+		{
+			eligible++;
+			eligibleBytes += contentSize;
+			eligibleBytesSquares += (double) contentSize * contentSize;
+		}
+	}
+
+	/**
+	 * 
+	 * It accounts examined archiveuser nodes, which are never purged.
+	 * 
+	 * @param count
+	 */
+	void addArchiveUsers(int count)
+	{
+		examined += count;
+	}
+
+	void setPopulation(long population)
+	{
+		this.population = population;
+	}
+
+	void setNodesPerSecond(double nodesPerSecond)
+	{
+		this.nodesPerSecond = nodesPerSecond;
+	}
+
+	/**
+	 * 
+	 * If the figures were estimated from a random sample.
+	 * 
+	 * @return
+	 */
+	public boolean isSampled()
+	{
+		return sampled;
+	}
+
+	/**
+	 * 
+	 * The number of children of the archive store root, archiveuser nodes
+	 * included.
+	 * 
+	 * @return
+	 */
+	public long getPopulation()
+	{
+		return population;
+	}
+
+	/**
+	 * 
+	 * The number of children examined, all of them unless sampled.
+	 * 
+	 * @return
+	 */
+	public long getExamined()
+	{
+		return examined;
+	}
+
+	public long getEligible()
+	{
+		return scale(eligible);
+	}
+
+	public long getEligibleLow()
+	{
+		return Math.max(0, Math.round(population
+		        * (proportion() - Z_95 * proportionError())));
+	}
+
+	public long getEligibleHigh()
+	{
+		return Math.min(population, Math.round(population
+		        * (proportion() + Z_95 * proportionError())));
+	}
+
+	/**
+	 * 
+	 * The content size, in bytes, of the nodes that would be purged.
+	 * 
+	 * @return
+	 */
+	public long getEligibleBytes()
+	{
+		return Math.round(population * meanBytes());
+	}
+
+	public long getEligibleBytesLow()
+	{
+		return Math.max(0, Math.round(population
+		        * (meanBytes() - Z_95 * meanBytesError())));
+	}
+
+	public long getEligibleBytesHigh()
+	{
+		return Math.round(population * (meanBytes() + Z_95 * meanBytesError()));
+	}
+
+	/**
+	 * 
+	 * The upper bounds, in days, of the age buckets. The last bucket has no
+	 * bound.
+	 * 
+	 * @return
+	 */
+	public int[] getAgeBucketDays()
+	{
+		return AGE_BUCKET_DAYS.clone();
+	}
+
+	/**
+	 * 
+	 * The number of archived nodes in each age bucket.
+	 * 
+	 * @return
+	 */
+	public long[] getAgeCounts()
+	{
+		long[] counts = new long[ageCounts.length];
+		for (int i = 0; i < counts.length; i++)
+		{
+			counts[i] = scale(ageCounts[i]);
+		}
+		return counts;
+	}
+
+	/**
+	 * 
+	 * The time it would take to purge the eligible nodes at the given delete
+	 * throughput, or -1 if there is no throughput measured yet.
+	 * 
+	 * @return
+	 */
+	public long getProjectedDrainSeconds()
+	{
+		if (nodesPerSecond <= 0)
+			return -1;
+		return Math.round(getEligible() / nodesPerSecond);
+	}
+
+	private long scale(long count)
+	{
+		if (!sampled || examined == 0)
+			return count;
+		return Math.round((double) count * population / examined);
+	}
+
+	private double proportion()
+	{
+		return examined > 0 ? (double) eligible / examined : 0;
+	}
+
+	private double proportionError()
+	{
+		if (!sampled || examined == 0)
+			return 0;
+		double p = proportion();
+		return Math.sqrt(p * (1 - p) / examined * finiteCorrection());
+	}
+
+	private double meanBytes()
+	{
+		return examined > 0 ? eligibleBytes / examined : 0;
+	}
+
+	private double meanBytesError()
+	{
+		if (!sampled || examined < 2)
+			return 0;
+		double mean = meanBytes();
+		double variance = (eligibleBytesSquares / examined - mean * mean)
+		        * examined / (examined - 1);
+		return Math.sqrt(Math.max(0, variance) / examined
+		        * finiteCorrection());
+	}
+
+	private double finiteCorrection()
+	{
+		return population > 1 ? (double) (population - examined)
+		        / (population - 1) : 0;
+	}
+
+}
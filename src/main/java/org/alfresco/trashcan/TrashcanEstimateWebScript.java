@@ -0,0 +1,136 @@
+/*
+ * Copyright (C) 2005-2013 Alfresco Software Limited.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+
+ * As a special exception to the terms and conditions of version 2.0 of 
+ * the GPL, you may redistribute this Program in connection with Free/Libre 
+ * and Open Source Software ("FLOSS") applications as described in Alfresco's 
+ * FLOSS exception.  You should have recieved a copy of the text describing 
+ * the FLOSS exception, and it is also available here: 
+ * http://www.alfresco.com/legal/licensing"
+ */
+package org.alfresco.trashcan;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.alfresco.repo.domain.node.NodeDAO;
+import org.alfresco.service.cmr.repository.NodeService;
+import org.springframework.extensions.webscripts.Cache;
+import org.springframework.extensions.webscripts.DeclarativeWebScript;
+import org.springframework.extensions.webscripts.Status;
+import org.springframework.extensions.webscripts.WebScriptException;
+import org.springframework.extensions.webscripts.WebScriptRequest;
+
+/**
+ * 
+ * The admin web script running a dry run of the trashcan cleaner (see
+ * {@link org.alfresco.trashcan.TrashcanCleaner#estimate(int, double)
+ * estimate}) for a given <b>daysToKeep</b>, by default the configured one.
+ * The drain time is projected from the delete throughput of the last
+ * execution measured by {@link org.alfresco.trashcan.TrashcanMetrics
+ * TrashcanMetrics}.
+ * 
+ * @author Rui Fernandes
+ * 
+ */
+public class TrashcanEstimateWebScript extends DeclarativeWebScript
+{
+
+	private static final String DEFAULT_STORE = "archive://SpacesStore";
+
+	private NodeService nodeService;
+	private NodeDAO nodeDAO;
+	private ArchivedChildrenDAO archivedChildrenDAO;
+	private TrashcanMetrics metrics;
+	private int daysToKeep = TrashcanCleaner.DEFAULT_DAYS_TO_KEEP;
+	private int pageSize = ArchiveRootPager.DEFAULT_PAGE_SIZE;
+
+	public void setNodeService(NodeService nodeService)
+	{
+		this.nodeService = nodeService;
+	}
+
+	public void setNodeDAO(NodeDAO nodeDAO)
+	{
+		this.nodeDAO = nodeDAO;
+	}
+
+	public void setArchivedChildrenDAO(ArchivedChildrenDAO archivedChildrenDAO)
+	{
+		this.archivedChildrenDAO = archivedChildrenDAO;
+	}
+
+	public void setMetrics(TrashcanMetrics metrics)
+	{
+		this.metrics = metrics;
+	}
+
+	public void setDaysToKeep(int daysToKeep)
+	{
+		this.daysToKeep = daysToKeep;
+	}
+
+	public void setPageSize(int pageSize)
+	{
+		this.pageSize = pageSize;
+	}
+
+	@Override
+	protected Map<String, Object> executeImpl(WebScriptRequest req,
+	        Status status, Cache cache)
+	{
+		String store = req.getParameter("store");
+		if (store == null || store.length() == 0)
+		{
+			store = DEFAULT_STORE;
+		}
+		int days = getIntParameter(req, "daysToKeep", daysToKeep);
+		int sample = getIntParameter(req, "sample", 0);
+
+		TrashcanCleaner cleaner = new TrashcanCleaner(nodeService, store,
+		        TrashcanCleaner.DEFAULT_DELETE_BATCH_COUNT, days);
+		cleaner.setNodeDAO(nodeDAO);
+		cleaner.setPageSize(pageSize);
+		cleaner.setArchivedChildrenDAO(archivedChildrenDAO);
+		TrashcanEstimate estimate = cleaner.estimate(sample,
+		        metrics != null ? metrics.getDeleteThroughput() : 0);
+
+		Map<String, Object> model = new HashMap<String, Object>();
+		model.put("store", store);
+		model.put("daysToKeep", days);
+		model.put("estimate", estimate);
+		return model;
+	}
+
+	private int getIntParameter(WebScriptRequest req, String name,
+	        int defaultValue)
+	{
+		String value = req.getParameter(name);
+		if (value == null || value.length() == 0)
+			return defaultValue;
+		try
+		{
+			return Integer.parseInt(value);
+		}
+		catch (NumberFormatException e)
+		{
+			throw new WebScriptException(Status.STATUS_BAD_REQUEST, "Invalid "
+			        + name + ": " + value);
+		}
+	}
+
+}
@@ -0,0 +1,249 @@
+/*
+ * Copyright (C) 2005-2013 Alfresco Software Limited.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+
+ * As a special exception to the terms and conditions of version 2.0 of 
+ * the GPL, you may redistribute this Program in connection with Free/Libre 
+ * and Open Source Software ("FLOSS") applications as described in Alfresco's 
+ * FLOSS exception.  You should have recieved a copy of the text describing 
+ * the FLOSS exception, and it is also available here: 
+ * http://www.alfresco.com/legal/licensing"
+ */
+package org.alfresco.trashcan;
+
+import org.alfresco.repo.lock.JobLockService;
+import org.alfresco.repo.lock.JobLockService.JobLockRefreshCallback;
+import org.alfresco.repo.lock.LockAcquisitionException;
+import org.alfresco.repo.transaction.AlfrescoTransactionSupport;
+import org.alfresco.repo.transaction.TransactionListenerAdapter;
+import org.alfresco.service.namespace.NamespaceService;
+import org.alfresco.service.namespace.QName;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * 
+ * The cluster lock held while the trashcan is being cleaned. It wraps a
+ * {@link org.alfresco.repo.lock.JobLockService JobLockService} lock kept
+ * alive in the background by the service itself, through a
+ * {@link org.alfresco.repo.lock.JobLockService.JobLockRefreshCallback
+ * JobLockRefreshCallback}, until it is released. A batch deleted in a single
+ * long call therefore keeps the lock however long it takes. Once the service
+ * reports the lock as lost it is flagged and the cleaning must stop, which
+ * <b>refresh</b> tells between transactions.
+ * 
+ * A cleaning can also be stopped on purpose with <b>cancel</b>: the lock then
+ * behaves as lost for the cleaner, but it is still released normally.
+ * 
+ * @author Rui Fernandes
+ * 
+ */
+public class TrashcanJobLock
+{
+
+	public static final QName LOCK_QNAME = QName.createQName(
+	        NamespaceService.SYSTEM_MODEL_1_0_URI, "TrashcanCleaner");
+	protected static final long LOCK_TTL = 60000L;
+	private static final String DEFAULT_ARCHIVE_STORE = "archive://SpacesStore";
+
+	private static Log logger = LogFactory.getLog(TrashcanJobLock.class);
+
+	private JobLockService jobLockService;
+	private QName lockQName;
+	private volatile String lockToken;
+	private volatile boolean lost;
+	private volatile boolean cancelled;
+
+	/**
+	 * 
+	 * It will use the default lock name {@link #LOCK_QNAME LOCK_QNAME}.
+	 * 
+	 * @param jobLockService
+	 */
+	public TrashcanJobLock(JobLockService jobLockService)
+	{
+		this(jobLockService, LOCK_QNAME);
+	}
+
+	/**
+	 * 
+	 * @param jobLockService
+	 * @param lockQName
+	 */
+	public TrashcanJobLock(JobLockService jobLockService, QName lockQName)
+	{
+		this.jobLockService = jobLockService;
+		this.lockQName = lockQName;
+	}
+
+	/**
+	 * 
+	 * It returns the name of the lock of an archive store. The default archive
+	 * store uses {@link #LOCK_QNAME LOCK_QNAME}, any other one a lock of its
+	 * own, so different stores can be cleaned at the same time. The names are
+	 * siblings, not children, of {@link #LOCK_QNAME LOCK_QNAME} since the
+	 * {@link org.alfresco.repo.lock.JobLockService JobLockService} locks the
+	 * children of a held lock too.
+	 * 
+	 * @param archiveStoreUrl
+	 * @return
+	 */
+	public static QName getLockQName(String archiveStoreUrl)
+	{
+		if (archiveStoreUrl == null
+		        || DEFAULT_ARCHIVE_STORE.equals(archiveStoreUrl))
+			return LOCK_QNAME;
+		return QName.createQName(NamespaceService.SYSTEM_MODEL_1_0_URI,
+		        LOCK_QNAME.getLocalName() + "-"
+		                + archiveStoreUrl.replaceAll("[^A-Za-z0-9]+", "_"));
+	}
+
+	/**
+	 * 
+	 * It returns the name of another lock of an archive store than the one
+	 * cleaning it, such as the lock merging its counts, so both can be held at
+	 * the same time.
+	 * 
+	 * @param archiveStoreUrl
+	 * @param name
+	 * @return
+	 */
+	public static QName getLockQName(String archiveStoreUrl, String name)
+	{
+		return QName.createQName(NamespaceService.SYSTEM_MODEL_1_0_URI,
+		        LOCK_QNAME.getLocalName() + "-" + name + "-"
+		                + archiveStoreUrl.replaceAll("[^A-Za-z0-9]+", "_"));
+	}
+
+	/**
+	 * 
+	 * It tries to get the lock without waiting for it. Once acquired the lock
+	 * is refreshed in the background until it is released.
+	 * 
+	 * @return true if the lock was acquired
+	 */
+	public synchronized boolean acquire()
+	{
+		try
+		{
+			final String token = jobLockService.getLock(lockQName, LOCK_TTL);
+			lockToken = token;
+			lost = false;
+			jobLockService.refreshLock(token, lockQName, LOCK_TTL,
+			        new JobLockRefreshCallback()
+			        {
+				        public boolean isActive()
+				        {
+					        return token.equals(lockToken);
+				        }
+
+				        public void lockReleased()
+				        {
+					        if (token.equals(lockToken))
+					        {
+						        logger.warn(String.format("Lock %s lost",
+						                lockQName));
+						        lost = true;
+					        }
+				        }
+			        });
+			return true;
+		} catch (LockAcquisitionException e)
+		{
+			if (logger.isDebugEnabled())
+			{
+				logger.debug(String.format("Lock %s not available", lockQName));
+			}
+			return false;
+		}
+	}
+
+	/**
+	 * 
+	 * It checks if the lock is still held and the cleaning may go on. The lock
+	 * itself is refreshed in the background.
+	 * 
+	 * @return false if the lock has been lost, cancelled or released
+	 */
+	public boolean refresh()
+	{
+		return !lost && !cancelled && lockToken != null;
+	}
+
+	/**
+	 * 
+	 * It checks if a refresh of the lock has failed or the cleaning has been
+	 * cancelled.
+	 * 
+	 * @return
+	 */
+	public boolean isLost()
+	{
+		return lost || cancelled;
+	}
+
+	/**
+	 * 
+	 * It stops the cleaning holding the lock at its next refresh, as if the
+	 * lock had been lost.
+	 * 
+	 */
+	public void cancel()
+	{
+		cancelled = true;
+	}
+
+	/**
+	 * 
+	 * It releases the lock if it is still held.
+	 * 
+	 */
+	public synchronized void release()
+	{
+		String token = lockToken;
+		lockToken = null;
+		if (token != null && !lost)
+		{
+			jobLockService.releaseLock(token, lockQName);
+		}
+	}
+
+	/**
+	 * 
+	 * It releases the lock once the current transaction commits or rolls
+	 * back, so no other holder sees the data it protects before the changes
+	 * made under it are committed.
+	 * 
+	 */
+	public void releaseAfterTransaction()
+	{
+		AlfrescoTransactionSupport.bindListener(new TransactionListenerAdapter()
+		{
+			@Override
+			public void afterCommit()
+			{
+				release();
+			}
+
+			@Override
+			public void afterRollback()
+			{
+				release();
+			}
+		});
+	}
+
+}
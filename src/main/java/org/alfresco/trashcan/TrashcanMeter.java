@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2005-2013 Alfresco Software Limited.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+
+ * As a special exception to the terms and conditions of version 2.0 of 
+ * the GPL, you may redistribute this Program in connection with Free/Libre 
+ * and Open Source Software ("FLOSS") applications as described in Alfresco's 
+ * FLOSS exception.  You should have recieved a copy of the text describing 
+ * the FLOSS exception, and it is also available here: 
+ * http://www.alfresco.com/legal/licensing"
+ */
+package org.alfresco.trashcan;
+
+/**
+ * 
+ * A meter receiving the measures of the trashcan cleaner hot paths. The
+ * cleaner reports its counts once per batch selection and once per committed
+ * transaction, never per node, so a meter doesn't add any work to the loops
+ * over the trashcan nodes.
+ * 
+ * Meters are called from the deletion workers concurrently, so
+ * implementations must be thread safe.
+ * 
+ * @author Rui Fernandes
+ * 
+ */
+public interface TrashcanMeter
+{
+
+	/**
+	 * 
+	 * Reports the nodes read from the trashcan to select a batch.
+	 * 
+	 * @param scanned
+	 *            the trashcan nodes read, including the archive users
+	 * @param archiveUsers
+	 *            the archiveuser nodes filtered out
+	 * @param tooYoung
+	 *            the archived nodes skipped as archived less than
+	 *            <b>daysToKeep</b> ago
+	 */
+	void nodesRead(int scanned, int archiveUsers, int tooYoung);
+
+	/**
+	 * 
+	 * Reports the nodes deleted by a committed transaction.
+	 * 
+	 * @param nodes
+	 * @param millis
+	 *            the time taken to delete them
+	 */
+	void nodesDeleted(int nodes, long millis);
+
+	/**
+	 * 
+	 * Reports the bytes of content held by a batch once purged, a lower bound
+	 * of the space the content store cleaner will free.
+	 * 
+	 * @param bytes
+	 */
+	void bytesReclaimed(long bytes);
+
+	/**
+	 * 
+	 * Reports the bytes of orphaned content of the purged nodes deleted from
+	 * the content stores right after the purge (see
+	 * {@link org.alfresco.trashcan.ContentReclaimer ContentReclaimer}).
+	 * 
+	 * @param bytes
+	 */
+	void bytesFreed(long bytes);
+
+	/**
+	 * 
+	 * Reports a transaction retried by the
+	 * {@link org.alfresco.repo.transaction.RetryingTransactionHelper
+	 * RetryingTransactionHelper}.
+	 * 
+	 */
+	void transactionRetried();
+
+	/**
+	 * 
+	 * Reports a delete transaction rolled back by a failure other than a
+	 * retried one.
+	 * 
+	 * @param nodes
+	 *            the nodes the transaction tried to delete
+	 */
+	void deleteFailed(int nodes);
+
+	/**
+	 * 
+	 * Reports an archived node put in quarantine after failing to be deleted
+	 * on its own (see {@link org.alfresco.trashcan.TrashcanQuarantine
+	 * TrashcanQuarantine}).
+	 * 
+	 */
+	void nodeQuarantined();
+
+	/**
+	 * 
+	 * Reports the end of an execution of the job.
+	 * 
+	 * @param millis
+	 *            the duration of the execution
+	 * @param trashcanSize
+	 *            the nodes left in the trashcan, or -1 if not counted
+	 */
+	void runCompleted(long millis, long trashcanSize);
+
+}
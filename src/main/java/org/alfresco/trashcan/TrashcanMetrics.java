@@ -0,0 +1,262 @@
+/*
+ * Copyright (C) 2005-2013 Alfresco Software Limited.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+
+ * As a special exception to the terms and conditions of version 2.0 of 
+ * the GPL, you may redistribute this Program in connection with Free/Libre 
+ * and Open Source Software ("FLOSS") applications as described in Alfresco's 
+ * FLOSS exception.  You should have recieved a copy of the text describing 
+ * the FLOSS exception, and it is also available here: 
+ * http://www.alfresco.com/legal/licensing"
+ */
+package org.alfresco.trashcan;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 
+ * The {@link org.alfresco.trashcan.TrashcanMeter TrashcanMeter} keeping the
+ * trashcan cleaner counters in memory and exposing them as a JMX MBean (see
+ * {@link org.alfresco.trashcan.TrashcanMetricsMBean TrashcanMetricsMBean}).
+ * The delete latency of each transaction is kept in a histogram of fixed
+ * buckets. Updates are lock free so the deletion workers don't contend on
+ * them.
+ * 
+ * @author Rui Fernandes
+ * 
+ */
+public class TrashcanMetrics implements TrashcanMeter, TrashcanMetricsMBean
+{
+
+	private static final long[] LATENCY_BUCKET_MILLIS = { 10, 50, 100, 500,
+	        1000, 5000, 10000, Long.MAX_VALUE };
+
+	private AtomicLong nodesScanned = new AtomicLong();
+	private AtomicLong archiveUsersFiltered = new AtomicLong();
+	private AtomicLong nodesTooYoung = new AtomicLong();
+	private AtomicLong nodesDeleted = new AtomicLong();
+	private AtomicLong bytesReclaimed = new AtomicLong();
+	private AtomicLong bytesFreed = new AtomicLong();
+	private AtomicLong deleteTransactions = new AtomicLong();
+	private AtomicLong transactionRetries = new AtomicLong();
+	private AtomicLong deleteFailures = new AtomicLong();
+	private AtomicLong nodesQuarantined = new AtomicLong();
+	private AtomicLongArray latencyCounts = new AtomicLongArray(
+	        LATENCY_BUCKET_MILLIS.length);
+	private AtomicLong runs = new AtomicLong();
+	private AtomicLong runNodesDeleted = new AtomicLong();
+	private AtomicLong runBytesReclaimed = new AtomicLong();
+	private AtomicLong runBytesFreed = new AtomicLong();
+	private volatile long lastRunMillis;
+	private volatile long lastRunNodesDeleted;
+	private volatile long lastRunBytesReclaimed;
+	private volatile long lastRunBytesFreed;
+	private volatile long trashcanSize = -1;
+	private volatile long lastRunInflow = -1;
+
+	public void nodesRead(int scanned, int archiveUsers, int tooYoung)
+	{
+		nodesScanned.addAndGet(scanned);
+		archiveUsersFiltered.addAndGet(archiveUsers);
+		nodesTooYoung.addAndGet(tooYoung);
+	}
+
+	public void nodesDeleted(int nodes, long millis)
+	{
+		nodesDeleted.addAndGet(nodes);
+		runNodesDeleted.addAndGet(nodes);
+		deleteTransactions.incrementAndGet();
+		int bucket = 0;
+		while (millis > LATENCY_BUCKET_MILLIS[bucket])
+		{
+			bucket++;
+		}
+		latencyCounts.incrementAndGet(bucket);
+	}
+
+	public void bytesReclaimed(long bytes)
+	{
+		bytesReclaimed.addAndGet(bytes);
+		runBytesReclaimed.addAndGet(bytes);
+	}
+
+	public void bytesFreed(long bytes)
+	{
+		bytesFreed.addAndGet(bytes);
+		runBytesFreed.addAndGet(bytes);
+	}
+
+	public void transactionRetried()
+	{
+		transactionRetries.incrementAndGet();
+	}
+
+	public void deleteFailed(int nodes)
+	{
+		deleteFailures.incrementAndGet();
+	}
+
+	public void nodeQuarantined()
+	{
+		nodesQuarantined.incrementAndGet();
+	}
+
+	public synchronized void runCompleted(long millis, long trashcanSize)
+	{
+		long deleted = runNodesDeleted.getAndSet(0);
+		runs.incrementAndGet();
+		lastRunMillis = millis;
+		lastRunNodesDeleted = deleted;
+		lastRunBytesReclaimed = runBytesReclaimed.getAndSet(0);
+		lastRunBytesFreed = runBytesFreed.getAndSet(0);
+		lastRunInflow = this.trashcanSize >= 0 && trashcanSize >= 0 ? trashcanSize
+		        - this.trashcanSize + deleted
+		        : -1;
+		this.trashcanSize = trashcanSize;
+	}
+
+	public long getNodesScanned()
+	{
+		return nodesScanned.get();
+	}
+
+	public long getArchiveUsersFiltered()
+	{
+		return archiveUsersFiltered.get();
+	}
+
+	public long getNodesTooYoung()
+	{
+		return nodesTooYoung.get();
+	}
+
+	public long getNodesDeleted()
+	{
+		return nodesDeleted.get();
+	}
+
+	public long getBytesReclaimed()
+	{
+		return bytesReclaimed.get();
+	}
+
+	public long getBytesFreed()
+	{
+		return bytesFreed.get();
+	}
+
+	public long getDeleteTransactions()
+	{
+		return deleteTransactions.get();
+	}
+
+	public long getTransactionRetries()
+	{
+		return transactionRetries.get();
+	}
+
+	public long getDeleteFailures()
+	{
+		return deleteFailures.get();
+	}
+
+	public long getNodesQuarantined()
+	{
+		return nodesQuarantined.get();
+	}
+
+	public long[] getDeleteLatencyBucketMillis()
+	{
+		return LATENCY_BUCKET_MILLIS.clone();
+	}
+
+	public long[] getDeleteLatencyCounts()
+	{
+		long[] counts = new long[latencyCounts.length()];
+		for (int i = 0; i < counts.length; i++)
+		{
+			counts[i] = latencyCounts.get(i);
+		}
+		return counts;
+	}
+
+	public long getRuns()
+	{
+		return runs.get();
+	}
+
+	public long getLastRunMillis()
+	{
+		return lastRunMillis;
+	}
+
+	public long getLastRunNodesDeleted()
+	{
+		return lastRunNodesDeleted;
+	}
+
+	public long getLastRunBytesReclaimed()
+	{
+		return lastRunBytesReclaimed;
+	}
+
+	public long getLastRunBytesFreed()
+	{
+		return lastRunBytesFreed;
+	}
+
+	public double getDeleteThroughput()
+	{
+		long millis = lastRunMillis;
+		return millis > 0 ? lastRunNodesDeleted * 1000.0 / millis : 0;
+	}
+
+	public long getTrashcanSize()
+	{
+		return trashcanSize;
+	}
+
+	public long getLastRunInflow()
+	{
+		return lastRunInflow;
+	}
+
+	public synchronized void reset()
+	{
+		nodesScanned.set(0);
+		archiveUsersFiltered.set(0);
+		nodesTooYoung.set(0);
+		nodesDeleted.set(0);
+		bytesReclaimed.set(0);
+		bytesFreed.set(0);
+		deleteTransactions.set(0);
+		transactionRetries.set(0);
+		deleteFailures.set(0);
+		nodesQuarantined.set(0);
+		for (int i = 0; i < latencyCounts.length(); i++)
+		{
+			latencyCounts.set(i, 0);
+		}
+		runs.set(0);
+		lastRunMillis = 0;
+		lastRunNodesDeleted = 0;
+		lastRunBytesReclaimed = 0;
+		lastRunBytesFreed = 0;
+		lastRunInflow = -1;
+	}
+
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright (C) 2005-2013 Alfresco Software Limited.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+
+ * As a special exception to the terms and conditions of version 2.0 of 
+ * the GPL, you may redistribute this Program in connection with Free/Libre 
+ * and Open Source Software ("FLOSS") applications as described in Alfresco's 
+ * FLOSS exception.  You should have recieved a copy of the text describing 
+ * the FLOSS exception, and it is also available here: 
+ * http://www.alfresco.com/legal/licensing"
+ */
+package org.alfresco.trashcan;
+
+/**
+ * 
+ * The JMX management interface of
+ * {@link org.alfresco.trashcan.TrashcanMetrics TrashcanMetrics}. The counters
+ * accumulate since the repository started or the last {@link #reset()
+ * reset}.
+ * 
+ * @author Rui Fernandes
+ * 
+ */
+public interface TrashcanMetricsMBean
+{
+
+	long getNodesScanned();
+
+	long getArchiveUsersFiltered();
+
+	long getNodesTooYoung();
+
+	long getNodesDeleted();
+
+	/**
+	 * 
+	 * The bytes of content held by the nodes purged.
+	 * 
+	 * @return
+	 */
+	long getBytesReclaimed();
+
+	/**
+	 * 
+	 * The bytes of orphaned content of the purged nodes deleted from the
+	 * content stores right after the purge, if content reclamation is
+	 * enabled.
+	 * 
+	 * @return
+	 */
+	long getBytesFreed();
+
+	long getDeleteTransactions();
+
+	long getTransactionRetries();
+
+	/**
+	 * 
+	 * The delete transactions rolled back by a failure, including the ones
+	 * run to find the failing nodes.
+	 * 
+	 * @return
+	 */
+	long getDeleteFailures();
+
+	/**
+	 * 
+	 * The archived nodes put in quarantine because they couldn't be deleted.
+	 * 
+	 * @return
+	 */
+	long getNodesQuarantined();
+
+	/**
+	 * 
+	 * The upper bounds, in milliseconds, of the delete transaction latency
+	 * histogram buckets. The last bucket has no bound.
+	 * 
+	 * @return
+	 */
+	long[] getDeleteLatencyBucketMillis();
+
+	/**
+	 * 
+	 * The number of delete transactions on each latency bucket.
+	 * 
+	 * @return
+	 */
+	long[] getDeleteLatencyCounts();
+
+	long getRuns();
+
+	long getLastRunMillis();
+
+	long getLastRunNodesDeleted();
+
+	long getLastRunBytesReclaimed();
+
+	long getLastRunBytesFreed();
+
+	/**
+	 * 
+	 * The nodes deleted per second by the last execution, from start to end,
+	 * or 0 if it deleted none.
+	 * 
+	 * @return
+	 */
+	double getDeleteThroughput();
+
+	/**
+	 * 
+	 * The nodes left in the trashcan at the end of the last execution, or -1
+	 * if unknown.
+	 * 
+	 * @return
+	 */
+	long getTrashcanSize();
+
+	/**
+	 * 
+	 * The nodes archived between the end of the previous execution and the end
+	 * of the last one, estimated from the trashcan sizes and the nodes
+	 * deleted, or -1 if unknown. When it stays above the nodes deleted per
+	 * execution the cleaner is falling behind.
+	 * 
+	 * @return
+	 */
+	long getLastRunInflow();
+
+	void reset();
+
+}
@@ -0,0 +1,347 @@
+/*
+ * Copyright (C) 2005-2013 Alfresco Software Limited.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+
+ * As a special exception to the terms and conditions of version 2.0 of 
+ * the GPL, you may redistribute this Program in connection with Free/Libre 
+ * and Open Source Software ("FLOSS") applications as described in Alfresco's 
+ * FLOSS exception.  You should have recieved a copy of the text describing 
+ * the FLOSS exception, and it is also available here: 
+ * http://www.alfresco.com/legal/licensing"
+ */
+package org.alfresco.trashcan;
+
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 
+ * An on-demand purge of an archive store run by the
+ * {@link org.alfresco.trashcan.TrashcanPurgeService TrashcanPurgeService},
+ * with its parameters and its live progress.
+ * 
+ * <b>daysToKeep</b> overrides the retention of the scheduled job, 0 or
+ * negative purging every archived node. <b>maxNodes</b> is the maximum number
+ * of nodes to purge and <b>maxSeconds</b> the time budget, both without limit
+ * if 0 or negative.
+ * 
+ * It is the {@link org.alfresco.trashcan.TrashcanMeter TrashcanMeter} of the
+ * cleaner running it, so the nodes scanned and deleted are updated as each
+ * batch is selected and each transaction commits. The rate is the nodes
+ * deleted per second since the deletion started, and the time left is
+ * estimated from it and the nodes known to be eligible at the start, when
+ * the {@link org.alfresco.trashcan.ArchivedDateIndex ArchivedDateIndex} or
+ * <b>maxNodes</b> tell how many they are.
+ * 
+ * @author Rui Fernandes
+ * 
+ */
+public class TrashcanPurge implements TrashcanMeter
+{
+
+	/**
+	 * 
+	 * The states of a purge.
+	 * 
+	 */
+	public enum State
+	{
+		WAITING, RUNNING, COMPLETED, CANCELLED, FAILED
+	}
+
+	private String id = UUID.randomUUID().toString();
+	private String archiveStoreUrl;
+	private int daysToKeep;
+	private long maxNodes;
+	private long maxSeconds;
+	private volatile State state = State.WAITING;
+	private volatile boolean cancelled;
+	private volatile TrashcanJobLock jobLock;
+	private volatile long eligible = -1;
+	private long created = System.currentTimeMillis();
+	private volatile long started;
+	private volatile long finished;
+	private volatile String error;
+	private AtomicLong scanned = new AtomicLong();
+	private AtomicLong deleted = new AtomicLong();
+	private AtomicLong bytes = new AtomicLong();
+	private AtomicLong bytesFreed = new AtomicLong();
+
+	/**
+	 * 
+	 * @param archiveStoreUrl
+	 * @param daysToKeep
+	 * @param maxNodes
+	 * @param maxSeconds
+	 */
+	public TrashcanPurge(String archiveStoreUrl, int daysToKeep,
+	        long maxNodes, long maxSeconds)
+	{
+		this.archiveStoreUrl = archiveStoreUrl;
+		this.daysToKeep = daysToKeep;
+		this.maxNodes = maxNodes;
+		this.maxSeconds = maxSeconds;
+	}
+
+	public String getId()
+	{
+		return id;
+	}
+
+	public String getArchiveStoreUrl()
+	{
+		return archiveStoreUrl;
+	}
+
+	public int getDaysToKeep()
+	{
+		return daysToKeep;
+	}
+
+	public long getMaxNodes()
+	{
+		return maxNodes;
+	}
+
+	public long getMaxSeconds()
+	{
+		return maxSeconds;
+	}
+
+	public State getState()
+	{
+		return state;
+	}
+
+	public long getScanned()
+	{
+		return scanned.get();
+	}
+
+	public long getDeleted()
+	{
+		return deleted.get();
+	}
+
+	public long getBytesReclaimed()
+	{
+		return bytes.get();
+	}
+
+	public long getBytesFreed()
+	{
+		return bytesFreed.get();
+	}
+
+	/**
+	 * 
+	 * The number of nodes eligible when the deletion started, -1 if unknown.
+	 * 
+	 * @return
+	 */
+	public long getEligible()
+	{
+		return eligible;
+	}
+
+	public String getError()
+	{
+		return error;
+	}
+
+	/**
+	 * 
+	 * It checks if the purge has finished, whatever the outcome.
+	 * 
+	 * @return
+	 */
+	public boolean isFinished()
+	{
+		return state != State.WAITING && state != State.RUNNING;
+	}
+
+	/**
+	 * 
+	 * The seconds since the purge was requested, or that it took once
+	 * finished.
+	 * 
+	 * @return
+	 */
+	public long getElapsedSeconds()
+	{
+		long end = isFinished() ? finished : System.currentTimeMillis();
+		return (end - created) / 1000;
+	}
+
+	/**
+	 * 
+	 * The nodes deleted per second since the deletion started.
+	 * 
+	 * @return
+	 */
+	public double getRate()
+	{
+		if (started == 0)
+			return 0;
+		long millis = (isFinished() ? finished : System.currentTimeMillis())
+		        - started;
+		return millis > 0 ? deleted.get() * 1000.0 / millis : 0;
+	}
+
+	/**
+	 * 
+	 * The estimated seconds left, -1 if unknown.
+	 * 
+	 * @return
+	 */
+	public long getEtaSeconds()
+	{
+		if (isFinished())
+			return 0;
+		long total = eligible;
+		if (maxNodes > 0)
+		{
+			total = total >= 0 ? Math.min(total, maxNodes) : maxNodes;
+		}
+		double rate = getRate();
+		if (total < 0 || rate <= 0)
+			return -1;
+		long eta = (long) Math.ceil(Math.max(0, total - deleted.get()) / rate);
+		if (maxSeconds > 0)
+		{
+			eta = Math.min(eta, Math.max(0, created / 1000 + maxSeconds
+			        - System.currentTimeMillis() / 1000));
+		}
+		return eta;
+	}
+
+	/**
+	 * 
+	 * It asks the purge to stop. A purge waiting for the lock stops at once,
+	 * a running one once the current transaction commits.
+	 * 
+	 */
+	public void cancel()
+	{
+		cancelled = true;
+		TrashcanJobLock lock = jobLock;
+		if (lock != null)
+		{
+			lock.cancel();
+		}
+	}
+
+	public boolean isCancelled()
+	{
+		return cancelled;
+	}
+
+	/**
+	 * 
+	 * It checks if the time budget has run out.
+	 * 
+	 * @return
+	 */
+	public boolean isOverBudget()
+	{
+		return maxSeconds > 0
+		        && System.currentTimeMillis() >= created + maxSeconds * 1000;
+	}
+
+	/**
+	 * 
+	 * The nodes still to purge within <b>maxNodes</b>, or Long.MAX_VALUE
+	 * without limit.
+	 * 
+	 * @param selected
+	 *            the nodes selected so far
+	 * @return
+	 */
+	public long getRemaining(long selected)
+	{
+		return maxNodes > 0 ? Math.max(0, maxNodes - selected)
+		        : Long.MAX_VALUE;
+	}
+
+	void setJobLock(TrashcanJobLock jobLock)
+	{
+		this.jobLock = jobLock;
+		if (cancelled && jobLock != null)
+		{
+			jobLock.cancel();
+		}
+	}
+
+	void started(long eligible)
+	{
+		if (started == 0)
+		{
+			this.eligible = eligible;
+			started = System.currentTimeMillis();
+		}
+		state = State.RUNNING;
+	}
+
+	void finished(State state, String error)
+	{
+		this.error = error;
+		this.finished = System.currentTimeMillis();
+		this.state = state;
+	}
+
+	public void nodesRead(int scanned, int archiveUsers, int tooYoung)
+	{
+		this.scanned.addAndGet(scanned);
+	}
+
+	public void nodesDeleted(int nodes, long millis)
+	{
+		deleted.addAndGet(nodes);
+	}
+
+	public void bytesReclaimed(long bytes)
+	{
+		this.bytes.addAndGet(bytes);
+	}
+
+	public void bytesFreed(long bytes)
+	{
+		bytesFreed.addAndGet(bytes);
+	}
+
+	public void transactionRetried()
+	{
+	}
+
+	public void deleteFailed(int nodes)
+	{
+	}
+
+	public void nodeQuarantined()
+	{
+	}
+
+	public void runCompleted(long millis, long trashcanSize)
+	{
+	}
+
+	@Override
+	public String toString()
+	{
+		return String.format("purge %s of %s", id, archiveStoreUrl);
+	}
+
+}
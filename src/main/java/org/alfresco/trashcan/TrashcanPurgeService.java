@@ -0,0 +1,540 @@
+/*
+ * Copyright (C) 2005-2013 Alfresco Software Limited.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+
+ * As a special exception to the terms and conditions of version 2.0 of 
+ * the GPL, you may redistribute this Program in connection with Free/Libre 
+ * and Open Source Software ("FLOSS") applications as described in Alfresco's 
+ * FLOSS exception.  You should have recieved a copy of the text describing 
+ * the FLOSS exception, and it is also available here: 
+ * http://www.alfresco.com/legal/licensing"
+ */
+package org.alfresco.trashcan;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.alfresco.repo.domain.node.NodeDAO;
+import org.alfresco.repo.lock.JobLockService;
+import org.alfresco.repo.security.authentication.AuthenticationUtil;
+import org.alfresco.repo.security.authentication.AuthenticationUtil.RunAsWork;
+import org.alfresco.repo.transaction.RetryingTransactionHelper.RetryingTransactionCallback;
+import org.alfresco.service.cmr.attributes.AttributeService;
+import org.alfresco.service.cmr.dictionary.DictionaryService;
+import org.alfresco.service.cmr.repository.NodeService;
+import org.alfresco.service.namespace.NamespaceService;
+import org.alfresco.service.transaction.TransactionService;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * 
+ * It runs {@link org.alfresco.trashcan.TrashcanPurge TrashcanPurge}s on
+ * demand, each one in a background thread of its own, and keeps them so
+ * their progress can be followed and they can be cancelled.
+ * 
+ * A purge takes the same {@link org.alfresco.trashcan.TrashcanJobLock
+ * TrashcanJobLock} as the {@link org.alfresco.trashcan.TrashcanCleanerJob
+ * TrashcanCleanerJob}: the lock of the archive store, or the lock of each
+ * shard in turn if <b>shards</b> is greater than 1. It waits for the lock
+ * while the job holds it, so they never delete from the same store or shard
+ * at the same time. Then it cleans batch after batch of at most
+ * <b>deleteBatchCount</b> nodes, committing every <b>transactionSize</b>
+ * nodes, until no eligible node is left or it reaches <b>maxNodes</b>, its
+ * time budget or is cancelled. The nodes are deleted with the
+ * <b>throttle</b> of the job and counted by its <b>meter</b> too. With an
+ * enabled <b>reclaimer</b> the content of each batch is freed once purged.
+ * 
+ * The <b>retentionRules</b> of the job apply as well, compiled once by
+ * <b>init</b>: the purge's <b>daysToKeep</b> only replaces the global one, so
+ * the items matching a rule are still kept for the days of that rule.
+ * 
+ * The purges are only known to the cluster member running them, which keeps
+ * the last <b>maxFinished</b> finished ones.
+ * 
+ * @author Rui Fernandes
+ * 
+ */
+public class TrashcanPurgeService
+{
+
+	protected static final int DEFAULT_TRANSACTION_SIZE = 100;
+	protected static final int DEFAULT_MAX_FINISHED = 20;
+	private static final long LOCK_WAIT_MILLIS = 5000L;
+
+	private static Log logger = LogFactory.getLog(TrashcanPurgeService.class);
+
+	private NodeService nodeService;
+	private NodeDAO nodeDAO;
+	private TransactionService transactionService;
+	private JobLockService jobLockService;
+	private AttributeService attributeService;
+	private ArchivedDateIndex archivedDateIndex;
+	private ArchivedChildrenDAO archivedChildrenDAO;
+	private TrashcanMeter meter;
+	private LoadThrottle throttle;
+	private ContentReclaimer reclaimer;
+	private DictionaryService dictionaryService;
+	private NamespaceService namespaceService;
+	private String retentionRules;
+	private int retentionCacheSize = RetentionRules.DEFAULT_CACHE_SIZE;
+	private RetentionRules compiledRules;
+	private int pageSize = ArchiveRootPager.DEFAULT_PAGE_SIZE;
+	private int transactionSize = DEFAULT_TRANSACTION_SIZE;
+	private int deleteBatchCount = TrashcanCleaner.DEFAULT_DELETE_BATCH_COUNT;
+	private int shardCount;
+	private int maxFinished = DEFAULT_MAX_FINISHED;
+	private Map<String, TrashcanPurge> purges = new LinkedHashMap<String, TrashcanPurge>();
+	private ExecutorService executor = Executors
+	        .newCachedThreadPool(new ThreadFactory()
+	        {
+		        private AtomicInteger threads = new AtomicInteger();
+
+		        public Thread newThread(Runnable runnable)
+		        {
+			        Thread thread = new Thread(runnable, "TrashcanPurge-"
+			                + threads.incrementAndGet());
+			        thread.setDaemon(true);
+			        return thread;
+		        }
+	        });
+
+	public void setNodeService(NodeService nodeService)
+	{
+		this.nodeService = nodeService;
+	}
+
+	public void setNodeDAO(NodeDAO nodeDAO)
+	{
+		this.nodeDAO = nodeDAO;
+	}
+
+	public void setTransactionService(TransactionService transactionService)
+	{
+		this.transactionService = transactionService;
+	}
+
+	public void setJobLockService(JobLockService jobLockService)
+	{
+		this.jobLockService = jobLockService;
+	}
+
+	public void setAttributeService(AttributeService attributeService)
+	{
+		this.attributeService = attributeService;
+	}
+
+	public void setArchivedDateIndex(ArchivedDateIndex archivedDateIndex)
+	{
+		this.archivedDateIndex = archivedDateIndex;
+	}
+
+	public void setArchivedChildrenDAO(ArchivedChildrenDAO archivedChildrenDAO)
+	{
+		this.archivedChildrenDAO = archivedChildrenDAO;
+	}
+
+	public void setMeter(TrashcanMeter meter)
+	{
+		this.meter = meter;
+	}
+
+	public void setThrottle(LoadThrottle throttle)
+	{
+		this.throttle = throttle;
+	}
+
+	public void setReclaimer(ContentReclaimer reclaimer)
+	{
+		this.reclaimer = reclaimer;
+	}
+
+	public void setDictionaryService(DictionaryService dictionaryService)
+	{
+		this.dictionaryService = dictionaryService;
+	}
+
+	public void setNamespaceService(NamespaceService namespaceService)
+	{
+		this.namespaceService = namespaceService;
+	}
+
+	/**
+	 * 
+	 * The retention rules, in the format of <b>trashcan.retention.rules</b>
+	 * (see {@link org.alfresco.trashcan.RetentionRules RetentionRules}).
+	 * 
+	 * @param retentionRules
+	 */
+	public void setRetentionRules(String retentionRules)
+	{
+		this.retentionRules = retentionRules;
+	}
+
+	public void setRetentionCacheSize(int retentionCacheSize)
+	{
+		this.retentionCacheSize = retentionCacheSize;
+	}
+
+	public void setPageSize(int pageSize)
+	{
+		this.pageSize = pageSize;
+	}
+
+	/**
+	 * 
+	 * The nodes deleted per transaction, the default if 0 or negative: a
+	 * purge always commits as it goes so its progress can be followed.
+	 * 
+	 * @param transactionSize
+	 */
+	public void setTransactionSize(int transactionSize)
+	{
+		this.transactionSize = transactionSize > 0 ? transactionSize
+		        : DEFAULT_TRANSACTION_SIZE;
+	}
+
+	public void setDeleteBatchCount(int deleteBatchCount)
+	{
+		this.deleteBatchCount = deleteBatchCount;
+	}
+
+	public void setShards(int shardCount)
+	{
+		this.shardCount = shardCount;
+	}
+
+	public void setMaxFinished(int maxFinished)
+	{
+		this.maxFinished = maxFinished;
+	}
+
+	/**
+	 * 
+	 * It compiles the retention rules, when the application context starts.
+	 * 
+	 * @throws IllegalArgumentException
+	 *             if a rule is not valid
+	 */
+	public void init()
+	{
+		RetentionRules rules = RetentionRules.parse(retentionRules,
+		        nodeService, dictionaryService, namespaceService,
+		        retentionCacheSize);
+		compiledRules = rules.isEnabled() ? rules : null;
+	}
+
+	/**
+	 * 
+	 * It starts a purge of the archive store in the background.
+	 * 
+	 * @param archiveStoreUrl
+	 * @param daysToKeep
+	 * @param maxNodes
+	 * @param maxSeconds
+	 * @return the purge started
+	 */
+	public TrashcanPurge start(String archiveStoreUrl, int daysToKeep,
+	        long maxNodes, long maxSeconds)
+	{
+		final TrashcanPurge purge = new TrashcanPurge(archiveStoreUrl,
+		        daysToKeep, maxNodes, maxSeconds);
+		synchronized (purges)
+		{
+			pruneFinished();
+			purges.put(purge.getId(), purge);
+		}
+		executor.execute(new Runnable()
+		{
+			public void run()
+			{
+				AuthenticationUtil.runAsSystem(new RunAsWork<Object>()
+				{
+					public Object doWork() throws Exception
+					{
+						TrashcanPurgeService.this.run(purge);
+						return null;
+					}
+				});
+			}
+		});
+		logger.info(String.format("Started %s, daysToKeep %s, maxNodes %s, "
+		        + "maxSeconds %s", purge, daysToKeep, maxNodes, maxSeconds));
+		return purge;
+	}
+
+	/**
+	 * 
+	 * @param id
+	 * @return the purge, or null if unknown
+	 */
+	public TrashcanPurge getPurge(String id)
+	{
+		synchronized (purges)
+		{
+			return purges.get(id);
+		}
+	}
+
+	/**
+	 * 
+	 * The purges running, waiting and last finished, oldest first.
+	 * 
+	 * @return
+	 */
+	public List<TrashcanPurge> getPurges()
+	{
+		synchronized (purges)
+		{
+			return new ArrayList<TrashcanPurge>(purges.values());
+		}
+	}
+
+	/**
+	 * 
+	 * It cancels the purge.
+	 * 
+	 * @param id
+	 * @return the purge cancelled, or null if unknown
+	 */
+	public TrashcanPurge cancel(String id)
+	{
+		TrashcanPurge purge = getPurge(id);
+		if (purge != null && !purge.isFinished())
+		{
+			purge.cancel();
+			logger.info(String.format("Cancelling %s", purge));
+		}
+		return purge;
+	}
+
+	/**
+	 * 
+	 * It cancels the purges in progress and stops the threads, when the
+	 * application context is closed.
+	 * 
+	 */
+	public void destroy()
+	{
+		for (TrashcanPurge purge : getPurges())
+		{
+			if (!purge.isFinished())
+			{
+				purge.cancel();
+			}
+		}
+		executor.shutdown();
+	}
+
+	private void pruneFinished()
+	{
+		int finished = 0;
+		for (TrashcanPurge purge : purges.values())
+		{
+			if (purge.isFinished())
+				finished++;
+		}
+		Iterator<TrashcanPurge> iterator = purges.values().iterator();
+		while (finished >= maxFinished && iterator.hasNext())
+		{
+			if (iterator.next().isFinished())
+			{
+				iterator.remove();
+				finished--;
+			}
+		}
+	}
+
+	private void run(TrashcanPurge purge)
+	{
+		try
+		{
+			long selected = 0;
+			if (shardCount > 1)
+			{
+				for (int i = 0; i < shardCount && !isDone(purge, selected); i++)
+				{
+					selected += purgeShard(purge,
+					        new TrashcanShard(i, shardCount), selected);
+				}
+			}
+			else
+			{
+				selected = purgeShard(purge, null, 0);
+			}
+			purge.finished(purge.isCancelled() ? TrashcanPurge.State.CANCELLED
+			        : TrashcanPurge.State.COMPLETED, null);
+			logger.info(String.format(
+			        "Finished %s: %s, %s nodes deleted in %s s", purge,
+			        purge.getState(), purge.getDeleted(),
+			        purge.getElapsedSeconds()));
+		} catch (Throwable e)
+		{
+			logger.error(String.format("Failed %s", purge), e);
+			purge.finished(TrashcanPurge.State.FAILED, String.valueOf(e));
+		}
+	}
+
+	private boolean isDone(TrashcanPurge purge, long selected)
+	{
+		return purge.isCancelled() || purge.isOverBudget()
+		        || purge.getRemaining(selected) == 0;
+	}
+
+	/**
+	 * 
+	 * It purges a shard of the archive store, or the whole store if
+	 * <b>shard</b> is null, once its lock is acquired.
+	 * 
+	 * @param purge
+	 * @param shard
+	 * @param selected
+	 *            the nodes selected by the purge so far
+	 * @return the nodes selected in the shard
+	 * @throws InterruptedException
+	 */
+	private long purgeShard(TrashcanPurge purge, TrashcanShard shard,
+	        long selected) throws InterruptedException
+	{
+		String archiveStoreUrl = purge.getArchiveStoreUrl();
+		TrashcanJobLock jobLock = new TrashcanJobLock(jobLockService,
+		        shard != null ? shard.getLockQName(archiveStoreUrl)
+		                : TrashcanJobLock.getLockQName(archiveStoreUrl));
+		while (!jobLock.acquire())
+		{
+			if (isDone(purge, selected))
+				return 0;
+			if (logger.isDebugEnabled())
+			{
+				logger.debug(String.format("%s waiting for the lock of %s",
+				        purge, shard != null ? shard : archiveStoreUrl));
+			}
+			Thread.sleep(LOCK_WAIT_MILLIS);
+		}
+		purge.setJobLock(jobLock);
+		try
+		{
+			purge.started(countEligible(purge));
+			TrashcanCleaner cleaner = createCleaner(purge, jobLock);
+			cleaner.setShard(shard);
+			long shardSelected = 0;
+			try
+			{
+				while (!isDone(purge, selected + shardSelected)
+				        && jobLock.refresh())
+				{
+					int batchCount = (int) Math.min(deleteBatchCount,
+					        purge.getRemaining(selected + shardSelected));
+					cleaner.setDeleteBatchCount(batchCount);
+					int batchSize = cleaner.clean();
+					shardSelected += batchSize;
+					if (isReclaimingContent())
+					{
+						purge.bytesFreed(reclaimer.reclaim());
+					}
+					if (batchSize < batchCount)
+						break;
+				}
+			} finally
+			{
+				cleaner.shutdown();
+			}
+			return shardSelected;
+		} finally
+		{
+			purge.setJobLock(null);
+			jobLock.release();
+		}
+	}
+
+	/**
+	 * 
+	 * The nodes eligible in the whole archive store according to the
+	 * {@link org.alfresco.trashcan.ArchivedDateIndex ArchivedDateIndex}, -1 if
+	 * it isn't enabled. With retention rules it is the nodes older than the
+	 * latest cutoff of them all, so it may count some that are kept.
+	 * 
+	 * @param purge
+	 * @return
+	 */
+	private long countEligible(final TrashcanPurge purge)
+	{
+		if (archivedDateIndex == null || !archivedDateIndex.isEnabled())
+			return -1;
+		return transactionService.getRetryingTransactionHelper()
+		        .doInTransaction(new RetryingTransactionCallback<Long>()
+		        {
+			        public Long execute() throws Throwable
+			        {
+				        long cutoff = newFilter(purge).getCutoff();
+				        return archivedDateIndex.count(
+				                purge.getArchiveStoreUrl(), cutoff);
+			        }
+		        }, true);
+	}
+
+	private ArchivedDateFilter newFilter(TrashcanPurge purge)
+	{
+		return compiledRules != null ? new RetentionFilter(nodeService, purge
+		        .getDaysToKeep(), compiledRules) : new ArchivedDateFilter(
+		        nodeService, purge.getDaysToKeep());
+	}
+
+	private TrashcanCleaner createCleaner(TrashcanPurge purge,
+	        TrashcanJobLock jobLock)
+	{
+		TrashcanCleaner cleaner = new TrashcanCleaner(nodeService,
+		        purge.getArchiveStoreUrl(), deleteBatchCount,
+		        purge.getDaysToKeep());
+		cleaner.setNodeDAO(nodeDAO);
+		cleaner.setPageSize(pageSize);
+		cleaner.setTransactionService(transactionService);
+		cleaner.setTransactionSize(transactionSize);
+		cleaner.setJobLock(jobLock);
+		cleaner.setThrottle(throttle);
+		cleaner.setAttributeService(attributeService);
+		cleaner.setArchivedDateIndex(archivedDateIndex);
+		cleaner.setArchivedChildrenDAO(archivedChildrenDAO);
+		cleaner.setRetentionRules(compiledRules);
+		if (isReclaimingContent())
+		{
+			cleaner.setReclaimer(reclaimer);
+		}
+		List<TrashcanMeter> meters = new ArrayList<TrashcanMeter>();
+		meters.add(purge);
+		if (meter != null)
+		{
+			meters.add(meter);
+		}
+		CompositeTrashcanMeter compositeMeter = new CompositeTrashcanMeter();
+		compositeMeter.setMeters(meters);
+		cleaner.setMeter(compositeMeter);
+		return cleaner;
+	}
+
+	private boolean isReclaimingContent()
+	{
+		return reclaimer != null && reclaimer.isEnabled();
+	}
+
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright (C) 2005-2013 Alfresco Software Limited.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+
+ * As a special exception to the terms and conditions of version 2.0 of 
+ * the GPL, you may redistribute this Program in connection with Free/Libre 
+ * and Open Source Software ("FLOSS") applications as described in Alfresco's 
+ * FLOSS exception.  You should have recieved a copy of the text describing 
+ * the FLOSS exception, and it is also available here: 
+ * http://www.alfresco.com/legal/licensing"
+ */
+package org.alfresco.trashcan;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.springframework.extensions.webscripts.Cache;
+import org.springframework.extensions.webscripts.DeclarativeWebScript;
+import org.springframework.extensions.webscripts.Status;
+import org.springframework.extensions.webscripts.WebScriptException;
+import org.springframework.extensions.webscripts.WebScriptRequest;
+
+/**
+ * 
+ * The admin web scripts of the on-demand purges run by the
+ * {@link org.alfresco.trashcan.TrashcanPurgeService TrashcanPurgeService}.
+ * POST starts a purge of the archive <b>store</b> for a given
+ * <b>daysToKeep</b>, by default the configured one, with an optional
+ * <b>maxNodes</b> and <b>maxSeconds</b>, and returns it with its id. GET
+ * returns the progress of the purge with the given <b>id</b>, or of every
+ * purge known without one. DELETE cancels the purge with the given <b>id</b>.
+ * 
+ * @author Rui Fernandes
+ * 
+ */
+public class TrashcanPurgeWebScript extends DeclarativeWebScript
+{
+
+	private static final String DEFAULT_STORE = "archive://SpacesStore";
+
+	private TrashcanPurgeService purgeService;
+	private int daysToKeep = TrashcanCleaner.DEFAULT_DAYS_TO_KEEP;
+
+	public void setPurgeService(TrashcanPurgeService purgeService)
+	{
+		this.purgeService = purgeService;
+	}
+
+	public void setDaysToKeep(int daysToKeep)
+	{
+		this.daysToKeep = daysToKeep;
+	}
+
+	@Override
+	protected Map<String, Object> executeImpl(WebScriptRequest req,
+	        Status status, Cache cache)
+	{
+		String method = req.getServiceMatch().getWebScript().getDescription()
+		        .getMethod();
+		Map<String, Object> model = new HashMap<String, Object>();
+		if (method.equals("POST"))
+		{
+			String store = req.getParameter("store");
+			if (store == null || store.length() == 0)
+			{
+				store = DEFAULT_STORE;
+			}
+			model.put("purge", purgeService.start(store,
+			        getIntParameter(req, "daysToKeep", daysToKeep),
+			        getLongParameter(req, "maxNodes", 0),
+			        getLongParameter(req, "maxSeconds", 0)));
+			status.setCode(Status.STATUS_ACCEPTED);
+		}
+		else
+		{
+			String id = req.getParameter("id");
+			if (id == null || id.length() == 0)
+			{
+				if (method.equals("DELETE"))
+					throw new WebScriptException(Status.STATUS_BAD_REQUEST,
+					        "Missing id");
+				model.put("purges", purgeService.getPurges());
+				return model;
+			}
+			TrashcanPurge purge = method.equals("DELETE") ? purgeService
+			        .cancel(id) : purgeService.getPurge(id);
+			if (purge == null)
+				throw new WebScriptException(Status.STATUS_NOT_FOUND,
+				        "Unknown purge: " + id);
+			model.put("purge", purge);
+		}
+		return model;
+	}
+
+	private int getIntParameter(WebScriptRequest req, String name,
+	        int defaultValue)
+	{
+		long value = getLongParameter(req, name, defaultValue);
+		if (value < Integer.MIN_VALUE || value > Integer.MAX_VALUE)
+			throw new WebScriptException(Status.STATUS_BAD_REQUEST, "Invalid "
+			        + name + ": " + value);
+		return (int) value;
+	}
+
+	private long getLongParameter(WebScriptRequest req, String name,
+	        long defaultValue)
+	{
+		String value = req.getParameter(name);
+		if (value == null || value.length() == 0)
+			return defaultValue;
+		try
+		{
+			return Long.parseLong(value);
+		}
+		catch (NumberFormatException e)
+		{
+			throw new WebScriptException(Status.STATUS_BAD_REQUEST, "Invalid "
+			        + name + ": " + value);
+		}
+	}
+
+}
@@ -0,0 +1,351 @@
+/*
+ * Copyright (C) 2005-2013 Alfresco Software Limited.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+
+ * As a special exception to the terms and conditions of version 2.0 of 
+ * the GPL, you may redistribute this Program in connection with Free/Libre 
+ * and Open Source Software ("FLOSS") applications as described in Alfresco's 
+ * FLOSS exception.  You should have recieved a copy of the text describing 
+ * the FLOSS exception, and it is also available here: 
+ * http://www.alfresco.com/legal/licensing"
+ */
+package org.alfresco.trashcan;
+
+import java.io.Serializable;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.alfresco.repo.transaction.RetryingTransactionHelper.RetryingTransactionCallback;
+import org.alfresco.service.cmr.attributes.AttributeService;
+import org.alfresco.service.cmr.attributes.AttributeService.AttributeQueryCallback;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.transaction.TransactionService;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * 
+ * The archived nodes of an archive store that couldn't be deleted, kept in
+ * the {@link org.alfresco.service.cmr.attributes.AttributeService
+ * AttributeService} with the last error and the number of attempts, so one
+ * node failing on every purge doesn't roll back its whole batch again and
+ * again.
+ * 
+ * The <b>delete</b> method deletes a list of nodes in a new transaction. If
+ * it fails, the list is split in halves, each deleted in a transaction of its
+ * own, and so on until the failing nodes are left alone and quarantined.
+ * Finding k failing nodes among n takes about 2k log(n) transactions, and the
+ * other nodes are deleted on the way.
+ * 
+ * Once <b>load</b>ed, checking a node with <b>isQuarantined</b> is a lookup
+ * in memory, so the batch selection skips the quarantined nodes without
+ * loading them. A quarantined node is tried again once <b>retryDays</b> have
+ * passed since its last failure, never if it is 0 or negative; it leaves the
+ * quarantine when it is finally deleted.
+ * 
+ * @author Rui Fernandes
+ * 
+ */
+public class TrashcanQuarantine
+{
+
+	protected static final String QUARANTINE_KEY = ".trashcanCleaner.quarantine";
+	protected static final String ATTEMPTS = "attempts";
+	protected static final String ERROR = "error";
+	protected static final String TIME = "time";
+	private static final long DAY_MILLIS = 1000L * 60 * 60 * 24;
+	private static final int MAX_ERROR_LENGTH = 1000;
+
+	private static Log logger = LogFactory.getLog(TrashcanQuarantine.class);
+
+	private AttributeService attributeService;
+	private TransactionService transactionService;
+	private String archiveStoreUrl;
+	private int retryDays;
+	private TrashcanMeter meter = new CompositeTrashcanMeter();
+	private Set<String> quarantined = new HashSet<String>();
+	private Set<String> retried = new HashSet<String>();
+
+	/**
+	 * 
+	 * The deletion of a list of nodes in the current transaction.
+	 * 
+	 */
+	public interface Deletion
+	{
+		/**
+		 * 
+		 * Deletes the nodes.
+		 * 
+		 * @param nodes
+		 * @return the number of nodes deleted
+		 */
+		int delete(List<NodeRef> nodes);
+	}
+
+	/**
+	 * 
+	 * @param attributeService
+	 * @param transactionService
+	 * @param archiveStoreUrl
+	 */
+	public TrashcanQuarantine(AttributeService attributeService,
+	        TransactionService transactionService, String archiveStoreUrl)
+	{
+		this.attributeService = attributeService;
+		this.transactionService = transactionService;
+		this.archiveStoreUrl = archiveStoreUrl;
+	}
+
+	public void setRetryDays(int retryDays)
+	{
+		this.retryDays = retryDays;
+	}
+
+	public void setMeter(TrashcanMeter meter)
+	{
+		if (meter != null)
+			this.meter = meter;
+	}
+
+	/**
+	 * 
+	 * It reads the quarantined nodes of the archive store, telling apart the
+	 * ones due to be tried again.
+	 * 
+	 */
+	public synchronized void load()
+	{
+		final long retryBefore = retryDays > 0 ? System.currentTimeMillis()
+		        - retryDays * DAY_MILLIS : Long.MIN_VALUE;
+		final Set<String> loaded = new HashSet<String>();
+		final Set<String> due = new HashSet<String>();
+		attributeService.getAttributes(new AttributeQueryCallback()
+		{
+			@SuppressWarnings("unchecked")
+			public boolean handleAttribute(Long id, Serializable value,
+			        Serializable[] keys)
+			{
+				Long time = (Long) ((Map<String, Serializable>) value)
+				        .get(TIME);
+				if (time != null && time.longValue() < retryBefore)
+				{
+					due.add((String) keys[2]);
+				}
+				else
+				{
+					loaded.add((String) keys[2]);
+				}
+				return true;
+			}
+		}, QUARANTINE_KEY, archiveStoreUrl);
+		quarantined = loaded;
+		retried = due;
+	}
+
+	/**
+	 * 
+	 * It checks if the node is quarantined and not yet due to be tried again,
+	 * as of the last <b>load</b>.
+	 * 
+	 * @param node
+	 * @return
+	 */
+	public synchronized boolean isQuarantined(NodeRef node)
+	{
+		return quarantined.contains(node.getId());
+	}
+
+	/**
+	 * 
+	 * The number of nodes quarantined as of the last <b>load</b>, including
+	 * the ones due to be tried again.
+	 * 
+	 * @return
+	 */
+	public synchronized int size()
+	{
+		return quarantined.size() + retried.size();
+	}
+
+	/**
+	 * 
+	 * It returns the quarantine entry of a node, with its <b>attempts</b>,
+	 * last <b>error</b> and <b>time</b> of the last failure, or null if it
+	 * isn't quarantined.
+	 * 
+	 * @param node
+	 * @return
+	 */
+	@SuppressWarnings("unchecked")
+	public Map<String, Serializable> getEntry(NodeRef node)
+	{
+		return (Map<String, Serializable>) attributeService.getAttribute(
+		        QUARANTINE_KEY, archiveStoreUrl, node.getId());
+	}
+
+	/**
+	 * 
+	 * It quarantines the node, or counts one more attempt if it already is.
+	 * 
+	 * @param node
+	 * @param error
+	 */
+	public void add(NodeRef node, Throwable error)
+	{
+		Map<String, Serializable> entry = getEntry(node);
+		int attempts = entry != null ? (Integer) entry.get(ATTEMPTS) : 0;
+		HashMap<String, Serializable> updated = new HashMap<String, Serializable>();
+		updated.put(ATTEMPTS, Integer.valueOf(attempts + 1));
+		updated.put(ERROR, truncate(String.valueOf(error)));
+		updated.put(TIME, Long.valueOf(System.currentTimeMillis()));
+		attributeService.setAttribute(updated, QUARANTINE_KEY, archiveStoreUrl,
+		        node.getId());
+		synchronized (this)
+		{
+			retried.remove(node.getId());
+			quarantined.add(node.getId());
+		}
+	}
+
+	/**
+	 * 
+	 * It takes the node out of the quarantine.
+	 * 
+	 * @param node
+	 */
+	public void release(NodeRef node)
+	{
+		attributeService.removeAttribute(QUARANTINE_KEY, archiveStoreUrl,
+		        node.getId());
+		synchronized (this)
+		{
+			quarantined.remove(node.getId());
+			retried.remove(node.getId());
+		}
+	}
+
+	/**
+	 * 
+	 * It deletes the nodes in a new transaction, splitting them in halves on
+	 * failure until each failing node is isolated and quarantined. Only the
+	 * failure of the whole batch is reported to the meter, not the ones of the
+	 * halves tried while isolating the failing nodes.
+	 * 
+	 * @param nodes
+	 * @param deletion
+	 * @return the number of nodes deleted
+	 */
+	public int delete(List<NodeRef> nodes, Deletion deletion)
+	{
+		return delete(nodes, deletion, true);
+	}
+
+	private int delete(final List<NodeRef> nodes, final Deletion deletion,
+	        boolean batch)
+	{
+		if (nodes.isEmpty())
+			return 0;
+		try
+		{
+			return inNewTransaction(new RetryingTransactionCallback<Integer>()
+			{
+				public Integer execute() throws Throwable
+				{
+					int deleted = deletion.delete(nodes);
+					releaseRetried(nodes);
+					return deleted;
+				}
+			});
+		} catch (RuntimeException e)
+		{
+			if (batch)
+			{
+				meter.deleteFailed(nodes.size());
+			}
+			if (nodes.size() == 1)
+			{
+				quarantine(nodes.get(0), e);
+				return 0;
+			}
+			if (logger.isDebugEnabled())
+			{
+				logger.debug(String.format(
+				        "Deletion of %s nodes failed, splitting them: %s",
+				        nodes.size(), e));
+			}
+			int half = nodes.size() / 2;
+			return delete(nodes.subList(0, half), deletion, false)
+			        + delete(nodes.subList(half, nodes.size()), deletion, false);
+		}
+	}
+
+	/**
+	 * 
+	 * It takes the nodes tried again out of the quarantine once they are
+	 * deleted.
+	 * 
+	 * @param nodes
+	 */
+	private void releaseRetried(List<NodeRef> nodes)
+	{
+		for (NodeRef node : nodes)
+		{
+			boolean wasRetried;
+			synchronized (this)
+			{
+				wasRetried = retried.contains(node.getId());
+			}
+			if (wasRetried)
+			{
+				attributeService.removeAttribute(QUARANTINE_KEY,
+				        archiveStoreUrl, node.getId());
+			}
+		}
+	}
+
+	private void quarantine(final NodeRef node, final RuntimeException error)
+	{
+		logger.warn(String.format("Node %s couldn't be deleted, quarantined",
+		        node), error);
+		inNewTransaction(new RetryingTransactionCallback<Object>()
+		{
+			public Object execute() throws Throwable
+			{
+				add(node, error);
+				return null;
+			}
+		});
+		meter.nodeQuarantined();
+	}
+
+	private <R> R inNewTransaction(RetryingTransactionCallback<R> callback)
+	{
+		return transactionService.getRetryingTransactionHelper()
+		        .doInTransaction(new RetryCountingCallback<R>(callback, meter),
+		                false, true);
+	}
+
+	private static String truncate(String error)
+	{
+		return error.length() > MAX_ERROR_LENGTH ? error.substring(0,
+		        MAX_ERROR_LENGTH) : error;
+	}
+
+}
@@ -0,0 +1,205 @@
+/*
+ * Copyright (C) 2005-2013 Alfresco Software Limited.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+
+ * As a special exception to the terms and conditions of version 2.0 of 
+ * the GPL, you may redistribute this Program in connection with Free/Libre 
+ * and Open Source Software ("FLOSS") applications as described in Alfresco's 
+ * FLOSS exception.  You should have recieved a copy of the text describing 
+ * the FLOSS exception, and it is also available here: 
+ * http://www.alfresco.com/legal/licensing"
+ */
+package org.alfresco.trashcan;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * 
+ * The trashcan quotas of the users: the maximum number of archived nodes
+ * (<b>maxNodes</b>) and bytes of archived content (<b>maxBytes</b>) each user
+ * may keep in an archive store. A quota of 0 or negative is no limit.
+ * 
+ * Every user gets the default quotas, except the ones listed in
+ * <b>trashcan.quota.users</b>, a comma separated list of user names, each one
+ * followed by its own quotas separated by semicolons, for example:
+ * 
+ * <pre>
+ * admin;maxNodes=0;maxBytes=0,bulkloader;maxNodes=50000
+ * </pre>
+ * 
+ * The quotas not given take the default value.
+ * 
+ * @author Rui Fernandes
+ * 
+ */
+public class TrashcanQuotas
+{
+
+	private long maxNodes;
+	private long maxBytes;
+	private Map<String, long[]> users = new HashMap<String, long[]>();
+
+	/**
+	 * 
+	 * @param maxNodes
+	 *            the default maximum number of archived nodes of a user
+	 * @param maxBytes
+	 *            the default maximum bytes of archived content of a user
+	 */
+	public TrashcanQuotas(long maxNodes, long maxBytes)
+	{
+		this.maxNodes = maxNodes;
+		this.maxBytes = maxBytes;
+	}
+
+	/**
+	 * 
+	 * It parses the quotas of the users listed, starting from the defaults.
+	 * 
+	 * @param userQuotas
+	 * @param maxNodes
+	 * @param maxBytes
+	 * @return
+	 * @throws IllegalArgumentException
+	 *             if a quota is unknown or not a number
+	 */
+	public static TrashcanQuotas parse(String userQuotas, long maxNodes,
+	        long maxBytes)
+	{
+		TrashcanQuotas quotas = new TrashcanQuotas(maxNodes, maxBytes);
+		if (userQuotas != null)
+		{
+			for (String user : userQuotas.split(","))
+			{
+				if (user.trim().length() > 0)
+				{
+					quotas.parseUser(user);
+				}
+			}
+		}
+		return quotas;
+	}
+
+	private void parseUser(String user)
+	{
+		String[] parts = user.split(";");
+		String name = parts[0].trim();
+		long[] quotas = { maxNodes, maxBytes };
+		for (int i = 1; i < parts.length; i++)
+		{
+			String[] quota = parts[i].split("=", 2);
+			if (quota.length != 2)
+				throw new IllegalArgumentException(String.format(
+				        "Invalid quota '%s' for %s", parts[i], name));
+			String quotaName = quota[0].trim();
+			long value;
+			try
+			{
+				value = Long.parseLong(quota[1].trim());
+			}
+			catch (NumberFormatException e)
+			{
+				throw new IllegalArgumentException(String.format(
+				        "Invalid value '%s' of %s for %s", quota[1], quotaName,
+				        name));
+			}
+			if (quotaName.equals("maxNodes"))
+				quotas[0] = value;
+			else if (quotaName.equals("maxBytes"))
+				quotas[1] = value;
+			else
+				throw new IllegalArgumentException(String.format(
+				        "Unknown quota %s for %s", quotaName, name));
+		}
+		users.put(name, quotas);
+	}
+
+	/**
+	 * 
+	 * It checks if any user has a quota.
+	 * 
+	 * @return
+	 */
+	public boolean isEnabled()
+	{
+		if (maxNodes > 0 || maxBytes > 0)
+			return true;
+		for (long[] quotas : users.values())
+		{
+			if (quotas[0] > 0 || quotas[1] > 0)
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * 
+	 * The maximum number of archived nodes of the user, 0 or negative if
+	 * there is no limit.
+	 * 
+	 * @param user
+	 * @return
+	 */
+	public long getMaxNodes(String user)
+	{
+		long[] quotas = users.get(user);
+		return quotas != null ? quotas[0] : maxNodes;
+	}
+
+	/**
+	 * 
+	 * The maximum bytes of archived content of the user, 0 or negative if
+	 * there is no limit.
+	 * 
+	 * @param user
+	 * @return
+	 */
+	public long getMaxBytes(String user)
+	{
+		long[] quotas = users.get(user);
+		return quotas != null ? quotas[1] : maxBytes;
+	}
+
+	/**
+	 * 
+	 * The number of nodes the user keeps above the quota, 0 if within it.
+	 * 
+	 * @param user
+	 * @param usage
+	 * @return
+	 */
+	public long getExcessNodes(String user, TrashcanUsage.Usage usage)
+	{
+		long max = getMaxNodes(user);
+		return max > 0 ? Math.max(0, usage.getCount() - max) : 0;
+	}
+
+	/**
+	 * 
+	 * The bytes the user keeps above the quota, 0 if within it.
+	 * 
+	 * @param user
+	 * @param usage
+	 * @return
+	 */
+	public long getExcessBytes(String user, TrashcanUsage.Usage usage)
+	{
+		long max = getMaxBytes(user);
+		return max > 0 ? Math.max(0, usage.getBytes() - max) : 0;
+	}
+
+}
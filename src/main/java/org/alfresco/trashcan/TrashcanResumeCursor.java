@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2005-2013 Alfresco Software Limited.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+
+ * As a special exception to the terms and conditions of version 2.0 of 
+ * the GPL, you may redistribute this Program in connection with Free/Libre 
+ * and Open Source Software ("FLOSS") applications as described in Alfresco's 
+ * FLOSS exception.  You should have recieved a copy of the text describing 
+ * the FLOSS exception, and it is also available here: 
+ * http://www.alfresco.com/legal/licensing"
+ */
+package org.alfresco.trashcan;
+
+import java.io.Serializable;
+
+import org.alfresco.service.cmr.attributes.AttributeService;
+
+/**
+ * 
+ * This class persists, per archive store, the position where the last
+ * <b>clean</b> execution stopped reading the archive store root, as the id of
+ * the last child association examined. It is kept in the
+ * {@link org.alfresco.service.cmr.attributes.AttributeService
+ * AttributeService}, so it survives restarts and is shared by all the nodes of
+ * a cluster. A value of 0 means the next execution starts from the beginning.
+ * Each {@link org.alfresco.trashcan.TrashcanShard TrashcanShard} keeps a
+ * position of its own.
+ * 
+ * @author Rui Fernandes
+ * 
+ */
+public class TrashcanResumeCursor
+{
+
+	protected static final String ATTRIBUTE_KEY = ".trashcanCleaner";
+	private static final String CURSOR_KEY = "resumeCursor";
+
+	private AttributeService attributeService;
+	private String archiveStoreUrl;
+	private String cursorKey = CURSOR_KEY;
+
+	/**
+	 * 
+	 * @param attributeService
+	 * @param archiveStoreUrl
+	 */
+	public TrashcanResumeCursor(AttributeService attributeService,
+	        String archiveStoreUrl)
+	{
+		this.attributeService = attributeService;
+		this.archiveStoreUrl = archiveStoreUrl;
+	}
+
+	/**
+	 * 
+	 * The position of a shard of the archive store.
+	 * 
+	 * @param attributeService
+	 * @param archiveStoreUrl
+	 * @param shard
+	 */
+	public TrashcanResumeCursor(AttributeService attributeService,
+	        String archiveStoreUrl, TrashcanShard shard)
+	{
+		this(attributeService, archiveStoreUrl);
+		if (shard != null)
+			this.cursorKey = shard.getCursorKey();
+	}
+
+	/**
+	 * 
+	 * It returns the persisted position, or 0 if there is none.
+	 * 
+	 * @return
+	 */
+	public long load()
+	{
+		Serializable value = attributeService.getAttribute(ATTRIBUTE_KEY,
+		        archiveStoreUrl, cursorKey);
+		return value != null ? ((Long) value).longValue() : 0;
+	}
+
+	/**
+	 * 
+	 * It persists the position for the next execution.
+	 * 
+	 * @param assocId
+	 */
+	public void save(long assocId)
+	{
+		attributeService.setAttribute(Long.valueOf(assocId), ATTRIBUTE_KEY,
+		        archiveStoreUrl, cursorKey);
+	}
+
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright (C) 2005-2013 Alfresco Software Limited.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+
+ * As a special exception to the terms and conditions of version 2.0 of 
+ * the GPL, you may redistribute this Program in connection with Free/Libre 
+ * and Open Source Software ("FLOSS") applications as described in Alfresco's 
+ * FLOSS exception.  You should have recieved a copy of the text describing 
+ * the FLOSS exception, and it is also available here: 
+ * http://www.alfresco.com/legal/licensing"
+ */
+package org.alfresco.trashcan;
+
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.namespace.NamespaceService;
+import org.alfresco.service.namespace.QName;
+
+/**
+ * 
+ * One of the <b>shardCount</b> disjoint slices the trashcan is partitioned
+ * into. A node belongs to the shard given by the hash of its id, so every
+ * member of a cluster agrees on the shard of each node without any
+ * coordination, as long as they all use the same <b>shardCount</b>.
+ * 
+ * Each shard of each archive store has its own job lock, a sibling of the
+ * store lock (see {@link org.alfresco.trashcan.TrashcanJobLock#getLockQName(String)
+ * getLockQName}), and its own resume position, so different members can
+ * clean different shards at the same time while a node is never deleted by
+ * two of them at once.
+ * 
+ * @author Rui Fernandes
+ * 
+ */
+public class TrashcanShard
+{
+
+	private int shard;
+	private int shardCount;
+
+	/**
+	 * 
+	 * @param shard
+	 *            the shard number, from 0 to <b>shardCount</b> - 1
+	 * @param shardCount
+	 */
+	public TrashcanShard(int shard, int shardCount)
+	{
+		if (shardCount < 1 || shard < 0 || shard >= shardCount)
+			throw new IllegalArgumentException(String.format(
+			        "Invalid shard %s of %s", shard, shardCount));
+		this.shard = shard;
+		this.shardCount = shardCount;
+	}
+
+	public int getShard()
+	{
+		return shard;
+	}
+
+	public int getShardCount()
+	{
+		return shardCount;
+	}
+
+	/**
+	 * 
+	 * It checks if the node belongs to this shard.
+	 * 
+	 * @param node
+	 * @return
+	 */
+	public boolean contains(NodeRef node)
+	{
+		return (node.getId().hashCode() & Integer.MAX_VALUE) % shardCount == shard;
+	}
+
+	/**
+	 * 
+	 * It returns the name of the lock of this shard of an archive store.
+	 * 
+	 * @param archiveStoreUrl
+	 * @return
+	 */
+	public QName getLockQName(String archiveStoreUrl)
+	{
+		return QName.createQName(NamespaceService.SYSTEM_MODEL_1_0_URI,
+		        TrashcanJobLock.getLockQName(archiveStoreUrl).getLocalName()
+		                + "-shard" + shard);
+	}
+
+	/**
+	 * 
+	 * It returns the key of the resume position of this shard.
+	 * 
+	 * @return
+	 */
+	public String getCursorKey()
+	{
+		return "resumeCursor-shard" + shard;
+	}
+
+	@Override
+	public String toString()
+	{
+		return String.format("shard %s of %s", shard, shardCount);
+	}
+
+}
@@ -0,0 +1,599 @@
+/*
+ * Copyright (C) 2005-2013 Alfresco Software Limited.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+
+ * As a special exception to the terms and conditions of version 2.0 of 
+ * the GPL, you may redistribute this Program in connection with Free/Libre 
+ * and Open Source Software ("FLOSS") applications as described in Alfresco's 
+ * FLOSS exception.  You should have recieved a copy of the text describing 
+ * the FLOSS exception, and it is also available here: 
+ * http://www.alfresco.com/legal/licensing"
+ */
+package org.alfresco.trashcan;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import org.alfresco.model.ContentModel;
+import org.alfresco.repo.lock.JobLockService;
+import org.alfresco.repo.transaction.AlfrescoTransactionSupport;
+import org.alfresco.repo.transaction.TransactionListenerAdapter;
+import org.alfresco.service.cmr.attributes.AttributeService;
+import org.alfresco.service.cmr.attributes.AttributeService.AttributeQueryCallback;
+import org.alfresco.service.cmr.dictionary.DictionaryService;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.cmr.repository.NodeService;
+import org.alfresco.service.cmr.repository.StoreRef;
+import org.alfresco.util.GUID;
+import org.alfresco.util.Pair;
+
+/**
+ * 
+ * The trashcan usage of each user of an archive store: the number of nodes
+ * archived by the user (<b>sys:archivedBy</b>) and the bytes of content they
+ * hold, kept in the
+ * {@link org.alfresco.service.cmr.attributes.AttributeService
+ * AttributeService} and maintained by the
+ * {@link org.alfresco.trashcan.ArchivedDateIndexBehaviour
+ * ArchivedDateIndexBehaviour} when nodes are archived, restored or purged.
+ * 
+ * The totals of each user are running aggregates: the changes made by a
+ * transaction are added up in memory and written once, just before it
+ * commits, so the usage of every user is known by reading one attribute per
+ * user, without reading the archive store root. Each transaction writes its
+ * changes as delta rows of its own, so concurrent deletions by the same user
+ * never update the same row, and <b>mergeUsage</b> folds the deltas into the
+ * totals under a cluster lock, a single merge running at a time. The usage
+ * read is the totals plus the deltas not merged yet.
+ * 
+ * Besides the totals it keeps, for each user, the archived time and size of
+ * each of their nodes, so the oldest nodes of a user are found by reading only
+ * the entries of that user.
+ * 
+ * The size of an archived folder includes the content of up to
+ * <b>maxDescendants</b> nodes below it, measured once when it is archived.
+ * 
+ * When enabled, the usage of the nodes archived before should be built once
+ * with {@link org.alfresco.trashcan.ArchivedDateIndexVerifier
+ * ArchivedDateIndexVerifier}.
+ * 
+ * @author Rui Fernandes
+ * 
+ */
+public class TrashcanUsage
+{
+
+	protected static final String TOTALS_KEY = ".trashcanCleaner.usage";
+	protected static final String ENTRIES_KEY = ".trashcanCleaner.usage.entries";
+	protected static final String NODES_KEY = ".trashcanCleaner.usage.nodes";
+	protected static final String DELTAS_KEY = ".trashcanCleaner.usage.deltas";
+	protected static final String COUNT = "count";
+	protected static final String BYTES = "bytes";
+	protected static final String TIME = "time";
+	protected static final String UNKNOWN_USER = "";
+	private static final String USAGE_CHANGES_RESOURCE = "TrashcanUsage.usageChanges";
+	private static final String USAGE_LOCK = "usage";
+	private static final String DELTA_SEPARATOR = "|";
+	protected static final int DEFAULT_MAX_DESCENDANTS = 1000;
+
+	private static final Comparator<Pair<Long, String>> ENTRY_ORDER = new Comparator<Pair<Long, String>>()
+	{
+		public int compare(Pair<Long, String> entry1, Pair<Long, String> entry2)
+		{
+			int result = entry1.getFirst().compareTo(entry2.getFirst());
+			return result != 0 ? result : entry1.getSecond().compareTo(
+			        entry2.getSecond());
+		}
+	};
+
+	private AttributeService attributeService;
+	private JobLockService jobLockService;
+	private NodeService nodeService;
+	private DictionaryService dictionaryService;
+	private int maxDescendants = DEFAULT_MAX_DESCENDANTS;
+	private ContentSizeCalculator sizeCalculator;
+	private boolean enabled;
+
+	/**
+	 * 
+	 * The usage of a user: nodes archived and bytes of content held.
+	 * 
+	 */
+	public static class Usage
+	{
+		private long count;
+		private long bytes;
+
+		public Usage(long count, long bytes)
+		{
+			this.count = count;
+			this.bytes = bytes;
+		}
+
+		public long getCount()
+		{
+			return count;
+		}
+
+		public long getBytes()
+		{
+			return bytes;
+		}
+
+		@Override
+		public String toString()
+		{
+			return String.format("%s nodes, %s bytes", count, bytes);
+		}
+	}
+
+	public void setAttributeService(AttributeService attributeService)
+	{
+		this.attributeService = attributeService;
+	}
+
+	/**
+	 * 
+	 * The {@link org.alfresco.repo.lock.JobLockService JobLockService} of the
+	 * lock taken while merging the usage. Without it the caller of
+	 * <b>mergeUsage</b> must make sure no other merge runs at the same time.
+	 * 
+	 * @param jobLockService
+	 */
+	public void setJobLockService(JobLockService jobLockService)
+	{
+		this.jobLockService = jobLockService;
+	}
+
+	public void setNodeService(NodeService nodeService)
+	{
+		this.nodeService = nodeService;
+	}
+
+	public void setDictionaryService(DictionaryService dictionaryService)
+	{
+		this.dictionaryService = dictionaryService;
+	}
+
+	public void setMaxDescendants(int maxDescendants)
+	{
+		this.maxDescendants = maxDescendants;
+	}
+
+	public void setEnabled(boolean enabled)
+	{
+		this.enabled = enabled;
+	}
+
+	/**
+	 * 
+	 * It checks if the usage is maintained and should be used by the cleaner.
+	 * 
+	 * @return
+	 */
+	public boolean isEnabled()
+	{
+		return enabled;
+	}
+
+	/**
+	 * 
+	 * It adds the archived node to the usage of the user who archived it,
+	 * reading its archived date and measuring its size.
+	 * 
+	 * @param archivedNode
+	 */
+	public void add(NodeRef archivedNode)
+	{
+		String user = (String) nodeService.getProperty(archivedNode,
+		        ContentModel.PROP_ARCHIVED_BY);
+		Date archivedDate = (Date) nodeService.getProperty(archivedNode,
+		        ContentModel.PROP_ARCHIVED_DATE);
+		add(archivedNode, user, archivedDate != null ? archivedDate.getTime()
+		        : 0, getSizeCalculator().getSize(archivedNode));
+	}
+
+	/**
+	 * 
+	 * It adds the archived node to the usage of a user.
+	 * 
+	 * @param archivedNode
+	 * @param user
+	 *            the user who archived it, or null if unknown
+	 * @param archivedTime
+	 * @param bytes
+	 */
+	public void add(NodeRef archivedNode, String user, long archivedTime,
+	        long bytes)
+	{
+		String store = archivedNode.getStoreRef().toString();
+		if (user == null)
+			user = UNKNOWN_USER;
+		if (attributeService.exists(NODES_KEY, store, archivedNode.getId()))
+			return;
+		HashMap<String, Serializable> entry = new HashMap<String, Serializable>();
+		entry.put(TIME, Long.valueOf(archivedTime));
+		entry.put(BYTES, Long.valueOf(bytes));
+		attributeService.setAttribute(entry, ENTRIES_KEY, bucket(store, user),
+		        archivedNode.getId());
+		attributeService.setAttribute(user, NODES_KEY, store,
+		        archivedNode.getId());
+		changeUsage(store, user, 1, bytes);
+	}
+
+	/**
+	 * 
+	 * It removes the archived node from the usage of its user, if it is
+	 * there.
+	 * 
+	 * @param archivedNode
+	 * @return true if the node was counted
+	 */
+	@SuppressWarnings("unchecked")
+	public boolean remove(NodeRef archivedNode)
+	{
+		String store = archivedNode.getStoreRef().toString();
+		String user = (String) attributeService.getAttribute(NODES_KEY, store,
+		        archivedNode.getId());
+		if (user == null)
+			return false;
+		Map<String, Serializable> entry = (Map<String, Serializable>) attributeService
+		        .getAttribute(ENTRIES_KEY, bucket(store, user),
+		                archivedNode.getId());
+		attributeService.removeAttribute(ENTRIES_KEY, bucket(store, user),
+		        archivedNode.getId());
+		attributeService.removeAttribute(NODES_KEY, store,
+		        archivedNode.getId());
+		long bytes = entry != null ? ((Long) entry.get(BYTES)).longValue() : 0;
+		changeUsage(store, user, -1, -bytes);
+		return true;
+	}
+
+	/**
+	 * 
+	 * It returns the usage of each user of the archive store, by user name.
+	 * The nodes archived by an unknown user are counted under an empty name.
+	 * 
+	 * @param store
+	 * @return
+	 */
+	public SortedMap<String, Usage> getUsage(String store)
+	{
+		SortedMap<String, Usage> usage = getTotals(store);
+		for (Map.Entry<String, long[]> delta : getDeltas(store, null, null)
+		        .entrySet())
+		{
+			usage.put(delta.getKey(), add(usage.get(delta.getKey()), delta
+			        .getValue()));
+		}
+		for (Iterator<Usage> it = usage.values().iterator(); it.hasNext();)
+		{
+			if (it.next().getCount() <= 0)
+				it.remove();
+		}
+		return usage;
+	}
+
+	/**
+	 * 
+	 * It returns the usage of a user of the archive store.
+	 * 
+	 * @param store
+	 * @param user
+	 * @return
+	 */
+	public Usage getUsage(String store, String user)
+	{
+		Usage usage = add(getTotals(store, user), getDeltas(store, user, null)
+		        .get(user));
+		return usage.getCount() > 0 ? usage : new Usage(0, 0);
+	}
+
+	/**
+	 * 
+	 * It folds the pending usage deltas of the archive store into the totals
+	 * of their user and removes them. Only the deltas read are removed, so
+	 * the ones written meanwhile are kept for the next merge. It must run
+	 * inside a read write transaction, and the merge lock is released once it
+	 * completes.
+	 * 
+	 * @param store
+	 * @return false if another merge holds the lock
+	 */
+	public boolean mergeUsage(String store)
+	{
+		if (jobLockService != null)
+		{
+			TrashcanJobLock lock = new TrashcanJobLock(jobLockService,
+			        TrashcanJobLock.getLockQName(store, USAGE_LOCK));
+			if (!lock.acquire())
+				return false;
+			lock.releaseAfterTransaction();
+		}
+		List<Serializable> read = new ArrayList<Serializable>();
+		Map<String, long[]> deltas = getDeltas(store, null, read);
+		for (Map.Entry<String, long[]> delta : deltas.entrySet())
+		{
+			setTotals(store, delta.getKey(), add(getTotals(store, delta
+			        .getKey()), delta.getValue()));
+		}
+		for (Serializable key : read)
+		{
+			attributeService.removeAttribute(DELTAS_KEY, store, key);
+		}
+		return true;
+	}
+
+	/**
+	 * 
+	 * It returns up to <b>max</b> nodes archived by the user, the oldest first,
+	 * each one with its size in bytes. Only the entries of the user are read,
+	 * and only the <b>max</b> oldest are kept in memory.
+	 * 
+	 * @param store
+	 * @param user
+	 * @param max
+	 * @return
+	 */
+	public List<Pair<NodeRef, Long>> getOldest(String store, String user,
+	        final int max)
+	{
+		StoreRef archiveStore = new StoreRef(store);
+		final PriorityQueue<Pair<Long, String>> heap = new PriorityQueue<Pair<Long, String>>(
+		        max + 1, Collections.reverseOrder(ENTRY_ORDER));
+		final Map<String, Long> sizes = new HashMap<String, Long>();
+		attributeService.getAttributes(new AttributeQueryCallback()
+		{
+			@SuppressWarnings("unchecked")
+			public boolean handleAttribute(Long id, Serializable value,
+			        Serializable[] keys)
+			{
+				Map<String, Serializable> entry = (Map<String, Serializable>) value;
+				String nodeId = (String) keys[2];
+				heap.add(new Pair<Long, String>((Long) entry.get(TIME), nodeId));
+				sizes.put(nodeId, (Long) entry.get(BYTES));
+				if (heap.size() > max)
+				{
+					sizes.remove(heap.poll().getSecond());
+				}
+				return true;
+			}
+		}, ENTRIES_KEY, bucket(store, user));
+		List<Pair<Long, String>> entries = new ArrayList<Pair<Long, String>>(
+		        heap);
+		Collections.sort(entries, ENTRY_ORDER);
+		List<Pair<NodeRef, Long>> oldest = new ArrayList<Pair<NodeRef, Long>>(
+		        entries.size());
+		for (Pair<Long, String> entry : entries)
+		{
+			oldest.add(new Pair<NodeRef, Long>(new NodeRef(archiveStore,
+			        entry.getSecond()), sizes.get(entry.getSecond())));
+		}
+		return oldest;
+	}
+
+	/**
+	 * 
+	 * It removes the usage of all the users of the archive store.
+	 * 
+	 * @param store
+	 */
+	public void clear(String store)
+	{
+		for (String user : getUsage(store).keySet())
+		{
+			attributeService.removeAttributes(ENTRIES_KEY, bucket(store, user));
+		}
+		attributeService.removeAttributes(NODES_KEY, store);
+		attributeService.removeAttributes(TOTALS_KEY, store);
+		attributeService.removeAttributes(DELTAS_KEY, store);
+	}
+
+	/**
+	 * 
+	 * It adds a change of the usage of a user to the changes of the current
+	 * transaction, written when it is about to commit.
+	 * 
+	 * @param store
+	 * @param user
+	 * @param count
+	 * @param bytes
+	 */
+	private void changeUsage(String store, String user, long count, long bytes)
+	{
+		Map<Pair<String, String>, long[]> changes = AlfrescoTransactionSupport
+		        .getResource(USAGE_CHANGES_RESOURCE);
+		if (changes == null)
+		{
+			final Map<Pair<String, String>, long[]> transactionChanges = new HashMap<Pair<String, String>, long[]>();
+			AlfrescoTransactionSupport.bindResource(USAGE_CHANGES_RESOURCE,
+			        transactionChanges);
+			AlfrescoTransactionSupport
+			        .bindListener(new TransactionListenerAdapter()
+			        {
+				        @Override
+				        public void beforeCommit(boolean readOnly)
+				        {
+					        writeUsage(transactionChanges);
+				        }
+			        });
+			changes = transactionChanges;
+		}
+		Pair<String, String> key = new Pair<String, String>(store, user);
+		long[] change = changes.get(key);
+		if (change == null)
+		{
+			change = new long[2];
+			changes.put(key, change);
+		}
+		change[0] += count;
+		change[1] += bytes;
+	}
+
+	/**
+	 * 
+	 * It writes the usage changes of the transaction. The resource is unbound
+	 * so the changes made afterwards by other listeners start a new set.
+	 * 
+	 * @param changes
+	 */
+	private void writeUsage(Map<Pair<String, String>, long[]> changes)
+	{
+		AlfrescoTransactionSupport.unbindResource(USAGE_CHANGES_RESOURCE);
+		String id = GUID.generate();
+		for (Map.Entry<Pair<String, String>, long[]> change : changes
+		        .entrySet())
+		{
+			long[] delta = change.getValue();
+			if (delta[0] == 0 && delta[1] == 0)
+				continue;
+			attributeService.setAttribute(toAttribute(delta[0], delta[1]),
+			        DELTAS_KEY, change.getKey().getFirst(), id
+			                + DELTA_SEPARATOR + change.getKey().getSecond());
+		}
+	}
+
+	private SortedMap<String, Usage> getTotals(String store)
+	{
+		final SortedMap<String, Usage> usage = new TreeMap<String, Usage>();
+		attributeService.getAttributes(new AttributeQueryCallback()
+		{
+			public boolean handleAttribute(Long id, Serializable value,
+			        Serializable[] keys)
+			{
+				usage.put((String) keys[2], toUsage(value));
+				return true;
+			}
+		}, TOTALS_KEY, store);
+		return usage;
+	}
+
+	private Usage getTotals(String store, String user)
+	{
+		Serializable totals = attributeService.getAttribute(TOTALS_KEY, store,
+		        user);
+		return totals != null ? toUsage(totals) : null;
+	}
+
+	private void setTotals(String store, String user, Usage usage)
+	{
+		if (usage.getCount() > 0)
+		{
+			attributeService.setAttribute(toAttribute(usage.getCount(), Math
+			        .max(0, usage.getBytes())), TOTALS_KEY, store, user);
+		}
+		else
+		{
+			attributeService.removeAttribute(TOTALS_KEY, store, user);
+		}
+	}
+
+	/**
+	 * 
+	 * It adds up the pending usage deltas of the archive store by user.
+	 * 
+	 * @param store
+	 * @param user
+	 *            the only user whose deltas are added up, or null for all
+	 * @param read
+	 *            the keys of the deltas read, on return, or null
+	 * @return the count and bytes of each user
+	 */
+	private Map<String, long[]> getDeltas(String store, final String user,
+	        final List<Serializable> read)
+	{
+		final Map<String, long[]> deltas = new HashMap<String, long[]>();
+		attributeService.getAttributes(new AttributeQueryCallback()
+		{
+			public boolean handleAttribute(Long id, Serializable value,
+			        Serializable[] keys)
+			{
+				String key = (String) keys[2];
+				String deltaUser = key.substring(key.indexOf(DELTA_SEPARATOR) + 1);
+				if (user != null && !user.equals(deltaUser))
+					return true;
+				Usage change = toUsage(value);
+				long[] delta = deltas.get(deltaUser);
+				if (delta == null)
+				{
+					delta = new long[2];
+					deltas.put(deltaUser, delta);
+				}
+				delta[0] += change.getCount();
+				delta[1] += change.getBytes();
+				if (read != null)
+				{
+					read.add(key);
+				}
+				return true;
+			}
+		}, DELTAS_KEY, store);
+		return deltas;
+	}
+
+	private static Usage add(Usage usage, long[] delta)
+	{
+		if (usage == null)
+			usage = new Usage(0, 0);
+		if (delta == null)
+			return usage;
+		return new Usage(usage.getCount() + delta[0], usage.getBytes()
+		        + delta[1]);
+	}
+
+	@SuppressWarnings("unchecked")
+	private static Usage toUsage(Serializable value)
+	{
+		Map<String, Serializable> totals = (Map<String, Serializable>) value;
+		return new Usage((Long) totals.get(COUNT), (Long) totals.get(BYTES));
+	}
+
+	private static HashMap<String, Serializable> toAttribute(long count,
+	        long bytes)
+	{
+		HashMap<String, Serializable> totals = new HashMap<String, Serializable>();
+		totals.put(COUNT, Long.valueOf(count));
+		totals.put(BYTES, Long.valueOf(bytes));
+		return totals;
+	}
+
+	private ContentSizeCalculator getSizeCalculator()
+	{
+		if (sizeCalculator == null)
+		{
+			sizeCalculator = dictionaryService != null ? new ContentSizeCalculator(
+			        nodeService, dictionaryService, maxDescendants)
+			        : new ContentSizeCalculator(nodeService);
+		}
+		return sizeCalculator;
+	}
+
+	private static String bucket(String store, String user)
+	{
+		return store + "|" + user;
+	}
+
+}
@@ -25,18 +25,39 @@
 package org.alfresco.trashcan;
 
 import java.io.Serializable;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.transaction.UserTransaction;
 
 import junit.framework.TestCase;
 
 import org.alfresco.model.ContentModel;
+import org.alfresco.repo.content.MimetypeMap;
+import org.alfresco.repo.content.cleanup.EagerContentStoreCleaner;
+import org.alfresco.repo.domain.contentdata.ContentDataDAO;
+import org.alfresco.repo.domain.node.NodeDAO;
+import org.alfresco.repo.lock.JobLockService;
 import org.alfresco.repo.model.Repository;
+import org.alfresco.repo.policy.BehaviourFilter;
 import org.alfresco.repo.security.authentication.AuthenticationComponent;
+import org.alfresco.repo.transaction.AlfrescoTransactionSupport;
+import org.alfresco.repo.transaction.RetryingTransactionHelper.RetryingTransactionCallback;
+import org.alfresco.repo.transaction.TransactionListenerAdapter;
+import org.alfresco.service.cmr.attributes.AttributeService;
+import org.alfresco.service.cmr.dictionary.DictionaryService;
 import org.alfresco.service.cmr.repository.ChildAssociationRef;
+import org.alfresco.service.cmr.repository.ContentData;
+import org.alfresco.service.cmr.repository.ContentService;
+import org.alfresco.service.cmr.repository.ContentWriter;
 import org.alfresco.service.cmr.repository.NodeRef;
 import org.alfresco.service.cmr.repository.NodeService;
 import org.alfresco.service.cmr.repository.StoreRef;
@@ -44,6 +65,13 @@ import org.alfresco.service.namespace.NamespaceService;
 import org.alfresco.service.namespace.QName;
 import org.alfresco.service.transaction.TransactionService;
 import org.alfresco.util.ApplicationContextHelper;
+import org.alfresco.util.Pair;
+import org.quartz.JobDataMap;
+import org.quartz.JobDetail;
+import org.quartz.JobExecutionContext;
+import org.quartz.JobExecutionException;
+import org.quartz.SimpleTrigger;
+import org.quartz.spi.TriggerFiredBundle;
 import org.springframework.context.ApplicationContext;
 
 /**
@@ -63,9 +91,14 @@ public class TrashcanCleanerTest extends TestCase
 	private static ApplicationContext applicationContext = ApplicationContextHelper
 	        .getApplicationContext();
 	protected NodeService nodeService;
+	protected NodeDAO nodeDAO;
 	protected TransactionService transactionService;
 	protected Repository repository;
 	protected AuthenticationComponent authenticationComponent;
+	protected BehaviourFilter behaviourFilter;
+	protected ContentService contentService;
+	protected DictionaryService dictionaryService;
+	protected NamespaceService namespaceService;
 
 	/**
 	 * 
@@ -76,12 +109,21 @@ public class TrashcanCleanerTest extends TestCase
 	public void setUp()
 	{
 		nodeService = (NodeService) applicationContext.getBean("nodeService");
+		nodeDAO = (NodeDAO) applicationContext.getBean("nodeDAO");
 		authenticationComponent = (AuthenticationComponent) applicationContext
 		        .getBean("authenticationComponent");
 		transactionService = (TransactionService) applicationContext
 		        .getBean("transactionComponent");
 		repository = (Repository) applicationContext
 		        .getBean("repositoryHelper");
+		behaviourFilter = (BehaviourFilter) applicationContext
+		        .getBean("policyBehaviourFilter");
+		contentService = (ContentService) applicationContext
+		        .getBean("contentService");
+		dictionaryService = (DictionaryService) applicationContext
+		        .getBean("dictionaryService");
+		namespaceService = (NamespaceService) applicationContext
+		        .getBean("namespaceService");
 
 		// Authenticate as the system user
 		authenticationComponent.setSystemUserAsCurrentUser();
@@ -123,6 +165,1054 @@ public class TrashcanCleanerTest extends TestCase
 		cleanBatchTest(BATCH_SIZE + 1, 1);
 	}
 
+	/**
+	 * 
+	 * Same as {@link #testCleanBatch() testCleanBatch} but reading the
+	 * trashcan page by page.
+	 * 
+	 * @throws Throwable
+	 */
+	public void testCleanBatchPaged() throws Throwable
+	{
+		cleanBatchTest(BATCH_SIZE + 1, 1, true);
+	}
+
+	/**
+	 * 
+	 * Tests that selecting the oldest nodes first, with the maximum number of
+	 * nodes to be deleted in a single execution plus one in archive, the node
+	 * left is one of the last archived.
+	 * 
+	 * @throws Throwable
+	 */
+	public void testCleanBatchOldestFirst() throws Throwable
+	{
+		inUserTransaction(new RetryingTransactionCallback<Object>()
+		{
+			public Object execute() throws Throwable
+			{
+				TrashcanCleaner cleaner = new TrashcanCleaner(nodeService,
+				        BATCH_SIZE, -1);
+				cleaner.setNodeDAO(nodeDAO);
+				cleaner.setOldestFirst(true);
+				createAndDeleteNodes(BATCH_SIZE);
+				Serializable lastArchivedDate = nodeService.getProperty(
+				        new NodeRef(StoreRef.STORE_REF_ARCHIVE_SPACESSTORE,
+				                createAndDeleteNode().getId()),
+				        ContentModel.PROP_ARCHIVED_DATE);
+				cleaner.clean();
+				assertEquals(1, cleaner.getNumberOfNodesInTrashcan());
+				List<ChildAssociationRef> remaining = nodeService
+				        .getChildAssocs(nodeService.getRootNode(
+				                StoreRef.STORE_REF_ARCHIVE_SPACESSTORE));
+				for (ChildAssociationRef childAssoc : remaining)
+				{
+					if (nodeService.getType(childAssoc.getChildRef()).equals(
+					        ContentModel.TYPE_CONTENT))
+					{
+						assertEquals(lastArchivedDate, nodeService.getProperty(
+						        childAssoc.getChildRef(),
+						        ContentModel.PROP_ARCHIVED_DATE));
+					}
+				}
+				cleaner.clean();
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * 
+	 * Tests that selecting the largest nodes first, with the maximum number of
+	 * nodes to be deleted in a single execution plus one in archive, the node
+	 * holding content is purged even though it was the last archived.
+	 * 
+	 * @throws Throwable
+	 */
+	public void testCleanBatchLargestFirst() throws Throwable
+	{
+		inUserTransaction(new RetryingTransactionCallback<Object>()
+		{
+			public Object execute() throws Throwable
+			{
+				TrashcanCleaner cleaner = new TrashcanCleaner(nodeService,
+				        BATCH_SIZE, -1);
+				cleaner.setNodeDAO(nodeDAO);
+				cleaner.setSelectionPolicy(new LargestFirstPolicy(
+				        new ContentSizeCalculator(nodeService)));
+				createAndDeleteNodes(BATCH_SIZE);
+				NodeRef companyHome = repository.getCompanyHome();
+				String name = "Sample (" + System.currentTimeMillis() + ")";
+				Map<QName, Serializable> contentProps =
+				        new HashMap<QName, Serializable>();
+				contentProps.put(ContentModel.PROP_NAME, name);
+				NodeRef largest = nodeService.createNode(companyHome,
+				        ContentModel.ASSOC_CONTAINS,
+				        QName.createQName(
+				                NamespaceService.CONTENT_MODEL_PREFIX, name),
+				        ContentModel.TYPE_CONTENT, contentProps).getChildRef();
+				ContentWriter writer = contentService.getWriter(largest,
+				        ContentModel.PROP_CONTENT, true);
+				writer.setMimetype(MimetypeMap.MIMETYPE_TEXT_PLAIN);
+				writer.putContent("The largest node of the trashcan");
+				nodeService.deleteNode(largest);
+				cleaner.clean();
+				assertEquals(1, cleaner.getNumberOfNodesInTrashcan());
+				assertFalse(nodeService.exists(new NodeRef(
+				        StoreRef.STORE_REF_ARCHIVE_SPACESSTORE,
+				        largest.getId())));
+				cleaner.clean();
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * 
+	 * Tests that a cleaner limited to a shard only deletes the nodes of that
+	 * shard, and that the shards together cover the whole trashcan.
+	 * 
+	 * @throws Throwable
+	 */
+	public void testCleanBatchSharded() throws Throwable
+	{
+		inUserTransaction(new RetryingTransactionCallback<Object>()
+		{
+			public Object execute() throws Throwable
+			{
+				createAndDeleteNodes(BATCH_SIZE);
+				TrashcanShard shard = new TrashcanShard(0, 2);
+				TrashcanCleaner cleaner = new TrashcanCleaner(nodeService,
+				        BATCH_SIZE, -1);
+				cleaner.setNodeDAO(nodeDAO);
+				cleaner.setShard(shard);
+				cleaner.clean();
+				List<ChildAssociationRef> remaining = nodeService
+				        .getChildAssocs(nodeService.getRootNode(
+				                StoreRef.STORE_REF_ARCHIVE_SPACESSTORE));
+				for (ChildAssociationRef childAssoc : remaining)
+				{
+					if (nodeService.getType(childAssoc.getChildRef()).equals(
+					        ContentModel.TYPE_CONTENT))
+					{
+						assertFalse(shard.contains(childAssoc.getChildRef()));
+					}
+				}
+				cleaner.setShard(new TrashcanShard(1, 2));
+				cleaner.clean();
+				assertEquals(0, cleaner.getNumberOfNodesInTrashcan());
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * 
+	 * Tests that purging with the behaviours disabled, with the maximum number
+	 * of nodes to be deleted in a single execution plus one in archive, will
+	 * leave one node and the behaviours enabled afterwards.
+	 * 
+	 * @throws Throwable
+	 */
+	public void testCleanBatchFastPurge() throws Throwable
+	{
+		inUserTransaction(new RetryingTransactionCallback<Object>()
+		{
+			public Object execute() throws Throwable
+			{
+				TrashcanCleaner cleaner = new TrashcanCleaner(nodeService,
+				        BATCH_SIZE, -1);
+				cleaner.setNodeDAO(nodeDAO);
+				cleaner.setPurger(new FastNodePurger(nodeService, nodeDAO,
+				        dictionaryService, behaviourFilter));
+				createAndDeleteNodes(BATCH_SIZE + 1);
+				cleaner.clean();
+				assertEquals(1, cleaner.getNumberOfNodesInTrashcan());
+				assertTrue(behaviourFilter.isEnabled());
+				cleaner.clean();
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * 
+	 * Tests that a cleaner held back by a throttle over its latency budget
+	 * still deletes the whole batch, in smaller sub-batches.
+	 * 
+	 * @throws Throwable
+	 */
+	public void testCleanBatchThrottled() throws Throwable
+	{
+		inTransaction(new RetryingTransactionCallback<Object>()
+		{
+			public Object execute() throws Throwable
+			{
+				createAndDeleteNodes(BATCH_SIZE + 1);
+				return null;
+			}
+		});
+		LoadThrottle throttle = new LoadThrottle();
+		throttle.setMaxTransactionMillis(1);
+		throttle.setMaxPauseMillis(10);
+		final TrashcanCleaner cleaner = new TrashcanCleaner(nodeService,
+		        BATCH_SIZE, -1);
+		cleaner.setNodeDAO(nodeDAO);
+		cleaner.setTransactionService(transactionService);
+		cleaner.setTransactionSize(BATCH_SIZE);
+		cleaner.setThrottle(throttle);
+		assertEquals(BATCH_SIZE, cleaner.clean());
+		assertTrue(throttle.getLoad() > 1);
+		long remaining = inReadOnlyTransaction(
+		        new RetryingTransactionCallback<Long>()
+		        {
+			        public Long execute() throws Throwable
+			        {
+				        return cleaner.getNumberOfNodesInTrashcan();
+			        }
+		        });
+		assertEquals(1, remaining);
+		cleaner.clean();
+	}
+
+	/**
+	 * 
+	 * Tests that the adaptive batch sizer grows the transactions while they
+	 * are full and within the target, halves them above it, and never goes
+	 * below the configured size nor above the maximum.
+	 * 
+	 */
+	public void testAdaptiveBatchSizer()
+	{
+		AdaptiveBatchSizer sizer = new AdaptiveBatchSizer();
+		sizer.setMinBatchCount(100);
+		sizer.setMaxBatchCount(400);
+		sizer.setBatchIncrement(50);
+		sizer.setTargetTransactionMillis(1000);
+		assertEquals(10, sizer.getBatchCount(10));
+		sizer.record(10, 100);
+		assertEquals(60, sizer.getBatchCount(10));
+		sizer.record(30, 100);
+		assertEquals(60, sizer.getBatchCount(10));
+		sizer.record(60, 2000);
+		assertEquals(30, sizer.getBatchCount(10));
+		sizer.record(30, 2000);
+		sizer.record(15, 2000);
+		assertEquals(10, sizer.getBatchCount(10));
+		for (int i = 0; i < 20; i++)
+		{
+			sizer.record(sizer.getBatchCount(10), 100);
+		}
+		assertEquals(400, sizer.getBatchCount(10));
+	}
+
+	/**
+	 * 
+	 * Tests that a batch ending in a partial sub-batch still counts as full
+	 * and grows the next sub-batches.
+	 * 
+	 * @throws Throwable
+	 */
+	public void testAdaptiveBatchSizerPartialSubBatch() throws Throwable
+	{
+		createArchivedNodes(250);
+		AdaptiveBatchSizer sizer = new AdaptiveBatchSizer();
+		sizer.setBatchIncrement(50);
+		sizer.setTargetTransactionMillis(60000);
+		TrashcanCleaner cleaner = new TrashcanCleaner(nodeService, 250, -1);
+		cleaner.setNodeDAO(nodeDAO);
+		cleaner.setTransactionService(transactionService);
+		cleaner.setTransactionSize(100);
+		cleaner.setBatchSizer(sizer);
+		assertEquals(250, cleaner.clean());
+		assertEquals(150, sizer.getBatchCount(100));
+	}
+
+	/**
+	 * 
+	 * Tests that a quarantined node is left out of the batches while the rest
+	 * of the trashcan is purged, and is purged again once released.
+	 * 
+	 * @throws Throwable
+	 */
+	public void testCleanBatchQuarantined() throws Throwable
+	{
+		final List<NodeRef> nodes = inTransaction(
+		        new RetryingTransactionCallback<List<NodeRef>>()
+		        {
+			        public List<NodeRef> execute() throws Throwable
+			        {
+				        List<NodeRef> deleted = new ArrayList<NodeRef>();
+				        deleted.add(createAndDeleteNode());
+				        deleted.add(createAndDeleteNode());
+				        return deleted;
+			        }
+		        });
+		StoreRef archiveStore = new StoreRef("archive://SpacesStore");
+		final TrashcanQuarantine quarantine = new TrashcanQuarantine(
+		        (AttributeService) applicationContext
+		                .getBean("attributeService"), transactionService,
+		        archiveStore.toString());
+		final NodeRef poison = new NodeRef(archiveStore, nodes.get(0).getId());
+		inTransaction(new RetryingTransactionCallback<Object>()
+		{
+			public Object execute() throws Throwable
+			{
+				quarantine.add(poison, new RuntimeException("test"));
+				return null;
+			}
+		});
+		TrashcanCleaner cleaner = new TrashcanCleaner(nodeService,
+		        BATCH_SIZE, -1);
+		cleaner.setNodeDAO(nodeDAO);
+		cleaner.setTransactionService(transactionService);
+		cleaner.setTransactionSize(BATCH_SIZE / 10);
+		cleaner.setQuarantine(quarantine);
+		try
+		{
+			int executions = 0;
+			while (cleaner.clean() > 0 && executions < 100)
+			{
+				executions++;
+			}
+			assertTrue(exists(poison));
+			assertFalse(exists(new NodeRef(archiveStore, nodes.get(1)
+			        .getId())));
+			assertEquals(1, ((Integer) quarantine.getEntry(poison).get(
+			        TrashcanQuarantine.ATTEMPTS)).intValue());
+		} finally
+		{
+			inTransaction(new RetryingTransactionCallback<Object>()
+			{
+				public Object execute() throws Throwable
+				{
+					quarantine.release(poison);
+					return null;
+				}
+			});
+		}
+		cleaner.clean();
+		assertFalse(exists(poison));
+	}
+
+	/**
+	 * 
+	 * Tests that the parallel deleter deletes every node of the batch exactly
+	 * once, with several workers sharing the slices.
+	 * 
+	 * @throws Throwable
+	 */
+	public void testParallelDeleteOnce() throws Throwable
+	{
+		List<NodeRef> nodes = createArchivedNodes(100);
+		DeletionCounter counter = new DeletionCounter(null);
+		ParallelNodeDeleter deleter = new ParallelNodeDeleter(
+		        counter.getNodeService(), transactionService, 4, 7, null);
+		assertEquals(nodes.size(), deleter.delete(nodes));
+		assertEquals(0, deleter.getFailedNodes());
+		assertTrue(deleter.getFailures().isEmpty());
+		for (NodeRef node : nodes)
+		{
+			assertEquals(1, counter.getDeletions(node));
+			assertFalse(exists(node));
+		}
+	}
+
+	/**
+	 * 
+	 * Tests that a slice whose transaction fails is reported with its nodes,
+	 * which are left in the trashcan, while the other slices are deleted.
+	 * 
+	 * @throws Throwable
+	 */
+	public void testParallelDeleteFailure() throws Throwable
+	{
+		List<NodeRef> nodes = createArchivedNodes(50);
+		NodeRef poison = nodes.get(0);
+		DeletionCounter counter = new DeletionCounter(poison);
+		ParallelNodeDeleter deleter = new ParallelNodeDeleter(
+		        counter.getNodeService(), transactionService, 4, 10, null);
+		assertEquals(nodes.size() - 10, deleter.delete(nodes));
+		assertEquals(1, deleter.getFailures().size());
+		assertEquals(10, deleter.getFailedNodes());
+		for (int i = 0; i < nodes.size(); i++)
+		{
+			assertEquals(i >= 10, !exists(nodes.get(i)));
+			assertEquals(i >= 10 ? 1 : 0, counter.getDeletions(nodes.get(i)));
+		}
+		deleter = new ParallelNodeDeleter(nodeService, transactionService, 1,
+		        10, null);
+		assertEquals(10, deleter.delete(nodes.subList(0, 10)));
+	}
+
+	/**
+	 * 
+	 * Tests that an archived folder with more nodes below it than the subtree
+	 * threshold is purged in chunks over several executions, each one
+	 * deleting no more than the maximum number of nodes.
+	 * 
+	 * @throws Throwable
+	 */
+	public void testCleanLargeSubtree() throws Throwable
+	{
+		final NodeRef folder = inTransaction(
+		        new RetryingTransactionCallback<NodeRef>()
+		        {
+			        public NodeRef execute() throws Throwable
+			        {
+				        return createAndDeleteFolder(30);
+			        }
+		        });
+		TrashcanCleaner cleaner = new TrashcanCleaner(nodeService, 10, -1);
+		cleaner.setNodeDAO(nodeDAO);
+		cleaner.setTransactionService(transactionService);
+		cleaner.setTransactionSize(5);
+		cleaner.setSubtreeThreshold(10);
+		int executions = 0;
+		while (exists(folder) && executions < 100)
+		{
+			cleaner.clean();
+			executions++;
+		}
+		assertFalse(exists(folder));
+		assertTrue(executions > 1);
+	}
+
+	/**
+	 * 
+	 * Tests that the drain mode of the job cleans batch after batch until a
+	 * batch finds less nodes than the batch size, and that it starts no
+	 * further batch once the deadline has passed.
+	 * 
+	 * @throws Throwable
+	 */
+	public void testDrain() throws Throwable
+	{
+		createArchivedNodes(25);
+		TrashcanCleanerJob job = new TrashcanCleanerJob();
+		job.transactionService = transactionService;
+		TrashcanJobLock jobLock = new TrashcanJobLock(
+		        (JobLockService) applicationContext.getBean("jobLockService"),
+		        TrashcanJobLock.getLockQName(
+		                StoreRef.STORE_REF_ARCHIVE_SPACESSTORE.toString(),
+		                "TrashcanDrainTest"));
+		assertTrue(jobLock.acquire());
+		try
+		{
+			final List<Integer> batches = new ArrayList<Integer>();
+			final long[] pause = { 300 };
+			TrashcanCleaner cleaner = new TrashcanCleaner(nodeService, 10, -1)
+			{
+				@Override
+				public int clean()
+				{
+					int batchSize = super.clean();
+					batches.add(batchSize);
+					try
+					{
+						Thread.sleep(pause[0]);
+					} catch (InterruptedException e)
+					{
+						Thread.currentThread().interrupt();
+					}
+					return batchSize;
+				}
+			};
+			cleaner.setNodeDAO(nodeDAO);
+			job.drain(cleaner, jobLock, System.currentTimeMillis() + 100);
+			assertEquals(1, batches.size());
+			assertEquals(Integer.valueOf(10), batches.get(0));
+			batches.clear();
+			pause[0] = 0;
+			job.drain(cleaner, jobLock, System.currentTimeMillis() + 60000);
+			assertTrue(batches.size() >= 2);
+			for (int i = 0; i < batches.size() - 1; i++)
+			{
+				assertEquals(Integer.valueOf(10), batches.get(i));
+			}
+			assertTrue(batches.get(batches.size() - 1) < 10);
+			assertEquals(0, countNodesInTrashcan(cleaner));
+			batches.clear();
+			job.drain(cleaner, jobLock, System.currentTimeMillis() - 1);
+			assertTrue(batches.isEmpty());
+		} finally
+		{
+			jobLock.release();
+		}
+	}
+
+	/**
+	 * 
+	 * Tests that the paged enumeration resumes each execution where the
+	 * previous one stopped, and wraps around to the beginning of the trashcan
+	 * once its end is reached.
+	 * 
+	 * @throws Throwable
+	 */
+	public void testResumeCursor() throws Throwable
+	{
+		final List<NodeRef> nodes = createArchivedNodes(5);
+		AttributeService attributeService =
+		        (AttributeService) applicationContext.getBean("attributeService");
+		final TrashcanResumeCursor cursor = new TrashcanResumeCursor(
+		        attributeService,
+		        StoreRef.STORE_REF_ARCHIVE_SPACESSTORE.toString());
+		final long saved = loadCursor(cursor);
+		final long start = getAssocId(nodes.get(1));
+		saveCursor(cursor, start);
+		try
+		{
+			final TrashcanCleaner cleaner = new TrashcanCleaner(nodeService,
+			        2, -1);
+			cleaner.setNodeDAO(nodeDAO);
+			cleaner.setPageSize(1);
+			cleaner.setAttributeService(attributeService);
+			RetryingTransactionCallback<Integer> clean = new RetryingTransactionCallback<Integer>()
+			{
+				public Integer execute() throws Throwable
+				{
+					return cleaner.clean();
+				}
+			};
+			assertEquals(Integer.valueOf(2), inTransaction(clean));
+			for (int i = 0; i < nodes.size(); i++)
+			{
+				assertEquals(i == 2 || i == 3, !exists(nodes.get(i)));
+			}
+			long resumed = loadCursor(cursor);
+			assertTrue(resumed > start);
+			assertTrue(resumed < getAssocId(nodes.get(4)));
+			assertEquals(Integer.valueOf(2), inTransaction(clean));
+			assertFalse(exists(nodes.get(4)));
+			assertTrue(exists(nodes.get(1)));
+			assertTrue(loadCursor(cursor) < start);
+		} finally
+		{
+			saveCursor(cursor, saved);
+		}
+	}
+
+	/**
+	 * 
+	 * Tests that the exact estimate counts the nodes just archived as eligible
+	 * and less than a day old, whether the trashcan is read page by page or
+	 * not, that they are not eligible when kept for a day, and that a sampled
+	 * estimate examines no more than the sample and brackets its figures.
+	 * 
+	 * @throws Throwable
+	 */
+	public void testEstimate() throws Throwable
+	{
+		final TrashcanCleaner cleaner = new TrashcanCleaner(nodeService,
+		        BATCH_SIZE, -1);
+		cleaner.setNodeDAO(nodeDAO);
+		final TrashcanCleaner unpaged = new TrashcanCleaner(nodeService,
+		        BATCH_SIZE, -1);
+		final TrashcanCleaner keepingDay = new TrashcanCleaner(nodeService,
+		        BATCH_SIZE, 1);
+		keepingDay.setNodeDAO(nodeDAO);
+		TrashcanEstimate before = estimate(cleaner, 0, 0);
+		assertFalse(before.isSampled());
+		assertEquals(before.getExamined(), before.getPopulation());
+		createArchivedNodes(10);
+		TrashcanEstimate after = estimate(cleaner, 0, 5);
+		assertEquals(before.getPopulation() + 10, after.getPopulation());
+		assertEquals(before.getEligible() + 10, after.getEligible());
+		assertEquals(after.getEligible(), after.getEligibleLow());
+		assertEquals(after.getEligible(), after.getEligibleHigh());
+		assertEquals(before.getAgeCounts()[0] + 10, after.getAgeCounts()[0]);
+		assertEquals(Math.round(after.getEligible() / 5.0),
+		        after.getProjectedDrainSeconds());
+		assertEquals(-1, before.getProjectedDrainSeconds());
+		TrashcanEstimate unpagedAfter = estimate(unpaged, 0, 0);
+		assertEquals(after.getPopulation(), unpagedAfter.getPopulation());
+		assertEquals(after.getEligible(), unpagedAfter.getEligible());
+		TrashcanEstimate kept = estimate(keepingDay, 0, 0);
+		assertTrue(kept.getEligible() <= after.getEligible() - 10);
+		TrashcanEstimate sampled = estimate(cleaner, 5, 0);
+		assertTrue(sampled.isSampled());
+		assertTrue(sampled.getExamined() <= 5);
+		assertEquals(after.getPopulation(), sampled.getPopulation());
+		assertTrue(sampled.getEligibleLow() <= sampled.getEligible());
+		assertTrue(sampled.getEligible() <= sampled.getEligibleHigh());
+		assertTrue(sampled.getEligibleHigh() <= sampled.getPopulation());
+		cleaner.setTransactionService(transactionService);
+		cleaner.setTransactionSize(BATCH_SIZE);
+		cleaner.clean();
+	}
+
+	/**
+	 * 
+	 * Tests that the job cleans each of the archive stores listed, with the
+	 * settings overridden for the store, both concurrently when several stores
+	 * are listed and on its own when only one is.
+	 * 
+	 * @throws Throwable
+	 */
+	public void testCleanArchiveStores() throws Throwable
+	{
+		final StoreRef store = new StoreRef("archive", "TrashcanStoresTest");
+		List<NodeRef> spacesStoreNodes = createArchivedNodes(5);
+		List<NodeRef> storeNodes = inTransaction(
+		        new RetryingTransactionCallback<List<NodeRef>>()
+		        {
+			        public List<NodeRef> execute() throws Throwable
+			        {
+				        if (!nodeService.exists(store))
+				        {
+					        nodeService.createStore(store.getProtocol(),
+					                store.getIdentifier());
+				        }
+				        NodeRef root = nodeService.getRootNode(store);
+				        List<NodeRef> created = new ArrayList<NodeRef>();
+				        for (int i = 0; i < 5; i++)
+				        {
+					        String name = "Archived " + i + " ("
+					                + System.currentTimeMillis() + ")";
+					        Map<QName, Serializable> props =
+					                new HashMap<QName, Serializable>();
+					        props.put(ContentModel.PROP_NAME, name);
+					        QName assocName = QName.createQName(
+					                NamespaceService.CONTENT_MODEL_PREFIX,
+					                name);
+					        created.add(nodeService.createNode(root,
+					                ContentModel.ASSOC_CHILDREN, assocName,
+					                ContentModel.TYPE_CONTENT, props)
+					                .getChildRef());
+				        }
+				        return created;
+			        }
+		        });
+		executeJob(StoreRef.STORE_REF_ARCHIVE_SPACESSTORE + "," + store
+		        + ";deleteBatchCount=3;maxRunSeconds=0");
+		for (NodeRef node : spacesStoreNodes)
+		{
+			assertFalse(exists(node));
+		}
+		int remaining = 0;
+		for (NodeRef node : storeNodes)
+		{
+			remaining += exists(node) ? 1 : 0;
+		}
+		assertEquals(2, remaining);
+		executeJob(store.toString());
+		for (NodeRef node : storeNodes)
+		{
+			assertFalse(exists(node));
+		}
+	}
+
+	/**
+	 * 
+	 * Tests that the archived date index counts the nodes of each day as they
+	 * are added and removed, and counts the ones archived before a cutoff.
+	 * 
+	 * @throws Throwable
+	 */
+	public void testArchivedDateIndexCounts() throws Throwable
+	{
+		final ArchivedDateIndex index = new ArchivedDateIndex();
+		index.setAttributeService((AttributeService) applicationContext
+		        .getBean("attributeService"));
+		index.setEnabled(true);
+		final StoreRef store = new StoreRef("archive", "TrashcanCounterTest");
+		final long now = System.currentTimeMillis();
+		final long yearAgo = now - 1000L * 60 * 60 * 24 * 365;
+		try
+		{
+			inTransaction(new RetryingTransactionCallback<Object>()
+			{
+				public Object execute() throws Throwable
+				{
+					for (int i = 0; i < 10; i++)
+					{
+						index.add(new NodeRef(store, "old" + i), yearAgo);
+						index.add(new NodeRef(store, "new" + i), now);
+					}
+					index.remove(new NodeRef(store, "old0"));
+					return null;
+				}
+			});
+			inTransaction(new RetryingTransactionCallback<Object>()
+			{
+				public Object execute() throws Throwable
+				{
+					assertEquals(19, index.count(store.toString()));
+					assertEquals(9, index.count(store.toString(), now - 1000L
+					        * 60 * 60 * 24));
+					assertEquals(2, index.getCounts(store.toString()).size());
+					index.remove(new NodeRef(store, "new0"));
+					return null;
+				}
+			});
+			assertEquals(Long.valueOf(18), inReadOnlyTransaction(
+			        new RetryingTransactionCallback<Long>()
+			        {
+				        public Long execute() throws Throwable
+				        {
+					        return index.count(store.toString());
+				        }
+			        }));
+		} finally
+		{
+			inTransaction(new RetryingTransactionCallback<Object>()
+			{
+				public Object execute() throws Throwable
+				{
+					index.clear(store.toString());
+					return null;
+				}
+			});
+		}
+	}
+
+	/**
+	 * 
+	 * Tests that the days emptied by the purge are dropped from the index once
+	 * their counts are merged, and that reading the oldest nodes stops at the
+	 * number asked for.
+	 * 
+	 * @throws Throwable
+	 */
+	public void testArchivedDateIndexPrunesDays() throws Throwable
+	{
+		final ArchivedDateIndex index = new ArchivedDateIndex();
+		index.setAttributeService((AttributeService) applicationContext
+		        .getBean("attributeService"));
+		index.setEnabled(true);
+		final StoreRef store = new StoreRef("archive", "TrashcanPruneTest");
+		final long now = System.currentTimeMillis();
+		final long yearAgo = now - 1000L * 60 * 60 * 24 * 365;
+		final long monthAgo = now - 1000L * 60 * 60 * 24 * 30;
+		try
+		{
+			inTransaction(new RetryingTransactionCallback<Object>()
+			{
+				public Object execute() throws Throwable
+				{
+					for (int i = 0; i < 10; i++)
+					{
+						index.add(new NodeRef(store, "old" + i), yearAgo);
+						index.add(new NodeRef(store, "recent" + i), monthAgo);
+					}
+					return null;
+				}
+			});
+			inTransaction(new RetryingTransactionCallback<Object>()
+			{
+				public Object execute() throws Throwable
+				{
+					assertEquals(5, index.getOldest(store, 5, now).size());
+					for (int i = 0; i < 10; i++)
+					{
+						index.remove(new NodeRef(store, "old" + i));
+					}
+					return null;
+				}
+			});
+			inTransaction(new RetryingTransactionCallback<Object>()
+			{
+				public Object execute() throws Throwable
+				{
+					assertTrue(index.mergeCounts(store.toString()));
+					return null;
+				}
+			});
+			inReadOnlyTransaction(new RetryingTransactionCallback<Object>()
+			{
+				public Object execute() throws Throwable
+				{
+					assertFalse(index.getDays(store.toString()).contains(
+					        ArchivedDateIndex.getDay(yearAgo)));
+					assertEquals(10, index.count(store.toString()));
+					List<NodeRef> oldest = index.getOldest(store, 20, now);
+					assertEquals(10, oldest.size());
+					assertEquals(new NodeRef(store, "recent0"), oldest.get(0));
+					return null;
+				}
+			});
+		} finally
+		{
+			inTransaction(new RetryingTransactionCallback<Object>()
+			{
+				public Object execute() throws Throwable
+				{
+					index.clear(store.toString());
+					return null;
+				}
+			});
+		}
+	}
+
+	/**
+	 * 
+	 * Tests that the usage of each user adds up the nodes and bytes they
+	 * archived, and that the oldest nodes of a user over quota are the ones
+	 * to purge.
+	 * 
+	 * @throws Throwable
+	 */
+	public void testTrashcanUsageQuotas() throws Throwable
+	{
+		final TrashcanUsage usage = new TrashcanUsage();
+		usage.setAttributeService((AttributeService) applicationContext
+		        .getBean("attributeService"));
+		usage.setNodeService(nodeService);
+		usage.setEnabled(true);
+		final StoreRef store = new StoreRef("archive", "TrashcanUsageTest");
+		final TrashcanQuotas quotas = TrashcanQuotas.parse(
+		        "light;maxNodes=0", 5, 0);
+		try
+		{
+			inTransaction(new RetryingTransactionCallback<Object>()
+			{
+				public Object execute() throws Throwable
+				{
+					for (int i = 0; i < 10; i++)
+					{
+						usage.add(new NodeRef(store, "heavy" + i), "heavy", i,
+						        100);
+						usage.add(new NodeRef(store, "light" + i), "light", i,
+						        1);
+					}
+					usage.remove(new NodeRef(store, "heavy0"));
+					return null;
+				}
+			});
+			inReadOnlyTransaction(new RetryingTransactionCallback<Object>()
+			{
+				public Object execute() throws Throwable
+				{
+					TrashcanUsage.Usage heavy = usage.getUsage(
+					        store.toString(), "heavy");
+					assertEquals(9, heavy.getCount());
+					assertEquals(900, heavy.getBytes());
+					assertEquals(4, quotas.getExcessNodes("heavy", heavy));
+					assertEquals(0, quotas.getExcessNodes("light", usage
+					        .getUsage(store.toString(), "light")));
+					List<Pair<NodeRef, Long>> oldest = usage.getOldest(
+					        store.toString(), "heavy", 4);
+					assertEquals(4, oldest.size());
+					assertEquals(new NodeRef(store, "heavy1"), oldest.get(0)
+					        .getFirst());
+					assertEquals(Long.valueOf(100), oldest.get(0).getSecond());
+					return null;
+				}
+			});
+		} finally
+		{
+			inTransaction(new RetryingTransactionCallback<Object>()
+			{
+				public Object execute() throws Throwable
+				{
+					usage.clear(store.toString());
+					return null;
+				}
+			});
+		}
+	}
+
+	/**
+	 * 
+	 * Tests that the content of a purged node is deleted from the content
+	 * store right after the purge, and its bytes reported as freed.
+	 * 
+	 * @throws Throwable
+	 */
+	public void testCleanBatchReclaimed() throws Throwable
+	{
+		final String content = "The content to reclaim";
+		final ContentData contentData = inTransaction(
+		        new RetryingTransactionCallback<ContentData>()
+		        {
+			        public ContentData execute() throws Throwable
+			        {
+				        NodeRef companyHome = repository
+				                .getCompanyHome();
+				        String name = "Sample ("
+				                + System.currentTimeMillis() + ")";
+				        Map<QName, Serializable> contentProps = new HashMap<QName, Serializable>();
+				        contentProps.put(ContentModel.PROP_NAME, name);
+				        NodeRef node = nodeService.createNode(
+				                companyHome,
+				                ContentModel.ASSOC_CONTAINS,
+				                QName.createQName(
+				                        NamespaceService.CONTENT_MODEL_PREFIX,
+				                        name),
+				                ContentModel.TYPE_CONTENT,
+				                contentProps).getChildRef();
+				        ContentWriter writer = contentService
+				                .getWriter(node,
+				                        ContentModel.PROP_CONTENT, true);
+				        writer.setMimetype(MimetypeMap.MIMETYPE_TEXT_PLAIN);
+				        writer.putContent(content);
+				        ContentData data = (ContentData) nodeService
+				                .getProperty(node,
+				                        ContentModel.PROP_CONTENT);
+				        nodeService.deleteNode(node);
+				        return data;
+			        }
+		        });
+		ContentReclaimer reclaimer = new ContentReclaimer();
+		reclaimer.setNodeService(nodeService);
+		reclaimer.setContentDataDAO((ContentDataDAO) applicationContext
+		        .getBean("contentDataDAO"));
+		reclaimer.setContentStoreCleaner((EagerContentStoreCleaner) applicationContext
+		        .getBean("eagerContentStoreCleaner"));
+		reclaimer.setTransactionService(transactionService);
+		reclaimer.setEnabled(true);
+		TrashcanCleaner cleaner = new TrashcanCleaner(nodeService,
+		        BATCH_SIZE, -1);
+		cleaner.setNodeDAO(nodeDAO);
+		cleaner.setTransactionService(transactionService);
+		cleaner.setTransactionSize(BATCH_SIZE);
+		cleaner.setReclaimer(reclaimer);
+		cleaner.clean();
+		assertEquals(1, reclaimer.getPending());
+		assertEquals(contentData.getSize(), reclaimer.reclaim());
+		assertEquals(0, reclaimer.getPending());
+		boolean exists = inReadOnlyTransaction(
+		        new RetryingTransactionCallback<Boolean>()
+		        {
+			        public Boolean execute() throws Throwable
+			        {
+				        return contentService.getRawReader(
+				                contentData.getContentUrl()).exists();
+			        }
+		        });
+		assertFalse(exists);
+	}
+
+	/**
+	 * 
+	 * Tests that an on-demand purge stops at its maximum number of nodes,
+	 * reporting them as deleted, and that a purge without limit empties the
+	 * trashcan.
+	 * 
+	 * @throws Throwable
+	 */
+	public void testPurgeService() throws Throwable
+	{
+		inTransaction(new RetryingTransactionCallback<Object>()
+		{
+			public Object execute() throws Throwable
+			{
+				createAndDeleteNodes(20);
+				return null;
+			}
+		});
+		TrashcanPurgeService purgeService = new TrashcanPurgeService();
+		purgeService.setNodeService(nodeService);
+		purgeService.setNodeDAO(nodeDAO);
+		purgeService.setTransactionService(transactionService);
+		purgeService.setJobLockService((JobLockService) applicationContext
+		        .getBean("jobLockService"));
+		purgeService.setTransactionSize(5);
+		try
+		{
+			TrashcanPurge purge = purgeService.start(
+			        StoreRef.STORE_REF_ARCHIVE_SPACESSTORE.toString(), -1, 10,
+			        0);
+			waitFor(purge);
+			assertEquals(TrashcanPurge.State.COMPLETED, purge.getState());
+			assertEquals(10, purge.getDeleted());
+			assertSame(purge, purgeService.getPurge(purge.getId()));
+			final TrashcanCleaner cleaner = new TrashcanCleaner(nodeService,
+			        BATCH_SIZE, -1);
+			long remaining = inReadOnlyTransaction(
+			        new RetryingTransactionCallback<Long>()
+			        {
+				        public Long execute() throws Throwable
+				        {
+					        return cleaner.getNumberOfNodesInTrashcan();
+				        }
+			        });
+			assertEquals(10, remaining);
+			purge = purgeService.start(
+			        StoreRef.STORE_REF_ARCHIVE_SPACESSTORE.toString(), -1, 0, 0);
+			waitFor(purge);
+			assertEquals(TrashcanPurge.State.COMPLETED, purge.getState());
+			assertEquals(10, purge.getDeleted());
+		} finally
+		{
+			purgeService.destroy();
+		}
+	}
+
+	/**
+	 * 
+	 * Tests that a retention rule by path purges the node deleted from that
+	 * folder while the one deleted elsewhere keeps the global daysToKeep.
+	 * 
+	 * @throws Throwable
+	 */
+	public void testRetentionRules() throws Throwable
+	{
+		final NodeRef[] nodes = new NodeRef[3];
+		String path = inTransaction(new RetryingTransactionCallback<String>()
+		{
+			public String execute() throws Throwable
+			{
+				NodeRef companyHome = repository.getCompanyHome();
+				nodes[0] = createNode(companyHome, "Temp",
+				        ContentModel.TYPE_FOLDER);
+				NodeRef temporary = createNode(nodes[0], "Temporary",
+				        ContentModel.TYPE_CONTENT);
+				NodeRef kept = createNode(companyHome, "Kept",
+				        ContentModel.TYPE_CONTENT);
+				nodeService.deleteNode(temporary);
+				nodeService.deleteNode(kept);
+				nodes[1] = new NodeRef(
+				        StoreRef.STORE_REF_ARCHIVE_SPACESSTORE, temporary
+				                .getId());
+				nodes[2] = new NodeRef(
+				        StoreRef.STORE_REF_ARCHIVE_SPACESSTORE, kept
+				                .getId());
+				return nodeService.getPath(nodes[0]).toPrefixString(
+				        namespaceService);
+			}
+		});
+		TrashcanCleaner cleaner = new TrashcanCleaner(nodeService,
+		        BATCH_SIZE, 30);
+		cleaner.setNodeDAO(nodeDAO);
+		cleaner.setTransactionService(transactionService);
+		cleaner.setTransactionSize(BATCH_SIZE);
+		cleaner.setRetentionRules(RetentionRules.parse("0;path=" + path,
+		        nodeService, dictionaryService, namespaceService, 100));
+		cleaner.clean();
+		assertFalse(exists(nodes[1]));
+		assertTrue(exists(nodes[2]));
+		inTransaction(new RetryingTransactionCallback<Object>()
+		{
+			public Object execute() throws Throwable
+			{
+				nodeService.deleteNode(nodes[0]);
+				return null;
+			}
+		});
+		cleaner = new TrashcanCleaner(nodeService, BATCH_SIZE, -1);
+		cleaner.setNodeDAO(nodeDAO);
+		cleaner.setTransactionService(transactionService);
+		cleaner.setTransactionSize(BATCH_SIZE);
+		cleaner.clean();
+	}
+
+	/**
+	 * 
+	 * Waits up to a minute for the purge to finish.
+	 * 
+	 * @param purge
+	 * @throws InterruptedException
+	 */
+	private void waitFor(TrashcanPurge purge) throws InterruptedException
+	{
+		for (int i = 0; i < 600 && !purge.isFinished(); i++)
+		{
+			Thread.sleep(100);
+		}
+		assertTrue(purge.isFinished());
+	}
+
 	/**
 	 * 
 	 * Generic method that asserts that for the <b>nodesCreate</b> existing on
@@ -136,30 +1226,99 @@ public class TrashcanCleanerTest extends TestCase
 	private void cleanBatchTest(int nodesCreate, int nodesRemain)
 	        throws Throwable
 	{
-		UserTransaction userTransaction1 = transactionService
+		cleanBatchTest(nodesCreate, nodesRemain, false);
+	}
+
+	/**
+	 * 
+	 * Generic method that asserts that for the <b>nodesCreate</b> existing on
+	 * archive store the execution of trashcan clean will leave remaining
+	 * undeleted <b>nodesRemain</b>. If <b>paged</b> the cleaner reads the
+	 * trashcan page by page.
+	 * 
+	 * @param nodesCreate
+	 * @param nodesRemain
+	 * @param paged
+	 * @throws Throwable
+	 */
+	private void cleanBatchTest(final int nodesCreate,
+	        final int nodesRemain, final boolean paged) throws Throwable
+	{
+		inUserTransaction(new RetryingTransactionCallback<Object>()
+		{
+			public Object execute() throws Throwable
+			{
+				TrashcanCleaner cleaner = new TrashcanCleaner(nodeService,
+				        BATCH_SIZE, -1);
+				if (paged)
+				{
+					cleaner.setNodeDAO(nodeDAO);
+				}
+				createAndDeleteNodes(nodesCreate);
+				long nodesToDelete = cleaner.getNumberOfNodesInTrashcan();
+				System.out.println(String.format("Existing nodes to delete: %s",
+				        nodesToDelete));
+				cleaner.clean();
+				nodesToDelete = cleaner.getNumberOfNodesInTrashcan();
+				System.out.println(String.format(
+				        "Existing nodes to delete after: %s", nodesToDelete));
+				assertEquals(nodesRemain,nodesToDelete);
+				System.out.println("Clean trashcan...");
+				cleaner.clean();
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * 
+	 * Runs the callback in a read write transaction of its own.
+	 * 
+	 * @param callback
+	 * @return the result of the callback
+	 */
+	private <R> R inTransaction(RetryingTransactionCallback<R> callback)
+	{
+		return transactionService.getRetryingTransactionHelper()
+		        .doInTransaction(callback, false, true);
+	}
+
+	/**
+	 * 
+	 * Runs the callback in a read only transaction of its own.
+	 * 
+	 * @param callback
+	 * @return the result of the callback
+	 */
+	private <R> R inReadOnlyTransaction(RetryingTransactionCallback<R> callback)
+	{
+		return transactionService.getRetryingTransactionHelper()
+		        .doInTransaction(callback, true, true);
+	}
+
+	/**
+	 * 
+	 * Runs the work in a user transaction, without retrying it, rolling it
+	 * back if it fails.
+	 * 
+	 * @param work
+	 * @throws Throwable
+	 */
+	private void inUserTransaction(RetryingTransactionCallback<Object> work)
+	        throws Throwable
+	{
+		UserTransaction userTransaction = transactionService
 		        .getUserTransaction();
 		try
 		{
-			userTransaction1.begin();
-			TrashcanCleaner cleaner = new TrashcanCleaner(nodeService,
-			        BATCH_SIZE, -1);
-			createAndDeleteNodes(nodesCreate);
-			long nodesToDelete = cleaner.getNumberOfNodesInTrashcan();
-			System.out.println(String.format("Existing nodes to delete: %s",
-			        nodesToDelete));
-			cleaner.clean();
-			nodesToDelete = cleaner.getNumberOfNodesInTrashcan();
-			System.out.println(String.format(
-			        "Existing nodes to delete after: %s", nodesToDelete));
-			assertEquals(nodesRemain,nodesToDelete);
-			System.out.println("Clean trashcan...");
-			cleaner.clean();
-			userTransaction1.commit();
+			userTransaction.begin();
+			work.execute();
+			userTransaction.commit();
 		} catch (Throwable e)
 		{
 			try
 			{
-				userTransaction1.rollback();
+				userTransaction.rollback();
 			} catch (IllegalStateException ee)
 			{
 			}
@@ -167,6 +1326,167 @@ public class TrashcanCleanerTest extends TestCase
 		}
 	}
 
+	/**
+	 * 
+	 * Creates and deletes the specified number of nodes in a transaction of
+	 * its own.
+	 * 
+	 * @param n
+	 * @return the nodes deleted, in the archive store
+	 */
+	private List<NodeRef> createArchivedNodes(final int n)
+	{
+		return inTransaction(new RetryingTransactionCallback<List<NodeRef>>()
+		{
+			public List<NodeRef> execute() throws Throwable
+			{
+				List<NodeRef> archived = new ArrayList<NodeRef>(n);
+				for (int i = 0; i < n; i++)
+				{
+					archived.add(new NodeRef(
+					        StoreRef.STORE_REF_ARCHIVE_SPACESSTORE,
+					        createAndDeleteNode().getId()));
+				}
+				return archived;
+			}
+		});
+	}
+
+	/**
+	 * 
+	 * Counts the nodes in the trashcan of the cleaner in a transaction of its
+	 * own.
+	 * 
+	 * @param cleaner
+	 * @return
+	 */
+	private long countNodesInTrashcan(final TrashcanCleaner cleaner)
+	{
+		return inReadOnlyTransaction(new RetryingTransactionCallback<Long>()
+		{
+			public Long execute() throws Throwable
+			{
+				return cleaner.getNumberOfNodesInTrashcan();
+			}
+		});
+	}
+
+	/**
+	 * 
+	 * Runs the {@link org.alfresco.trashcan.TrashcanCleanerJob
+	 * TrashcanCleanerJob} once over the archive stores, purging the nodes of
+	 * any age and draining each store for up to a minute unless its settings
+	 * say otherwise.
+	 * 
+	 * @param archiveStores
+	 *            the value of <b>trashcan.archiveStores</b>
+	 * @throws JobExecutionException
+	 */
+	private void executeJob(String archiveStores)
+	        throws JobExecutionException
+	{
+		JobDetail jobDetail = new JobDetail("trashcanCleanerTest", null,
+		        TrashcanCleanerJob.class);
+		JobDataMap jobData = jobDetail.getJobDataMap();
+		jobData.put("nodeService", nodeService);
+		jobData.put("nodeDAO", nodeDAO);
+		jobData.put("transactionService", transactionService);
+		jobData.put("authenticationComponent", authenticationComponent);
+		jobData.put("jobLockService",
+		        applicationContext.getBean("jobLockService"));
+		jobData.put("namespaceService", namespaceService);
+		jobData.put("dictionaryService", dictionaryService);
+		jobData.put("behaviourFilter", behaviourFilter);
+		jobData.put("trashcan.daysToKeep", "-1");
+		jobData.put("trashcan.deleteBatchCount", String.valueOf(BATCH_SIZE));
+		jobData.put("trashcan.maxRunSeconds", "60");
+		jobData.put("trashcan.archiveStores", archiveStores);
+		TrashcanCleanerJob job = new TrashcanCleanerJob();
+		job.execute(new JobExecutionContext(null, new TriggerFiredBundle(
+		        jobDetail, new SimpleTrigger(), null, false, null, null, null,
+		        null), job));
+	}
+
+	/**
+	 * 
+	 * Estimates the trashcan of the cleaner in a transaction of its own.
+	 * 
+	 * @param cleaner
+	 * @param sampleSize
+	 * @param nodesPerSecond
+	 * @return
+	 */
+	private TrashcanEstimate estimate(final TrashcanCleaner cleaner,
+	        final int sampleSize, final double nodesPerSecond)
+	{
+		return inReadOnlyTransaction(
+		        new RetryingTransactionCallback<TrashcanEstimate>()
+		        {
+			        public TrashcanEstimate execute() throws Throwable
+			        {
+				        return cleaner.estimate(sampleSize, nodesPerSecond);
+			        }
+		        });
+	}
+
+	/**
+	 * 
+	 * Reads the position of the resume cursor in a transaction of its own.
+	 * 
+	 * @param cursor
+	 * @return
+	 */
+	private long loadCursor(final TrashcanResumeCursor cursor)
+	{
+		return inReadOnlyTransaction(new RetryingTransactionCallback<Long>()
+		{
+			public Long execute() throws Throwable
+			{
+				return cursor.load();
+			}
+		});
+	}
+
+	/**
+	 * 
+	 * Persists the position of the resume cursor in a transaction of its own.
+	 * 
+	 * @param cursor
+	 * @param assocId
+	 */
+	private void saveCursor(final TrashcanResumeCursor cursor,
+	        final long assocId)
+	{
+		inTransaction(new RetryingTransactionCallback<Object>()
+		{
+			public Object execute() throws Throwable
+			{
+				cursor.save(assocId);
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * 
+	 * Reads the id of the primary child association of the node, its position
+	 * below the archive store root.
+	 * 
+	 * @param node
+	 * @return
+	 */
+	private long getAssocId(final NodeRef node)
+	{
+		return inReadOnlyTransaction(new RetryingTransactionCallback<Long>()
+		{
+			public Long execute() throws Throwable
+			{
+				return nodeDAO.getPrimaryParentAssoc(
+				        nodeDAO.getNodePair(node).getFirst()).getFirst();
+			}
+		});
+	}
+
 	/**
 	 * 
 	 * Creates and deletes the specified number of nodes.
@@ -182,13 +1502,83 @@ public class TrashcanCleanerTest extends TestCase
 
 	}
 
+	/**
+	 * 
+	 * Creates a folder with the specified number of nodes inside and deletes
+	 * it.
+	 * 
+	 * @param n
+	 * @return the folder deleted, in the archive store
+	 */
+	private NodeRef createAndDeleteFolder(int n)
+	{
+		NodeRef companyHome = repository.getCompanyHome();
+		String name = "Folder (" + System.currentTimeMillis() + ")";
+		Map<QName, Serializable> folderProps = new HashMap<QName, Serializable>();
+		folderProps.put(ContentModel.PROP_NAME, name);
+		NodeRef folder = nodeService.createNode(companyHome,
+		        ContentModel.ASSOC_CONTAINS,
+		        QName.createQName(NamespaceService.CONTENT_MODEL_PREFIX, name),
+		        ContentModel.TYPE_FOLDER, folderProps).getChildRef();
+		for (int i = 0; i < n; i++)
+		{
+			Map<QName, Serializable> contentProps = new HashMap<QName, Serializable>();
+			contentProps.put(ContentModel.PROP_NAME, "Sample " + i);
+			nodeService.createNode(folder, ContentModel.ASSOC_CONTAINS, QName
+			        .createQName(NamespaceService.CONTENT_MODEL_PREFIX,
+			                "Sample " + i), ContentModel.TYPE_CONTENT,
+			        contentProps);
+		}
+		nodeService.deleteNode(folder);
+		return new NodeRef(StoreRef.STORE_REF_ARCHIVE_SPACESSTORE,
+		        folder.getId());
+	}
+
+	/**
+	 * 
+	 * Creates a node with a unique name below the parent.
+	 * 
+	 * @param parent
+	 * @param name
+	 * @param type
+	 * @return
+	 */
+	private NodeRef createNode(NodeRef parent, String name, QName type)
+	{
+		name = name + " (" + System.currentTimeMillis() + ")";
+		Map<QName, Serializable> props = new HashMap<QName, Serializable>();
+		props.put(ContentModel.PROP_NAME, name);
+		return nodeService.createNode(parent, ContentModel.ASSOC_CONTAINS,
+		        QName.createQName(NamespaceService.CONTENT_MODEL_PREFIX, name),
+		        type, props).getChildRef();
+	}
+
+	/**
+	 * 
+	 * Checks in a transaction of its own if the node exists.
+	 * 
+	 * @param node
+	 * @return
+	 */
+	private boolean exists(final NodeRef node)
+	{
+		return inReadOnlyTransaction(new RetryingTransactionCallback<Boolean>()
+		{
+			public Boolean execute() throws Throwable
+			{
+				return nodeService.exists(node);
+			}
+		});
+	}
+
 	/**
 	 * 
 	 * Creates and delete a single node whose name is based on the current time
 	 * in milliseconds.
 	 * 
+	 * @return the node deleted
 	 */
-	private void createAndDeleteNode()
+	private NodeRef createAndDeleteNode()
 	{
 		NodeRef companyHome = repository.getCompanyHome();
 		String name = "Sample (" + System.currentTimeMillis() + ")";
@@ -199,7 +1589,68 @@ public class TrashcanCleanerTest extends TestCase
 		        QName.createQName(NamespaceService.CONTENT_MODEL_PREFIX, name),
 		        ContentModel.TYPE_CONTENT, contentProps);
 		nodeService.deleteNode(association.getChildRef());
+		return association.getChildRef();
+	}
+
+
+	/**
+	 * 
+	 * A {@link org.alfresco.service.cmr.repository.NodeService NodeService}
+	 * counting the deletions of each node that are committed, and failing the
+	 * deletion of the <b>poison</b> node, if any.
+	 * 
+	 */
+	private class DeletionCounter implements InvocationHandler
+	{
+		private NodeRef poison;
+		private ConcurrentHashMap<NodeRef, AtomicInteger> deletions =
+		        new ConcurrentHashMap<NodeRef, AtomicInteger>();
 
+		private DeletionCounter(NodeRef poison)
+		{
+			this.poison = poison;
+		}
+
+		private NodeService getNodeService()
+		{
+			return (NodeService) Proxy.newProxyInstance(
+			        NodeService.class.getClassLoader(),
+			        new Class<?>[] { NodeService.class }, this);
+		}
+
+		private int getDeletions(NodeRef node)
+		{
+			AtomicInteger count = deletions.get(node);
+			return count != null ? count.get() : 0;
+		}
+
+		public Object invoke(Object proxy, Method method, Object[] args)
+		        throws Throwable
+		{
+			if (method.getName().equals("deleteNode"))
+			{
+				final NodeRef node = (NodeRef) args[0];
+				if (node.equals(poison))
+					throw new IllegalStateException("Poison node " + node);
+				AlfrescoTransactionSupport
+				        .bindListener(new TransactionListenerAdapter()
+				        {
+					        @Override
+					        public void afterCommit()
+					        {
+						        deletions.putIfAbsent(node, new AtomicInteger());
+						        deletions.get(node).incrementAndGet();
+					        }
+				        });
+			}
+			try
+			{
+				return method.invoke(nodeService, args);
+			} catch (InvocationTargetException e)
+			{
+				throw e.getCause();
+			}
+		}
 	}
 
 }